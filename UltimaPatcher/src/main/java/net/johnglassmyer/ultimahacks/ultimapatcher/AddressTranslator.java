@@ -0,0 +1,304 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+import net.johnglassmyer.ultimahacks.ultimapatcher.Segment.Patchable;
+
+/**
+ * Translates between file offsets and segment:offset addresses in an executable, as
+ * --file-to-segmented and --segmented-to-file do, but for a stream of any number of addresses,
+ * such as those of a trace or a relocation dump.
+ * <p>
+ * The patchable range of each segment is indexed up front, in arrays sorted by start in the file,
+ * so that a file offset's segment is found by binary search. Lines are read as bytes into a reused
+ * buffer, and translations are formatted into a reused output buffer, so that translating
+ * allocates nothing per address.
+ */
+class AddressTranslator {
+	static final int NONE = -1;
+
+	private static final int OUTPUT_BUFFER_LENGTH = 0x10000;
+	/** Longest output for one line, beyond the echoed input. */
+	private static final int MAX_TRANSLATION_LENGTH = 0x40;
+
+	private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ARROW = " => ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] NO_MATCHING_SEGMENT =
+			"(no matching segment)".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] INVALID_ADDRESS =
+			"(invalid address)".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CSV_HEADER =
+			"input,segment,offset,file_offset\n".getBytes(StandardCharsets.US_ASCII);
+
+	/** Segments of non-zero length, in order of their starts in the file. */
+	private final int[] segmentIndicesByStart;
+	private final int[] startsInFile;
+	private final int[] endsInFile;
+	/** By segment index: */
+	private final int[] zerosInFile;
+	private final int[] startOffsets;
+	private final int[] endOffsets;
+
+	private byte[] outputBuffer = new byte[OUTPUT_BUFFER_LENGTH];
+	private int outputLength;
+
+	AddressTranslator(Executable executable) {
+		int segmentCount = executable.segments.size();
+		zerosInFile = new int[segmentCount];
+		startOffsets = new int[segmentCount];
+		endOffsets = new int[segmentCount];
+		for (int segmentIndex = 0; segmentIndex < segmentCount; segmentIndex++) {
+			Patchable patchable = executable.segments.get(segmentIndex).patchable();
+			zerosInFile[segmentIndex] = patchable.startInFile() - patchable.startOffset();
+			startOffsets[segmentIndex] = patchable.startOffset();
+			endOffsets[segmentIndex] = patchable.endOffset();
+		}
+
+		segmentIndicesByStart = IntStream.range(0, segmentCount)
+				.filter(segmentIndex -> startOffsets[segmentIndex] < endOffsets[segmentIndex])
+				.boxed()
+				.sorted(Comparator.comparingInt(segmentIndex -> startInFile(segmentIndex)))
+				.mapToInt(Integer::intValue)
+				.toArray();
+		startsInFile = Arrays.stream(segmentIndicesByStart).map(this::startInFile).toArray();
+		endsInFile = Arrays.stream(segmentIndicesByStart)
+				.map(segmentIndex -> zerosInFile[segmentIndex] + endOffsets[segmentIndex])
+				.toArray();
+	}
+
+	private int startInFile(int segmentIndex) {
+		return zerosInFile[segmentIndex] + startOffsets[segmentIndex];
+	}
+
+	/** Finds the segment containing a file offset, or returns {@link #NONE}. */
+	int segmentIndexForFileOffset(int fileOffset) {
+		int index = Arrays.binarySearch(startsInFile, fileOffset);
+		if (index < 0) {
+			index = -(index + 1) - 1;
+		}
+
+		return index >= 0 && fileOffset < endsInFile[index] ? segmentIndicesByStart[index] : NONE;
+	}
+
+	/** Offset within its segment of a file offset in the segment. */
+	int offsetInSegment(int segmentIndex, int fileOffset) {
+		return fileOffset - zerosInFile[segmentIndex];
+	}
+
+	/**
+	 * Translates the address on each line of input (ignoring blank lines): a file offset (as
+	 * <code>0x</code>-prefixed hexadecimal or decimal) to a segment:offset address, or a
+	 * <code>segmentIndex:offset</code> address to a file offset. Writes either
+	 * <code>input => translation</code> or, as CSV, <code>input,segment,offset,file_offset</code>,
+	 * leaving the fields of an address that isn't in the executable empty.
+	 */
+	void translate(InputStream input, OutputStream output, boolean csv) throws IOException {
+		if (csv) {
+			output.write(CSV_HEADER);
+		}
+
+		byte[] line = new byte[0x100];
+		int lineLength = 0;
+		byte[] inputBuffer = new byte[0x10000];
+		int readLength;
+		while ((readLength = input.read(inputBuffer)) > 0) {
+			for (int i = 0; i < readLength; i++) {
+				byte b = inputBuffer[i];
+				if (b == '\n') {
+					translateLine(line, lineLength, output, csv);
+					lineLength = 0;
+				} else {
+					if (lineLength == line.length) {
+						line = Arrays.copyOf(line, line.length * 2);
+					}
+					line[lineLength++] = b;
+				}
+			}
+		}
+		if (lineLength > 0) {
+			translateLine(line, lineLength, output, csv);
+		}
+
+		output.write(outputBuffer, 0, outputLength);
+		outputLength = 0;
+		output.flush();
+	}
+
+	private void translateLine(byte[] line, int lineLength, OutputStream output, boolean csv)
+			throws IOException {
+		int start = 0;
+		while (start < lineLength && isSpace(line[start])) {
+			start++;
+		}
+		int end = lineLength;
+		while (end > start && isSpace(line[end - 1])) {
+			end--;
+		}
+		if (start == end) {
+			return;
+		}
+
+		// (quoting for CSV at most doubles the input, and adds two quotes)
+		int maxLength = (csv ? 2 * (end - start) + 2 : end - start) + MAX_TRANSLATION_LENGTH;
+		if (outputLength + maxLength > outputBuffer.length) {
+			output.write(outputBuffer, 0, outputLength);
+			outputLength = 0;
+			if (maxLength > outputBuffer.length) {
+				outputBuffer = new byte[maxLength];
+			}
+		}
+
+		if (csv) {
+			putCsvField(line, start, end);
+		} else {
+			System.arraycopy(line, start, outputBuffer, outputLength, end - start);
+			outputLength += end - start;
+		}
+
+		int colon = start;
+		while (colon < end && line[colon] != ':') {
+			colon++;
+		}
+
+		int segmentIndex = NONE;
+		int offset = 0;
+		if (colon < end) {
+			segmentIndex = parseNumber(line, start, colon, 10);
+			offset = parseNumber(line, colon + 1, end, 10);
+			if (segmentIndex < 0 || segmentIndex >= zerosInFile.length
+					|| offset < startOffsets[segmentIndex]
+					|| offset > endOffsets[segmentIndex]) {
+				segmentIndex = NONE;
+			}
+		} else {
+			int fileOffset = parseNumber(line, start, end, 10);
+			if (fileOffset >= 0) {
+				segmentIndex = segmentIndexForFileOffset(fileOffset);
+				if (segmentIndex != NONE) {
+					offset = offsetInSegment(segmentIndex, fileOffset);
+				}
+			}
+		}
+
+		if (csv) {
+			put(',');
+			if (segmentIndex != NONE) {
+				putDecimal(segmentIndex);
+				put(',');
+				putHex(offset, 4);
+				put(',');
+				putHex(zerosInFile[segmentIndex] + offset, 5);
+			} else {
+				put(',');
+				put(',');
+			}
+		} else {
+			put(ARROW);
+			if (segmentIndex == NONE) {
+				put(colon < end ? INVALID_ADDRESS : NO_MATCHING_SEGMENT);
+			} else if (colon < end) {
+				putHex(zerosInFile[segmentIndex] + offset, 5);
+			} else {
+				putDecimal(segmentIndex);
+				put(':');
+				putHex(offset, 4);
+			}
+		}
+		put('\n');
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+
+	/**
+	 * Parses a non-negative number, which is hexadecimal if <code>0x</code>-prefixed and otherwise
+	 * in the given radix.
+	 *
+	 * @return the number, or -1 if the bytes aren't a number of up to 7 digits
+	 */
+	private static int parseNumber(byte[] bytes, int start, int end, int radix) {
+		if (end - start > 2 && bytes[start] == '0' && (bytes[start + 1] | 0x20) == 'x') {
+			start += 2;
+			radix = 16;
+		}
+		if (start == end || end - start > 7) {
+			return -1;
+		}
+
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = Character.digit(bytes[i], radix);
+			if (digit < 0) {
+				return -1;
+			}
+			value = value * radix + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Puts a field of CSV, quoted (with its quotes doubled) if it has a comma, quote or line break,
+	 * as RFC 4180 requires.
+	 */
+	private void putCsvField(byte[] bytes, int start, int end) {
+		boolean quoted = false;
+		for (int i = start; i < end && !quoted; i++) {
+			quoted = bytes[i] == ',' || bytes[i] == '"' || bytes[i] == '\r' || bytes[i] == '\n';
+		}
+		if (!quoted) {
+			System.arraycopy(bytes, start, outputBuffer, outputLength, end - start);
+			outputLength += end - start;
+			return;
+		}
+
+		put('"');
+		for (int i = start; i < end; i++) {
+			if (bytes[i] == '"') {
+				put('"');
+			}
+			put(bytes[i]);
+		}
+		put('"');
+	}
+
+	private void put(int b) {
+		outputBuffer[outputLength++] = (byte) b;
+	}
+
+	private void put(byte[] bytes) {
+		System.arraycopy(bytes, 0, outputBuffer, outputLength, bytes.length);
+		outputLength += bytes.length;
+	}
+
+	private void putDecimal(int value) {
+		int digitCount = 1;
+		for (int remaining = value / 10; remaining > 0; remaining /= 10) {
+			digitCount++;
+		}
+		for (int i = digitCount - 1; i >= 0; i--) {
+			outputBuffer[outputLength + i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		outputLength += digitCount;
+	}
+
+	/** Puts <code>0x</code> and at least the given number of hexadecimal digits. */
+	private void putHex(int value, int minDigitCount) {
+		put('0');
+		put('x');
+		int digitCount = minDigitCount;
+		while (digitCount < 8 && (value >>> (4 * digitCount)) != 0) {
+			digitCount++;
+		}
+		for (int i = digitCount - 1; i >= 0; i--) {
+			put(HEX_DIGITS[(value >>> (4 * i)) & 0xF]);
+		}
+	}
+}
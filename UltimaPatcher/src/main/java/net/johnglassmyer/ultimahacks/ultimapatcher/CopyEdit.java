@@ -2,8 +2,12 @@ package net.johnglassmyer.ultimahacks.ultimapatcher;
 
 import java.io.IOException;
 import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 
+import com.google.common.collect.Range;
+
 import net.johnglassmyer.ultimahacks.proto.HackProto;
 
 class CopyEdit implements Edit {
@@ -39,6 +43,31 @@ class CopyEdit implements Edit {
 		return explanation;
 	}
 
+	@Override
+	public Range<Integer> writtenRange() {
+		return Range.closedOpen(destination, destination + length);
+	}
+
+	@Override
+	public Optional<Range<Integer>> readRange() {
+		return Optional.of(Range.closedOpen(source, source + length));
+	}
+
+	@Override
+	public List<Edit> captureInverse(SeekableByteChannel channel) throws IOException {
+		byte[] bytes = Util.read(channel, source, length);
+
+		return OverwriteEdit.inverseOfWrite(channel, destination, bytes);
+	}
+
+	@Override
+	public boolean isPresentIn(SeekableByteChannel channel) throws IOException {
+		return destination + (long) length <= channel.size()
+				&& Arrays.equals(
+						Util.read(channel, source, length),
+						Util.read(channel, destination, length));
+	}
+
 	@Override
 	public void applyToFile(SeekableByteChannel channel) throws IOException {
 		byte[] bytes = Util.read(channel, source, length);
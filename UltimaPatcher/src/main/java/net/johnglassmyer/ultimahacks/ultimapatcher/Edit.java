@@ -2,13 +2,50 @@ package net.johnglassmyer.ultimahacks.ultimapatcher;
 
 import java.io.IOException;
 import java.nio.channels.SeekableByteChannel;
+import java.util.List;
 import java.util.Optional;
 
+import com.google.common.collect.Range;
+
 import net.johnglassmyer.ultimahacks.proto.HackProto;
 
 interface Edit {
 	Optional<String> explanation();
 
+	/**
+	 * Range of file positions written by this edit, in the file as it is when the edit is applied
+	 * (for an insertion, the range of inserted bytes).
+	 */
+	Range<Integer> writtenRange();
+
+	/**
+	 * Range of file positions read by this edit.
+	 */
+	default Optional<Range<Integer>> readRange() {
+		return Optional.empty();
+	}
+
+	/**
+	 * Number of bytes by which this edit moves the bytes at and after its start.
+	 */
+	default int shiftLength() {
+		return 0;
+	}
+
+	/**
+	 * Reads what this edit will change in a file (which is as it is before the edit is applied) and
+	 * produces the edits that, once this edit has been applied, change it back.
+	 */
+	List<Edit> captureInverse(SeekableByteChannel channel) throws IOException;
+
+	/**
+	 * Whether a file (which is as it is when this edit is to be applied) already has the bytes this
+	 * edit would write, so that applying it would change nothing.
+	 */
+	default boolean isPresentIn(SeekableByteChannel channel) throws IOException {
+		return false;
+	}
+
 	void applyToFile(SeekableByteChannel channel) throws IOException;
 
 	HackProto.Edit toProtoMessage();
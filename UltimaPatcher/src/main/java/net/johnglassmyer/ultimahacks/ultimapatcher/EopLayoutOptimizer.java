@@ -0,0 +1,363 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Proposes an assignment of EOP procs (as declared with the eopProc macro) to expanded overlays
+ * that minimizes the number of calls between procs in different overlays, each of which may cost
+ * an overlay swap, within the number of bytes each overlay can give to EOP procs.
+ * <p>
+ * Calls are weighted by a profile of lines of the form <code>caller callee count</code>, naming
+ * procs as in their eopProc declarations, as counted from a trace or from the call sites in the
+ * patch sources (see scripts/eopCallGraph.sh). Calls involving procs not declared with eopProc
+ * are counted, but cost the same wherever the EOP procs are placed.
+ * <p>
+ * An overlay's entry points, dispatchers and dispatch table (procs named as by
+ * {@link #PINNED_PROC_PATTERN}) are pinned: they stay where they are declared, at the start of
+ * the overlay's new code, even if (like byteArgDispatcher) only some overlays declare them. The
+ * other procs start where they are declared (or, if that exceeds a budget, are placed
+ * greedily, heaviest first, in the overlay holding the most of their calls), and are then moved
+ * or swapped between overlays while that lowers the weight of calls between overlays. Within an
+ * overlay, procs keep the order of their declarations, so that a proposal differs from the
+ * declarations only where moving procs pays. The proposal gives each proc's offset in its
+ * overlay, and the length to which to expand each overlay to hold its procs.
+ */
+class EopLayoutOptimizer {
+	private static final Logger L = LogManager.getLogger(EopLayoutOptimizer.class);
+
+	private static final Pattern EOP_PROC_PATTERN = Pattern.compile(
+			"^\\s*eopProc\\s+(\\w+)\\s*,\\s*(\\w+)\\s*,\\s*(\\w+)");
+
+	/** Names of the procs that each EOP overlay needs for itself, and that can't be moved. */
+	private static final Pattern PINNED_PROC_PATTERN =
+			Pattern.compile("entry\\d+|\\w*Dispatcher|dispatchTable");
+
+	private static final int MAX_IMPROVEMENT_PASSES = 1000;
+
+	private static class EopProc {
+		final String name;
+		final int length;
+		final String declaredOverlayName;
+
+		EopProc(String name, int length, String declaredOverlayName) {
+			this.name = name;
+			this.length = length;
+			this.declaredOverlayName = declaredOverlayName;
+		}
+	}
+
+	private static class EopOverlay {
+		final String name;
+		final int segmentIndex;
+		/** Offset in the overlay of the first EOP proc, just after the original code. */
+		final int newCodeStart;
+		final int budget;
+		final List<EopProc> fixedProcs = new ArrayList<>();
+
+		EopOverlay(String name, int segmentIndex, int newCodeStart, int budget) {
+			this.name = name;
+			this.segmentIndex = segmentIndex;
+			this.newCodeStart = newCodeStart;
+			this.budget = budget;
+		}
+
+		int fixedLength() {
+			return fixedProcs.stream().mapToInt(proc -> proc.length).sum();
+		}
+	}
+
+	/**
+	 * @param overlayArgs <code>eopOverlayName:segmentIndex:newCodeStart:budget</code>, giving
+	 *            the offset of each EOP overlay's new code (as EOPn_NEW_CODE_START) and the
+	 *            number of bytes of it available to EOP procs
+	 */
+	static EopLayoutOptimizer read(
+			List<Path> eopIncludePaths, Path callProfilePath, List<String> overlayArgs)
+			throws IOException {
+		Map<String, EopOverlay> overlays = new LinkedHashMap<>();
+		for (String arg : overlayArgs) {
+			String[] parts = arg.split(":");
+			if (parts.length != 4) {
+				throw new PatchApplicationException(String.format(
+						"\"%s\" should be eopOverlayName:segmentIndex:newCodeStart:budget", arg));
+			}
+			overlays.put(parts[0], new EopOverlay(parts[0],
+					Integer.valueOf(parts[1]),
+					Integer.decode(parts[2]),
+					Integer.decode(parts[3])));
+		}
+
+		List<EopProc> declaredProcs = new ArrayList<>();
+		for (Path path : eopIncludePaths) {
+			for (String line : Files.readAllLines(path, StandardCharsets.ISO_8859_1)) {
+				Matcher matcher = EOP_PROC_PATTERN.matcher(line);
+				if (matcher.find()) {
+					String overlayName = matcher.group(1);
+					if (!overlays.containsKey(overlayName)) {
+						throw new PatchApplicationException(String.format(
+								"no --eop-overlay given for %s, declared in %s",
+								overlayName,
+								path));
+					}
+					declaredProcs.add(new EopProc(
+							matcher.group(3), Integer.decode(matcher.group(2)), overlayName));
+				}
+			}
+		}
+
+		Map<String, EopProc> movableProcs = new LinkedHashMap<>();
+		for (EopProc proc : declaredProcs) {
+			if (PINNED_PROC_PATTERN.matcher(proc.name).matches()) {
+				overlays.get(proc.declaredOverlayName).fixedProcs.add(proc);
+			} else if (movableProcs.putIfAbsent(proc.name, proc) != null) {
+				throw new PatchApplicationException(String.format(
+						"EOP proc %s is declared in more than one EOP overlay", proc.name));
+			}
+		}
+
+		Map<String, Map<String, Long>> callWeights = new HashMap<>();
+		long totalCallCount = 0;
+		for (String line : Files.readAllLines(callProfilePath, StandardCharsets.ISO_8859_1)) {
+			String[] fields = line.trim().split("\\s+");
+			if (fields.length != 3 || fields[0].startsWith("#")) {
+				continue;
+			}
+
+			long count = Long.parseLong(fields[2]);
+			totalCallCount += count;
+			if (movableProcs.containsKey(fields[0]) && movableProcs.containsKey(fields[1])
+					&& !fields[0].equals(fields[1])) {
+				callWeights.computeIfAbsent(fields[0], k -> new HashMap<>())
+						.merge(fields[1], count, Long::sum);
+				callWeights.computeIfAbsent(fields[1], k -> new HashMap<>())
+						.merge(fields[0], count, Long::sum);
+			}
+		}
+
+		return new EopLayoutOptimizer(overlays, movableProcs, callWeights, totalCallCount);
+	}
+
+	private final Map<String, EopOverlay> overlays;
+	private final Map<String, EopProc> movableProcs;
+	/** Calls between each pair of movable procs, in both directions, recorded under both. */
+	private final Map<String, Map<String, Long>> callWeights;
+	private final long totalCallCount;
+
+	private EopLayoutOptimizer(
+			Map<String, EopOverlay> overlays,
+			Map<String, EopProc> movableProcs,
+			Map<String, Map<String, Long>> callWeights,
+			long totalCallCount) {
+		this.overlays = overlays;
+		this.movableProcs = movableProcs;
+		this.callWeights = callWeights;
+		this.totalCallCount = totalCallCount;
+	}
+
+	void optimizeAndLog() {
+		Map<String, String> declaredAssignment = movableProcs.values().stream()
+				.collect(Collectors.toMap(
+						proc -> proc.name,
+						proc -> proc.declaredOverlayName,
+						(a, b) -> a,
+						LinkedHashMap::new));
+
+		Map<String, String> assignment =
+				improve(fits(declaredAssignment) ? declaredAssignment : placeGreedily());
+
+		L.info(String.format(
+				"calls between EOP overlays: %d as declared%s, %d as proposed, of %d profiled",
+				crossOverlayWeight(declaredAssignment),
+				fits(declaredAssignment) ? "" : " (over budget)",
+				crossOverlayWeight(assignment),
+				totalCallCount));
+
+		for (EopOverlay overlay : overlays.values()) {
+			List<EopProc> procs = new ArrayList<>(overlay.fixedProcs);
+			movableProcs.values().stream()
+					.filter(proc -> assignment.get(proc.name).equals(overlay.name))
+					.forEach(procs::add);
+
+			L.info("");
+			L.info(String.format("; %s (segment %d): 0x%04X of 0x%04X bytes",
+					overlay.name,
+					overlay.segmentIndex,
+					usedLength(overlay, assignment),
+					overlay.budget));
+			int offset = overlay.newCodeStart;
+			for (EopProc proc : procs) {
+				String moved = proc.declaredOverlayName.equals(overlay.name)
+						? ""
+						: ", moved from " + proc.declaredOverlayName;
+				L.info(String.format("eopProc %s, 0x%03X, %-40s ; %s%s",
+						overlay.name,
+						proc.length,
+						proc.name,
+						Util.formatAddress(overlay.segmentIndex, offset),
+						moved));
+				offset += proc.length;
+			}
+		}
+
+		L.info("");
+		L.info(overlays.values().stream()
+				.map(overlay -> String.format("--expand-overlay=%d:0x%X",
+						overlay.segmentIndex,
+						overlay.newCodeStart + usedLength(overlay, assignment)))
+				.collect(Collectors.joining(" ")));
+	}
+
+	private Map<String, String> placeGreedily() {
+		Map<String, String> assignment = new LinkedHashMap<>();
+		Map<String, Integer> usedLengths = overlays.values().stream()
+				.collect(Collectors.toMap(overlay -> overlay.name, EopOverlay::fixedLength));
+
+		List<EopProc> heaviestFirst = movableProcs.values().stream()
+				.sorted(Comparator.comparingLong((EopProc proc) -> totalWeight(proc.name))
+						.reversed())
+				.collect(Collectors.toList());
+		for (EopProc proc : heaviestFirst) {
+			Optional<EopOverlay> bestOverlay = overlays.values().stream()
+					.filter(overlay ->
+							usedLengths.get(overlay.name) + proc.length <= overlay.budget)
+					.max(Comparator
+							.comparingLong((EopOverlay overlay) ->
+									weightTo(proc.name, overlay.name, assignment))
+							.thenComparing(overlay -> overlay.name.equals(proc.declaredOverlayName))
+							.thenComparingInt(overlay ->
+									overlay.budget - usedLengths.get(overlay.name)));
+
+			EopOverlay overlay = bestOverlay.orElseThrow(() -> new PatchApplicationException(
+					String.format("no EOP overlay has room for %s (0x%X bytes)",
+							proc.name, proc.length)));
+			assignment.put(proc.name, overlay.name);
+			usedLengths.merge(overlay.name, proc.length, Integer::sum);
+		}
+
+		return assignment;
+	}
+
+	/**
+	 * Repeatedly applies whichever single move of a proc to another overlay, or swap of two procs
+	 * between overlays, most lowers the weight of calls between overlays, until none does.
+	 */
+	private Map<String, String> improve(Map<String, String> startingAssignment) {
+		Map<String, String> assignment = new LinkedHashMap<>(startingAssignment);
+		for (int pass = 0; pass < MAX_IMPROVEMENT_PASSES; pass++) {
+			long bestGain = 0;
+			Runnable bestChange = null;
+
+			for (EopProc proc : movableProcs.values()) {
+				String from = assignment.get(proc.name);
+				for (EopOverlay to : overlays.values()) {
+					if (to.name.equals(from)
+							|| usedLength(to, assignment) + proc.length > to.budget) {
+						continue;
+					}
+
+					long gain = weightTo(proc.name, to.name, assignment)
+							- weightTo(proc.name, from, assignment);
+					if (gain > bestGain) {
+						bestGain = gain;
+						bestChange = () -> assignment.put(proc.name, to.name);
+					}
+				}
+
+				for (EopProc other : movableProcs.values()) {
+					String otherFrom = assignment.get(other.name);
+					if (otherFrom.equals(from) || proc.name.compareTo(other.name) >= 0) {
+						continue;
+					}
+
+					int lengthChange = other.length - proc.length;
+					if (usedLength(overlays.get(from), assignment) + lengthChange
+									> overlays.get(from).budget
+							|| usedLength(overlays.get(otherFrom), assignment) - lengthChange
+									> overlays.get(otherFrom).budget) {
+						continue;
+					}
+
+					long gain = weightTo(proc.name, otherFrom, assignment)
+							- weightTo(proc.name, from, assignment)
+							+ weightTo(other.name, from, assignment)
+							- weightTo(other.name, otherFrom, assignment)
+							- 2 * weightBetween(proc.name, other.name);
+					if (gain > bestGain) {
+						bestGain = gain;
+						bestChange = () -> {
+							assignment.put(proc.name, otherFrom);
+							assignment.put(other.name, from);
+						};
+					}
+				}
+			}
+
+			if (bestChange == null) {
+				break;
+			}
+			bestChange.run();
+		}
+
+		return assignment;
+	}
+
+	private boolean fits(Map<String, String> assignment) {
+		return overlays.values().stream()
+				.allMatch(overlay -> usedLength(overlay, assignment) <= overlay.budget);
+	}
+
+	private int usedLength(EopOverlay overlay, Map<String, String> assignment) {
+		return overlay.fixedLength() + assignment.entrySet().stream()
+				.filter(e -> e.getValue().equals(overlay.name))
+				.mapToInt(e -> movableProcs.get(e.getKey()).length)
+				.sum();
+	}
+
+	private long crossOverlayWeight(Map<String, String> assignment) {
+		long weight = 0;
+		for (Map.Entry<String, Map<String, Long>> procEntry : callWeights.entrySet()) {
+			for (Map.Entry<String, Long> calleeEntry : procEntry.getValue().entrySet()) {
+				if (procEntry.getKey().compareTo(calleeEntry.getKey()) < 0
+						&& !assignment.get(procEntry.getKey())
+								.equals(assignment.get(calleeEntry.getKey()))) {
+					weight += calleeEntry.getValue();
+				}
+			}
+		}
+
+		return weight;
+	}
+
+	private long weightTo(String procName, String overlayName, Map<String, String> assignment) {
+		return callWeights.getOrDefault(procName, Map.of()).entrySet().stream()
+				.filter(e -> overlayName.equals(assignment.get(e.getKey())))
+				.mapToLong(Map.Entry::getValue)
+				.sum();
+	}
+
+	private long weightBetween(String procName, String otherProcName) {
+		return callWeights.getOrDefault(procName, Map.of()).getOrDefault(otherProcName, 0L);
+	}
+
+	private long totalWeight(String procName) {
+		return callWeights.getOrDefault(procName, Map.of()).values().stream()
+				.mapToLong(Long::longValue)
+				.sum();
+	}
+}
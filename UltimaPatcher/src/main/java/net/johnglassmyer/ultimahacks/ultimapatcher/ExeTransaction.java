@@ -0,0 +1,266 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Range;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import net.johnglassmyer.ultimahacks.proto.HackProto;
+
+/**
+ * Applies edits to an executable so that a run killed partway through does not leave it
+ * half-edited.
+ * <p>
+ * By default, the edited executable is built in a temporary file beside it (copied from the
+ * original by channel transfer, then edited), which is synced and then atomically moved over the
+ * original; until that move (and the sync of the directory recording it), the original is
+ * untouched. In place, the bytes each edit may change are synced to a journal beside the
+ * executable before the edit is applied; the journal is deleted once all edits have been applied
+ * and synced, and otherwise rolls the executable back. Insertions and removals, which move every
+ * byte after them, are not journaled; they must be applied to a temporary file instead.
+ */
+class ExeTransaction implements Closeable {
+	private static final Logger L = LogManager.getLogger(ExeTransaction.class);
+
+	static Path journalPath(Path exePath) {
+		return exePath.resolveSibling(exePath.getFileName() + ".journal");
+	}
+
+	static boolean hasJournal(Path exePath) {
+		return Files.exists(journalPath(exePath));
+	}
+
+	/**
+	 * Restores, from its journal, the bytes of an executable changed by an interrupted in-place
+	 * run, and then deletes the journal.
+	 */
+	static void rollBack(Path exePath) throws IOException {
+		Path journalPath = journalPath(exePath);
+
+		List<HackProto.JournalEntry> entries = new ArrayList<>();
+		try (InputStream journal = Files.newInputStream(journalPath)) {
+			while (true) {
+				HackProto.JournalEntry entry;
+				try {
+					entry = HackProto.JournalEntry.parseDelimitedFrom(journal);
+				} catch (InvalidProtocolBufferException e) {
+					// an entry cut short was being written when the run ended; its edit was not
+					// applied
+					break;
+				}
+				if (entry == null) {
+					break;
+				}
+				entries.add(entry);
+			}
+		}
+
+		L.info("rolling back {} edits to {} from {}", entries.size(), exePath, journalPath);
+		try (FileChannel channel = FileChannel.open(
+				exePath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			for (HackProto.JournalEntry entry : Lists.reverse(entries)) {
+				Util.write(channel, entry.getStart(), entry.getOriginal().toByteArray());
+				channel.truncate(entry.getFileLength());
+			}
+			channel.force(true);
+		}
+
+		Files.delete(journalPath);
+	}
+
+	/**
+	 * Begins building the edited executable in a temporary file beside it.
+	 */
+	static ExeTransaction replacing(Path exePath) throws IOException {
+		Path tempPath = Files.createTempFile(
+				exePath.toAbsolutePath().getParent(), exePath.getFileName() + ".", ".tmp");
+
+		PosixFileAttributeView attributes =
+				Files.getFileAttributeView(exePath, PosixFileAttributeView.class);
+		if (attributes != null) {
+			Files.setPosixFilePermissions(tempPath, attributes.readAttributes().permissions());
+		}
+
+		FileChannel tempChannel = FileChannel.open(
+				tempPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try (FileChannel exeChannel = FileChannel.open(exePath, StandardOpenOption.READ)) {
+			long length = exeChannel.size();
+			long transferred = 0;
+			while (transferred < length) {
+				transferred += exeChannel.transferTo(
+						transferred, length - transferred, tempChannel);
+			}
+		} catch (IOException e) {
+			tempChannel.close();
+			Files.delete(tempPath);
+			throw e;
+		}
+
+		return new ExeTransaction(exePath, tempPath, tempChannel, null);
+	}
+
+	/**
+	 * Begins editing the executable in place, journaling the bytes each edit may change.
+	 */
+	static ExeTransaction inPlace(Path exePath) throws IOException {
+		FileChannel exeChannel = FileChannel.open(
+				exePath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		FileChannel journalChannel = FileChannel.open(
+				journalPath(exePath), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		// the journal must outlast a crash that the edits do
+		syncDirectory(exePath);
+
+		return new ExeTransaction(exePath, exePath, exeChannel, journalChannel);
+	}
+
+	/**
+	 * Writes a file (such as an inverse hack) beside the executable whole or not at all: the bytes
+	 * are synced to a temporary file beside it, which is then atomically moved into its place.
+	 */
+	static void writeAtomically(Path path, byte[] bytes) throws IOException {
+		Path tempPath = Files.createTempFile(
+				path.toAbsolutePath().getParent(), path.getFileName() + ".", ".tmp");
+		try {
+			try (FileChannel tempChannel =
+					FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+				Util.write(tempChannel, 0, bytes);
+				tempChannel.force(true);
+			}
+			Files.move(tempPath, path,
+					StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(tempPath);
+			throw e;
+		}
+		syncDirectory(path);
+	}
+
+	/**
+	 * Syncs the directory holding a file, so that a file created, moved or deleted there stays so
+	 * after a crash. Where a directory can't be opened to be synced (as on Windows), its entries
+	 * are left to the file system.
+	 */
+	private static void syncDirectory(Path path) throws IOException {
+		FileChannel directory;
+		try {
+			directory = FileChannel.open(
+					path.toAbsolutePath().getParent(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			L.debug("can't open the directory of {} to sync it: {}", path, e.toString());
+			return;
+		}
+		try {
+			directory.force(true);
+		} finally {
+			directory.close();
+		}
+	}
+
+	private final Path exePath;
+	private final Path editedPath;
+	private final FileChannel channel;
+	private final FileChannel journalChannel;
+	private final OutputStream journal;
+	private boolean committed = false;
+
+	private ExeTransaction(
+			Path exePath, Path editedPath, FileChannel channel, FileChannel journalChannel) {
+		this.exePath = exePath;
+		this.editedPath = editedPath;
+		this.channel = channel;
+		this.journalChannel = journalChannel;
+		this.journal = journalChannel != null ? Channels.newOutputStream(journalChannel) : null;
+	}
+
+	/**
+	 * The file being edited, as edited so far.
+	 */
+	SeekableByteChannel channel() {
+		return channel;
+	}
+
+	void apply(Edit edit) throws IOException {
+		if (journal != null) {
+			journal(edit);
+		}
+
+		edit.applyToFile(channel);
+	}
+
+	private void journal(Edit edit) throws IOException {
+		checkArgument(edit.shiftLength() == 0,
+				"can't journal %s: it moves the rest of the file", edit);
+
+		int fileLength = (int) channel.size();
+		Range<Integer> writtenRange = edit.writtenRange();
+		int start = Math.min(writtenRange.lowerEndpoint(), fileLength);
+		int end = Math.max(start, Math.min(writtenRange.upperEndpoint(), fileLength));
+
+		HackProto.JournalEntry.newBuilder()
+				.setFileLength(fileLength)
+				.setStart(start)
+				.setOriginal(ByteString.copyFrom(Util.read(channel, start, end - start)))
+				.build()
+				.writeDelimitedTo(journal);
+		journal.flush();
+		journalChannel.force(false);
+	}
+
+	/**
+	 * Syncs the edited executable and puts it in place of the original.
+	 */
+	void commit() throws IOException {
+		channel.force(true);
+		channel.close();
+
+		if (journal != null) {
+			journal.close();
+			Files.delete(journalPath(exePath));
+		} else {
+			Files.move(editedPath, exePath, StandardCopyOption.ATOMIC_MOVE);
+		}
+		syncDirectory(exePath);
+
+		committed = true;
+	}
+
+	/**
+	 * Abandons the edits if they have not been committed, deleting the temporary file (when not
+	 * editing in place) or leaving the journal for a later roll-back.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (committed) {
+			return;
+		}
+
+		channel.close();
+		if (journal != null) {
+			journal.close();
+			L.warn("edits to {} were not completed; its journal {} can be used to roll back",
+					exePath, journalPath(exePath));
+		} else {
+			Files.deleteIfExists(editedPath);
+		}
+	}
+}
@@ -10,10 +10,14 @@ import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Optional;
 import java.util.TreeSet;
+import java.util.stream.Collectors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -240,6 +244,37 @@ class Executable {
 	}
 
 	List<Edit> expandOverlay(int segmentIndex, int newOverlayLength, int eopSpacing) {
+		L.info(String.format(
+				"Attempting to expand overlay %d to a length of 0x%04X",
+				segmentIndex,
+				newOverlayLength));
+
+		/**
+		 * Ultima VII code seemed to need around 2 bytes of relocation data per 50 code bytes.
+		 * However, my patches use somewhat more, perhaps because they tend to consist largely of
+		 * (far/relocated) calls to procedures from the original game.
+		 */
+		double relocationFraction = (double) 2 / 40;
+		int newCodeLength = (int) (newOverlayLength * (1 - relocationFraction));
+		int newRelocationTableLength = newOverlayLength - newCodeLength;
+
+		// as many procs as the stub has room for, as existing patch sets expect, even where their
+		// entry points are past the new code
+		return expandOverlay(
+				segmentIndex, newCodeLength, newRelocationTableLength, eopSpacing, false);
+	}
+
+	/**
+	 * Produces edits that expand an overlay to the given code and relocation table lengths, adding
+	 * procs whose entry points are spaced the given number of bytes apart from the end of the
+	 * original code: as many as the stub has room for, but (if so asked) no more than fit within
+	 * the new code.
+	 */
+	List<Edit> expandOverlay(int segmentIndex,
+			int newCodeLength,
+			int newRelocationTableLength,
+			int eopSpacing,
+			boolean entryPointsWithinCode) {
 		checkArgument(eopSpacing > 0, "eop spacing must be greater than zero");
 
 		if (segmentIndex > segments.size()) {
@@ -253,11 +288,6 @@ class Executable {
 					String.format("Segment %d is not an overlay segment", segmentIndex));
 		}
 
-		L.info(String.format(
-				"Attempting to expand overlay %d to a length of 0x%04X",
-				segmentIndex,
-				newOverlayLength));
-
 		Overlay overlay = stubSegment.optionalOverlay.get();
 		OverlayStub stub = overlay.stub;
 
@@ -270,14 +300,7 @@ class Executable {
 		int addedProcCount = spareBytes / StubProc.LENGTH;
 		L.info("  Stub has room for {} additional procs", addedProcCount);
 
-		/**
-		 * Ultima VII code seemed to need around 2 bytes of relocation data per 50 code bytes.
-		 * However, my patches use somewhat more, perhaps because they tend to consist largely of
-		 * (far/relocated) calls to procedures from the original game.
-		 */
-		double relocationFraction = (double) 2 / 40;
-		int newCodeLength = (int) (newOverlayLength * (1 - relocationFraction));
-		int newRelocationTableLength = newOverlayLength - newCodeLength;
+		int newOverlayLength = newCodeLength + newRelocationTableLength;
 		L.info(String.format("  New overlay code length is 0x%X", newCodeLength));
 		L.info(String.format("  New relocation table length is 0x%X", newRelocationTableLength));
 		if (newCodeLength < stub.codeSize) {
@@ -288,6 +311,13 @@ class Executable {
 					"New relocation table length < old relocation table length");
 		}
 
+		// each new proc's entry point is set to RETF, which should land within the new code
+		int fittingProcCount = (newCodeLength - stub.codeSize + eopSpacing - 1) / eopSpacing;
+		if (entryPointsWithinCode && fittingProcCount < addedProcCount) {
+			L.info("  New code has room for entry points of {} procs", fittingProcCount);
+			addedProcCount = fittingProcCount;
+		}
+
 		int lastOverlayStartInFile = segments.stream()
 				.flatMap(s -> s.optionalOverlay.stream())
 				.mapToInt(o -> o.startInFile)
@@ -330,13 +360,7 @@ class Executable {
 			/**
 			 * edit to FBOV header: increase overlay code size
 			 */
-			int editStartInFile = mzHeader.calculateMzFileSize()
-					+ FbovHeader.OVERLAY_BYTE_COUNT_OFFSET;
-			ByteBuffer buffer = Util.littleEndianBytes(4);
-			int newOverlayByteCount = fbovHeader.overlayByteCount + newOverlayLength;
-			buffer.putInt(newOverlayByteCount);
-			edits.add(new OverwriteEdit(
-					"overlay code size in FBOV header", editStartInFile, buffer.array()));
+			edits.add(produceOverlayByteCountEdit(newOverlayLength));
 		}
 		{
 			/**
@@ -359,7 +383,7 @@ class Executable {
 			 * - (leave relocation byte count as-is)
 			 * - increase proc count
 			 */
-			int editStartInFile = stubSegment.startInFile + 4;
+			int editStartInFile = stubSegment.startInFile + OverlayStub.OVERLAY_START_OFFSET;
 			ByteBuffer buffer = Util.littleEndianBytes(10);
 			int newOverlayStartFromFbovEnd =
 					newOverlayCodeStart - (mzHeader.calculateMzFileSize() + FbovHeader.LENGTH);
@@ -425,20 +449,258 @@ class Executable {
 						new byte[] { (byte) 0xCB }));
 			}
 		}
+		// (the old code and relocation table are left in place; see compactOverlays)
+
+		// Assuming that there's nothing in the file after the last overlay.
+
+		return edits;
+	}
+
+	/**
+	 * Produces edits that move an overlay's code to the end of the file (as it stands after any
+	 * overlays moved before it), followed by room for a relocation table of the given length, which
+	 * the caller is to write there. The old code and relocation table are left in place, and the
+	 * FBOV header's overlay byte count is left to {@link #produceOverlayByteCountEdit}.
+	 */
+	List<Edit> moveOverlayToEnd(int segmentIndex, int endOfFile, int newRelocationTableLength) {
+		Segment stubSegment = segments.get(segmentIndex);
+		Overlay overlay = stubSegment.optionalOverlay.get();
+
+		L.info(String.format(
+				"Moving overlay %d from 0x%X to end of file at 0x%X",
+				segmentIndex,
+				overlay.startInFile,
+				endOfFile));
+
+		List<Edit> edits = new ArrayList<>();
+		edits.add(new InsertEdit(
+				"lengthen file", endOfFile, overlay.stub.codeSize + newRelocationTableLength));
+		edits.add(new CopyEdit(
+				String.format("overlay %d to end of file", segmentIndex),
+				overlay.startInFile,
+				overlay.stub.codeSize,
+				endOfFile));
 		{
-			/**
-			 * old overlay edit: zero-out old code and relocation table
-			 */
-			// TODO
-//			new byte[]
-//			edits.add(new OverwriteEdit(overlay.getCodeStart(), replacementBytes))
+			ByteBuffer buffer = Util.littleEndianBytes(4);
+			buffer.putInt(endOfFile - (mzHeader.calculateMzFileSize() + FbovHeader.LENGTH));
+			edits.add(new OverwriteEdit(
+					"overlay start in stub " + segmentIndex,
+					stubSegment.startInFile + OverlayStub.OVERLAY_START_OFFSET,
+					buffer.array()));
 		}
 
-		// Assuming that there's nothing in the file after the last overlay.
+		return edits;
+	}
+
+	OverwriteEdit produceOverlayByteCountEdit(int addedByteCount) {
+		int editStartInFile = mzHeader.calculateMzFileSize() + FbovHeader.OVERLAY_BYTE_COUNT_OFFSET;
+		ByteBuffer buffer = Util.littleEndianBytes(4);
+		buffer.putInt(fbovHeader.overlayByteCount + addedByteCount);
+
+		return new OverwriteEdit(
+				"overlay code size in FBOV header", editStartInFile, buffer.array());
+	}
+
+	/**
+	 * Produces edits that enlarge the MZ header by the given number of paragraphs (to make room
+	 * for a larger load-module relocation table), moving the load module and all that follows it
+	 * later in the file.
+	 * <p>
+	 * The load module's relocations are relative to its start, and the overlays' positions are
+	 * relative to the end of the FBOV header, so only the header sizes and the segment table's
+	 * position in the FBOV header change. Since the edits move the rest of the file, they must be
+	 * applied after any edits to it.
+	 */
+	List<Edit> growHeader(int addedParagraphs) {
+		int loadModuleStartInFile = mzHeader.loadModuleStartInFile();
+		int addedLength = addedParagraphs * Util.PARAGRAPH_SIZE;
+		int newMzFileSize = mzHeader.calculateMzFileSize() + addedLength;
+
+		L.info(String.format(
+				"Growing MZ header by %d paragraphs, moving load module to 0x%X",
+				addedParagraphs,
+				loadModuleStartInFile + addedLength));
+
+		List<Edit> edits = new ArrayList<>();
+		edits.add(new InsertEdit("grow MZ header", loadModuleStartInFile, addedLength));
+		edits.add(new OverwriteEdit(
+				"file size in MZ header",
+				MzHeader.FILE_SIZE_OFFSET,
+				MzHeader.fileSizeBytes(newMzFileSize)));
+		{
+			ByteBuffer buffer = Util.littleEndianBytes(2);
+			buffer.putShort((short) (mzHeader.headerParagraphs + addedParagraphs));
+			edits.add(new OverwriteEdit(
+					"header paragraphs in MZ header",
+					MzHeader.HEADER_PARAGRAPHS_OFFSET,
+					buffer.array()));
+		}
+		if (fbovHeader.segmentTableStartInFile >= loadModuleStartInFile) {
+			ByteBuffer buffer = Util.littleEndianBytes(4);
+			buffer.putInt(fbovHeader.segmentTableStartInFile + addedLength);
+			edits.add(new OverwriteEdit(
+					"segment table start in FBOV header",
+					newMzFileSize + FbovHeader.SEGMENT_TABLE_START_OFFSET,
+					buffer.array()));
+		}
+
+		return edits;
+	}
+
+	/**
+	 * Produces edits that remove the bytes after the FBOV header that no overlay's code,
+	 * relocation table or reserved relocation room (see {@link #findReservedRelocationRooms})
+	 * occupies (such as those left behind by overlays moved to the end of the file), moving each
+	 * overlay down to follow the one before it. The overlays must be the last thing in the file;
+	 * the FBOV header's overlay byte count may say they end later, as it does once the last
+	 * overlay has been expanded in place, and is corrected.
+	 */
+	List<Edit> compactOverlays() throws IOException {
+		int fbovHeaderEnd = fbovHeaderEnd();
+		int overlaysEnd = fbovHeaderEnd + fbovHeader.overlayByteCount;
+		if (overlaysEnd < fileLength) {
+			throw new PatchApplicationException(String.format(
+					"can't compact overlays: they end at 0x%X (by the FBOV header),"
+							+ " but the file goes on to 0x%X",
+					overlaysEnd,
+					fileLength));
+		}
+
+		if (overlaysEnd > fileLength) {
+			L.info(String.format(
+					"Correcting FBOV header's overlay byte count, which runs 0x%X bytes past"
+							+ " the end of the file (as after expanding the last overlay in place)",
+					overlaysEnd - fileLength));
+		}
+
+		Map<Integer, Integer> reservedRooms = findReservedRelocationRooms();
+
+		List<Integer> overlaySegmentIndices = range(0, segments.size()).boxed()
+				.filter(segmentIndex -> segments.get(segmentIndex).optionalOverlay.isPresent())
+				.sorted(Comparator.comparing(
+						segmentIndex -> segments.get(segmentIndex).optionalOverlay.get().startInFile))
+				.collect(Collectors.toList());
+
+		List<Edit> edits = new ArrayList<>();
+		int compactedEnd = fbovHeaderEnd;
+		for (int segmentIndex : overlaySegmentIndices) {
+			Segment stubSegment = segments.get(segmentIndex);
+			Overlay overlay = stubSegment.optionalOverlay.get();
+			int overlayLength = overlay.stub.codeSize
+					+ overlay.stub.relocationTableLength
+					+ reservedRooms.get(segmentIndex);
+
+			if (overlay.startInFile > compactedEnd) {
+				L.info(String.format(
+						"Moving overlay %d from 0x%X down to 0x%X",
+						segmentIndex,
+						overlay.startInFile,
+						compactedEnd));
+
+				edits.add(new CopyEdit(
+						String.format("overlay %d down over unused bytes", segmentIndex),
+						overlay.startInFile,
+						overlayLength,
+						compactedEnd));
+
+				ByteBuffer buffer = Util.littleEndianBytes(4);
+				buffer.putInt(compactedEnd - fbovHeaderEnd);
+				edits.add(new OverwriteEdit(
+						"overlay start in stub " + segmentIndex,
+						stubSegment.startInFile + OverlayStub.OVERLAY_START_OFFSET,
+						buffer.array()));
+
+				compactedEnd += overlayLength;
+			} else {
+				// (an overlay sharing bytes with the one before it stays where it is)
+				compactedEnd = Math.max(compactedEnd, overlay.startInFile + overlayLength);
+			}
+		}
+
+		if (compactedEnd < fileLength) {
+			L.info(String.format(
+					"Removing 0x%X unused bytes from end of file at 0x%X",
+					fileLength - compactedEnd,
+					compactedEnd));
+
+			edits.add(new RemoveEdit(
+					"unused bytes after compacted overlays",
+					compactedEnd,
+					fileLength - compactedEnd));
+		}
+		if (compactedEnd != overlaysEnd) {
+			edits.add(produceOverlayByteCountEdit(compactedEnd - overlaysEnd));
+		}
 
 		return edits;
 	}
 
+	/**
+	 * Number of bytes after each overlay's relocation table that are kept for relocations to come
+	 * (as expandOverlay leaves them), by segment index: the zeros following the table, up to the
+	 * start of the following overlay or the end of the file.
+	 */
+	Map<Integer, Integer> findReservedRelocationRooms() throws IOException {
+		Map<Integer, Integer> rooms = new HashMap<>();
+		try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+			for (int segmentIndex = 0; segmentIndex < segments.size(); segmentIndex++) {
+				Optional<Overlay> optionalOverlay = segments.get(segmentIndex).optionalOverlay;
+				if (!optionalOverlay.isPresent()) {
+					continue;
+				}
+
+				int tableStart = optionalOverlay.get().relocationTable.startInFile;
+				int tableEnd = tableStart + optionalOverlay.get().stub.relocationTableLength;
+				int roomEnd = tableStart + relocationTableCapacity(segmentIndex);
+				int room = 0;
+				if (roomEnd > tableEnd) {
+					byte[] bytes = Util.read(file, tableEnd, roomEnd - tableEnd);
+					while (room < bytes.length && bytes[room] == 0) {
+						room++;
+					}
+				}
+				rooms.put(segmentIndex, room);
+			}
+		}
+
+		return rooms;
+	}
+
+	/**
+	 * Number of bytes available to an overlay's relocation table, up to the start of the following
+	 * overlay or the end of the file.
+	 */
+	int relocationTableCapacity(int segmentIndex) {
+		Overlay overlay = segments.get(segmentIndex).optionalOverlay.get();
+		int tableEnd = segments.stream()
+				.flatMap(s -> s.optionalOverlay.stream())
+				.mapToInt(o -> o.startInFile)
+				.filter(start -> start > overlay.startInFile)
+				.min()
+				.orElse(fileLength);
+
+		return tableEnd - overlay.relocationTable.startInFile;
+	}
+
+	int fbovHeaderEnd() {
+		return mzHeader.calculateMzFileSize() + FbovHeader.LENGTH;
+	}
+
+	/**
+	 * Number of bytes after a load-module segment that pad it out to the paragraph at which the
+	 * following segment starts; these are loaded with the segment, so code can be placed in them.
+	 */
+	int paddingAfterSegment(int segmentIndex) {
+		Segment segment = segments.get(segmentIndex);
+		if (segment.optionalOverlay.isPresent()) {
+			// (the bytes after an overlay stub are room for more procs)
+			return 0;
+		}
+
+		int spareBytes = calculateSpareBytesAfterSegment(segment);
+		return 0 < spareBytes && spareBytes < Util.PARAGRAPH_SIZE ? spareBytes : 0;
+	}
+
 	private int calculateSegmentStartInFile(Segment segment) {
 		return mzHeader.loadModuleStartInFile()
 				+ segment.tableEntry.segmentBase * Util.PARAGRAPH_SIZE
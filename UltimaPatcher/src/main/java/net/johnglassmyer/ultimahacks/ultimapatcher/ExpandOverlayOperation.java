@@ -1,37 +1,137 @@
 package net.johnglassmyer.ultimahacks.ultimapatcher;
 
+import static net.johnglassmyer.uncheckers.IoUncheckers.callUncheckedIoSupplier;
+
+import java.util.Comparator;
 import java.util.List;
+import java.util.Optional;
 import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
 
 class ExpandOverlayOperation implements ExecutableEditOperation {
+	static final int DEFAULT_EOP_SPACING = 0x100;
+
+	private static final Logger L = LogManager.getLogger(ExpandOverlayOperation.class);
+
 	private final int segmentIndex;
-	private final int newLength;
-	private final int eopSpacing;
+	/** The new length of the overlay, or empty to size it exactly for the patch blocks. */
+	private final Optional<Integer> newLength;
+	private final Optional<Integer> eopSpacing;
+	private final List<PatchBlock> patchBlocks;
 	private final BiFunction<Executable, List<Edit>, Executable> editSimulator;
 
 	ExpandOverlayOperation(
 			int segmentIndex,
-			int newLength,
-			int eopSpacing,
+			Optional<Integer> newLength,
+			Optional<Integer> eopSpacing,
+			List<PatchBlock> patchBlocks,
 			BiFunction<Executable, List<Edit>, Executable> editSimulator) {
 		this.segmentIndex = segmentIndex;
 		this.newLength = newLength;
 		this.eopSpacing = eopSpacing;
+		this.patchBlocks = patchBlocks;
 		this.editSimulator = editSimulator;
 	}
 
 	@Override
 	public ExecutableEditState apply(ExecutableEditState state) {
-		List<Edit> expandEdits = state.executable.expandOverlay(
-				segmentIndex, newLength, eopSpacing);
+		OverlaySizing sizing = OverlaySizing.measure(state.executable, segmentIndex, patchBlocks);
+
+		List<Edit> expandEdits;
+		if (newLength.isPresent()) {
+			expandEdits = state.executable.expandOverlay(
+					segmentIndex, newLength.get(), eopSpacing.orElse(DEFAULT_EOP_SPACING));
+		} else if (!sizing.extendsCode()) {
+			L.info("No patch blocks extend overlay {}; leaving it unexpanded", segmentIndex);
+			return state;
+		} else {
+			suggestFreeSpace(state.executable, sizing);
+
+			int sizedEopSpacing = eopSpacing.or(() -> sizing.eopSpacing).orElseGet(() -> {
+				L.warn("Spacing of new procs in overlay {} is not indicated by patch blocks;"
+						+ " using 0x{}", segmentIndex, Integer.toHexString(DEFAULT_EOP_SPACING));
+				return DEFAULT_EOP_SPACING;
+			});
+
+			// the relocation table isn't shrunk, though blocks may overwrite relocations
+			int relocationTableLength = Math.max(
+					state.executable.segments.get(segmentIndex).optionalOverlay.get()
+							.stub.relocationTableLength,
+					sizing.relocationTableLength);
+
+			L.info(String.format(
+					"Sizing overlay %d for patch blocks: 0x%X code bytes, 0x%X relocation bytes,"
+							+ " procs spaced 0x%X apart",
+					segmentIndex,
+					sizing.codeLength,
+					relocationTableLength,
+					sizedEopSpacing));
+			expandEdits = state.executable.expandOverlay(
+					segmentIndex,
+					sizing.codeLength,
+					relocationTableLength,
+					sizedEopSpacing,
+					true);
+		}
 
 		Executable expandedExecutable = editSimulator.apply(state.executable, expandEdits);
+		if (!patchBlocks.isEmpty()) {
+			sizing.logSlack(expandedExecutable);
+		}
 
 		ImmutableList.Builder<Edit> combinedEdits = ImmutableList.builder();
 		combinedEdits.addAll(state.accumulatedEdits);
 		combinedEdits.addAll(expandEdits);
 		return new ExecutableEditState(expandedExecutable, combinedEdits.build());
 	}
+
+	/**
+	 * Logs, for each block placed after the overlay's original code, free space left in the
+	 * overlay's code that could hold it instead (see {@link FreeSpaceMap}), since expanding the
+	 * overlay grows both the file and the game's memory footprint. The blocks are assembled at
+	 * fixed offsets, so they can't be moved here; a patch must be assembled at the offset found.
+	 */
+	private void suggestFreeSpace(Executable executable, OverlaySizing sizing) {
+		FreeSpaceMap freeSpaceMap = callUncheckedIoSupplier(() -> FreeSpaceMap.scan(executable));
+
+		List<PatchBlock> blocks = patchBlocks.stream()
+				.filter(block -> block.segmentIndex == segmentIndex)
+				.collect(Collectors.toList());
+		for (PatchBlock block : blocks) {
+			freeSpaceMap.reserve(
+					segmentIndex, Range.closedOpen(block.startOffset, block.endOffset()));
+		}
+
+		// largest first, so that small blocks don't take the only regions large ones fit
+		List<PatchBlock> newBlocks = blocks.stream()
+				.filter(block -> block.startOffset >= sizing.originalCodeLength)
+				.sorted(Comparator.comparingInt((PatchBlock block) -> block.codeBytes.length)
+						.reversed())
+				.collect(Collectors.toList());
+		int fittingBlockCount = 0;
+		for (PatchBlock block : newBlocks) {
+			Optional<FreeSpaceMap.Region> region =
+					freeSpaceMap.allocate(Optional.of(segmentIndex), block.codeBytes.length);
+			if (region.isPresent()) {
+				L.info(String.format(
+						"  block for %s (0x%X bytes) would fit in free space at %s (%s)",
+						block.formatAddress(),
+						block.codeBytes.length,
+						region.get().formatAddress(),
+						region.get().kind.description));
+				fittingBlockCount++;
+			}
+		}
+
+		if (!newBlocks.isEmpty() && fittingBlockCount == newBlocks.size()) {
+			L.info("  overlay {} need not be expanded if its new blocks are assembled there",
+					segmentIndex);
+		}
+	}
 }
@@ -0,0 +1,407 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Optional;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.johnglassmyer.ultimahacks.ultimapatcher.Segment.Patchable;
+
+/**
+ * Index of the far references in the code of an executable, by the segment:offset to which they
+ * refer:
+ * <ul>
+ * <li>far calls and far jumps</li>
+ * <li>pushes of a segment (as by pushWithRelocation), which, when followed by a push of an offset,
+ * push a far pointer such as a callback or a return address</li>
+ * </ul>
+ * Code is decoded by sweeping through each code segment and overlay from its start, and an
+ * instruction is counted only if its segment operand is listed in a relocation table, which both
+ * confirms that the sweep has decoded the instruction where the compiler put it (rather than, for
+ * instance, starting in the middle of data) and tells how the segment is to be read: as the base
+ * of a load-module segment, in the load module, or as the index of a segment times 8, in overlays.
+ * <p>
+ * References are kept as a sorted array of packed longs, so that those to an address (or to any
+ * address in a segment) are found by binary search, and the array can be written to a file and
+ * read back (for as long as the executable is unchanged) instead of decoding the executable
+ * again.
+ */
+class FarReferenceIndex {
+	enum Kind {
+		FAR_CALL("call far"),
+		FAR_JUMP("jmp far"),
+		FAR_POINTER_PUSH("push seg, push offset"),
+		SEGMENT_PUSH("push seg");
+
+		final String description;
+
+		Kind(String description) {
+			this.description = description;
+		}
+	}
+
+	private static final Logger L = LogManager.getLogger(FarReferenceIndex.class);
+
+	/** "XRF1" */
+	private static final int FILE_MAGIC = 0x58524631;
+
+	/** Segment indices must fit in the bits of a reference not taken by site offset and kind. */
+	private static final int MAX_SEGMENT_COUNT = 1 << 14;
+
+	private static final int NONE = -1;
+
+	static FarReferenceIndex build(Executable executable, byte[] exeBytes) {
+		if (executable.segments.size() > MAX_SEGMENT_COUNT) {
+			throw new PatchApplicationException(String.format(
+					"can't index references in more than %d segments", MAX_SEGMENT_COUNT));
+		}
+
+		int loadModuleStartInFile = executable.loadModule.mzHeader.loadModuleStartInFile();
+		BitSet loadModuleRelocationsInFile = new BitSet();
+		for (int relocation : executable.loadModule.relocationTable.originalAddresses) {
+			loadModuleRelocationsInFile.set(loadModuleStartInFile + relocation);
+		}
+
+		Builder builder = new Builder(executable);
+		for (int segmentIndex = 0; segmentIndex < executable.segments.size(); segmentIndex++) {
+			Segment segment = executable.segments.get(segmentIndex);
+			if (segment.optionalOverlay.isPresent()) {
+				Overlay overlay = segment.optionalOverlay.get();
+				BitSet relocationsInFile = new BitSet();
+				for (int relocation : overlay.relocationTable.originalAddresses) {
+					relocationsInFile.set(overlay.startInFile + relocation);
+				}
+				builder.sweep(segmentIndex, exeBytes, relocationsInFile, true);
+			} else if (segment.tableEntry.isCode()) {
+				builder.sweep(segmentIndex, exeBytes, loadModuleRelocationsInFile, false);
+			}
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Reads an index written by {@link #writeTo}, if it was built from an executable of the given
+	 * length and checksum.
+	 */
+	static Optional<FarReferenceIndex> readFrom(Path indexPath, int exeLength, int exeCrc32)
+			throws IOException {
+		try (DataInputStream input = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(indexPath)))) {
+			if (input.readInt() != FILE_MAGIC
+					|| input.readInt() != exeLength
+					|| input.readInt() != exeCrc32) {
+				return Optional.empty();
+			}
+
+			long[] references = new long[input.readInt()];
+			for (int i = 0; i < references.length; i++) {
+				references[i] = input.readLong();
+			}
+
+			return Optional.of(new FarReferenceIndex(references, Optional.empty()));
+		}
+	}
+
+	private static long pack(int targetSegmentIndex, int targetOffset,
+			int siteSegmentIndex, int siteOffset, Kind kind) {
+		return (long) targetSegmentIndex << 48
+				| (long) targetOffset << 32
+				| (long) siteSegmentIndex << 18
+				| (long) kind.ordinal() << 16
+				| siteOffset;
+	}
+
+	private static int targetSegmentIndex(long reference) {
+		return (int) (reference >>> 48);
+	}
+
+	private static int targetOffset(long reference) {
+		return (int) (reference >>> 32) & 0xFFFF;
+	}
+
+	private static int siteSegmentIndex(long reference) {
+		return (int) (reference >>> 18) & (MAX_SEGMENT_COUNT - 1);
+	}
+
+	private static Kind kind(long reference) {
+		return Kind.values()[(int) (reference >>> 16) & 3];
+	}
+
+	private static int siteOffset(long reference) {
+		return (int) reference & 0xFFFF;
+	}
+
+	private static class Builder {
+		private final Executable executable;
+		private final InstructionDecoder decoder = new InstructionDecoder();
+		private long[] references = new long[0x1000];
+		private int referenceCount;
+		private long instructionCount;
+		private long undecodableByteCount;
+		private long unresolvedCount;
+
+		Builder(Executable executable) {
+			this.executable = executable;
+		}
+
+		void sweep(int segmentIndex, byte[] exeBytes, BitSet relocationsInFile, boolean inOverlay) {
+			Patchable patchable = executable.segments.get(segmentIndex).patchable();
+			int zeroInFile = patchable.startInFile() - patchable.startOffset();
+			int end = patchable.endInFile();
+
+			int position = patchable.startInFile();
+			while (position < end) {
+				if (!decoder.decode(exeBytes, position, end)) {
+					undecodableByteCount++;
+					position++;
+					continue;
+				}
+				instructionCount++;
+				position += decoder.length;
+
+				Kind kind;
+				int segmentPosition;
+				int offset;
+				if ((decoder.opcode == InstructionDecoder.CALL_FAR
+						|| decoder.opcode == InstructionDecoder.JMP_FAR)
+						&& !decoder.operandSize32) {
+					kind = decoder.opcode == InstructionDecoder.CALL_FAR
+							? Kind.FAR_CALL
+							: Kind.FAR_JUMP;
+					segmentPosition = decoder.immediateStart + 2;
+					offset = InstructionDecoder.wordAt(exeBytes, decoder.immediateStart);
+				} else if (decoder.opcode == InstructionDecoder.PUSH_IMMEDIATE
+						&& !decoder.operandSize32) {
+					segmentPosition = decoder.immediateStart;
+					// the offset of a far pointer is pushed after its segment
+					int pushStart = decoder.start;
+					int pushLength = decoder.length;
+					if (decoder.decode(exeBytes, position, end)
+							&& decoder.opcode == InstructionDecoder.PUSH_IMMEDIATE
+							&& !decoder.operandSize32
+							&& !relocationsInFile.get(decoder.immediateStart)) {
+						kind = Kind.FAR_POINTER_PUSH;
+						offset = InstructionDecoder.wordAt(exeBytes, decoder.immediateStart);
+					} else {
+						kind = Kind.SEGMENT_PUSH;
+						offset = 0;
+					}
+					decoder.start = pushStart;
+					decoder.length = pushLength;
+				} else {
+					continue;
+				}
+
+				if (!relocationsInFile.get(segmentPosition)) {
+					continue;
+				}
+
+				int segmentValue = InstructionDecoder.wordAt(exeBytes, segmentPosition);
+				int targetSegmentIndex = inOverlay
+						? segmentIndexFromOverlay(segmentValue)
+						: segmentIndexFromLoadModule(segmentValue, offset, kind);
+				if (targetSegmentIndex == NONE) {
+					unresolvedCount++;
+					continue;
+				}
+
+				add(pack(targetSegmentIndex, offset,
+						segmentIndex, decoder.start - zeroInFile, kind));
+			}
+		}
+
+		/** Overlays refer to segments by index times 8, which the overlay manager translates. */
+		private int segmentIndexFromOverlay(int segmentValue) {
+			int segmentIndex = segmentValue / 8;
+			return segmentValue % 8 == 0 && segmentIndex < executable.segments.size()
+					? segmentIndex
+					: NONE;
+		}
+
+		/** Segments of the load module may share a base, so the offset tells them apart. */
+		private int segmentIndexFromLoadModule(int segmentBase, int offset, Kind kind) {
+			int firstWithBase = NONE;
+			for (int segmentIndex = 0; segmentIndex < executable.segments.size(); segmentIndex++) {
+				SegmentTableEntry tableEntry = executable.segments.get(segmentIndex).tableEntry;
+				if (tableEntry.segmentBase != segmentBase) {
+					continue;
+				}
+				if (kind != Kind.SEGMENT_PUSH
+						&& tableEntry.startOffset <= offset && offset < tableEntry.endOffset) {
+					return segmentIndex;
+				}
+				if (firstWithBase == NONE) {
+					firstWithBase = segmentIndex;
+				}
+			}
+
+			return firstWithBase;
+		}
+
+		private void add(long reference) {
+			if (referenceCount == references.length) {
+				references = Arrays.copyOf(references, references.length * 2);
+			}
+			references[referenceCount++] = reference;
+		}
+
+		FarReferenceIndex build() {
+			long[] sortedReferences = Arrays.copyOf(references, referenceCount);
+			Arrays.sort(sortedReferences);
+
+			return new FarReferenceIndex(sortedReferences, Optional.of(String.format(
+					"decoded %d instructions (skipping %d undecodable bytes);"
+					+ " %d relocated far operands in no known segment",
+					instructionCount,
+					undecodableByteCount,
+					unresolvedCount)));
+		}
+	}
+
+	private final long[] references;
+	private final Optional<String> buildStatistics;
+
+	private FarReferenceIndex(long[] references, Optional<String> buildStatistics) {
+		this.references = references;
+		this.buildStatistics = buildStatistics;
+	}
+
+	int size() {
+		return references.length;
+	}
+
+	void writeTo(Path indexPath, int exeLength, int exeCrc32) throws IOException {
+		try (DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(indexPath)))) {
+			output.writeInt(FILE_MAGIC);
+			output.writeInt(exeLength);
+			output.writeInt(exeCrc32);
+			output.writeInt(references.length);
+			for (long reference : references) {
+				output.writeLong(reference);
+			}
+		}
+	}
+
+	void logStatistics() {
+		buildStatistics.ifPresent(L::info);
+		L.info(String.format("%d far reference(s) indexed", references.length));
+	}
+
+	/**
+	 * Logs the references to an address given as <code>segmentIndex:offset</code>, or to any
+	 * address in a segment given as <code>segmentIndex</code>. Pushes of a segment not followed by
+	 * a push of an offset could refer to any address in the segment, so they are listed for both.
+	 */
+	void logReferencesTo(String addressArg, Executable executable) {
+		int segmentIndex;
+		Optional<Integer> optionalOffset;
+		if (addressArg.contains(":")) {
+			SegmentAndOffset address = SegmentAndOffset.fromString(addressArg);
+			segmentIndex = address.segmentIndex;
+			optionalOffset = Optional.of(address.offset);
+		} else {
+			segmentIndex = Integer.valueOf(addressArg);
+			optionalOffset = Optional.empty();
+		}
+		if (segmentIndex >= executable.segments.size()
+				|| optionalOffset.filter(offset -> offset > 0xFFFF).isPresent()) {
+			throw new PatchApplicationException(
+					String.format("\"%s\" is not an address in the executable", addressArg));
+		}
+
+		long first = optionalOffset
+				.map(offset -> pack(segmentIndex, offset, 0, 0, Kind.FAR_CALL))
+				.orElse(pack(segmentIndex, 0, 0, 0, Kind.FAR_CALL));
+		long end = optionalOffset
+				.map(offset -> first + (1L << 32))
+				.orElse(first + (1L << 48));
+		int firstIndex = lowerBound(first);
+		int endIndex = lowerBound(end);
+
+		int segmentStartIndex = lowerBound(pack(segmentIndex, 0, 0, 0, Kind.FAR_CALL));
+		int segmentEndIndex = lowerBound(pack(segmentIndex + 1, 0, 0, 0, Kind.FAR_CALL));
+		int segmentPushCount = optionalOffset.isPresent()
+				? (int) Arrays.stream(references, segmentStartIndex, segmentEndIndex)
+						.filter(reference -> kind(reference) == Kind.SEGMENT_PUSH)
+						.count()
+				: 0;
+
+		L.info(String.format("%d far reference(s) to %s%s:",
+				endIndex - firstIndex + segmentPushCount,
+				optionalOffset.map(offset -> Util.formatAddress(segmentIndex, offset))
+						.orElse("segment " + segmentIndex),
+				optionalOffset.flatMap(offset -> describeTarget(executable, segmentIndex, offset))
+						.map(description -> " (" + description + ")")
+						.orElse("")));
+		for (int i = firstIndex; i < endIndex; i++) {
+			logReference(executable, references[i], !optionalOffset.isPresent());
+		}
+		if (segmentPushCount > 0) {
+			for (int i = segmentStartIndex; i < segmentEndIndex; i++) {
+				if (kind(references[i]) == Kind.SEGMENT_PUSH) {
+					logReference(executable, references[i], false);
+				}
+			}
+		}
+	}
+
+	private void logReference(Executable executable, long reference, boolean showTarget) {
+		int siteSegmentIndex = siteSegmentIndex(reference);
+		Patchable patchable = executable.segments.get(siteSegmentIndex).patchable();
+		int siteInFile =
+				patchable.startInFile() - patchable.startOffset() + siteOffset(reference);
+
+		String target = "";
+		if (showTarget && kind(reference) != Kind.SEGMENT_PUSH) {
+			target = " " + Util.formatAddress(targetSegmentIndex(reference),
+					targetOffset(reference));
+		}
+
+		L.info(String.format("  %-10s (0x%06X)  %s%s",
+				Util.formatAddress(siteSegmentIndex, siteOffset(reference)),
+				siteInFile,
+				kind(reference).description,
+				target));
+	}
+
+	/** Describes the overlay proc, if any, reached through the stub proc at the address. */
+	private static Optional<String> describeTarget(
+			Executable executable, int segmentIndex, int offset) {
+		return executable.segments.get(segmentIndex).optionalOverlay.flatMap(overlay -> {
+			int procOffset = offset - OverlayStub.HEADER_LENGTH;
+			int procIndex = procOffset / StubProc.LENGTH;
+			if (procOffset < 0
+					|| procOffset % StubProc.LENGTH != 0
+					|| procIndex >= overlay.stub.procs.size()) {
+				return Optional.empty();
+			}
+
+			return Optional.of(String.format("stub proc %d of overlay, at %s in overlay code",
+					procIndex,
+					Util.formatAddress(segmentIndex, overlay.stub.procs.get(procIndex)
+							.startInOverlay)));
+		});
+	}
+
+	private int lowerBound(long key) {
+		int index = Arrays.binarySearch(references, key);
+		if (index < 0) {
+			return -(index + 1);
+		}
+		while (index > 0 && references[index - 1] == key) {
+			index--;
+		}
+		return index;
+	}
+}
@@ -10,6 +10,7 @@ import org.apache.logging.log4j.Logger;
 class FbovHeader {
 	static final int LENGTH = 16;
 	static final int OVERLAY_BYTE_COUNT_OFFSET = 4;
+	static final int SEGMENT_TABLE_START_OFFSET = 8;
 	static private final String FBOV_SIGNATURE = "FBOV";
 	static private final Logger L = LogManager.getLogger(FbovHeader.class);
 
@@ -24,7 +25,10 @@ class FbovHeader {
 			throw new BadSignatureException(FBOV_SIGNATURE, signature);
 		}
 
-		return new FbovHeader(buffer.getInt(4), buffer.getInt(8), buffer.getInt(12));
+		return new FbovHeader(
+				buffer.getInt(OVERLAY_BYTE_COUNT_OFFSET),
+				buffer.getInt(SEGMENT_TABLE_START_OFFSET),
+				buffer.getInt(12));
 	}
 
 	private FbovHeader(int overlayByteCount, int segmentTableStartInFile, int segmentCount) {
@@ -0,0 +1,261 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeMap;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeMap;
+import com.google.common.collect.TreeRangeSet;
+
+import net.johnglassmyer.ultimahacks.ultimapatcher.Segment.Patchable;
+
+/**
+ * Unused bytes of an executable's code into which new patch blocks can be placed without expanding
+ * an overlay, indexed by segment:
+ * <ul>
+ * <li>runs of NOPs following a jump or return, such as those with which endBlockAt pads a block
+ * that ends short of its expected end offset</li>
+ * <li>the zeros following the RETF at the entry point of each proc added by overlay expansion to
+ * which no patch has given code, up to the next proc's entry point</li>
+ * <li>zeros padding a load-module code segment out to the paragraph at which the following segment
+ * starts</li>
+ * </ul>
+ * Bytes after the FBOV header that belong to no overlay (such as those left behind by overlays
+ * moved to the end of the file) are also found, but as they are never loaded, they can only be
+ * reclaimed by compacting the overlays.
+ * <p>
+ * A run of NOPs is counted only if the bytes before it look like a jump or return, so that padding
+ * through which execution falls into the code after it is not; since operand bytes can happen to
+ * look like such an instruction, a region so found is a suggestion to be checked against the
+ * source of the code preceding it.
+ */
+class FreeSpaceMap {
+	enum Kind {
+		FILL("NOP fill after jump or return"),
+		UNUSED_ENTRY_POINT("zeros after unused entry point"),
+		SEGMENT_PADDING("zeros padding segment");
+
+		final String description;
+
+		Kind(String description) {
+			this.description = description;
+		}
+	}
+
+	static class Region {
+		final int segmentIndex;
+		final int startOffset;
+		final int length;
+		final Kind kind;
+
+		private Region(int segmentIndex, Range<Integer> range, Kind kind) {
+			this.segmentIndex = segmentIndex;
+			this.startOffset = range.lowerEndpoint();
+			this.length = Util.length(range);
+			this.kind = kind;
+		}
+
+		String formatAddress() {
+			return Util.formatAddress(segmentIndex, startOffset);
+		}
+	}
+
+	private static final Logger L = LogManager.getLogger(FreeSpaceMap.class);
+
+	/** Shortest run of NOPs counted, so that single bytes aligning original code are not. */
+	private static final int MIN_FILL_LENGTH = 4;
+
+	private static final int NOP = 0x90;
+	private static final int RETF = 0xCB;
+
+	/** Opcodes of unconditional jumps and returns, by the length of the instruction. */
+	private static final ImmutableMap<Integer, ImmutableSet<Integer>> JUMP_OR_RETURN_OPCODES =
+			ImmutableMap.of(
+					1, ImmutableSet.of(0xC3, 0xCB, 0xCF), // retn, retf, iret
+					2, ImmutableSet.of(0xEB), // jmp short
+					3, ImmutableSet.of(0xC2, 0xCA, 0xE9), // retn imm16, retf imm16, jmp near
+					5, ImmutableSet.of(0xEA)); // jmp far
+
+	static FreeSpaceMap scan(Executable executable) throws IOException {
+		byte[] exeBytes;
+		try (FileChannel exeChannel = FileChannel.open(executable.path, StandardOpenOption.READ)) {
+			exeBytes = Util.read(exeChannel, 0, (int) exeChannel.size());
+		}
+
+		Map<Integer, RangeMap<Integer, Kind>> regionsBySegment = new TreeMap<>();
+		for (int segmentIndex = 0; segmentIndex < executable.segments.size(); segmentIndex++) {
+			Segment segment = executable.segments.get(segmentIndex);
+			if (!segment.optionalOverlay.isPresent() && !segment.tableEntry.isCode()) {
+				continue;
+			}
+
+			RangeMap<Integer, Kind> regions = TreeRangeMap.create();
+			Patchable patchable = segment.patchable();
+			int zeroInFile = patchable.startInFile() - patchable.startOffset();
+
+			int runStart = patchable.startInFile();
+			while (runStart < patchable.endInFile()) {
+				int runEnd = runStart;
+				while (runEnd < patchable.endInFile()
+						&& Byte.toUnsignedInt(exeBytes[runEnd]) == NOP) {
+					runEnd++;
+				}
+
+				if (runEnd - runStart >= MIN_FILL_LENGTH
+						&& followsJumpOrReturn(exeBytes, runStart, patchable.startInFile())) {
+					regions.putCoalescing(
+							Range.closedOpen(runStart - zeroInFile, runEnd - zeroInFile),
+							Kind.FILL);
+				}
+
+				runStart = runEnd + 1;
+			}
+
+			segment.optionalOverlay.ifPresent(overlay -> {
+				NavigableSet<Integer> entryPoints = overlay.stub.procs.stream()
+						.map(proc -> proc.startInOverlay)
+						.collect(Collectors.toCollection(TreeSet::new));
+				for (int entryPoint : entryPoints) {
+					if (entryPoint >= overlay.stub.codeSize
+							|| Byte.toUnsignedInt(exeBytes[zeroInFile + entryPoint]) != RETF) {
+						continue;
+					}
+
+					int gapEnd = Optional.ofNullable(entryPoints.higher(entryPoint))
+							.map(nextEntryPoint -> Math.min(nextEntryPoint, overlay.stub.codeSize))
+							.orElse(overlay.stub.codeSize);
+					int zerosEnd = entryPoint + 1;
+					while (zerosEnd < gapEnd && exeBytes[zeroInFile + zerosEnd] == 0) {
+						zerosEnd++;
+					}
+
+					if (zerosEnd > entryPoint + 1) {
+						regions.put(
+								Range.closedOpen(entryPoint + 1, zerosEnd),
+								Kind.UNUSED_ENTRY_POINT);
+					}
+				}
+			});
+
+			int padding = executable.paddingAfterSegment(segmentIndex);
+			int paddingEndInFile = patchable.endInFile() + padding;
+			if (padding > 0 && IntStream.range(patchable.endInFile(), paddingEndInFile)
+					.allMatch(i -> exeBytes[i] == 0)) {
+				regions.put(
+						Range.closedOpen(patchable.endOffset(), patchable.endOffset() + padding),
+						Kind.SEGMENT_PADDING);
+			}
+
+			if (!regions.asMapOfRanges().isEmpty()) {
+				regionsBySegment.put(segmentIndex, regions);
+			}
+		}
+
+		RangeSet<Integer> deadOverlayBytes = TreeRangeSet.create();
+		if (executable.fileLength > executable.fbovHeaderEnd()) {
+			deadOverlayBytes.add(
+					Range.closedOpen(executable.fbovHeaderEnd(), executable.fileLength));
+		}
+		Map<Integer, Integer> reservedRooms = executable.findReservedRelocationRooms();
+		reservedRooms.forEach((segmentIndex, reservedRoom) -> {
+			Overlay overlay = executable.segments.get(segmentIndex).optionalOverlay.get();
+			int overlayLength =
+					overlay.stub.codeSize + overlay.stub.relocationTableLength + reservedRoom;
+			deadOverlayBytes.remove(
+					Range.closedOpen(overlay.startInFile, overlay.startInFile + overlayLength));
+		});
+
+		return new FreeSpaceMap(regionsBySegment, deadOverlayBytes);
+	}
+
+	private static boolean followsJumpOrReturn(byte[] bytes, int position, int rangeStart) {
+		return JUMP_OR_RETURN_OPCODES.entrySet().stream().anyMatch(lengthAndOpcodes -> {
+			int instructionStart = position - lengthAndOpcodes.getKey();
+			return instructionStart >= rangeStart && lengthAndOpcodes.getValue()
+					.contains(Byte.toUnsignedInt(bytes[instructionStart]));
+		});
+	}
+
+	private final Map<Integer, RangeMap<Integer, Kind>> regionsBySegment;
+	private final RangeSet<Integer> deadOverlayBytes;
+
+	private FreeSpaceMap(
+			Map<Integer, RangeMap<Integer, Kind>> regionsBySegment,
+			RangeSet<Integer> deadOverlayBytes) {
+		this.regionsBySegment = regionsBySegment;
+		this.deadOverlayBytes = deadOverlayBytes;
+	}
+
+	List<Region> regions() {
+		return regionsBySegment.entrySet().stream()
+				.flatMap(segmentEntry -> segmentEntry.getValue().asMapOfRanges().entrySet().stream()
+						.map(e -> new Region(segmentEntry.getKey(), e.getKey(), e.getValue())))
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Removes from the free space a range of a segment that is already spoken for (as by a patch
+	 * block that will be written there).
+	 */
+	void reserve(int segmentIndex, Range<Integer> range) {
+		Optional.ofNullable(regionsBySegment.get(segmentIndex))
+				.ifPresent(regions -> regions.remove(range));
+	}
+
+	/**
+	 * Takes space for a block of the given length from the smallest region that can hold it (in the
+	 * given segment, if any), so that larger regions remain for larger blocks.
+	 */
+	Optional<Region> allocate(Optional<Integer> segmentIndex, int length) {
+		Optional<Region> optionalFittingRegion = regions().stream()
+				.filter(region -> segmentIndex.map(s -> s == region.segmentIndex).orElse(true))
+				.filter(region -> region.length >= length)
+				.min(Comparator.comparing((Region region) -> region.length));
+
+		return optionalFittingRegion.map(fittingRegion -> {
+			Range<Integer> allocatedRange = Range.closedOpen(
+					fittingRegion.startOffset, fittingRegion.startOffset + length);
+			regionsBySegment.get(fittingRegion.segmentIndex).remove(allocatedRange);
+
+			return new Region(fittingRegion.segmentIndex, allocatedRange, fittingRegion.kind);
+		});
+	}
+
+	void logDetails() {
+		List<Region> regions = regions();
+		L.info(String.format("%d free region(s) of code, of 0x%X bytes in total:",
+				regions.size(),
+				regions.stream().mapToInt(region -> region.length).sum()));
+		for (Region region : regions) {
+			L.info(String.format("  %-10s  0x%04X bytes  %s",
+					region.formatAddress(), region.length, region.kind.description));
+		}
+
+		if (!deadOverlayBytes.isEmpty()) {
+			L.info(String.format(
+					"0x%X byte(s) after FBOV header in no overlay (see --compact-overlays):",
+					deadOverlayBytes.asRanges().stream().mapToInt(Util::length).sum()));
+			for (Range<Integer> range : deadOverlayBytes.asRanges()) {
+				L.info(String.format(
+						"  0x%06X-0x%06X", range.lowerEndpoint(), range.upperEndpoint()));
+			}
+		}
+	}
+}
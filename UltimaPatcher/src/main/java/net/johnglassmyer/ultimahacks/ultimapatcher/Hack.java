@@ -1,5 +1,8 @@
 package net.johnglassmyer.ultimahacks.ultimapatcher;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Optional;
 
 import com.google.common.collect.ImmutableList;
@@ -9,12 +12,13 @@ import com.google.protobuf.UInt32Value;
 import net.johnglassmyer.ultimahacks.proto.HackProto;
 
 class Hack {
+	static Hack readFromFile(Path hackPath) throws IOException {
+		return fromProtoHack(HackProto.Hack.parseFrom(Files.readAllBytes(hackPath)));
+	}
+
 	static Hack fromProtoHack(HackProto.Hack protoHack) {
 		ImmutableList<Edit> edits = protoHack.getEditList().stream()
-				.map(protoEdit -> CopyEdit.fromProtoEdit(protoEdit)
-						.or(() -> InsertEdit.fromProtoEdit(protoEdit))
-						.or(() -> OverwriteEdit.fromProtoEdit(protoEdit))
-						.orElseThrow(() -> new RuntimeException("unexpected edit: " + protoEdit)))
+				.map(Hack::fromProtoEdit)
 				.collect(ImmutableList.toImmutableList());
 
 		Optional<Integer> targetLength = protoHack.hasTargetLength()
@@ -25,17 +29,40 @@ class Hack {
 				? Optional.of(protoHack.getComment().getValue())
 				: Optional.empty();
 
-		return new Hack(edits, targetLength, comment);
+		ImmutableList<RangeChecksum> expectedChecksums =
+				protoHack.getExpectedChecksumList().stream()
+						.map(RangeChecksum::fromProtoMessage)
+						.collect(ImmutableList.toImmutableList());
+
+		return new Hack(edits, targetLength, comment, expectedChecksums);
+	}
+
+	static Edit fromProtoEdit(HackProto.Edit protoEdit) {
+		return CopyEdit.fromProtoEdit(protoEdit)
+				.or(() -> InsertEdit.fromProtoEdit(protoEdit))
+				.or(() -> OverwriteEdit.fromProtoEdit(protoEdit))
+				.or(() -> RemoveEdit.fromProtoEdit(protoEdit))
+				.orElseThrow(() -> new RuntimeException("unexpected edit: " + protoEdit));
 	}
 
 	final ImmutableList<Edit> edits;
 	final Optional<Integer> targetLength;
 	final Optional<String> comment;
+	final ImmutableList<RangeChecksum> expectedChecksums;
 
 	Hack(ImmutableList<Edit> edits, Optional<Integer> targetLength, Optional<String> comment) {
+		this(edits, targetLength, comment, ImmutableList.of());
+	}
+
+	Hack(
+			ImmutableList<Edit> edits,
+			Optional<Integer> targetLength,
+			Optional<String> comment,
+			ImmutableList<RangeChecksum> expectedChecksums) {
 		this.edits = edits;
 		this.targetLength = targetLength;
 		this.comment = comment;
+		this.expectedChecksums = expectedChecksums;
 	}
 
 	HackProto.Hack toProtoHack() {
@@ -49,6 +76,10 @@ class Hack {
 
 		comment.ifPresent(value -> hackBuilder.setComment(StringValue.of(value)));
 
+		expectedChecksums.stream()
+				.map(RangeChecksum::toProtoMessage)
+				.forEachOrdered(hackBuilder::addExpectedChecksum);
+
 		return hackBuilder.build();
 	}
 }
@@ -0,0 +1,163 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Optional;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+
+/**
+ * Produces hacks that turn one file into another, writing only the bytes that differ between the
+ * two: either a file patched with one hack into the same file patched with another
+ * ({@link #compute}), or one executable into another ({@link #diff}).
+ * <p>
+ * A delta between hacks expects the checksums of every range written by the old hack (i.e.
+ * differing from the original file) and of every range it will itself overwrite or remove, so that
+ * applying it to a file in any other state can be refused before anything is written.
+ */
+class HackDelta {
+	/**
+	 * Differing runs separated by fewer than this many unchanged bytes are written by a single
+	 * overwrite, since each additional edit costs about this much in the serialized hack.
+	 */
+	static final int MIN_GAP_BETWEEN_EDITS = 8;
+
+	private static final int COMPARISON_CHUNK_LENGTH = 0x10000;
+
+	static Hack compute(
+			byte[] originalBytes, byte[] oldBytes, byte[] newBytes, Optional<String> comment) {
+		ImmutableList<Edit> edits =
+				editsTurning(ByteBuffer.wrap(oldBytes), ByteBuffer.wrap(newBytes));
+
+		RangeSet<Integer> expectedRanges = TreeRangeSet.create();
+		expectedRanges.addAll(differingRanges(
+				originalBytes, Arrays.copyOf(oldBytes, originalBytes.length)));
+		if (oldBytes.length > originalBytes.length) {
+			expectedRanges.add(Range.closedOpen(originalBytes.length, oldBytes.length));
+		}
+		expectedRanges.addAll(
+				differingRanges(ByteBuffer.wrap(oldBytes), ByteBuffer.wrap(newBytes)));
+		if (newBytes.length < oldBytes.length) {
+			expectedRanges.add(Range.closedOpen(newBytes.length, oldBytes.length));
+		}
+
+		ImmutableList<RangeChecksum> expectedChecksums = expectedRanges.asRanges().stream()
+				.map(range -> RangeChecksum.of(oldBytes, range.lowerEndpoint(), Util.length(range)))
+				.collect(ImmutableList.toImmutableList());
+
+		return new Hack(edits, Optional.of(oldBytes.length), comment, expectedChecksums);
+	}
+
+	/**
+	 * Produces a hack that turns the original file (which may be memory-mapped) into the modified
+	 * one.
+	 */
+	static Hack diff(
+			ByteBuffer original,
+			ByteBuffer modified,
+			ImmutableList<RangeChecksum> expectedChecksums,
+			Optional<String> comment) {
+		return new Hack(
+				editsTurning(original, modified),
+				Optional.of(original.limit()),
+				comment,
+				expectedChecksums);
+	}
+
+	private static ImmutableList<Edit> editsTurning(ByteBuffer from, ByteBuffer to) {
+		int fromLength = from.limit();
+		int toLength = to.limit();
+
+		ImmutableList.Builder<Edit> edits = ImmutableList.builder();
+
+		RangeSet<Integer> overwrittenRanges = TreeRangeSet.create();
+		overwrittenRanges.addAll(differingRanges(from, to));
+		if (toLength > fromLength) {
+			edits.add(new InsertEdit("lengthen file", fromLength, toLength - fromLength));
+
+			// bytes inserted at the end of the file are zeroes until overwritten
+			ByteBuffer appended = to.duplicate();
+			appended.position(fromLength);
+			differingRanges(ByteBuffer.allocate(toLength - fromLength), appended.slice())
+					.asRanges()
+					.forEach(range -> overwrittenRanges.add(Range.closedOpen(
+							fromLength + range.lowerEndpoint(),
+							fromLength + range.upperEndpoint())));
+		} else if (toLength < fromLength) {
+			edits.add(new RemoveEdit("shorten file", toLength, fromLength - toLength));
+		}
+
+		ByteBuffer toDuplicate = to.duplicate();
+		for (Range<Integer> range : overwrittenRanges.asRanges()) {
+			byte[] bytes = new byte[Util.length(range)];
+			toDuplicate.position(range.lowerEndpoint());
+			toDuplicate.get(bytes);
+			edits.add(new OverwriteEdit("changed bytes", range.lowerEndpoint(), bytes));
+		}
+
+		return edits.build();
+	}
+
+	/**
+	 * Finds the ranges in which two equal-length arrays differ, joining any two separated by fewer
+	 * than {@link #MIN_GAP_BETWEEN_EDITS} equal bytes.
+	 */
+	static RangeSet<Integer> differingRanges(byte[] a, byte[] b) {
+		return differingRanges(ByteBuffer.wrap(a), ByteBuffer.wrap(b));
+	}
+
+	/**
+	 * Finds the ranges in which two buffers differ over the length of the shorter, joining any two
+	 * separated by fewer than {@link #MIN_GAP_BETWEEN_EDITS} equal bytes.
+	 * <p>
+	 * The buffers (which may be memory-mapped files) are compared a chunk at a time, copied into
+	 * arrays so that runs of equal bytes can be skipped by {@link Arrays#mismatch}.
+	 */
+	static RangeSet<Integer> differingRanges(ByteBuffer a, ByteBuffer b) {
+		RangeSet<Integer> ranges = TreeRangeSet.create();
+
+		ByteBuffer aDuplicate = a.duplicate();
+		ByteBuffer bDuplicate = b.duplicate();
+		byte[] aChunk = new byte[COMPARISON_CHUNK_LENGTH];
+		byte[] bChunk = new byte[COMPARISON_CHUNK_LENGTH];
+
+		int length = Math.min(a.limit(), b.limit());
+		int runStart = 0;
+		int runEnd = -1;
+		for (int chunkStart = 0; chunkStart < length; chunkStart += COMPARISON_CHUNK_LENGTH) {
+			int chunkLength = Math.min(COMPARISON_CHUNK_LENGTH, length - chunkStart);
+			aDuplicate.position(chunkStart);
+			aDuplicate.get(aChunk, 0, chunkLength);
+			bDuplicate.position(chunkStart);
+			bDuplicate.get(bChunk, 0, chunkLength);
+
+			int position = 0;
+			while (position < chunkLength) {
+				int mismatch = Arrays.mismatch(
+						aChunk, position, chunkLength, bChunk, position, chunkLength);
+				if (mismatch < 0) {
+					break;
+				}
+				int differing = chunkStart + position + mismatch;
+
+				if (runEnd < 0 || differing - runEnd >= MIN_GAP_BETWEEN_EDITS) {
+					if (runEnd >= 0) {
+						ranges.add(Range.closedOpen(runStart, runEnd));
+					}
+					runStart = differing;
+				}
+				runEnd = differing + 1;
+
+				position += mismatch + 1;
+			}
+		}
+		if (runEnd >= 0) {
+			ranges.add(Range.closedOpen(runStart, runEnd));
+		}
+
+		return ranges;
+	}
+}
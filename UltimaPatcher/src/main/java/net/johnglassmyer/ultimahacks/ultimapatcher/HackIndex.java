@@ -0,0 +1,136 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.Multimaps;
+
+/**
+ * Index of the compiled hacks in a directory by the executables they target, so that the hack for
+ * an executable can be found from the executable's length and fingerprint checksums (or, for an
+ * executable already patched, from the length and bytes the hack leaves) without reading more of
+ * the executable than those.
+ */
+class HackIndex {
+	private static final Logger L = LogManager.getLogger(HackIndex.class);
+
+	static class Entry {
+		final Path hackPath;
+		final Optional<Integer> targetLength;
+		final Optional<String> comment;
+		final ImmutableList<RangeChecksum> expectedChecksums;
+
+		Entry(
+				Path hackPath,
+				Optional<Integer> targetLength,
+				Optional<String> comment,
+				ImmutableList<RangeChecksum> expectedChecksums) {
+			this.hackPath = hackPath;
+			this.targetLength = targetLength;
+			this.comment = comment;
+			this.expectedChecksums = expectedChecksums;
+		}
+
+		@Override
+		public String toString() {
+			return hackPath + comment.map(value -> " (" + value + ")").orElse("");
+		}
+	}
+
+	/**
+	 * Indexes every *.hack file in the directory, reading only the fields that follow the edits.
+	 */
+	static HackIndex scan(Path directory) throws IOException {
+		List<Path> hackPaths;
+		try (Stream<Path> paths = Files.list(directory)) {
+			hackPaths = paths
+					.filter(path -> path.getFileName().toString().endsWith(".hack"))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+
+		List<Entry> entries = new ArrayList<>();
+		for (Path hackPath : hackPaths) {
+			try (HackReader reader = HackReader.open(hackPath)) {
+				entries.add(new Entry(
+						hackPath, reader.targetLength, reader.comment, reader.expectedChecksums));
+			}
+		}
+
+		return new HackIndex(entries);
+	}
+
+	private final ImmutableList<Entry> entries;
+	private final ImmutableListMultimap<Optional<Integer>, Entry> entriesByTargetLength;
+
+	private HackIndex(List<Entry> entries) {
+		this.entries = ImmutableList.copyOf(entries);
+		this.entriesByTargetLength = Multimaps.index(entries, entry -> entry.targetLength);
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Finds the hacks that target the executable: those whose target length is the executable's
+	 * length and whose expected checksums all match it, or else (if there are none such) those
+	 * whose target length matches but which expect no checksums.
+	 */
+	List<Entry> findTargeting(Path exePath) throws IOException {
+		List<Entry> checksumMatches = new ArrayList<>();
+		List<Entry> lengthMatches = new ArrayList<>();
+		try (SeekableByteChannel channel = FileChannel.open(exePath, StandardOpenOption.READ)) {
+			for (Entry entry : entriesByTargetLength.get(Optional.of((int) channel.size()))) {
+				if (entry.expectedChecksums.isEmpty()) {
+					lengthMatches.add(entry);
+					continue;
+				}
+
+				boolean matching = true;
+				for (RangeChecksum checksum : entry.expectedChecksums) {
+					matching = matching && checksum.matches(channel);
+				}
+				if (matching) {
+					checksumMatches.add(entry);
+				}
+			}
+		}
+
+		return !checksumMatches.isEmpty() ? checksumMatches : lengthMatches;
+	}
+
+	/**
+	 * Finds the hacks that the executable has been patched with: those producing a file of the
+	 * executable's length in which the bytes known from the hack are all present.
+	 */
+	List<Entry> findApplied(Path exePath) throws IOException {
+		List<Entry> matches = new ArrayList<>();
+		try (SeekableByteChannel channel = FileChannel.open(exePath, StandardOpenOption.READ)) {
+			for (Entry entry : entries) {
+				HackVerifier verifier = HackVerifier.forHack(Hack.readFromFile(entry.hackPath));
+				if (verifier.resultLength.equals(Optional.of((int) channel.size()))
+						&& verifier.findDrift(channel).isEmpty()) {
+					L.debug("{} has been applied to {}", entry, exePath);
+					matches.add(entry);
+				}
+			}
+		}
+
+		return matches;
+	}
+}
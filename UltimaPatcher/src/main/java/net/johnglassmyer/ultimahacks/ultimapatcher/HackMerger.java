@@ -0,0 +1,241 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeMap;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeMap;
+import com.google.common.collect.TreeRangeSet;
+
+/**
+ * Combines hacks, each to be applied to the file produced by the ones before it (as when running
+ * UltimaPatcher once per hack), into a single hack.
+ * <p>
+ * The range of file positions affected by every edit is recorded in an index that is kept in the
+ * coordinates of the file as it stands after the edits merged so far (so that an insertion or
+ * removal moves the ranges recorded after it). An edit of one hack that writes, reads, or removes a
+ * range written by another hack, or that inserts bytes within such a range, is reported as a
+ * conflict.
+ */
+class HackMerger {
+	private static final Logger L = LogManager.getLogger(HackMerger.class);
+
+	private static class EditOrigin {
+		final int hackIndex;
+		final int editIndex;
+		final Edit edit;
+
+		EditOrigin(int hackIndex, int editIndex, Edit edit) {
+			this.hackIndex = hackIndex;
+			this.editIndex = editIndex;
+			this.edit = edit;
+		}
+	}
+
+	private final List<String> hackNames;
+	private final RangeMap<Integer, EditOrigin> writtenRanges = TreeRangeMap.create();
+	private final List<Edit> mergedEdits = new ArrayList<>();
+	private final List<String> conflicts = new ArrayList<>();
+
+	HackMerger(List<String> hackNames) {
+		this.hackNames = hackNames;
+	}
+
+	/**
+	 * Merges the given hacks (named, in order, as given to the constructor), returning the merged
+	 * hack, or else empty if any conflicts were found.
+	 */
+	Optional<Hack> merge(List<Hack> hacks, Optional<String> comment) {
+		Optional<Integer> targetLength = hacks.get(0).targetLength;
+		Optional<Integer> layeredLength = targetLength;
+
+		for (int hackIndex = 0; hackIndex < hacks.size(); hackIndex++) {
+			Hack hack = hacks.get(hackIndex);
+
+			if (layeredLength.isPresent() && hack.targetLength.isPresent()
+					&& !layeredLength.equals(hack.targetLength)) {
+				L.warn(String.format(
+						"%s targets a file length of 0x%X but is layered onto a file of 0x%X bytes",
+						hackNames.get(hackIndex),
+						hack.targetLength.get(),
+						layeredLength.get()));
+			}
+
+			if (hackIndex > 0 && !hack.expectedChecksums.isEmpty()) {
+				L.warn("{} expects checksums of the file to which it is applied;"
+						+ " these are not carried into the merged hack",
+						hackNames.get(hackIndex));
+			}
+
+			for (int editIndex = 0; editIndex < hack.edits.size(); editIndex++) {
+				Edit edit = hack.edits.get(editIndex);
+				index(new EditOrigin(hackIndex, editIndex, edit));
+				mergedEdits.add(edit);
+
+				int shiftLength = edit.shiftLength();
+				layeredLength = layeredLength.map(length -> length + shiftLength);
+			}
+		}
+
+		conflicts.forEach(L::error);
+		if (!conflicts.isEmpty()) {
+			return Optional.empty();
+		}
+
+		Optional<String> mergedComment = comment.or(() -> Optional.of(hacks.stream()
+				.flatMap(hack -> hack.comment.stream())
+				.collect(Collectors.joining(" + ")))
+				.filter(joined -> !joined.isEmpty()));
+
+		return Optional.of(new Hack(
+				normalize(mergedEdits),
+				targetLength,
+				mergedComment,
+				hacks.get(0).expectedChecksums));
+	}
+
+	private void index(EditOrigin origin) {
+		Edit edit = origin.edit;
+		Range<Integer> writtenRange = edit.writtenRange();
+
+		edit.readRange().ifPresent(readRange -> checkConflicts(origin, readRange, "reads"));
+
+		if (edit.shiftLength() > 0) {
+			int position = writtenRange.lowerEndpoint();
+			Map.Entry<Range<Integer>, EditOrigin> containing = writtenRanges.getEntry(position);
+			if (containing != null
+					&& containing.getKey().lowerEndpoint() < position
+					&& containing.getValue().hackIndex != origin.hackIndex) {
+				conflicts.add(String.format(
+						"%s inserts at 0x%X, within 0x%X-0x%X written by %s",
+						describe(origin),
+						position,
+						containing.getKey().lowerEndpoint(),
+						containing.getKey().upperEndpoint(),
+						describe(containing.getValue())));
+			}
+
+			shift(position, edit.shiftLength());
+		} else if (edit.shiftLength() < 0) {
+			int position = writtenRange.lowerEndpoint();
+			Range<Integer> removedRange = Range.closedOpen(position, position - edit.shiftLength());
+			checkConflicts(origin, removedRange, "removes");
+
+			writtenRanges.remove(removedRange);
+			shift(removedRange.upperEndpoint(), edit.shiftLength());
+		} else {
+			checkConflicts(origin, writtenRange, "writes");
+		}
+
+		if (!writtenRange.isEmpty()) {
+			writtenRanges.put(writtenRange, origin);
+		}
+	}
+
+	private void checkConflicts(EditOrigin origin, Range<Integer> range, String verb) {
+		if (range.isEmpty()) {
+			return;
+		}
+
+		writtenRanges.subRangeMap(range).asMapOfRanges().forEach((overlap, otherOrigin) -> {
+			if (otherOrigin.hackIndex != origin.hackIndex) {
+				conflicts.add(String.format(
+						"%s %s 0x%X-0x%X, written by %s",
+						describe(origin),
+						verb,
+						overlap.lowerEndpoint(),
+						overlap.upperEndpoint(),
+						describe(otherOrigin)));
+			}
+		});
+	}
+
+	private void shift(int position, int length) {
+		RangeMap<Integer, EditOrigin> movedRanges =
+				writtenRanges.subRangeMap(Range.atLeast(position));
+		Map<Range<Integer>, EditOrigin> moved = new LinkedHashMap<>(movedRanges.asMapOfRanges());
+		movedRanges.clear();
+		moved.forEach((range, origin) -> writtenRanges.put(
+				Range.closedOpen(range.lowerEndpoint() + length, range.upperEndpoint() + length),
+				origin));
+	}
+
+	private String describe(EditOrigin origin) {
+		return String.format("%s edit %d %s",
+				hackNames.get(origin.hackIndex), origin.editIndex, origin.edit);
+	}
+
+	/**
+	 * Coalesces each run of consecutive overwrites into as few overwrites as possible, leaving
+	 * copies, insertions, and removals (whose effects depend on what precedes them) in place.
+	 */
+	static ImmutableList<Edit> normalize(List<Edit> edits) {
+		ImmutableList.Builder<Edit> normalized = ImmutableList.builder();
+
+		List<OverwriteEdit> run = new ArrayList<>();
+		for (Edit edit : edits) {
+			if (edit instanceof OverwriteEdit) {
+				run.add((OverwriteEdit) edit);
+			} else {
+				normalized.addAll(coalesce(run));
+				run.clear();
+				normalized.add(edit);
+			}
+		}
+		normalized.addAll(coalesce(run));
+
+		return normalized.build();
+	}
+
+	private static List<Edit> coalesce(List<OverwriteEdit> overwrites) {
+		if (overwrites.size() < 2) {
+			return new ArrayList<>(overwrites);
+		}
+
+		RangeSet<Integer> extents = TreeRangeSet.create();
+		overwrites.forEach(overwrite -> extents.add(overwrite.writtenRange()));
+
+		Map<Range<Integer>, List<OverwriteEdit>> overwritesByExtent = new LinkedHashMap<>();
+		extents.asRanges().forEach(extent -> overwritesByExtent.put(extent, new ArrayList<>()));
+		overwrites.stream()
+				.filter(overwrite -> overwrite.length() > 0)
+				.forEachOrdered(overwrite -> overwritesByExtent
+						.get(extents.rangeContaining(overwrite.getStart()))
+						.add(overwrite));
+
+		List<Edit> coalesced = new ArrayList<>();
+		overwritesByExtent.forEach((extent, extentOverwrites) -> {
+			if (extentOverwrites.size() == 1) {
+				coalesced.add(extentOverwrites.get(0));
+				return;
+			}
+
+			// later overwrites of the same bytes win, as they would if applied in order
+			byte[] bytes = new byte[Util.length(extent)];
+			for (OverwriteEdit overwrite : extentOverwrites) {
+				System.arraycopy(
+						overwrite.getData(),
+						0,
+						bytes,
+						overwrite.getStart() - extent.lowerEndpoint(),
+						overwrite.length());
+			}
+
+			coalesced.add(new OverwriteEdit(
+					String.format("%d coalesced overwrites", extentOverwrites.size()),
+					extent.lowerEndpoint(),
+					bytes));
+		});
+		return coalesced;
+	}
+}
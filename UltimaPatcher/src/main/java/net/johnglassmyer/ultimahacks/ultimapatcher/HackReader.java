@@ -0,0 +1,183 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import static net.johnglassmyer.uncheckers.IoUncheckers.callUncheckedIoRunnable;
+import static net.johnglassmyer.uncheckers.IoUncheckers.callUncheckedIoSupplier;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.StringValue;
+import com.google.protobuf.UInt32Value;
+import com.google.protobuf.WireFormat;
+
+import net.johnglassmyer.ultimahacks.proto.HackProto;
+
+/**
+ * Decodes a hack proto from a file one edit at a time, rather than parsing the entire message
+ * (and then converting all of its edits) up front as {@link Hack#fromProtoHack} does.
+ * <p>
+ * Because target_length, comment, and expected_checksum are serialized after the edits, they are
+ * read in a first pass over the file that skips the edits, so that they can be checked before any
+ * edit is applied.
+ */
+class HackReader implements Iterator<Edit>, Closeable {
+	private static final int EDIT_FIELD_NUMBER = HackProto.Hack.EDIT_FIELD_NUMBER;
+	private static final int TARGET_LENGTH_FIELD_NUMBER = HackProto.Hack.TARGET_LENGTH_FIELD_NUMBER;
+	private static final int COMMENT_FIELD_NUMBER = HackProto.Hack.COMMENT_FIELD_NUMBER;
+	private static final int EXPECTED_CHECKSUM_FIELD_NUMBER =
+			HackProto.Hack.EXPECTED_CHECKSUM_FIELD_NUMBER;
+
+	static HackReader open(Path hackPath) throws IOException {
+		Optional<Integer> targetLength = Optional.empty();
+		Optional<String> comment = Optional.empty();
+		ImmutableList.Builder<RangeChecksum> expectedChecksums = ImmutableList.builder();
+		try (InputStream stream = Files.newInputStream(hackPath)) {
+			CodedInputStream input = newCodedInputStream(stream);
+			for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+				switch (WireFormat.getTagFieldNumber(tag)) {
+				case TARGET_LENGTH_FIELD_NUMBER:
+					targetLength = Optional.of(input.readMessage(
+							UInt32Value.parser(), ExtensionRegistryLite.getEmptyRegistry())
+							.getValue());
+					break;
+				case COMMENT_FIELD_NUMBER:
+					comment = Optional.of(input.readMessage(
+							StringValue.parser(), ExtensionRegistryLite.getEmptyRegistry())
+							.getValue());
+					break;
+				case EXPECTED_CHECKSUM_FIELD_NUMBER:
+					expectedChecksums.add(RangeChecksum.fromProtoMessage(input.readMessage(
+							HackProto.RangeChecksum.parser(),
+							ExtensionRegistryLite.getEmptyRegistry())));
+					break;
+				default:
+					input.skipField(tag);
+					break;
+				}
+			}
+		}
+
+		return new HackReader(
+				Files.newInputStream(hackPath), targetLength, comment, expectedChecksums.build());
+	}
+
+	/**
+	 * Edits of the hack, decoded anew by each iterator (a HackReader, which closes itself once all
+	 * edits have been read). A loop over them that may end early should iterate by
+	 * {@link #iterate}.
+	 */
+	static Iterable<Edit> edits(Path hackPath) {
+		return () -> callUncheckedIoSupplier(() -> open(hackPath));
+	}
+
+	/**
+	 * Iterates over edits in a try-with-resources statement, which closes the HackReader decoding
+	 * them (if they are a hack's) however the loop ends.
+	 */
+	static Iteration iterate(Iterable<Edit> edits) {
+		return new Iteration(edits.iterator());
+	}
+
+	static class Iteration implements Iterator<Edit>, Closeable {
+		private final Iterator<Edit> iterator;
+
+		private Iteration(Iterator<Edit> iterator) {
+			this.iterator = iterator;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return iterator.hasNext();
+		}
+
+		@Override
+		public Edit next() {
+			return iterator.next();
+		}
+
+		@Override
+		public void close() {
+			if (iterator instanceof HackReader) {
+				((HackReader) iterator).close();
+			}
+		}
+	}
+
+	private static CodedInputStream newCodedInputStream(InputStream stream) {
+		CodedInputStream input = CodedInputStream.newInstance(stream);
+		// Only one edit is held at a time, so the length of the whole hack need not be limited.
+		input.setSizeLimit(Integer.MAX_VALUE);
+		return input;
+	}
+
+	final Optional<Integer> targetLength;
+	final Optional<String> comment;
+	final ImmutableList<RangeChecksum> expectedChecksums;
+	private final InputStream stream;
+	private final CodedInputStream input;
+	private Optional<Edit> nextEdit;
+
+	private HackReader(
+			InputStream stream,
+			Optional<Integer> targetLength,
+			Optional<String> comment,
+			ImmutableList<RangeChecksum> expectedChecksums) {
+		this.stream = stream;
+		this.input = newCodedInputStream(stream);
+		this.targetLength = targetLength;
+		this.comment = comment;
+		this.expectedChecksums = expectedChecksums;
+		try {
+			this.nextEdit = callUncheckedIoSupplier(this::readNextEdit);
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+		if (!nextEdit.isPresent()) {
+			close();
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return nextEdit.isPresent();
+	}
+
+	@Override
+	public Edit next() {
+		Edit edit = nextEdit.orElseThrow(NoSuchElementException::new);
+		nextEdit = callUncheckedIoSupplier(this::readNextEdit);
+		if (!nextEdit.isPresent()) {
+			close();
+		}
+		return edit;
+	}
+
+	@Override
+	public void close() {
+		callUncheckedIoRunnable(stream::close);
+	}
+
+	private Optional<Edit> readNextEdit() throws IOException {
+		for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+			if (WireFormat.getTagFieldNumber(tag) == EDIT_FIELD_NUMBER) {
+				HackProto.Edit protoEdit = input.readMessage(
+						HackProto.Edit.parser(), ExtensionRegistryLite.getEmptyRegistry());
+				return Optional.of(Hack.fromProtoEdit(protoEdit));
+			}
+
+			input.skipField(tag);
+		}
+
+		return Optional.empty();
+	}
+}
@@ -0,0 +1,234 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeMap;
+import com.google.common.collect.TreeRangeMap;
+
+/**
+ * Checks that a file is as a hack leaves it, reading only the ranges whose contents after the hack
+ * can be known from the hack alone.
+ * <p>
+ * The expected bytes are found by following the hack's edits in the coordinates of the file as it
+ * stands after each: overwrites and insertions (of zeroes) make their bytes known, and a copy makes
+ * its destination known only if all of its source is. Bytes copied from the original file are not
+ * known, and are not checked.
+ */
+class HackVerifier {
+	/** Bytes expected in a range of the file, anchored so that data[0] is at anchor. */
+	private static class ExpectedBytes {
+		final byte[] data;
+		final int anchor;
+
+		ExpectedBytes(byte[] data, int anchor) {
+			this.data = data;
+			this.anchor = anchor;
+		}
+	}
+
+	static class Drift {
+		final Range<Integer> range;
+		final int firstDifference;
+		final int differingByteCount;
+
+		Drift(Range<Integer> range, int firstDifference, int differingByteCount) {
+			this.range = range;
+			this.firstDifference = firstDifference;
+			this.differingByteCount = differingByteCount;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"0x%X-0x%X: 0x%X bytes differ, first at 0x%X",
+					range.lowerEndpoint(),
+					range.upperEndpoint(),
+					differingByteCount,
+					firstDifference);
+		}
+	}
+
+	/**
+	 * The bytes of a file known from the edits followed so far, in the coordinates of the file as
+	 * it stands after them.
+	 */
+	static class Simulation {
+		private final RangeMap<Integer, ExpectedBytes> expected = TreeRangeMap.create();
+
+		void follow(Edit edit) {
+			Range<Integer> writtenRange = edit.writtenRange();
+			int position = writtenRange.lowerEndpoint();
+
+			if (edit instanceof OverwriteEdit) {
+				OverwriteEdit overwrite = (OverwriteEdit) edit;
+				if (overwrite.length() > 0) {
+					expected.put(writtenRange, new ExpectedBytes(overwrite.getData(), position));
+				}
+			} else if (edit.shiftLength() > 0) {
+				shift(position, edit.shiftLength());
+				byte[] insertedBytes = new byte[edit.shiftLength()];
+				expected.put(writtenRange, new ExpectedBytes(insertedBytes, position));
+			} else if (edit.shiftLength() < 0) {
+				shift(position, edit.shiftLength());
+			} else if (!writtenRange.isEmpty()) {
+				Optional<byte[]> copiedBytes = edit.readRange().flatMap(this::knownBytes);
+				if (copiedBytes.isPresent()) {
+					expected.put(writtenRange, new ExpectedBytes(copiedBytes.get(), position));
+				} else {
+					expected.remove(writtenRange);
+				}
+			}
+		}
+
+		/**
+		 * Moves the bytes at and after a position by a length: forward for an insertion, or back
+		 * over the bytes removed by a removal (of the negated length).
+		 */
+		void shift(int position, int length) {
+			if (length < 0) {
+				expected.remove(Range.closedOpen(position, position - length));
+				HackVerifier.shift(expected, position - length, length);
+			} else {
+				HackVerifier.shift(expected, position, length);
+			}
+		}
+
+		/** Forgets the bytes in a range, as when bytes not known are written there. */
+		void forget(Range<Integer> range) {
+			expected.remove(range);
+		}
+
+		/** Records bytes known to have been written at a position. */
+		void write(int position, byte[] bytes) {
+			if (bytes.length > 0) {
+				expected.put(
+						Range.closedOpen(position, position + bytes.length),
+						new ExpectedBytes(bytes, position));
+			}
+		}
+
+		/** The byte known to be at a position (as an unsigned value), or -1 if none is. */
+		int byteAt(int position) {
+			Map.Entry<Range<Integer>, ExpectedBytes> entry = expected.getEntry(position);
+			if (entry == null) {
+				return -1;
+			}
+			return Byte.toUnsignedInt(entry.getValue().data[position - entry.getValue().anchor]);
+		}
+
+		/** The bytes known to be in a range, if all of them are. */
+		Optional<byte[]> knownBytes(Range<Integer> range) {
+			return HackVerifier.knownBytes(expected, range);
+		}
+	}
+
+	static HackVerifier forHack(Hack hack) {
+		Simulation simulation = new Simulation();
+		Optional<Integer> resultLength = hack.targetLength;
+
+		for (Edit edit : hack.edits) {
+			simulation.follow(edit);
+
+			// writing past the end of the file lengthens it
+			Range<Integer> writtenRange = edit.writtenRange();
+			int writtenEnd = edit.shiftLength() > 0 ? 0 : writtenRange.upperEndpoint();
+			resultLength = resultLength.map(
+					length -> Math.max(length + edit.shiftLength(), writtenEnd));
+		}
+
+		return new HackVerifier(simulation.expected, resultLength);
+	}
+
+	private static Optional<byte[]> knownBytes(
+			RangeMap<Integer, ExpectedBytes> expected, Range<Integer> range) {
+		byte[] bytes = new byte[Util.length(range)];
+		int covered = 0;
+		for (Map.Entry<Range<Integer>, ExpectedBytes> entry
+				: expected.subRangeMap(range).asMapOfRanges().entrySet()) {
+			Range<Integer> known = entry.getKey();
+			ExpectedBytes value = entry.getValue();
+			System.arraycopy(
+					value.data,
+					known.lowerEndpoint() - value.anchor,
+					bytes,
+					known.lowerEndpoint() - range.lowerEndpoint(),
+					Util.length(known));
+			covered += Util.length(known);
+		}
+
+		return covered == bytes.length ? Optional.of(bytes) : Optional.empty();
+	}
+
+	private static void shift(RangeMap<Integer, ExpectedBytes> expected, int position, int length) {
+		RangeMap<Integer, ExpectedBytes> movedRanges =
+				expected.subRangeMap(Range.atLeast(position));
+		Map<Range<Integer>, ExpectedBytes> moved = new LinkedHashMap<>(movedRanges.asMapOfRanges());
+		movedRanges.clear();
+		moved.forEach((range, value) -> expected.put(
+				Range.closedOpen(range.lowerEndpoint() + length, range.upperEndpoint() + length),
+				new ExpectedBytes(value.data, value.anchor + length)));
+	}
+
+	private final RangeMap<Integer, ExpectedBytes> expected;
+	/** Length of the file the hack produces, if the hack specifies the length it targets. */
+	final Optional<Integer> resultLength;
+
+	private HackVerifier(
+			RangeMap<Integer, ExpectedBytes> expected, Optional<Integer> resultLength) {
+		this.expected = expected;
+		this.resultLength = resultLength;
+	}
+
+	int checkedRangeCount() {
+		return expected.asMapOfRanges().size();
+	}
+
+	int checkedByteCount() {
+		return expected.asMapOfRanges().keySet().stream().mapToInt(Util::length).sum();
+	}
+
+	/**
+	 * Compares the file to the bytes expected after the hack, returning the ranges that differ.
+	 */
+	List<Drift> findDrift(SeekableByteChannel channel) throws IOException {
+		long fileLength = channel.size();
+
+		List<Drift> drift = new ArrayList<>();
+		for (Map.Entry<Range<Integer>, ExpectedBytes> entry
+				: expected.asMapOfRanges().entrySet()) {
+			Range<Integer> range = entry.getKey();
+			int start = range.lowerEndpoint();
+			int length = Util.length(range);
+			if (range.upperEndpoint() > fileLength) {
+				drift.add(new Drift(range, (int) Math.max(start, fileLength), length));
+				continue;
+			}
+
+			int expectedStart = start - entry.getValue().anchor;
+			byte[] expectedBytes = Arrays.copyOfRange(
+					entry.getValue().data, expectedStart, expectedStart + length);
+			byte[] actualBytes = Util.read(channel, start, length);
+
+			int firstMismatch = Arrays.mismatch(expectedBytes, actualBytes);
+			if (firstMismatch >= 0) {
+				int differingByteCount = 0;
+				for (int i = firstMismatch; i < length; i++) {
+					if (expectedBytes[i] != actualBytes[i]) {
+						differingByteCount++;
+					}
+				}
+				drift.add(new Drift(range, start + firstMismatch, differingByteCount));
+			}
+		}
+
+		return drift;
+	}
+}
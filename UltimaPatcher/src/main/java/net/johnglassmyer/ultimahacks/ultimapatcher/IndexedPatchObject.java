@@ -0,0 +1,183 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A patch object in the forward-indexed (v2) layout, which, unlike the trailer layout produced by
+ * the macros in UltimaPatcher.asm, can be read front-to-back and allows any block to be located
+ * without walking the blocks preceding it.
+ * <p>
+ * Layout (all integers little-endian u32, all positions relative to the start of the object):
+ * <pre>
+ * 0x00  signature "UHPATCH2"
+ * 0x08  target file length
+ * 0x0C  block count
+ * 0x10  description start
+ * 0x14  description length
+ * 0x18  block directory: for each block,
+ *         segment index, start offset, code start, code length,
+ *         relocations start, relocation count
+ * ....  description bytes, code bytes, and relocation offsets, as located by the above
+ * </pre>
+ */
+class IndexedPatchObject {
+	static final String SIGNATURE = "UHPATCH2";
+	static final int HEADER_LENGTH = 0x18;
+	static final int DIRECTORY_ENTRY_LENGTH = 6 * Integer.BYTES;
+
+	private static final int TARGET_LENGTH_OFFSET = 0x08;
+	private static final int BLOCK_COUNT_OFFSET = 0x0C;
+	private static final int DESCRIPTION_START_OFFSET = 0x10;
+	private static final int DESCRIPTION_LENGTH_OFFSET = 0x14;
+
+	static boolean hasSignature(ByteBuffer buffer) {
+		return Util.hasSignature(buffer, SIGNATURE);
+	}
+
+	static IndexedPatchObject wrap(ByteBuffer buffer) {
+		ByteBuffer objectBuffer = buffer.slice();
+		objectBuffer.order(LITTLE_ENDIAN);
+
+		if (!hasSignature(objectBuffer)) {
+			throw new BadSignatureException(
+					SIGNATURE, Util.readSignature(objectBuffer, SIGNATURE.length()));
+		}
+
+		IndexedPatchObject object = new IndexedPatchObject(objectBuffer);
+		object.checkBounds();
+		return object;
+	}
+
+	static byte[] bytesFor(Patch patch) {
+		byte[] descriptionBytes = patch.description.getBytes(StandardCharsets.US_ASCII);
+		List<PatchBlock> blocks = new ArrayList<>(patch.blocks);
+
+		int descriptionStart = HEADER_LENGTH + blocks.size() * DIRECTORY_ENTRY_LENGTH;
+		int length = descriptionStart + descriptionBytes.length;
+		for (PatchBlock block : blocks) {
+			length += block.codeBytes.length + block.relocationsWithinBlock.size() * Integer.BYTES;
+		}
+
+		ByteBuffer buffer = Util.littleEndianBytes(length);
+		buffer.put(SIGNATURE.getBytes(StandardCharsets.US_ASCII));
+		buffer.putInt(TARGET_LENGTH_OFFSET, patch.targetLength);
+		buffer.putInt(BLOCK_COUNT_OFFSET, blocks.size());
+		buffer.putInt(DESCRIPTION_START_OFFSET, descriptionStart);
+		buffer.putInt(DESCRIPTION_LENGTH_OFFSET, descriptionBytes.length);
+
+		buffer.position(descriptionStart);
+		buffer.put(descriptionBytes);
+
+		for (int iBlock = 0; iBlock < blocks.size(); iBlock++) {
+			PatchBlock block = blocks.get(iBlock);
+
+			int codeStart = buffer.position();
+			buffer.put(block.codeBytes);
+
+			int relocationsStart = buffer.position();
+			block.relocationsWithinBlock.forEach(buffer::putInt);
+
+			int entryStart = HEADER_LENGTH + iBlock * DIRECTORY_ENTRY_LENGTH;
+			buffer.putInt(entryStart, block.segmentIndex);
+			buffer.putInt(entryStart + 0x04, block.startOffset);
+			buffer.putInt(entryStart + 0x08, codeStart);
+			buffer.putInt(entryStart + 0x0C, block.codeBytes.length);
+			buffer.putInt(entryStart + 0x10, relocationsStart);
+			buffer.putInt(entryStart + 0x14, block.relocationsWithinBlock.size());
+		}
+
+		return buffer.array();
+	}
+
+	private final ByteBuffer buffer;
+
+	private IndexedPatchObject(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	int targetLength() {
+		return buffer.getInt(TARGET_LENGTH_OFFSET);
+	}
+
+	int blockCount() {
+		return buffer.getInt(BLOCK_COUNT_OFFSET);
+	}
+
+	String description() {
+		byte[] descriptionBytes = new byte[buffer.getInt(DESCRIPTION_LENGTH_OFFSET)];
+		ByteBuffer view = buffer.duplicate();
+		view.position(buffer.getInt(DESCRIPTION_START_OFFSET));
+		view.get(descriptionBytes);
+		return new String(descriptionBytes, StandardCharsets.US_ASCII);
+	}
+
+	PatchBlock readBlock(int blockIndex) {
+		if (!(0 <= blockIndex && blockIndex < blockCount())) {
+			throw new IndexOutOfBoundsException(String.format(
+					"block %d of %d-block patch object", blockIndex, blockCount()));
+		}
+
+		int entryStart = HEADER_LENGTH + blockIndex * DIRECTORY_ENTRY_LENGTH;
+		int segmentIndex = buffer.getInt(entryStart);
+		int startOffset = buffer.getInt(entryStart + 0x04);
+		int codeStart = buffer.getInt(entryStart + 0x08);
+		int codeLength = buffer.getInt(entryStart + 0x0C);
+		int relocationsStart = buffer.getInt(entryStart + 0x10);
+		int relocationCount = buffer.getInt(entryStart + 0x14);
+
+		byte[] codeBytes = new byte[codeLength];
+		ByteBuffer view = buffer.duplicate();
+		view.position(codeStart);
+		view.get(codeBytes);
+
+		List<Integer> relocationOffsets = new ArrayList<>(relocationCount);
+		for (int iRelocation = 0; iRelocation < relocationCount; iRelocation++) {
+			relocationOffsets.add(buffer.getInt(relocationsStart + iRelocation * Integer.BYTES));
+		}
+
+		return new PatchBlock(segmentIndex, startOffset, codeBytes, relocationOffsets);
+	}
+
+	Patch toPatch() {
+		int blockCount = blockCount();
+		List<PatchBlock> blocks = new ArrayList<>(blockCount);
+		for (int iBlock = 0; iBlock < blockCount; iBlock++) {
+			blocks.add(readBlock(iBlock));
+		}
+
+		return new Patch(description(), targetLength(), blocks);
+	}
+
+	private void checkBounds() {
+		int blockCount = blockCount();
+		checkRange("block directory",
+				HEADER_LENGTH, Integer.toUnsignedLong(blockCount) * DIRECTORY_ENTRY_LENGTH);
+		checkRange("description",
+				buffer.getInt(DESCRIPTION_START_OFFSET),
+				Integer.toUnsignedLong(buffer.getInt(DESCRIPTION_LENGTH_OFFSET)));
+
+		for (int iBlock = 0; iBlock < blockCount; iBlock++) {
+			int entryStart = HEADER_LENGTH + iBlock * DIRECTORY_ENTRY_LENGTH;
+			checkRange("code of block " + iBlock,
+					buffer.getInt(entryStart + 0x08),
+					Integer.toUnsignedLong(buffer.getInt(entryStart + 0x0C)));
+			checkRange("relocations of block " + iBlock,
+					buffer.getInt(entryStart + 0x10),
+					Integer.toUnsignedLong(buffer.getInt(entryStart + 0x14)) * Integer.BYTES);
+		}
+	}
+
+	private void checkRange(String what, int start, long length) {
+		long startLong = Integer.toUnsignedLong(start);
+		if (startLong + length > buffer.limit()) {
+			throw new PatchApplicationException(String.format(
+					"%s (0x%X bytes at 0x%X) extends beyond end of 0x%X-byte patch object",
+					what, length, startLong, buffer.limit()));
+		}
+	}
+}
@@ -2,8 +2,11 @@ package net.johnglassmyer.ultimahacks.ultimapatcher;
 
 import java.io.IOException;
 import java.nio.channels.SeekableByteChannel;
+import java.util.List;
 import java.util.Optional;
 
+import com.google.common.collect.Range;
+
 import net.johnglassmyer.ultimahacks.proto.HackProto;
 
 class InsertEdit implements Edit {
@@ -37,6 +40,21 @@ class InsertEdit implements Edit {
 		return explanation;
 	}
 
+	@Override
+	public Range<Integer> writtenRange() {
+		return Range.closedOpen(start, start + length);
+	}
+
+	@Override
+	public int shiftLength() {
+		return length;
+	}
+
+	@Override
+	public List<Edit> captureInverse(SeekableByteChannel channel) {
+		return List.of(new RemoveEdit("remove inserted bytes", start, length));
+	}
+
 	@Override
 	public void applyToFile(SeekableByteChannel channel) throws IOException {
 		byte[] tail = Util.read(channel, start, (int) (channel.size() - start));
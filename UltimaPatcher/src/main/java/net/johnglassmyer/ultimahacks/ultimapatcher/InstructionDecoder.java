@@ -0,0 +1,266 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+/**
+ * Decodes the layout of real-mode x86 instructions (8086 through 486, including operand-size and
+ * address-size prefixes): the opcode, ModR/M byte, displacement and immediate of the instruction
+ * at a position in an array of code, and so its length.
+ * <p>
+ * Operands are looked up in tables indexed by opcode, and the fields of the last instruction
+ * decoded are kept in the decoder itself, so that sweeping through all of the code in an
+ * executable allocates nothing per instruction.
+ */
+class InstructionDecoder {
+	/** Longest instruction that the processor will execute. */
+	static final int MAX_LENGTH = 15;
+
+	/** Opcode value of a two-byte (0Fh-prefixed) opcode, to which the second byte is added. */
+	static final int TWO_BYTE = 0x0F00;
+
+	static final int PUSH_IMMEDIATE = 0x68;
+	static final int CALL_FAR = 0x9A;
+	static final int JMP_FAR = 0xEA;
+
+	private static final int MODRM = 1 << 0;
+	private static final int IMM8 = 1 << 1;
+	private static final int IMM16 = 1 << 2;
+	/** Immediate of the operand size: 16 bits, or 32 with an operand-size prefix. */
+	private static final int IMMV = 1 << 3;
+	/** Offset of the address size: 16 bits, or 32 with an address-size prefix. */
+	private static final int MOFFS = 1 << 4;
+	/** F6h and F7h, which take an immediate only when ModR/M.reg is 0 (TEST). */
+	private static final int TEST_GROUP = 1 << 5;
+	private static final int PREFIX = 1 << 6;
+	private static final int INVALID = 1 << 7;
+
+	private static final int OPERAND_SIZE_PREFIX = 0x66;
+	private static final int ADDRESS_SIZE_PREFIX = 0x67;
+
+	private static final short[] ONE_BYTE_OPERANDS = new short[0x100];
+	private static final short[] TWO_BYTE_OPERANDS = new short[0x100];
+
+	static {
+		// ALU operations 00h-3Fh: r/m,reg forms, then AL,imm8 and AX,imm16
+		for (int row = 0x00; row < 0x40; row += 8) {
+			for (int opcode = row; opcode < row + 4; opcode++) {
+				ONE_BYTE_OPERANDS[opcode] = MODRM;
+			}
+			ONE_BYTE_OPERANDS[row + 4] = IMM8;
+			ONE_BYTE_OPERANDS[row + 5] = IMMV;
+		}
+		for (int prefix : new int[] { 0x26, 0x2E, 0x36, 0x3E, 0x64, 0x65, 0x66, 0x67, 0xF0, 0xF2,
+				0xF3 }) {
+			ONE_BYTE_OPERANDS[prefix] = PREFIX;
+		}
+
+		set(ONE_BYTE_OPERANDS, MODRM, 0x62, 0x63, 0x69, 0x6B);
+		ONE_BYTE_OPERANDS[0x68] = IMMV;
+		ONE_BYTE_OPERANDS[0x69] |= IMMV;
+		ONE_BYTE_OPERANDS[0x6A] = IMM8;
+		ONE_BYTE_OPERANDS[0x6B] |= IMM8;
+		setRange(ONE_BYTE_OPERANDS, IMM8, 0x70, 0x7F); // jcc rel8
+		set(ONE_BYTE_OPERANDS, MODRM | IMM8, 0x80, 0x82, 0x83);
+		ONE_BYTE_OPERANDS[0x81] = MODRM | IMMV;
+		setRange(ONE_BYTE_OPERANDS, MODRM, 0x84, 0x8F);
+		ONE_BYTE_OPERANDS[CALL_FAR] = IMMV | IMM16;
+		setRange(ONE_BYTE_OPERANDS, MOFFS, 0xA0, 0xA3);
+		ONE_BYTE_OPERANDS[0xA8] = IMM8;
+		ONE_BYTE_OPERANDS[0xA9] = IMMV;
+		setRange(ONE_BYTE_OPERANDS, IMM8, 0xB0, 0xB7);
+		setRange(ONE_BYTE_OPERANDS, IMMV, 0xB8, 0xBF);
+		set(ONE_BYTE_OPERANDS, MODRM | IMM8, 0xC0, 0xC1, 0xC6);
+		set(ONE_BYTE_OPERANDS, IMM16, 0xC2, 0xCA);
+		set(ONE_BYTE_OPERANDS, MODRM, 0xC4, 0xC5);
+		ONE_BYTE_OPERANDS[0xC7] = MODRM | IMMV;
+		ONE_BYTE_OPERANDS[0xC8] = IMM16 | IMM8;
+		set(ONE_BYTE_OPERANDS, IMM8, 0xCD, 0xD4, 0xD5);
+		setRange(ONE_BYTE_OPERANDS, MODRM, 0xD0, 0xD3);
+		setRange(ONE_BYTE_OPERANDS, MODRM, 0xD8, 0xDF); // x87
+		setRange(ONE_BYTE_OPERANDS, IMM8, 0xE0, 0xE7); // loop, jcxz, in, out
+		set(ONE_BYTE_OPERANDS, IMMV, 0xE8, 0xE9);
+		ONE_BYTE_OPERANDS[JMP_FAR] = IMMV | IMM16;
+		ONE_BYTE_OPERANDS[0xEB] = IMM8;
+		set(ONE_BYTE_OPERANDS, MODRM | TEST_GROUP, 0xF6, 0xF7);
+		set(ONE_BYTE_OPERANDS, MODRM, 0xFE, 0xFF);
+
+		// 0Fh-prefixed opcodes of the 286, 386 and 486; those not listed are invalid
+		for (int opcode = 0; opcode < 0x100; opcode++) {
+			TWO_BYTE_OPERANDS[opcode] = INVALID;
+		}
+		setRange(TWO_BYTE_OPERANDS, MODRM, 0x00, 0x03);
+		set(TWO_BYTE_OPERANDS, 0, 0x06, 0x08, 0x09, 0x0B, 0xA0, 0xA1, 0xA2, 0xA8, 0xA9);
+		set(TWO_BYTE_OPERANDS, MODRM, 0x20, 0x21, 0x22, 0x23, 0x24, 0x26);
+		setRange(TWO_BYTE_OPERANDS, IMMV, 0x80, 0x8F); // jcc rel16
+		setRange(TWO_BYTE_OPERANDS, MODRM, 0x90, 0x9F); // setcc
+		set(TWO_BYTE_OPERANDS, MODRM, 0xA3, 0xA5, 0xAB, 0xAD, 0xAF);
+		set(TWO_BYTE_OPERANDS, MODRM | IMM8, 0xA4, 0xAC, 0xBA);
+		setRange(TWO_BYTE_OPERANDS, MODRM, 0xB0, 0xB7);
+		setRange(TWO_BYTE_OPERANDS, MODRM, 0xBB, 0xC1);
+		setRange(TWO_BYTE_OPERANDS, 0, 0xC8, 0xCF); // bswap
+	}
+
+	private static void set(short[] table, int operands, int... opcodes) {
+		for (int opcode : opcodes) {
+			table[opcode] = (short) operands;
+		}
+	}
+
+	private static void setRange(short[] table, int operands, int firstOpcode, int lastOpcode) {
+		for (int opcode = firstOpcode; opcode <= lastOpcode; opcode++) {
+			table[opcode] = (short) operands;
+		}
+	}
+
+	/** Position of the first byte (including any prefixes) of the last instruction decoded. */
+	int start;
+	int length;
+	/** The opcode byte, or {@link #TWO_BYTE} plus the second byte of a two-byte opcode. */
+	int opcode;
+	int prefixCount;
+	/** The segment-override prefix, or -1. */
+	int segmentOverride;
+	/** The REP, REPNE or LOCK prefix, or -1. */
+	int repeatOrLockPrefix;
+	boolean operandSize32;
+	boolean addressSize32;
+	/** The ModR/M byte, or -1. */
+	int modRm;
+	int displacementStart;
+	int displacementLength;
+	int immediateStart;
+	int immediateLength;
+
+	/**
+	 * Decodes the instruction at a position in code.
+	 *
+	 * @return whether there is a valid instruction at the position that ends by the limit
+	 */
+	boolean decode(byte[] code, int position, int limit) {
+		start = position;
+		prefixCount = 0;
+		segmentOverride = -1;
+		repeatOrLockPrefix = -1;
+		operandSize32 = false;
+		addressSize32 = false;
+		modRm = -1;
+		displacementLength = 0;
+		immediateLength = 0;
+
+		limit = Math.min(limit, position + MAX_LENGTH);
+
+		int operands;
+		while (true) {
+			if (position >= limit) {
+				return false;
+			}
+
+			opcode = Byte.toUnsignedInt(code[position++]);
+			operands = ONE_BYTE_OPERANDS[opcode];
+			if ((operands & PREFIX) == 0) {
+				break;
+			}
+
+			prefixCount++;
+			if (opcode == OPERAND_SIZE_PREFIX) {
+				operandSize32 = true;
+			} else if (opcode == ADDRESS_SIZE_PREFIX) {
+				addressSize32 = true;
+			} else if (opcode >= 0xF0) {
+				repeatOrLockPrefix = opcode;
+			} else {
+				segmentOverride = opcode;
+			}
+		}
+
+		if (opcode == 0x0F) {
+			if (position >= limit) {
+				return false;
+			}
+			int secondByte = Byte.toUnsignedInt(code[position++]);
+			opcode = TWO_BYTE + secondByte;
+			operands = TWO_BYTE_OPERANDS[secondByte];
+			if ((operands & INVALID) != 0) {
+				return false;
+			}
+		}
+
+		if ((operands & MODRM) != 0) {
+			if (position >= limit) {
+				return false;
+			}
+			modRm = Byte.toUnsignedInt(code[position++]);
+			position = skipAddressing(code, position, limit);
+			if (position < 0) {
+				return false;
+			}
+		}
+
+		immediateStart = position;
+		if ((operands & IMMV) != 0) {
+			immediateLength += operandSize32 ? 4 : 2;
+		}
+		if ((operands & IMM16) != 0) {
+			immediateLength += 2;
+		}
+		if ((operands & IMM8) != 0) {
+			immediateLength += 1;
+		}
+		if ((operands & MOFFS) != 0) {
+			immediateLength += addressSize32 ? 4 : 2;
+		}
+		if ((operands & TEST_GROUP) != 0 && ((modRm >> 3) & 7) == 0) {
+			immediateLength += opcode == 0xF6 ? 1 : (operandSize32 ? 4 : 2);
+		}
+		position += immediateLength;
+		if (position > limit) {
+			return false;
+		}
+
+		length = position - start;
+		return true;
+	}
+
+	/**
+	 * Skips the SIB byte and displacement that follow the ModR/M byte.
+	 *
+	 * @return the position after them, or -1 if they run past the limit
+	 */
+	private int skipAddressing(byte[] code, int position, int limit) {
+		int mod = modRm >> 6;
+		int rm = modRm & 7;
+
+		displacementLength = 0;
+		if (mod == 3) {
+			// register operand
+		} else if (!addressSize32) {
+			if (mod == 1) {
+				displacementLength = 1;
+			} else if (mod == 2 || rm == 6) {
+				displacementLength = 2;
+			}
+		} else {
+			if (rm == 4) {
+				if (position >= limit) {
+					return -1;
+				}
+				int sibBase = code[position++] & 7;
+				if (mod == 0 && sibBase == 5) {
+					displacementLength = 4;
+				}
+			}
+			if (mod == 1) {
+				displacementLength = 1;
+			} else if (mod == 2 || (mod == 0 && rm == 5)) {
+				displacementLength = 4;
+			}
+		}
+
+		displacementStart = position;
+		position += displacementLength;
+		return position <= limit ? position : -1;
+	}
+
+	/** Reads the little-endian word at a position in code. */
+	static int wordAt(byte[] code, int position) {
+		return Byte.toUnsignedInt(code[position]) | Byte.toUnsignedInt(code[position + 1]) << 8;
+	}
+}
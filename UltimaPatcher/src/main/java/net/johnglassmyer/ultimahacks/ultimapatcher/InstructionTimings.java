@@ -0,0 +1,320 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+/**
+ * Clock counts of real-mode instructions on the 386 and the 486, as listed in Intel's programmer's
+ * reference manuals, for estimating the cost of code without running it.
+ * <p>
+ * The counts are estimates in several ways: where the manuals give a range (as for
+ * multiplication and division, whose times depend on the operands), the upper bound is used;
+ * branches are counted as taken, with the components of the next instruction that the 386 adds to
+ * a taken branch ("m") counted as one; and a repeated string instruction is counted for its setup
+ * and a single repetition. Prefixes are counted as one clock each on the 486 and none on the 386.
+ * Caches, prefetching and the 486's address-generation interlocks are not modelled, so the counts
+ * are better for comparing code than for predicting its time.
+ * <p>
+ * Each timing is packed into an int as four bytes (register and memory operands, on the 386 and
+ * the 486), so that the tables are just a switch.
+ */
+class InstructionTimings {
+	enum Processor {
+		I386("386"),
+		I486("486");
+
+		final String name;
+
+		Processor(String name) {
+			this.name = name;
+		}
+	}
+
+	/** Clock count of an instruction whose timing isn't known (such as x87 instructions). */
+	static final int UNKNOWN = -1;
+
+	private static final int REP = 0xF3;
+	private static final int REPNE = 0xF2;
+
+	/**
+	 * Returns the clock count of the instruction last decoded by the decoder, or
+	 * {@link #UNKNOWN}.
+	 */
+	static int cycles(InstructionDecoder decoder, byte[] code, Processor processor) {
+		int timing = timing(decoder, code);
+		if (timing == UNKNOWN) {
+			return UNKNOWN;
+		}
+
+		boolean memoryOperand = decoder.modRm >= 0 && decoder.modRm < 0xC0;
+		int shift = (processor == Processor.I386 ? 24 : 8) - (memoryOperand ? 8 : 0);
+		int cycles = (timing >> shift) & 0xFF;
+		return processor == Processor.I486 ? cycles + decoder.prefixCount : cycles;
+	}
+
+	/** Whether the instruction last decoded transfers control (and so ends a straight line). */
+	static boolean transfersControl(InstructionDecoder decoder) {
+		int opcode = decoder.opcode;
+		int reg = (decoder.modRm >> 3) & 7;
+		return opcode >= 0x70 && opcode <= 0x7F
+				|| opcode == 0x9A
+				|| opcode >= 0xC2 && opcode <= 0xC3
+				|| opcode >= 0xCA && opcode <= 0xCF
+				|| opcode >= 0xE0 && opcode <= 0xE3
+				|| opcode >= 0xE8 && opcode <= 0xEB
+				|| opcode == 0xF4
+				|| opcode == 0xFF && reg >= 2 && reg <= 5
+				|| opcode >= InstructionDecoder.TWO_BYTE + 0x80
+						&& opcode <= InstructionDecoder.TWO_BYTE + 0x8F;
+	}
+
+	/**
+	 * Returns the target of the relative jump (or call, or loop) last decoded, as an offset in the
+	 * code, or -1 if the instruction isn't one.
+	 */
+	static int relativeTarget(InstructionDecoder decoder, byte[] code) {
+		int opcode = decoder.opcode;
+		int end = decoder.start + decoder.length;
+		if (opcode >= 0x70 && opcode <= 0x7F || opcode >= 0xE0 && opcode <= 0xE3
+				|| opcode == 0xEB) {
+			return end + code[decoder.immediateStart];
+		}
+		if (opcode == 0xE8 || opcode == 0xE9
+				|| opcode >= InstructionDecoder.TWO_BYTE + 0x80
+						&& opcode <= InstructionDecoder.TWO_BYTE + 0x8F) {
+			return end + (short) InstructionDecoder.wordAt(code, decoder.immediateStart);
+		}
+		return -1;
+	}
+
+	private static int timing(int register386, int memory386, int register486, int memory486) {
+		return register386 << 24 | memory386 << 16 | register486 << 8 | memory486;
+	}
+
+	private static int timing(int clocks386, int clocks486) {
+		return timing(clocks386, clocks386, clocks486, clocks486);
+	}
+
+	private static int timing(InstructionDecoder decoder, byte[] code) {
+		int opcode = decoder.opcode;
+		int reg = (decoder.modRm >> 3) & 7;
+		boolean repeated =
+				decoder.repeatOrLockPrefix == REP || decoder.repeatOrLockPrefix == REPNE;
+
+		if (opcode < 0x40 && (opcode & 7) < 6) {
+			switch (opcode & 7) {
+			case 0: case 1:
+				return opcode >> 3 == 7 ? timing(2, 5, 1, 2) : timing(2, 7, 1, 3);
+			case 2: case 3:
+				return timing(2, 6, 1, 2);
+			default:
+				return timing(2, 1);
+			}
+		}
+
+		switch (opcode) {
+		case 0x06: case 0x0E: case 0x16: case 0x1E:
+			return timing(2, 3);
+		case 0x07: case 0x17: case 0x1F:
+			return timing(7, 3);
+		case 0x40: case 0x41: case 0x42: case 0x43: case 0x44: case 0x45: case 0x46: case 0x47:
+		case 0x48: case 0x49: case 0x4A: case 0x4B: case 0x4C: case 0x4D: case 0x4E: case 0x4F:
+			return timing(2, 1);
+		case 0x50: case 0x51: case 0x52: case 0x53: case 0x54: case 0x55: case 0x56: case 0x57:
+			return timing(2, 1);
+		case 0x58: case 0x59: case 0x5A: case 0x5B: case 0x5C: case 0x5D: case 0x5E: case 0x5F:
+			return timing(4, 1);
+		case 0x60:
+			return timing(18, 11);
+		case 0x61:
+			return timing(24, 9);
+		case 0x68: case 0x6A:
+			return timing(2, 1);
+		case 0x69: case 0x6B:
+			return timing(22, 25, 26, 26);
+		case 0x70: case 0x71: case 0x72: case 0x73: case 0x74: case 0x75: case 0x76: case 0x77:
+		case 0x78: case 0x79: case 0x7A: case 0x7B: case 0x7C: case 0x7D: case 0x7E: case 0x7F:
+			return timing(8, 3);
+		case 0x80: case 0x81: case 0x82: case 0x83:
+			return reg == 7 ? timing(2, 5, 1, 2) : timing(2, 7, 1, 3);
+		case 0x84: case 0x85:
+			return timing(2, 5, 1, 2);
+		case 0x86: case 0x87:
+			return timing(3, 5, 3, 5);
+		case 0x88: case 0x89:
+			return timing(2, 1);
+		case 0x8A: case 0x8B:
+			return timing(2, 4, 1, 1);
+		case 0x8C:
+			return timing(2, 3);
+		case 0x8D:
+			return timing(2, 1);
+		case 0x8E:
+			return timing(2, 5, 3, 3);
+		case 0x8F:
+			return timing(5, 6);
+		case 0x90:
+			return timing(3, 1);
+		case 0x91: case 0x92: case 0x93: case 0x94: case 0x95: case 0x96: case 0x97:
+			return timing(3, 3);
+		case 0x98:
+			return timing(3, 3);
+		case 0x99:
+			return timing(2, 3);
+		case 0x9A:
+			return timing(18, 18);
+		case 0x9B:
+			return timing(6, 3);
+		case 0x9C:
+			return timing(4, 4);
+		case 0x9D:
+			return timing(5, 9);
+		case 0x9E:
+			return timing(3, 2);
+		case 0x9F:
+			return timing(2, 3);
+		case 0xA0: case 0xA1:
+			return timing(4, 1);
+		case 0xA2: case 0xA3:
+			return timing(2, 1);
+		case 0xA4: case 0xA5:
+			return repeated ? timing(9, 15) : timing(7, 7);
+		case 0xA6: case 0xA7:
+			return repeated ? timing(14, 14) : timing(10, 8);
+		case 0xA8: case 0xA9:
+			return timing(2, 1);
+		case 0xAA: case 0xAB:
+			return repeated ? timing(10, 11) : timing(4, 5);
+		case 0xAC: case 0xAD:
+			return repeated ? timing(11, 11) : timing(5, 5);
+		case 0xAE: case 0xAF:
+			return repeated ? timing(13, 12) : timing(7, 6);
+		case 0xB0: case 0xB1: case 0xB2: case 0xB3: case 0xB4: case 0xB5: case 0xB6: case 0xB7:
+		case 0xB8: case 0xB9: case 0xBA: case 0xBB: case 0xBC: case 0xBD: case 0xBE: case 0xBF:
+			return timing(2, 1);
+		case 0xC0: case 0xC1:
+			return reg == 2 || reg == 3 ? timing(9, 10, 30, 31) : timing(3, 7, 2, 4);
+		case 0xC2: case 0xC3:
+			return timing(11, 5);
+		case 0xC4: case 0xC5:
+			return timing(7, 6);
+		case 0xC6: case 0xC7:
+			return timing(2, 1);
+		case 0xC8: {
+			int nestingLevel = code[decoder.immediateStart + 2] & 0x1F;
+			return nestingLevel == 0
+					? timing(10, 14)
+					: timing(12 + 4 * (nestingLevel - 1), 17 + 3 * nestingLevel);
+		}
+		case 0xC9:
+			return timing(4, 5);
+		case 0xCA:
+			return timing(19, 14);
+		case 0xCB:
+			return timing(19, 13);
+		case 0xCC:
+			return timing(33, 26);
+		case 0xCD:
+			return timing(37, 30);
+		case 0xCE:
+			return timing(35, 28);
+		case 0xCF:
+			return timing(22, 15);
+		case 0xD0: case 0xD1:
+			return reg == 2 || reg == 3 ? timing(9, 10, 3, 4) : timing(3, 7, 3, 4);
+		case 0xD2: case 0xD3:
+			return reg == 2 || reg == 3 ? timing(9, 10, 30, 31) : timing(3, 7, 3, 4);
+		case 0xD4:
+			return timing(17, 15);
+		case 0xD5:
+			return timing(19, 14);
+		case 0xD7:
+			return timing(5, 4);
+		case 0xE0: case 0xE1:
+			return timing(12, 9);
+		case 0xE2:
+			return timing(12, 7);
+		case 0xE3:
+			return timing(10, 8);
+		case 0xE4: case 0xE5: case 0xEC: case 0xED:
+			return timing(12, 14);
+		case 0xE6: case 0xE7: case 0xEE: case 0xEF:
+			return timing(10, 16);
+		case 0xE8: case 0xE9: case 0xEB:
+			return timing(8, 3);
+		case 0xEA:
+			return timing(13, 17);
+		case 0xF4:
+			return timing(5, 4);
+		case 0xF5: case 0xF8: case 0xF9: case 0xFC: case 0xFD:
+			return timing(2, 2);
+		case 0xFA: case 0xFB:
+			return timing(3, 5);
+		case 0xF6: case 0xF7: {
+			boolean word = opcode == 0xF7;
+			switch (reg) {
+			case 0: case 1:
+				return timing(2, 5, 1, 2);
+			case 2: case 3:
+				return timing(2, 6, 1, 3);
+			case 4: case 5:
+				return word ? timing(22, 25, 26, 26) : timing(14, 17, 18, 18);
+			case 6:
+				return word ? timing(22, 25, 24, 24) : timing(14, 17, 16, 16);
+			default:
+				return word ? timing(27, 30, 27, 28) : timing(19, 22, 19, 20);
+			}
+		}
+		case 0xFE: case 0xFF:
+			switch (reg) {
+			case 0: case 1:
+				return timing(2, 6, 1, 3);
+			case 2:
+				return timing(8, 11, 5, 5);
+			case 3:
+				return timing(23, 17);
+			case 4:
+				return timing(8, 11, 5, 5);
+			case 5:
+				return timing(18, 13);
+			default:
+				return timing(5, 4);
+			}
+
+		case InstructionDecoder.TWO_BYTE + 0xA0: case InstructionDecoder.TWO_BYTE + 0xA8:
+			return timing(2, 3);
+		case InstructionDecoder.TWO_BYTE + 0xA1: case InstructionDecoder.TWO_BYTE + 0xA9:
+			return timing(7, 3);
+		case InstructionDecoder.TWO_BYTE + 0xA3:
+			return timing(3, 12, 3, 8);
+		case InstructionDecoder.TWO_BYTE + 0xAB: case InstructionDecoder.TWO_BYTE + 0xB3:
+		case InstructionDecoder.TWO_BYTE + 0xBB:
+			return timing(6, 13, 6, 13);
+		case InstructionDecoder.TWO_BYTE + 0xBA:
+			return reg == 4 ? timing(3, 6, 3, 3) : timing(6, 8, 6, 8);
+		case InstructionDecoder.TWO_BYTE + 0xA4: case InstructionDecoder.TWO_BYTE + 0xAC:
+			return timing(3, 7, 2, 3);
+		case InstructionDecoder.TWO_BYTE + 0xA5: case InstructionDecoder.TWO_BYTE + 0xAD:
+			return timing(3, 7, 3, 4);
+		case InstructionDecoder.TWO_BYTE + 0xAF:
+			return timing(22, 25, 26, 26);
+		case InstructionDecoder.TWO_BYTE + 0xB2: case InstructionDecoder.TWO_BYTE + 0xB4:
+		case InstructionDecoder.TWO_BYTE + 0xB5:
+			return timing(7, 6);
+		case InstructionDecoder.TWO_BYTE + 0xB6: case InstructionDecoder.TWO_BYTE + 0xB7:
+		case InstructionDecoder.TWO_BYTE + 0xBE: case InstructionDecoder.TWO_BYTE + 0xBF:
+			return timing(3, 6, 3, 3);
+		case InstructionDecoder.TWO_BYTE + 0xBC:
+			return timing(58, 58, 42, 42);
+		case InstructionDecoder.TWO_BYTE + 0xBD:
+			return timing(58, 58, 103, 103);
+		default:
+			if (opcode >= InstructionDecoder.TWO_BYTE + 0x80
+					&& opcode <= InstructionDecoder.TWO_BYTE + 0x8F) {
+				return timing(8, 3);
+			}
+			if (opcode >= InstructionDecoder.TWO_BYTE + 0x90
+					&& opcode <= InstructionDecoder.TWO_BYTE + 0x9F) {
+				return timing(4, 5, 4, 4);
+			}
+			return UNKNOWN;
+		}
+	}
+}
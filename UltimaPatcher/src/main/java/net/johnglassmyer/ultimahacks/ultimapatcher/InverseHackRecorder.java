@@ -0,0 +1,112 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+
+/**
+ * Records, as edits are applied to a file, the bytes each one changes, so that a hack restoring
+ * the file exactly as it was can be produced once they have all been applied.
+ * <p>
+ * The inverse hack consists of the inverse of every edit, in reverse order. Overwrites that restore
+ * bytes which a later edit of the inverse hack removes anyway (such as the contents of an overlay
+ * inserted by an expansion) are left out. The inverse hack targets the length of the edited file
+ * and expects the checksums of every range the edits changed, so that it is refused by a file in
+ * any other state.
+ */
+class InverseHackRecorder {
+	private final Deque<List<Edit>> inverses = new ArrayDeque<>();
+	/** Ranges changed by the edits recorded so far, in the file as it stands after them. */
+	private final RangeSet<Integer> editedRanges = TreeRangeSet.create();
+
+	/**
+	 * Records the inverse of an edit that is about to be applied to the given file.
+	 */
+	void record(Edit edit, SeekableByteChannel channel) throws IOException {
+		inverses.push(edit.captureInverse(channel));
+
+		Range<Integer> writtenRange = edit.writtenRange();
+		int shiftLength = edit.shiftLength();
+		if (shiftLength > 0) {
+			shift(editedRanges, writtenRange.lowerEndpoint(), shiftLength);
+		} else if (shiftLength < 0) {
+			int position = writtenRange.lowerEndpoint();
+			editedRanges.remove(Range.closedOpen(position, position - shiftLength));
+			shift(editedRanges, position - shiftLength, shiftLength);
+		}
+		if (!writtenRange.isEmpty()) {
+			editedRanges.add(writtenRange);
+		}
+	}
+
+	int recordedEditCount() {
+		return inverses.size();
+	}
+
+	/**
+	 * Produces the inverse hack, given the file to which all recorded edits have been applied.
+	 */
+	Hack build(SeekableByteChannel channel, Optional<String> comment) throws IOException {
+		List<Edit> inverseEdits = new ArrayList<>();
+		inverses.forEach(inverseEdits::addAll);
+
+		ImmutableList.Builder<RangeChecksum> expectedChecksums = ImmutableList.builder();
+		for (Range<Integer> range : editedRanges.asRanges()) {
+			expectedChecksums.add(
+					RangeChecksum.of(channel, range.lowerEndpoint(), Util.length(range)));
+		}
+
+		return new Hack(
+				HackMerger.normalize(withoutDiscardedOverwrites(inverseEdits)),
+				Optional.of((int) channel.size()),
+				comment,
+				expectedChecksums.build());
+	}
+
+	/**
+	 * Leaves out overwrites of bytes that a later edit removes, working backward from the last edit
+	 * so that the removed ranges can be kept in the coordinates of the file before each edit.
+	 */
+	private static List<Edit> withoutDiscardedOverwrites(List<Edit> edits) {
+		Deque<Edit> kept = new ArrayDeque<>();
+		RangeSet<Integer> discardedRanges = TreeRangeSet.create();
+
+		for (int i = edits.size() - 1; i >= 0; i--) {
+			Edit edit = edits.get(i);
+			Range<Integer> writtenRange = edit.writtenRange();
+			int shiftLength = edit.shiftLength();
+
+			if (shiftLength < 0) {
+				int position = writtenRange.lowerEndpoint();
+				shift(discardedRanges, position, -shiftLength);
+				discardedRanges.add(Range.closedOpen(position, position - shiftLength));
+			} else if (shiftLength > 0) {
+				discardedRanges.remove(writtenRange);
+				shift(discardedRanges, writtenRange.upperEndpoint(), -shiftLength);
+			} else if (!writtenRange.isEmpty() && discardedRanges.encloses(writtenRange)) {
+				continue;
+			}
+
+			kept.push(edit);
+		}
+
+		return new ArrayList<>(kept);
+	}
+
+	private static void shift(RangeSet<Integer> ranges, int position, int length) {
+		RangeSet<Integer> movedRanges = ranges.subRangeSet(Range.atLeast(position));
+		List<Range<Integer>> moved = new ArrayList<>(movedRanges.asRanges());
+		movedRanges.clear();
+		moved.forEach(range -> ranges.add(
+				Range.closedOpen(range.lowerEndpoint() + length, range.upperEndpoint() + length)));
+	}
+}
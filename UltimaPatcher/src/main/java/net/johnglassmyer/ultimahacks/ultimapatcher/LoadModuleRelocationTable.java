@@ -3,8 +3,11 @@ package net.johnglassmyer.ultimahacks.ultimapatcher;
 import static java.nio.ByteOrder.LITTLE_ENDIAN;
 
 import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.SortedSet;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
 class LoadModuleRelocationTable extends RelocationTable {
@@ -12,19 +15,39 @@ class LoadModuleRelocationTable extends RelocationTable {
 
 	static LoadModuleRelocationTable create(int startInFile, byte[] tableBytes) {
 		ImmutableSet.Builder<Integer> addressesBuilder = ImmutableSet.builder();
+		Map<Integer, Integer> segmentParts = new HashMap<>();
 		ByteBuffer buffer = ByteBuffer.wrap(tableBytes);
 		buffer.order(LITTLE_ENDIAN);
 		for (int i = 0; i < tableBytes.length / (2 * Short.BYTES); i++) {
 			int offset = Short.toUnsignedInt(buffer.getShort());
 			int segment = Short.toUnsignedInt(buffer.getShort());
-			addressesBuilder.add(segment * Util.PARAGRAPH_SIZE + offset);
+			int address = segment * Util.PARAGRAPH_SIZE + offset;
+			addressesBuilder.add(address);
+			segmentParts.putIfAbsent(address, segment);
 		}
 
-		return new LoadModuleRelocationTable(startInFile, addressesBuilder.build());
+		return new LoadModuleRelocationTable(
+				startInFile,
+				addressesBuilder.build(),
+				tableBytes,
+				ImmutableMap.copyOf(segmentParts));
 	}
 
-	LoadModuleRelocationTable(int startInFile, ImmutableSet<Integer> originalAddresses) {
-		super(startInFile, originalAddresses);
+	/**
+	 * Segment part of each original entry, which (unlike the address) is not determined by the
+	 * address alone; entries kept in a replacement table are written as they were, so that only
+	 * the entries actually changed differ from the original table.
+	 */
+	private final ImmutableMap<Integer, Integer> originalSegmentParts;
+
+	LoadModuleRelocationTable(
+			int startInFile,
+			ImmutableSet<Integer> originalAddresses,
+			byte[] originalTableBytes,
+			ImmutableMap<Integer, Integer> originalSegmentParts) {
+		super(startInFile, originalAddresses, originalTableBytes);
+
+		this.originalSegmentParts = originalSegmentParts;
 	}
 
 	@Override
@@ -39,16 +62,23 @@ class LoadModuleRelocationTable extends RelocationTable {
 	}
 
 	@Override
-	protected OverwriteEdit produceTableEdit(SortedSet<Integer> addresses) {
+	protected byte[] produceTableBytes(SortedSet<Integer> addresses) {
 		ByteBuffer buffer = Util.littleEndianBytes(addresses.size() * (2 * Short.BYTES));
 		for (int address : addresses) {
-			int offsetPart = address % Util.PARAGRAPH_SIZE;
+			int segmentPart = originalSegmentParts.getOrDefault(
+					address, address / Util.PARAGRAPH_SIZE);
+
+			int offsetPart = address - segmentPart * Util.PARAGRAPH_SIZE;
 			buffer.putShort((short) offsetPart);
 
-			int segmentPart = address / Util.PARAGRAPH_SIZE;
 			buffer.putShort((short) segmentPart);
 		}
 
-		return new OverwriteEdit("load-module relocation table", startInFile, buffer.array());
+		return buffer.array();
+	}
+
+	@Override
+	protected String describeTable() {
+		return "load-module relocation table";
 	}
 }
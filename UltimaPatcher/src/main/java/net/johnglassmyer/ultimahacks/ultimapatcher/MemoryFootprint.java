@@ -0,0 +1,172 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.ToIntFunction;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * The conventional memory that an executable needs, as far as can be told without running it: the
+ * load module (loaded whole, followed by the minimum extra allocation given in the MZ header for
+ * uninitialized data and the stack) and the overlays, of which the overlay buffer must be able to
+ * hold at least the largest. (Overlays' relocation tables are read only while loading them.)
+ */
+class MemoryFootprint {
+	private static final Logger L = LogManager.getLogger(MemoryFootprint.class);
+
+	/** Names of the quantities that may be given budgets, with how to find them. */
+	private static final ImmutableMap<String, ToIntFunction<MemoryFootprint>> BUDGETED_QUANTITIES =
+			ImmutableMap.of(
+					"resident", MemoryFootprint::residentLength,
+					"overlay", MemoryFootprint::largestOverlayCodeLength,
+					"total", f -> f.residentLength() + f.largestOverlayCodeLength());
+
+	static class OverlayFootprint {
+		final int codeLength;
+		final int relocationTableLength;
+		final int procCount;
+
+		private OverlayFootprint(int codeLength, int relocationTableLength, int procCount) {
+			this.codeLength = codeLength;
+			this.relocationTableLength = relocationTableLength;
+			this.procCount = procCount;
+		}
+	}
+
+	static MemoryFootprint measure(Executable executable) {
+		MzHeader mzHeader = executable.loadModule.mzHeader;
+
+		SortedMap<Integer, OverlayFootprint> overlays = new TreeMap<>();
+		for (int segmentIndex = 0; segmentIndex < executable.segments.size(); segmentIndex++) {
+			final int finalSegmentIndex = segmentIndex;
+			executable.segments.get(segmentIndex).optionalOverlay.ifPresent(overlay -> {
+				overlays.put(finalSegmentIndex, new OverlayFootprint(
+						overlay.stub.codeSize,
+						overlay.stub.relocationTableLength,
+						overlay.stub.procs.size()));
+			});
+		}
+
+		return new MemoryFootprint(
+				mzHeader.calculateMzFileSize() - mzHeader.loadModuleStartInFile(),
+				mzHeader.minExtraParagraphs * Util.PARAGRAPH_SIZE,
+				overlays);
+	}
+
+	final int loadImageLength;
+	final int minExtraLength;
+	final SortedMap<Integer, OverlayFootprint> overlays;
+
+	private MemoryFootprint(
+			int loadImageLength,
+			int minExtraLength,
+			SortedMap<Integer, OverlayFootprint> overlays) {
+		this.loadImageLength = loadImageLength;
+		this.minExtraLength = minExtraLength;
+		this.overlays = overlays;
+	}
+
+	int residentLength() {
+		return loadImageLength + minExtraLength;
+	}
+
+	Optional<Integer> largestOverlaySegmentIndex() {
+		return overlays.entrySet().stream()
+				.max(Comparator.comparingInt(e -> e.getValue().codeLength))
+				.map(Map.Entry::getKey);
+	}
+
+	int largestOverlayCodeLength() {
+		return largestOverlaySegmentIndex().map(i -> overlays.get(i).codeLength).orElse(0);
+	}
+
+	/**
+	 * Logs the footprint beside another (such as that of the executable before patching), with the
+	 * differences between them.
+	 */
+	void logReport(MemoryFootprint before) {
+		L.info("memory footprint:                     before       after       delta");
+		logQuantity("load image", before.loadImageLength, loadImageLength);
+		logQuantity("minimum extra allocation", before.minExtraLength, minExtraLength);
+		logQuantity("resident load module", before.residentLength(), residentLength());
+		logQuantity(
+				String.format("largest overlay (%s)", largestOverlaySegmentIndex()
+						.map(String::valueOf)
+						.orElse("none")),
+				before.largestOverlayCodeLength(),
+				largestOverlayCodeLength());
+		logQuantity("resident + largest overlay",
+				before.residentLength() + before.largestOverlayCodeLength(),
+				residentLength() + largestOverlayCodeLength());
+
+		L.info("");
+		L.info("overlay | code before -> after        | relocs before -> after  | procs");
+		for (Map.Entry<Integer, OverlayFootprint> entry : overlays.entrySet()) {
+			OverlayFootprint overlay = entry.getValue();
+			OverlayFootprint overlayBefore =
+					before.overlays.getOrDefault(entry.getKey(), overlay);
+			L.info(String.format(
+					"%7d | %06X -> %06X (%8s) | %04X -> %04X (%8s) | %2d -> %2d",
+					entry.getKey(),
+					overlayBefore.codeLength,
+					overlay.codeLength,
+					formatDelta(overlayBefore.codeLength, overlay.codeLength),
+					overlayBefore.relocationTableLength,
+					overlay.relocationTableLength,
+					formatDelta(overlayBefore.relocationTableLength, overlay.relocationTableLength),
+					overlayBefore.procCount,
+					overlay.procCount));
+		}
+	}
+
+	/**
+	 * Checks the footprint against budgets given as <code>quantity:maxBytes</code>, where quantity
+	 * is resident, overlay (the largest overlay's code) or total, warning of any that it exceeds.
+	 *
+	 * @return whether the footprint is within all of the budgets
+	 */
+	boolean checkBudgets(List<String> budgetArgs) {
+		boolean withinBudgets = true;
+		for (String arg : budgetArgs) {
+			String[] parts = arg.split(":");
+			ToIntFunction<MemoryFootprint> quantity =
+					parts.length == 2 ? BUDGETED_QUANTITIES.get(parts[0]) : null;
+			if (quantity == null) {
+				throw new PatchApplicationException(String.format(
+						"\"%s\" should be quantity:maxBytes, where quantity is one of %s",
+						arg,
+						BUDGETED_QUANTITIES.keySet()));
+			}
+
+			int budget = Integer.decode(parts[1]);
+			int value = quantity.applyAsInt(this);
+			if (value > budget) {
+				L.warn(String.format("%s memory of 0x%X bytes exceeds budget of 0x%X by 0x%X",
+						parts[0], value, budget, value - budget));
+				withinBudgets = false;
+			} else {
+				L.info(String.format("%s memory of 0x%X bytes is within budget of 0x%X",
+						parts[0], value, budget));
+			}
+		}
+
+		return withinBudgets;
+	}
+
+	private static void logQuantity(String label, int before, int after) {
+		L.info(String.format(
+				"  %-30s %11X %11X %11s", label, before, after, formatDelta(before, after)));
+	}
+
+	private static String formatDelta(int before, int after) {
+		return String.format("%s0x%X", after < before ? "-" : "+", Math.abs(after - before));
+	}
+}
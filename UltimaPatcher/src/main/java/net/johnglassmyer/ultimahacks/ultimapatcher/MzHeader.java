@@ -9,6 +9,9 @@ import org.apache.logging.log4j.Logger;
 
 class MzHeader {
 	static final int LENGTH = 0x1C;
+	static final int FILE_SIZE_OFFSET = 2;
+	static final int HEADER_PARAGRAPHS_OFFSET = 8;
+	static private final int MIN_EXTRA_PARAGRAPHS_OFFSET = 0x0A;
 	static private final Logger L = LogManager.getLogger(MzHeader.class);
 	static private final int PAGE_SIZE = 512;
 	static private final String MZ_SIGNATURE = "MZ";
@@ -29,22 +32,25 @@ class MzHeader {
 			throw new BadSignatureException(MZ_SIGNATURE, signature);
 		}
 
-		int lastPageSize = Short.toUnsignedInt(buffer.getShort(2));
-		int filePages = Short.toUnsignedInt(buffer.getShort(4));
+		int lastPageSize = Short.toUnsignedInt(buffer.getShort(FILE_SIZE_OFFSET));
+		int filePages = Short.toUnsignedInt(buffer.getShort(FILE_SIZE_OFFSET + 2));
 		int relocationCount = Short.toUnsignedInt(buffer.getShort(6));
-		int headerParagraphs = Short.toUnsignedInt(buffer.getShort(8));
+		int headerParagraphs = Short.toUnsignedInt(buffer.getShort(HEADER_PARAGRAPHS_OFFSET));
+		int minExtraParagraphs = Short.toUnsignedInt(buffer.getShort(MIN_EXTRA_PARAGRAPHS_OFFSET));
 		int relocationStart = Short.toUnsignedInt(buffer.getShort(0x18));
 
-		return new MzHeader(signature, lastPageSize, filePages, relocationCount, headerParagraphs, relocationStart);
+		return new MzHeader(signature, lastPageSize, filePages, relocationCount, headerParagraphs,
+				minExtraParagraphs, relocationStart);
 	}
 
 	private MzHeader(String signature, int lastPageSize, int filePages, int relocationCount, int headerParagraphs,
-			int relocationStart) {
+			int minExtraParagraphs, int relocationStart) {
 		this.signature = signature;
 		this.lastPageSize = lastPageSize;
 		this.filePages = filePages;
 		this.relocationCount = relocationCount;
 		this.headerParagraphs = headerParagraphs;
+		this.minExtraParagraphs = minExtraParagraphs;
 		this.relocationTableStartInFile = relocationStart;
 	}
 
@@ -53,6 +59,8 @@ class MzHeader {
 	final int filePages;
 	final int relocationCount;
 	final int headerParagraphs;
+	/** Paragraphs needed beyond the load module, for uninitialized data and the stack. */
+	final int minExtraParagraphs;
 	final int relocationTableStartInFile;
 
 	void logDetails() {
@@ -63,6 +71,18 @@ class MzHeader {
 		L.info(new HexValueMessage(relocationTableStartInFile, "relocation table start"));
 		L.info(new HexValueMessage(relocationCount, "relocation count"));
 		L.info(new HexValueMessage(loadModuleStartInFile(), "load module start"));
+		L.info(new HexValueMessage(minExtraParagraphs, "minimum extra paragraphs"));
+	}
+
+	/**
+	 * Encodes an MZ file size as the last-page size and page count stored at
+	 * {@link #FILE_SIZE_OFFSET}.
+	 */
+	static byte[] fileSizeBytes(int mzFileSize) {
+		ByteBuffer buffer = Util.littleEndianBytes(2 * Short.BYTES);
+		buffer.putShort((short) (mzFileSize % PAGE_SIZE));
+		buffer.putShort((short) ((mzFileSize + PAGE_SIZE - 1) / PAGE_SIZE));
+		return buffer.array();
 	}
 
 	int calculateMzFileSize() {
@@ -21,15 +21,20 @@ class OverlayRelocationTable extends RelocationTable {
 		});
 
 		return new OverlayRelocationTable(
-				tableStartInFile, offsetsBuilder.build(), byteCountInFile, segmentIndex);
+				tableStartInFile,
+				offsetsBuilder.build(),
+				tableBytes,
+				byteCountInFile,
+				segmentIndex);
 	}
 
 	OverlayRelocationTable(
 			int startInFile,
 			ImmutableSet<Integer> originalAddresses,
+			byte[] originalTableBytes,
 			int byteCountInFile,
 			int segmentIndex) {
-		super(startInFile, originalAddresses);
+		super(startInFile, originalAddresses, originalTableBytes);
 
 		this.byteCountInFile = byteCountInFile;
 		this.segmentIndex = segmentIndex;
@@ -48,13 +53,17 @@ class OverlayRelocationTable extends RelocationTable {
 	}
 
 	@Override
-	protected OverwriteEdit produceTableEdit(SortedSet<Integer> relocationAddresses) {
+	protected byte[] produceTableBytes(SortedSet<Integer> relocationAddresses) {
 		ByteBuffer buffer = Util.littleEndianBytes(relocationAddresses.size() * Short.BYTES);
 		for (int address : relocationAddresses) {
 			buffer.putShort((short) address);
 		};
 
-		return new OverwriteEdit(
-				"overlay " + segmentIndex + " relocation table", startInFile, buffer.array());
+		return buffer.array();
+	}
+
+	@Override
+	protected String describeTable() {
+		return "overlay " + segmentIndex + " relocation table";
 	}
 }
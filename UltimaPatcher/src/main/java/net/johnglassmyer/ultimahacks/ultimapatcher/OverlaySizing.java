@@ -0,0 +1,112 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Measures what an overlay needs in order to hold the patch blocks to be applied to it: code long
+ * enough for every block, and a relocation table long enough for the overlay's relocations once
+ * those of the blocks have replaced those that the blocks overwrite.
+ * <p>
+ * The spacing of the entry points of new procs is inferred from the layout of the blocks placed
+ * after the original code: the patches give the first new proc a block at the end of the original
+ * code, so the next block begins at the second new proc's entry point.
+ */
+class OverlaySizing {
+	private static final Logger L = LogManager.getLogger(OverlaySizing.class);
+
+	static OverlaySizing measure(
+			Executable executable, int segmentIndex, List<PatchBlock> allBlocks) {
+		Overlay overlay = executable.segments.get(segmentIndex).optionalOverlay
+				.orElseThrow(() -> new PatchApplicationException(String.format(
+						"Segment %d is not an overlay segment", segmentIndex)));
+		int originalCodeLength = overlay.stub.codeSize;
+
+		List<PatchBlock> blocks = allBlocks.stream()
+				.filter(block -> block.segmentIndex == segmentIndex)
+				.collect(Collectors.toList());
+
+		int blocksEnd = originalCodeLength;
+		NavigableSet<Integer> relocations =
+				new TreeSet<>(overlay.relocationTable.originalAddresses);
+		NavigableSet<Integer> newBlockStarts = new TreeSet<>();
+		for (PatchBlock block : blocks) {
+			blocksEnd = Math.max(blocksEnd, block.endOffset());
+
+			relocations.subSet(block.startOffset, block.endOffset()).clear();
+			block.relocationsWithinBlock.forEach(r -> relocations.add(block.startOffset + r));
+
+			if (block.startOffset >= originalCodeLength) {
+				newBlockStarts.add(block.startOffset);
+			}
+		}
+
+		Optional<Integer> eopSpacing = Optional.empty();
+		if (newBlockStarts.contains(originalCodeLength)) {
+			eopSpacing = Optional.ofNullable(newBlockStarts.higher(originalCodeLength))
+					.map(secondStart -> secondStart - originalCodeLength);
+		}
+
+		return new OverlaySizing(
+				segmentIndex,
+				originalCodeLength,
+				blocksEnd,
+				relocations.size() * Short.BYTES,
+				eopSpacing);
+	}
+
+	final int segmentIndex;
+	final int originalCodeLength;
+	/** End of the last patch block in the overlay, or of the original code if later. */
+	final int codeLength;
+	final int relocationTableLength;
+	/** Spacing of new procs' entry points, if the blocks placed after the code indicate it. */
+	final Optional<Integer> eopSpacing;
+
+	private OverlaySizing(
+			int segmentIndex,
+			int originalCodeLength,
+			int codeLength,
+			int relocationTableLength,
+			Optional<Integer> eopSpacing) {
+		this.segmentIndex = segmentIndex;
+		this.originalCodeLength = originalCodeLength;
+		this.codeLength = codeLength;
+		this.relocationTableLength = relocationTableLength;
+		this.eopSpacing = eopSpacing;
+	}
+
+	boolean extendsCode() {
+		return codeLength > originalCodeLength;
+	}
+
+	/**
+	 * Logs how much room the expanded overlay has beyond what the blocks need.
+	 */
+	void logSlack(Executable expandedExecutable) {
+		Overlay overlay = expandedExecutable.segments.get(segmentIndex).optionalOverlay.get();
+		int codeSlack = overlay.stub.codeSize - codeLength;
+		int relocationTableSlack =
+				expandedExecutable.relocationTableCapacity(segmentIndex) - relocationTableLength;
+
+		String message = String.format(
+				"  Overlay %d slack: 0x%X code bytes beyond blocks ending at 0x%X,"
+						+ " %d relocations beyond the %d needed",
+				segmentIndex,
+				codeSlack,
+				codeLength,
+				relocationTableSlack / Short.BYTES,
+				relocationTableLength / Short.BYTES);
+		if (codeSlack < 0 || relocationTableSlack < 0) {
+			L.warn(message);
+		} else {
+			L.info(message);
+		}
+	}
+}
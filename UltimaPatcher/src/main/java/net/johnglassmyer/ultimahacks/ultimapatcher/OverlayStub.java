@@ -7,6 +7,7 @@ import java.util.Arrays;
 import java.util.List;
 
 class OverlayStub {
+	static final int OVERLAY_START_OFFSET = 4;
 	static final int RELOCATION_BYTE_COUNT_OFFSET = 0x0A;
 	static final int HEADER_LENGTH = 0x20;
 
@@ -21,7 +22,7 @@ class OverlayStub {
 		}
 
 		// Assuming that no DOS game executable is > 2GB in size
-		int overlayStartFromFbovEnd = buffer.getInt(4);
+		int overlayStartFromFbovEnd = buffer.getInt(OVERLAY_START_OFFSET);
 		int codeSize = Short.toUnsignedInt(buffer.getShort(8));
 		int relocationTableByteCount = Short.toUnsignedInt(
 				buffer.getShort(RELOCATION_BYTE_COUNT_OFFSET));
@@ -0,0 +1,275 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Counts overlay activity in an execution trace of the game, such as a DOSBox debugger CPU log
+ * (LOGCPU or LOGS) or a log of far-call targets: any line beginning with a hexadecimal
+ * <code>segment:offset</code> address is taken as a sample of CS:IP, with the segment as it was at
+ * run time, and other lines are skipped.
+ * <p>
+ * A sample at a proc of an overlay's stub is counted as an entry into the overlay. Whether an
+ * entry loaded the overlay is known only from traces that include the instruction executed: the
+ * overlay manager has the stub's procs raise INT 3Fh while the overlay is not resident, so an
+ * entry whose line shows <code>int 3F</code> (or <code>CD3F</code>) as its instruction is counted
+ * as a load. Loads that alternate between two overlays (A, B, A) are counted as thrashing by that
+ * pair, as each evicts the other from the overlay buffer.
+ * <p>
+ * Samples within overlays themselves are not attributed, since overlays run in the overlay buffer
+ * at whatever segment the overlay manager loaded them to.
+ * <p>
+ * A trace may run to hundreds of millions of lines, so it is read as a stream, and everything is
+ * counted in arrays indexed by segment (and proc, and pair of segments).
+ */
+class OverlayTrace {
+	private static final Logger L = LogManager.getLogger(OverlayTrace.class);
+
+	private static final int REPORTED_COUNT = 20;
+	private static final int NONE = -1;
+	/** Spaces between an address and the instruction logged after it. */
+	private static final int INSTRUCTION_GAP = 2;
+
+	static OverlayTrace analyze(Executable executable, int loadSegment, Path tracePath)
+			throws IOException {
+		OverlayTrace trace = new OverlayTrace(executable, loadSegment);
+		try (BufferedReader reader =
+				Files.newBufferedReader(tracePath, StandardCharsets.ISO_8859_1)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				trace.accept(line);
+			}
+		}
+
+		return trace;
+	}
+
+	private final Executable executable;
+	private final int segmentCount;
+	private final RuntimeSegmentMap runtimeSegmentMap;
+
+	private long lineCount;
+	private long sampleCount;
+	private long unattributedSampleCount;
+	private final long[] samplesBySegment;
+	private final long[][] entriesByStubProc;
+	private final long[] entriesByOverlay;
+	private final long[] switchesByOverlay;
+	private final long[] loadsByOverlay;
+	/** Alternating loads, indexed by (lower segment index * segment count + higher). */
+	private final long[] thrashesByPair;
+
+	private int lastEnteredOverlay = NONE;
+	private int lastLoadedOverlay = NONE;
+	private int secondLastLoadedOverlay = NONE;
+
+	private OverlayTrace(Executable executable, int loadSegment) {
+		this.executable = executable;
+		this.segmentCount = executable.segments.size();
+		this.runtimeSegmentMap = new RuntimeSegmentMap(executable, loadSegment);
+
+		samplesBySegment = new long[segmentCount];
+		entriesByStubProc = new long[segmentCount][];
+		for (int segmentIndex = 0; segmentIndex < segmentCount; segmentIndex++) {
+			int procCount = executable.segments.get(segmentIndex).optionalOverlay
+					.map(overlay -> overlay.stub.procs.size())
+					.orElse(0);
+			entriesByStubProc[segmentIndex] = new long[procCount];
+		}
+		entriesByOverlay = new long[segmentCount];
+		switchesByOverlay = new long[segmentCount];
+		loadsByOverlay = new long[segmentCount];
+		thrashesByPair = new long[segmentCount * segmentCount];
+	}
+
+	private void accept(String line) {
+		lineCount++;
+
+		int position = 0;
+		while (position < line.length() && Character.isWhitespace(line.charAt(position))) {
+			position++;
+		}
+
+		int segmentStart = position;
+		int segment = 0;
+		for (int digit; position < line.length()
+				&& (digit = Character.digit(line.charAt(position), 16)) >= 0; position++) {
+			segment = (segment << 4) | digit;
+			if (segment > 0xFFFF) {
+				return;
+			}
+		}
+		if (position == segmentStart || position == line.length()
+				|| line.charAt(position) != ':') {
+			return;
+		}
+		position++;
+
+		int offsetStart = position;
+		long offset = 0;
+		for (int digit; position < line.length()
+				&& (digit = Character.digit(line.charAt(position), 16)) >= 0; position++) {
+			offset = (offset << 4) | digit;
+			if (offset > 0xFFFF) {
+				return;
+			}
+		}
+		if (position == offsetStart) {
+			return;
+		}
+
+		sampleCount++;
+
+		int segmentIndex = runtimeSegmentMap.segmentIndex(segment, (int) offset);
+		if (segmentIndex == RuntimeSegmentMap.NONE) {
+			unattributedSampleCount++;
+			return;
+		}
+		samplesBySegment[segmentIndex]++;
+
+		int procIndex = stubProcIndex(segmentIndex, (int) offset);
+		if (procIndex != NONE) {
+			acceptOverlayEntry(segmentIndex, procIndex, isOverlayInterrupt(line, position));
+		}
+	}
+
+	private int stubProcIndex(int segmentIndex, int offset) {
+		int procOffset = offset - OverlayStub.HEADER_LENGTH;
+		if (procOffset < 0
+				|| procOffset % StubProc.LENGTH != 0
+				|| procOffset / StubProc.LENGTH >= entriesByStubProc[segmentIndex].length) {
+			return NONE;
+		}
+
+		return procOffset / StubProc.LENGTH;
+	}
+
+	/**
+	 * Whether the instruction logged after an address is INT 3Fh, as <code>int 3F</code> or as its
+	 * opcode <code>CD3F</code>, in the column at which DOSBox logs the instruction.
+	 */
+	private static boolean isOverlayInterrupt(String line, int addressEnd) {
+		int column = addressEnd + INSTRUCTION_GAP;
+		if (matchesToken(line, column, "CD3F")) {
+			return true;
+		}
+		if (!line.regionMatches(true, column, "int", 0, 3)) {
+			return false;
+		}
+
+		int operand = column + 3;
+		while (operand < line.length() && line.charAt(operand) == ' ') {
+			operand++;
+		}
+		return operand > column + 3 && matchesToken(line, operand, "3F");
+	}
+
+	/** Whether a token (ignoring case) is at a position in a line, ending at a space or the end. */
+	private static boolean matchesToken(String line, int start, String token) {
+		int end = start + token.length();
+		return line.regionMatches(true, start, token, 0, token.length())
+				&& (end == line.length() || Character.isWhitespace(line.charAt(end)));
+	}
+
+	private void acceptOverlayEntry(int segmentIndex, int procIndex, boolean loaded) {
+		entriesByStubProc[segmentIndex][procIndex]++;
+		entriesByOverlay[segmentIndex]++;
+
+		if (segmentIndex != lastEnteredOverlay) {
+			switchesByOverlay[segmentIndex]++;
+			lastEnteredOverlay = segmentIndex;
+		}
+
+		if (loaded) {
+			loadsByOverlay[segmentIndex]++;
+
+			if (segmentIndex == secondLastLoadedOverlay && segmentIndex != lastLoadedOverlay) {
+				int lower = Math.min(segmentIndex, lastLoadedOverlay);
+				int higher = Math.max(segmentIndex, lastLoadedOverlay);
+				thrashesByPair[lower * segmentCount + higher]++;
+			}
+
+			secondLastLoadedOverlay = lastLoadedOverlay;
+			lastLoadedOverlay = segmentIndex;
+		}
+	}
+
+	void logReport() {
+		L.info(String.format(
+				"%d line(s), %d CS:IP sample(s), %d not in any load-module segment",
+				lineCount,
+				sampleCount,
+				unattributedSampleCount));
+
+		L.info(String.format("%d overlay entries, %d switches between overlays, %d loads",
+				Arrays.stream(entriesByOverlay).sum(),
+				Arrays.stream(switchesByOverlay).sum(),
+				Arrays.stream(loadsByOverlay).sum()));
+
+		L.info("load-module segments (including overlay stubs) by samples:");
+		for (int segmentIndex : topIndices(samplesBySegment)) {
+			L.info(String.format("  %7d | %10d", segmentIndex, samplesBySegment[segmentIndex]));
+		}
+
+		L.info("overlays by entries:");
+		L.info("  segment |    entries |   switches |      loads");
+		for (int segmentIndex : topIndices(entriesByOverlay)) {
+			L.info(String.format("  %7d | %10d | %10d | %10d",
+					segmentIndex,
+					entriesByOverlay[segmentIndex],
+					switchesByOverlay[segmentIndex],
+					loadsByOverlay[segmentIndex]));
+		}
+
+		L.info("hot stub procs:");
+		List<long[]> procEntries = IntStream.range(0, segmentCount).boxed()
+				.flatMap(segmentIndex -> IntStream.range(0, entriesByStubProc[segmentIndex].length)
+						.mapToObj(procIndex -> new long[] {
+								segmentIndex,
+								procIndex,
+								entriesByStubProc[segmentIndex][procIndex] }))
+				.filter(entry -> entry[2] > 0)
+				.sorted(Comparator.comparingLong((long[] entry) -> entry[2]).reversed())
+				.limit(REPORTED_COUNT)
+				.collect(Collectors.toList());
+		for (long[] entry : procEntries) {
+			int segmentIndex = (int) entry[0];
+			int procIndex = (int) entry[1];
+			int startInOverlay = executable.segments.get(segmentIndex).optionalOverlay.get()
+					.stub.procs.get(procIndex).startInOverlay;
+			L.info(String.format("  %s (proc %d -> %s): %d entries",
+					Util.formatAddress(
+							segmentIndex, OverlayStub.HEADER_LENGTH + procIndex * StubProc.LENGTH),
+					procIndex,
+					Util.formatAddress(segmentIndex, startInOverlay),
+					entry[2]));
+		}
+
+		L.info("thrashing pairs of overlays (loads alternating between the two):");
+		for (int pairIndex : topIndices(thrashesByPair)) {
+			L.info(String.format("  %d and %d: %d",
+					pairIndex / segmentCount,
+					pairIndex % segmentCount,
+					thrashesByPair[pairIndex]));
+		}
+	}
+
+	private static List<Integer> topIndices(long[] counts) {
+		return IntStream.range(0, counts.length).boxed()
+				.filter(i -> counts[i] > 0)
+				.sorted(Comparator.comparingLong((Integer i) -> counts[i]).reversed())
+				.limit(REPORTED_COUNT)
+				.collect(Collectors.toList());
+	}
+}
@@ -2,13 +2,56 @@ package net.johnglassmyer.ultimahacks.ultimapatcher;
 
 import java.io.IOException;
 import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 
+import com.google.common.collect.Range;
 import com.google.protobuf.ByteString;
 
 import net.johnglassmyer.ultimahacks.proto.HackProto;
 
 class OverwriteEdit implements Edit {
+	/**
+	 * Produces the edits that undo writing the given bytes at the given position of a file (which
+	 * is as it is before the bytes are written).
+	 */
+	static List<Edit> inverseOfWrite(SeekableByteChannel channel, int start, byte[] writtenBytes)
+			throws IOException {
+		long fileLength = channel.size();
+		int existingLength = (int) Math.max(0, Math.min(writtenBytes.length, fileLength - start));
+
+		List<Edit> inverse = new ArrayList<>();
+		if (start + writtenBytes.length > fileLength) {
+			inverse.add(new RemoveEdit(
+					"restore file length",
+					(int) fileLength,
+					(int) (start + writtenBytes.length - fileLength)));
+		}
+		inverse.addAll(restoringOverwrites(
+				start,
+				Util.read(channel, start, existingLength),
+				Arrays.copyOf(writtenBytes, existingLength)));
+		return inverse;
+	}
+
+	/**
+	 * Produces overwrites that restore the original bytes at a position where the written bytes
+	 * replaced them, leaving out the bytes that the write did not change.
+	 */
+	static List<Edit> restoringOverwrites(int start, byte[] originalBytes, byte[] writtenBytes) {
+		List<Edit> overwrites = new ArrayList<>();
+		HackDelta.differingRanges(originalBytes, writtenBytes).asRanges().forEach(range -> {
+			overwrites.add(new OverwriteEdit(
+					"restore original bytes",
+					start + range.lowerEndpoint(),
+					Arrays.copyOfRange(
+							originalBytes, range.lowerEndpoint(), range.upperEndpoint())));
+		});
+		return overwrites;
+	}
+
 	static Optional<Edit> fromProtoEdit(HackProto.Edit protoEdit) {
 		if (!protoEdit.hasOverwrite()) {
 			return Optional.empty();
@@ -47,6 +90,26 @@ class OverwriteEdit implements Edit {
 		return data.length;
 	}
 
+	byte[] getData() {
+		return data;
+	}
+
+	@Override
+	public Range<Integer> writtenRange() {
+		return Range.closedOpen(start, start + data.length);
+	}
+
+	@Override
+	public List<Edit> captureInverse(SeekableByteChannel channel) throws IOException {
+		return inverseOfWrite(channel, start, data);
+	}
+
+	@Override
+	public boolean isPresentIn(SeekableByteChannel channel) throws IOException {
+		return start + (long) data.length <= channel.size()
+				&& Arrays.equals(Util.read(channel, start, data.length), data);
+	}
+
 	@Override
 	public void applyToFile(SeekableByteChannel channel) throws IOException {
 		Util.write(channel, start, data);
@@ -0,0 +1,115 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single file holding an entire set of patches, each as an {@link IndexedPatchObject}, so that
+ * a game's patches can be mapped into memory at once rather than opened and read one by one.
+ * <p>
+ * Layout (all integers little-endian u32, all positions relative to the start of the bundle):
+ * <pre>
+ * 0x00  signature "UHBUNDL1"
+ * 0x08  patch count
+ * 0x0C  patch directory: for each patch, object start, object length
+ * ....  patch objects
+ * </pre>
+ */
+class PatchBundle {
+	static final String SIGNATURE = "UHBUNDL1";
+	static final int HEADER_LENGTH = 0x0C;
+	static final int DIRECTORY_ENTRY_LENGTH = 2 * Integer.BYTES;
+
+	private static final int PATCH_COUNT_OFFSET = 0x08;
+
+	static boolean hasSignature(ByteBuffer buffer) {
+		return Util.hasSignature(buffer, SIGNATURE);
+	}
+
+	static PatchBundle wrap(ByteBuffer buffer) {
+		ByteBuffer bundleBuffer = buffer.slice();
+		bundleBuffer.order(LITTLE_ENDIAN);
+
+		if (!hasSignature(bundleBuffer)) {
+			throw new BadSignatureException(
+					SIGNATURE, Util.readSignature(bundleBuffer, SIGNATURE.length()));
+		}
+
+		return new PatchBundle(bundleBuffer);
+	}
+
+	static byte[] bytesFor(List<Patch> patches) {
+		List<byte[]> objects = new ArrayList<>(patches.size());
+		patches.forEach(patch -> objects.add(IndexedPatchObject.bytesFor(patch)));
+
+		int objectStart = HEADER_LENGTH + objects.size() * DIRECTORY_ENTRY_LENGTH;
+		int length = objectStart + objects.stream().mapToInt(o -> o.length).sum();
+
+		ByteBuffer buffer = Util.littleEndianBytes(length);
+		buffer.put(SIGNATURE.getBytes(StandardCharsets.US_ASCII));
+		buffer.putInt(PATCH_COUNT_OFFSET, objects.size());
+
+		buffer.position(objectStart);
+		for (int iObject = 0; iObject < objects.size(); iObject++) {
+			byte[] object = objects.get(iObject);
+
+			int entryStart = HEADER_LENGTH + iObject * DIRECTORY_ENTRY_LENGTH;
+			buffer.putInt(entryStart, buffer.position());
+			buffer.putInt(entryStart + 0x04, object.length);
+
+			buffer.put(object);
+		}
+
+		return buffer.array();
+	}
+
+	private final ByteBuffer buffer;
+
+	private PatchBundle(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	int patchCount() {
+		return buffer.getInt(PATCH_COUNT_OFFSET);
+	}
+
+	IndexedPatchObject patchObject(int patchIndex) {
+		if (!(0 <= patchIndex && patchIndex < patchCount())) {
+			throw new IndexOutOfBoundsException(String.format(
+					"patch %d of %d-patch bundle", patchIndex, patchCount()));
+		}
+
+		int entryStart = HEADER_LENGTH + patchIndex * DIRECTORY_ENTRY_LENGTH;
+		if (entryStart + DIRECTORY_ENTRY_LENGTH > buffer.limit()) {
+			throw new PatchApplicationException(String.format(
+					"directory entry for patch %d extends beyond end of bundle", patchIndex));
+		}
+
+		long objectStart = Integer.toUnsignedLong(buffer.getInt(entryStart));
+		long objectLength = Integer.toUnsignedLong(buffer.getInt(entryStart + 0x04));
+		if (objectStart + objectLength > buffer.limit()) {
+			throw new PatchApplicationException(String.format(
+					"patch %d (0x%X bytes at 0x%X) extends beyond end of 0x%X-byte bundle",
+					patchIndex, objectLength, objectStart, buffer.limit()));
+		}
+
+		ByteBuffer objectBuffer = buffer.duplicate();
+		objectBuffer.position((int) objectStart);
+		objectBuffer.limit((int) (objectStart + objectLength));
+		return IndexedPatchObject.wrap(objectBuffer);
+	}
+
+	List<Patch> readPatches() {
+		int patchCount = patchCount();
+		List<Patch> patches = new ArrayList<>(patchCount);
+		for (int iPatch = 0; iPatch < patchCount; iPatch++) {
+			patches.add(patchObject(iPatch).toPatch());
+		}
+
+		return patches;
+	}
+}
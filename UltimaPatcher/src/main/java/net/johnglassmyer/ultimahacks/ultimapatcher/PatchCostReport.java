@@ -0,0 +1,269 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.johnglassmyer.ultimahacks.ultimapatcher.InstructionTimings.Processor;
+import net.johnglassmyer.ultimahacks.ultimapatcher.Segment.Patchable;
+
+/**
+ * Estimates the cost, in clocks on the 386 and the 486, of the code in patches' blocks (by
+ * {@link InstructionTimings}), and compares each block with the original code that it overwrites,
+ * so that a patch that makes a hot path of the game slower shows up when the patch is built.
+ * <p>
+ * A block's code is decoded by sweeping through it from its start, and divided into straight-line
+ * paths, each ending at a transfer of control or before the target of a jump within the block.
+ * Bytes that can't be decoded (such as a block's data) end a path and are counted, as are
+ * instructions whose timing isn't known, which count as no clocks.
+ */
+class PatchCostReport {
+	private static final Logger L = LogManager.getLogger(PatchCostReport.class);
+
+	private static final int REPORTED_COUNT = 20;
+
+	/** Costs of a sequence of instructions. */
+	private static class Cost {
+		int instructionCount;
+		final int[] cycles = new int[Processor.values().length];
+		int unknownCount;
+		int undecodableByteCount;
+
+		void add(Cost other) {
+			instructionCount += other.instructionCount;
+			for (Processor processor : Processor.values()) {
+				cycles[processor.ordinal()] += other.cycles[processor.ordinal()];
+			}
+			unknownCount += other.unknownCount;
+			undecodableByteCount += other.undecodableByteCount;
+		}
+
+		String format() {
+			StringBuilder builder = new StringBuilder();
+			builder.append(String.format("%d instruction(s)", instructionCount));
+			for (Processor processor : Processor.values()) {
+				builder.append(String.format(
+						", %s: %d", processor.name, cycles[processor.ordinal()]));
+			}
+			if (unknownCount > 0) {
+				builder.append(String.format(", %d of unknown cost", unknownCount));
+			}
+			if (undecodableByteCount > 0) {
+				builder.append(String.format(", 0x%X undecodable byte(s)", undecodableByteCount));
+			}
+			return builder.toString();
+		}
+	}
+
+	private static class Path {
+		final int startOffset;
+		final Cost cost = new Cost();
+		int endOffset;
+		boolean endsInLoop;
+
+		Path(int startOffset) {
+			this.startOffset = startOffset;
+			this.endOffset = startOffset;
+		}
+	}
+
+	private static class BlockCost {
+		final Patch patch;
+		final PatchBlock block;
+		final Cost cost;
+		final Optional<Cost> originalCost;
+
+		BlockCost(Patch patch, PatchBlock block, Cost cost, Optional<Cost> originalCost) {
+			this.patch = patch;
+			this.block = block;
+			this.cost = cost;
+			this.originalCost = originalCost;
+		}
+
+		int increase(Processor processor) {
+			return cost.cycles[processor.ordinal()]
+					- originalCost.map(original -> original.cycles[processor.ordinal()]).orElse(0);
+		}
+	}
+
+	private final InstructionDecoder decoder = new InstructionDecoder();
+
+	/**
+	 * Logs the cost of each block of the patches, with the cost of the code that it overwrites in
+	 * the executable, if given.
+	 */
+	static void log(List<Patch> patches, Optional<Executable> optionalExecutable)
+			throws IOException {
+		Optional<byte[]> exeBytes = optionalExecutable.isPresent()
+				? Optional.of(Files.readAllBytes(optionalExecutable.get().path))
+				: Optional.empty();
+		new PatchCostReport().logCosts(patches, optionalExecutable, exeBytes);
+	}
+
+	private void logCosts(List<Patch> patches,
+			Optional<Executable> optionalExecutable,
+			Optional<byte[]> exeBytes) {
+		L.info("estimated clocks (taking branches; see InstructionTimings for what isn't"
+				+ " counted):");
+
+		List<BlockCost> blockCosts = new ArrayList<>();
+		for (Patch patch : patches) {
+			L.info("");
+			L.info("patch \"{}\"", patch.description);
+			for (PatchBlock block : patch.blocks) {
+				List<Path> paths = sweep(block.codeBytes, 0, block.codeBytes.length);
+				Cost cost = new Cost();
+				paths.forEach(path -> cost.add(path.cost));
+
+				Optional<Cost> originalCost = optionalExecutable
+						.flatMap(executable -> originalCode(executable, exeBytes.get(), block))
+						.map(code -> {
+							Cost sum = new Cost();
+							sweep(code, 0, code.length).forEach(path -> sum.add(path.cost));
+							return sum;
+						});
+				BlockCost blockCost = new BlockCost(patch, block, cost, originalCost);
+				blockCosts.add(blockCost);
+
+				L.info("  block for {} of length 0x{}: {}",
+						block.formatAddress(),
+						Integer.toHexString(block.codeBytes.length).toUpperCase(),
+						cost.format());
+				if (originalCost.isPresent()) {
+					L.info("    overwrites {} ({})",
+							originalCost.get().format(), formatIncreases(blockCost));
+				} else if (optionalExecutable.isPresent()) {
+					L.info("    overwrites no original code");
+				}
+				for (Path path : paths) {
+					if (path.cost.instructionCount > 0) {
+						L.info(String.format("    path 0x%04X-0x%04X%s: %s",
+								block.startOffset + path.startOffset,
+								block.startOffset + path.endOffset,
+								path.endsInLoop ? " (loop)" : "",
+								path.cost.format()));
+					}
+				}
+			}
+		}
+
+		if (optionalExecutable.isPresent()) {
+			L.info("");
+			L.info("blocks most slowing the code that they overwrite (on the {}):",
+					Processor.I486.name);
+			blockCosts.stream()
+					.filter(blockCost -> blockCost.originalCost.isPresent()
+							&& blockCost.increase(Processor.I486) > 0)
+					.sorted(Comparator.comparingInt(
+							(BlockCost blockCost) -> blockCost.increase(Processor.I486))
+							.reversed())
+					.limit(REPORTED_COUNT)
+					.forEach(blockCost -> L.info("  {} in \"{}\" ({})",
+							blockCost.block.formatAddress(),
+							blockCost.patch.description,
+							formatIncreases(blockCost)));
+		}
+	}
+
+	private static String formatIncreases(BlockCost blockCost) {
+		List<String> increases = new ArrayList<>();
+		for (Processor processor : Processor.values()) {
+			increases.add(String.format("%s: %+d", processor.name, blockCost.increase(processor)));
+		}
+		return String.join(", ", increases);
+	}
+
+	/**
+	 * Reads the original code that a block overwrites: the part of the block within the
+	 * segment's code (not the padding after it, or space added by expanding an overlay).
+	 */
+	private static Optional<byte[]> originalCode(
+			Executable executable, byte[] exeBytes, PatchBlock block) {
+		if (block.segmentIndex >= executable.segments.size()) {
+			return Optional.empty();
+		}
+
+		Patchable patchable = executable.segments.get(block.segmentIndex).patchable();
+		int start = Math.max(block.startOffset, patchable.startOffset());
+		int end = Math.min(block.endOffset(), patchable.endOffset());
+		if (start >= end) {
+			return Optional.empty();
+		}
+
+		byte[] code = new byte[end - start];
+		int startInFile = patchable.startInFile() + (start - patchable.startOffset());
+		System.arraycopy(exeBytes, startInFile, code, 0, code.length);
+		return Optional.of(code);
+	}
+
+	/** Decodes code from its start, dividing it into straight-line paths. */
+	private List<Path> sweep(byte[] code, int start, int end) {
+		BitSet jumpTargets = new BitSet();
+		for (int position = start; position < end; ) {
+			if (decoder.decode(code, position, end)) {
+				int target = InstructionTimings.relativeTarget(decoder, code);
+				if (target > start && target < end) {
+					jumpTargets.set(target);
+				}
+				position += decoder.length;
+			} else {
+				position++;
+			}
+		}
+
+		List<Path> paths = new ArrayList<>();
+		Path path = new Path(start);
+		paths.add(path);
+		int position = start;
+		boolean afterUndecodable = false;
+		while (position < end) {
+			boolean decodable = decoder.decode(code, position, end);
+			// a run of undecodable bytes ends the path, which resumes at the next instruction
+			if (position > path.startOffset
+					&& (jumpTargets.get(position) || decodable && afterUndecodable)) {
+				path = new Path(position);
+				paths.add(path);
+			}
+			afterUndecodable = !decodable;
+
+			if (!decodable) {
+				path.cost.undecodableByteCount++;
+				position++;
+				path.endOffset = position;
+				continue;
+			}
+
+			path.cost.instructionCount++;
+			for (Processor processor : Processor.values()) {
+				int cycles = InstructionTimings.cycles(decoder, code, processor);
+				if (cycles == InstructionTimings.UNKNOWN) {
+					if (processor == Processor.I386) {
+						path.cost.unknownCount++;
+					}
+				} else {
+					path.cost.cycles[processor.ordinal()] += cycles;
+				}
+			}
+			position += decoder.length;
+			path.endOffset = position;
+
+			if (InstructionTimings.transfersControl(decoder)) {
+				int target = InstructionTimings.relativeTarget(decoder, code);
+				path.endsInLoop = target >= start && target <= path.startOffset;
+				if (position < end) {
+					path = new Path(position);
+					paths.add(path);
+				}
+			}
+		}
+
+		return paths;
+	}
+}
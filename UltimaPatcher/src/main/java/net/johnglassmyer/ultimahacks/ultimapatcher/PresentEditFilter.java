@@ -0,0 +1,514 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import com.google.common.collect.ImmutableRangeSet;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+
+/**
+ * Finds which edits are already present in a file to which some or all of them have been applied
+ * before, so that applying them again completes the file rather than stacking the edits.
+ * <p>
+ * An overwrite or copy is present if the bytes it would write are already there, leaving out
+ * bytes that later edits write over before anything reads them (which those edits account for).
+ * The bytes a copy writes are found by following the preceding edits (see
+ * {@link HackVerifier.Simulation}), and, where its source is in the original file, read from the
+ * file, unless later edits write over them; then, if the file has the bytes those edits write
+ * there, the copy is taken to have been applied before them. (Where those edits remove the source
+ * or write bytes over it that the edits alone don't give, the file's bytes are taken.) Of the
+ * edits, only their offsets and lengths are kept between passes over them, and of the bytes they
+ * write, only those that later copies read.
+ * <p>
+ * Insertions and removals cannot be recognized by content, so they are found from the file's
+ * length instead: if the file is as long as it would be after the first few insertions and
+ * removals of a hack (of known target length), those are taken to be present. This requires that
+ * no edit preceding such an insertion or removal touches the bytes it moves, since those edits
+ * would then be at different positions in the file than in the hack.
+ */
+class PresentEditFilter {
+	/** The offsets and lengths of an edit, which are all the filter keeps of it. */
+	private static class Shape {
+		final int start;
+		final int writtenLength;
+		/** Start of the range the edit reads (as long as the range it writes), or -1 if none. */
+		final int readStart;
+		final int shiftLength;
+
+		Shape(Edit edit) {
+			Range<Integer> writtenRange = edit.writtenRange();
+			this.start = writtenRange.lowerEndpoint();
+			this.writtenLength = Util.length(writtenRange);
+			this.readStart = edit.readRange().map(Range::lowerEndpoint).orElse(-1);
+			this.shiftLength = edit.shiftLength();
+		}
+
+		Range<Integer> writtenRange() {
+			return Range.closedOpen(start, start + writtenLength);
+		}
+
+		Optional<Range<Integer>> readRange() {
+			return readStart < 0
+					? Optional.empty()
+					: Optional.of(Range.closedOpen(readStart, readStart + writtenLength));
+		}
+
+		String describeShift() {
+			return String.format("the %s of 0x%X bytes at 0x%X",
+					shiftLength > 0 ? "insertion" : "removal", Math.abs(shiftLength), start);
+		}
+	}
+
+	/**
+	 * Follows the edits, to be applied to a file of the given target length (if known), to find
+	 * how many of their insertions and removals a file of the given length already has, which
+	 * bytes each edit writes or reads are written again by later edits, and which of the bytes
+	 * each edit writes must be known to check the later edits.
+	 */
+	static PresentEditFilter scan(
+			Iterable<Edit> edits, Optional<Integer> targetLength, long fileLength) {
+		List<Shape> shapes = new ArrayList<>();
+		try (HackReader.Iteration iteration = HackReader.iterate(edits)) {
+			while (iteration.hasNext()) {
+				shapes.add(new Shape(iteration.next()));
+			}
+		}
+
+		int presentShiftCount = countPresentShifts(shapes, targetLength, fileLength);
+
+		Map<Integer, RangeSet<Integer>> overwrittenLater = new HashMap<>();
+		Map<Integer, RangeSet<Integer>> sourceWrittenLater = new HashMap<>();
+		findLaterWrites(shapes, overwrittenLater, sourceWrittenLater);
+
+		// the bytes the edits leave are needed only where a copy's source is written over
+		RangeSet<Integer> finalSources = TreeRangeSet.create();
+		sourceWrittenLater.forEach((index, ranges) -> {
+			finalSources.addAll(movedToEnd(shapes, index, ranges));
+		});
+
+		Map<Integer, RangeSet<Integer>> keptWrites = findKeptWrites(shapes, finalSources);
+
+		HackVerifier.Simulation finalBytes = new HackVerifier.Simulation();
+		if (!finalSources.isEmpty()) {
+			try (HackReader.Iteration iteration = HackReader.iterate(edits)) {
+				for (int index = 0; iteration.hasNext(); index++) {
+					follow(finalBytes, iteration.next(), rangesAt(keptWrites, index));
+				}
+			}
+		}
+
+		return new PresentEditFilter(presentShiftCount,
+				shapes,
+				overwrittenLater,
+				sourceWrittenLater,
+				keptWrites,
+				finalBytes);
+	}
+
+	private static int countPresentShifts(
+			List<Shape> shapes, Optional<Integer> targetLength, long fileLength) {
+		if (!targetLength.isPresent() || targetLength.get() == fileLength) {
+			return 0;
+		}
+
+		List<Shape> shiftingShapes = new ArrayList<>();
+		List<Integer> touchedEndsBefore = new ArrayList<>();
+		// lengths of the file just after each insertion or removal, and just before the next
+		// (or after the last edit), between which it is lengthened only by writing past its end
+		List<Integer> lengthsAfter = new ArrayList<>();
+		List<Integer> lengthsBeforeNext = new ArrayList<>();
+
+		int length = targetLength.get();
+		int touchedEnd = 0;
+		for (Shape shape : shapes) {
+			int writtenEnd = shape.start + shape.writtenLength;
+			if (shape.shiftLength != 0) {
+				if (!shiftingShapes.isEmpty()) {
+					lengthsBeforeNext.add(length);
+				}
+				shiftingShapes.add(shape);
+				touchedEndsBefore.add(touchedEnd);
+				length += shape.shiftLength;
+				lengthsAfter.add(length);
+			} else {
+				// writing past the end of the file lengthens it
+				length = Math.max(length, writtenEnd);
+			}
+
+			touchedEnd = Math.max(touchedEnd, writtenEnd);
+			if (shape.readStart >= 0) {
+				touchedEnd = Math.max(touchedEnd, shape.readStart + shape.writtenLength);
+			}
+		}
+
+		if (!shiftingShapes.isEmpty()) {
+			lengthsBeforeNext.add(length);
+		}
+
+		int presentShiftCount = 0;
+		for (int i = 0; i < shiftingShapes.size(); i++) {
+			if (lengthsAfter.get(i) <= fileLength && fileLength <= lengthsBeforeNext.get(i)) {
+				presentShiftCount = i + 1;
+				break;
+			}
+		}
+		for (int i = 0; i < presentShiftCount; i++) {
+			Shape shiftingShape = shiftingShapes.get(i);
+			if (touchedEndsBefore.get(i) > shiftingShape.start) {
+				throw new PatchApplicationException(String.format(
+						"file length 0x%X indicates that %s is already present, but edits"
+								+ " preceding it touch bytes that it moved",
+						fileLength,
+						shiftingShape.describeShift()));
+			}
+		}
+
+		return presentShiftCount;
+	}
+
+	/**
+	 * Follows the edits backwards to find, for each overwrite or copy, the bytes it writes that
+	 * later edits write over before anything reads them, and the bytes of a copy's source that
+	 * later edits write over (or remove) at all, in the coordinates of the file as the edit finds
+	 * it. The maps are filled in at the indices of the overwrites and copies for which these
+	 * aren't empty.
+	 */
+	private static void findLaterWrites(List<Shape> shapes,
+			Map<Integer, RangeSet<Integer>> overwrittenLater,
+			Map<Integer, RangeSet<Integer>> sourceWrittenLater) {
+		RangeSet<Integer> overwritten = TreeRangeSet.create();
+		RangeSet<Integer> written = TreeRangeSet.create();
+
+		for (int i = shapes.size() - 1; i >= 0; i--) {
+			Shape shape = shapes.get(i);
+			Range<Integer> writtenRange = shape.writtenRange();
+			int position = shape.start;
+
+			if (shape.shiftLength > 0) {
+				overwritten.remove(writtenRange);
+				written.remove(writtenRange);
+				overwritten = moved(overwritten, writtenRange.upperEndpoint(), -shape.shiftLength);
+				written = moved(written, writtenRange.upperEndpoint(), -shape.shiftLength);
+			} else if (shape.shiftLength < 0) {
+				Range<Integer> removed = Range.closedOpen(position, position - shape.shiftLength);
+				overwritten = moved(overwritten, position, -shape.shiftLength);
+				written = moved(written, position, -shape.shiftLength);
+				overwritten.add(removed);
+				written.add(removed);
+			} else {
+				putUnlessEmpty(overwrittenLater, i, overwritten.subRangeSet(writtenRange));
+				Optional<Range<Integer>> readRange = shape.readRange();
+				if (readRange.isPresent()) {
+					putUnlessEmpty(sourceWrittenLater, i, written.subRangeSet(readRange.get()));
+				}
+
+				// the source is read before the destination is written
+				overwritten.add(writtenRange);
+				readRange.ifPresent(overwritten::remove);
+				written.add(writtenRange);
+			}
+		}
+	}
+
+	/**
+	 * Follows the edits backwards to find, for each edit, the bytes it writes that must be known
+	 * to check the edits after it: those that a later copy reads, or that are left at the given
+	 * positions after all of the edits, before later edits write over them. The map is filled in
+	 * at the indices of the edits for which these aren't empty.
+	 */
+	private static Map<Integer, RangeSet<Integer>> findKeptWrites(
+			List<Shape> shapes, RangeSet<Integer> finalPositions) {
+		Map<Integer, RangeSet<Integer>> keptWrites = new HashMap<>();
+		RangeSet<Integer> needed = TreeRangeSet.create(finalPositions);
+
+		for (int i = shapes.size() - 1; i >= 0; i--) {
+			Shape shape = shapes.get(i);
+			Range<Integer> writtenRange = shape.writtenRange();
+			putUnlessEmpty(keptWrites, i, needed.subRangeSet(writtenRange));
+
+			if (shape.shiftLength > 0) {
+				needed.remove(writtenRange);
+				needed = moved(needed, writtenRange.upperEndpoint(), -shape.shiftLength);
+			} else if (shape.shiftLength < 0) {
+				needed = moved(needed, shape.start, -shape.shiftLength);
+			} else {
+				// the source is read before the destination is written
+				needed.remove(writtenRange);
+				shape.readRange().ifPresent(needed::add);
+			}
+		}
+
+		return keptWrites;
+	}
+
+	private static void putUnlessEmpty(
+			Map<Integer, RangeSet<Integer>> map, int index, RangeSet<Integer> ranges) {
+		if (!ranges.isEmpty()) {
+			map.put(index, ImmutableRangeSet.copyOf(ranges));
+		}
+	}
+
+	/** Moves the ranges (or parts of ranges) at and after a position by a distance. */
+	private static RangeSet<Integer> moved(RangeSet<Integer> ranges, int from, int distance) {
+		RangeSet<Integer> result = TreeRangeSet.create();
+		for (Range<Integer> range : ranges.asRanges()) {
+			if (range.upperEndpoint() <= from) {
+				result.add(range);
+			} else if (range.lowerEndpoint() >= from) {
+				result.add(Range.closedOpen(
+						range.lowerEndpoint() + distance, range.upperEndpoint() + distance));
+			} else {
+				result.add(Range.closedOpen(range.lowerEndpoint(), from));
+				result.add(Range.closedOpen(from + distance, range.upperEndpoint() + distance));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Moves ranges, in the file as the edit of the given index leaves it, to where the later edits
+	 * leave them, dropping those parts of them that the later edits remove.
+	 */
+	private static RangeSet<Integer> movedToEnd(
+			List<Shape> shapes, int index, RangeSet<Integer> ranges) {
+		RangeSet<Integer> result = TreeRangeSet.create(ranges);
+		for (int i = index + 1; i < shapes.size(); i++) {
+			Shape shape = shapes.get(i);
+			if (shape.shiftLength > 0) {
+				result = moved(result, shape.start, shape.shiftLength);
+			} else if (shape.shiftLength < 0) {
+				int removedEnd = shape.start - shape.shiftLength;
+				result.remove(Range.closedOpen(shape.start, removedEnd));
+				result = moved(result, removedEnd, shape.shiftLength);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Follows an edit in a simulation, recording only the bytes it writes in the given ranges and
+	 * forgetting the rest, so that the simulation holds no more than the check needs.
+	 */
+	private static void follow(
+			HackVerifier.Simulation simulation, Edit edit, RangeSet<Integer> kept) {
+		Range<Integer> writtenRange = edit.writtenRange();
+		if (edit.shiftLength() != 0) {
+			simulation.shift(writtenRange.lowerEndpoint(), edit.shiftLength());
+			// inserted bytes are zeroes
+			for (Range<Integer> range : kept.asRanges()) {
+				simulation.write(range.lowerEndpoint(), new byte[Util.length(range)]);
+			}
+		} else if (edit instanceof OverwriteEdit) {
+			writeKept(simulation, writtenRange, ((OverwriteEdit) edit).getData(), kept);
+		} else {
+			Optional<byte[]> copiedBytes = edit.readRange().flatMap(simulation::knownBytes);
+			if (copiedBytes.isPresent()) {
+				writeKept(simulation, writtenRange, copiedBytes.get(), kept);
+			} else {
+				simulation.forget(writtenRange);
+			}
+		}
+	}
+
+	/** Records those of the bytes written to a range that are in the given ranges. */
+	private static void writeKept(HackVerifier.Simulation simulation,
+			Range<Integer> writtenRange, byte[] bytes, RangeSet<Integer> kept) {
+		simulation.forget(writtenRange);
+		int start = writtenRange.lowerEndpoint();
+		for (Range<Integer> range : kept.asRanges()) {
+			simulation.write(range.lowerEndpoint(), Arrays.copyOfRange(
+					bytes, range.lowerEndpoint() - start, range.upperEndpoint() - start));
+		}
+	}
+
+	/** Number of the edits' insertions and removals (from the first) already in the file. */
+	final int presentShiftCount;
+	private final List<Shape> shapes;
+	private final Map<Integer, RangeSet<Integer>> overwrittenLater;
+	private final Map<Integer, RangeSet<Integer>> sourceWrittenLater;
+	private final Map<Integer, RangeSet<Integer>> keptWrites;
+	/** Those bytes known to be in the file after all of the edits that the check needs. */
+	private final HackVerifier.Simulation finalBytes;
+
+	private PresentEditFilter(int presentShiftCount,
+			List<Shape> shapes,
+			Map<Integer, RangeSet<Integer>> overwrittenLater,
+			Map<Integer, RangeSet<Integer>> sourceWrittenLater,
+			Map<Integer, RangeSet<Integer>> keptWrites,
+			HackVerifier.Simulation finalBytes) {
+		this.presentShiftCount = presentShiftCount;
+		this.shapes = shapes;
+		this.overwrittenLater = overwrittenLater;
+		this.sourceWrittenLater = sourceWrittenLater;
+		this.keptWrites = keptWrites;
+		this.finalBytes = finalBytes;
+	}
+
+	/**
+	 * Whether any edit not already present inserts or removes bytes.
+	 */
+	boolean shiftsRemaining() {
+		return shapes.stream().filter(shape -> shape.shiftLength != 0).count() > presentShiftCount;
+	}
+
+	private static RangeSet<Integer> rangesAt(Map<Integer, RangeSet<Integer>> map, int index) {
+		return map.getOrDefault(index, ImmutableRangeSet.of());
+	}
+
+	/**
+	 * Position after all of the edits of a byte at a position in the file as the edit of the
+	 * given index finds it, or -1 if a later edit removes it.
+	 */
+	private int finalPosition(int index, int position) {
+		for (int i = index + 1; i < shapes.size(); i++) {
+			Shape shape = shapes.get(i);
+			if (shape.shiftLength > 0 && position >= shape.start) {
+				position += shape.shiftLength;
+			} else if (shape.shiftLength < 0 && position >= shape.start) {
+				if (position < shape.start - shape.shiftLength) {
+					return -1;
+				}
+				position += shape.shiftLength;
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * Checks the edits, in order, against a file in which each edit found not present is applied
+	 * (as given by {@link #toApply}) before the next edit is checked.
+	 */
+	class Checker {
+		private final HackVerifier.Simulation simulation = new HackVerifier.Simulation();
+		private int editIndex = 0;
+		private int shiftingEditCount = 0;
+		private Edit checkedEdit;
+		/** Overwrite writing the bytes found for the checked copy. */
+		private Optional<Edit> replacement = Optional.empty();
+
+		boolean isPresent(Edit edit, SeekableByteChannel channel) throws IOException {
+			int index = editIndex++;
+			checkedEdit = edit;
+			replacement = Optional.empty();
+			RangeSet<Integer> kept = rangesAt(keptWrites, index);
+
+			if (edit.shiftLength() != 0) {
+				follow(simulation, edit, kept);
+				return shiftingEditCount++ < presentShiftCount;
+			}
+
+			Range<Integer> writtenRange = edit.writtenRange();
+			if (writtenRange.isEmpty()
+					|| !(edit instanceof OverwriteEdit || edit instanceof CopyEdit)) {
+				simulation.forget(writtenRange);
+				return edit.isPresentIn(channel);
+			}
+
+			int start = writtenRange.lowerEndpoint();
+			int length = Util.length(writtenRange);
+			byte[] bytes = new byte[length];
+			// bytes of a copy's source that aren't known, since later edits write over them
+			BitSet unknown = new BitSet();
+			if (edit instanceof OverwriteEdit) {
+				bytes = ((OverwriteEdit) edit).getData();
+			} else {
+				findCopiedBytes(index, edit.readRange().get(), channel, bytes, unknown);
+			}
+
+			if (unknown.isEmpty()) {
+				writeKept(simulation, writtenRange, bytes, kept);
+				if (edit instanceof CopyEdit) {
+					replacement = Optional.of(new OverwriteEdit(
+							edit.explanation().orElse("copy"), start, bytes));
+				}
+			} else {
+				simulation.forget(writtenRange);
+			}
+
+			boolean present = start + (long) length <= channel.size();
+			if (present) {
+				byte[] fileBytes = Util.read(channel, start, length);
+				RangeSet<Integer> overwritten = rangesAt(overwrittenLater, index);
+				for (int i = 0; i < length && present; i++) {
+					present = fileBytes[i] == bytes[i]
+							|| unknown.get(i)
+							|| overwritten.contains(start + i);
+				}
+			}
+
+			if (!present && !unknown.isEmpty()) {
+				throw new PatchApplicationException(String.format(
+						"can't apply %s again: later edits have written over its source", edit));
+			}
+			return present;
+		}
+
+		/**
+		 * Finds the bytes a copy writes: those of its source known from the preceding edits, or
+		 * else read from the file. Where later edits write over the source with known bytes, the
+		 * file's bytes are the copy's only if the file doesn't have what those edits write; if it
+		 * does, the copy is taken to have been applied before them, and its bytes there are
+		 * unknown. Where later edits remove the source, or write over it with bytes not known
+		 * from the edits (as when overlays are compacted), the file's bytes are taken.
+		 */
+		private void findCopiedBytes(int index, Range<Integer> sourceRange,
+				SeekableByteChannel channel, byte[] bytes, BitSet unknown) throws IOException {
+			int source = sourceRange.lowerEndpoint();
+			byte[] fileBytes = Util.read(channel, source, bytes.length);
+			RangeSet<Integer> writtenLater = rangesAt(sourceWrittenLater, index);
+
+			int writtenLaterCount = 0;
+			int overwrittenCount = 0;
+			for (int i = 0; i < bytes.length; i++) {
+				int known = simulation.byteAt(source + i);
+				if (known >= 0) {
+					bytes[i] = (byte) known;
+					continue;
+				}
+
+				bytes[i] = fileBytes[i];
+				if (writtenLater.contains(source + i)) {
+					int finalPosition = finalPosition(index, source + i);
+					int finalByte = finalPosition < 0 ? -1 : finalBytes.byteAt(finalPosition);
+					if (finalByte < 0) {
+						continue;
+					}
+
+					writtenLaterCount++;
+					if (finalByte == Byte.toUnsignedInt(fileBytes[i])) {
+						unknown.set(i);
+						overwrittenCount++;
+					}
+				}
+			}
+
+			if (overwrittenCount > 0 && overwrittenCount < writtenLaterCount) {
+				throw new PatchApplicationException(String.format(
+						"can't tell whether %s is present: only some of the later edits writing"
+								+ " over its source are present",
+						checkedEdit));
+			}
+		}
+
+		/**
+		 * The edit to apply for the edit last checked, if it isn't present: a copy is applied as
+		 * an overwrite with the bytes found for it, since its source may since have changed.
+		 */
+		Edit toApply(Edit edit) {
+			return edit == checkedEdit && replacement.isPresent() ? replacement.get() : edit;
+		}
+	}
+
+	Checker newChecker() {
+		return new Checker();
+	}
+}
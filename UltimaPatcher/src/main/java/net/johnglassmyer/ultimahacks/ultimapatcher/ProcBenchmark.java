@@ -0,0 +1,488 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs a far proc of an executable (such as one of a patch, in an executable that the patch has
+ * been applied to) in a {@link RealModeMachine}, from a seeded state of registers and memory, and
+ * reports the instructions that it executed and the memory that it read and wrote, so that the
+ * cost of patch code can be measured, and its results checked, without running the game.
+ * <p>
+ * The load module is loaded at the load segment and relocated as DOS would relocate it. An
+ * overlay is loaded when one of its stub's procs raises INT 3Fh, as the overlay manager would
+ * load it, with the segment values in its relocation table (the index of a segment times 8)
+ * relocated to the segments at which the load module has those segments, so that far calls from
+ * overlay code go through the stubs of other overlays. Unlike the overlay manager, the harness
+ * loads each overlay into its own space above the load module (and the load module's minimum
+ * extra memory), where it stays for the rest of the run, so that a run counts the overlays that
+ * would have to be loaded but never evicts one.
+ * <p>
+ * The proc is called with a far call from a return address at which the harness has placed an
+ * HLT, and the run ends when the proc returns there, or at any HLT, interrupt or instruction that
+ * the machine doesn't emulate, or at the limit on the number of instructions.
+ */
+class ProcBenchmark {
+	private static final Logger L = LogManager.getLogger(ProcBenchmark.class);
+
+	static final int DEFAULT_LOAD_SEGMENT = 0x1000;
+	static final long DEFAULT_MAX_INSTRUCTION_COUNT = 100_000_000;
+
+	private static final int OVERLAY_INTERRUPT = 0x3F;
+	private static final int STACK_SEGMENT = 0xF000;
+	private static final int INITIAL_SP = 0xFFFE;
+	/** Paragraph (just below the stack) holding the HLT to which the proc returns. */
+	private static final int RETURN_SEGMENT = STACK_SEGMENT - 1;
+	private static final byte HLT = (byte) 0xF4;
+
+	private static final int REPORTED_COUNT = 20;
+
+	private final Executable executable;
+	private final byte[] exeBytes;
+	private final int loadSegment;
+	private final Optional<SymbolIndex> optionalSymbolIndex;
+	private final RuntimeSegmentMap runtimeSegmentMap;
+	private final RealModeMachine machine;
+
+	/** By segment index: the segment at which the overlay was loaded, or 0 if it wasn't. */
+	private final int[] overlaySegments;
+	private final int[] overlayEntryCounts;
+	private int nextFreeSegment;
+
+	ProcBenchmark(Executable executable,
+			byte[] exeBytes,
+			int loadSegment,
+			Optional<SymbolIndex> optionalSymbolIndex) {
+		this.executable = executable;
+		this.exeBytes = exeBytes;
+		this.loadSegment = loadSegment;
+		this.optionalSymbolIndex = optionalSymbolIndex;
+		this.runtimeSegmentMap = new RuntimeSegmentMap(executable, loadSegment);
+		this.machine = new RealModeMachine(this::handleInterrupt);
+		this.overlaySegments = new int[executable.segments.size()];
+		this.overlayEntryCounts = new int[executable.segments.size()];
+
+		MzHeader mzHeader = executable.loadModule.mzHeader;
+		int loadModuleStartInFile = mzHeader.loadModuleStartInFile();
+		int loadModuleLength =
+				Math.min(mzHeader.calculateMzFileSize(), exeBytes.length) - loadModuleStartInFile;
+		int loadModuleParagraphs =
+				(loadModuleLength + Util.PARAGRAPH_SIZE - 1) / Util.PARAGRAPH_SIZE;
+		nextFreeSegment = loadSegment + loadModuleParagraphs + mzHeader.minExtraParagraphs;
+		checkFitsBelowStack(nextFreeSegment, "the load module");
+
+		machine.load(
+				RealModeMachine.linear(loadSegment, 0),
+				exeBytes,
+				loadModuleStartInFile,
+				loadModuleLength);
+		for (int relocation : executable.loadModule.relocationTable.originalAddresses) {
+			int address = RealModeMachine.linear(loadSegment, relocation);
+			machine.pokeWord(address, machine.peekWord(address) + loadSegment);
+		}
+
+		machine.load(RealModeMachine.linear(RETURN_SEGMENT, 0), new byte[] { HLT }, 0, 1);
+
+		machine.segmentRegisters[RealModeMachine.SS] = STACK_SEGMENT;
+		machine.registers[RealModeMachine.SP] = INITIAL_SP;
+		// the game's data segment is the last, which procs expect to be addressed by DS
+		int dataSegment = IntStream.range(0, executable.segments.size())
+				.filter(segmentIndex -> executable.segments.get(segmentIndex).tableEntry.isData())
+				.map(this::runtimeSegment)
+				.reduce((first, second) -> second)
+				.orElse(STACK_SEGMENT);
+		machine.segmentRegisters[RealModeMachine.DS] = dataSegment;
+		machine.segmentRegisters[RealModeMachine.ES] = dataSegment;
+	}
+
+	private void checkFitsBelowStack(int endSegment, String description) {
+		if (endSegment > RETURN_SEGMENT) {
+			throw new PatchApplicationException(String.format(
+					"%s would run into the stack at segment 0x%04X", description, RETURN_SEGMENT));
+		}
+	}
+
+	private int runtimeSegment(int segmentIndex) {
+		return (loadSegment + executable.segments.get(segmentIndex).tableEntry.segmentBase)
+				& 0xFFFF;
+	}
+
+	/**
+	 * Sets a register, given as <code>register=value</code>, where a value of
+	 * <code>@segmentIndex</code> is the segment at which the load module has the segment.
+	 */
+	void seed(String seedArg) {
+		String[] parts = seedArg.split("=", 2);
+		if (parts.length != 2) {
+			throw new PatchApplicationException(String.format(
+					"\"%s\" is not a valid seed; should be register=value", seedArg));
+		}
+
+		String name = parts[0].toLowerCase();
+		int value = parseValue(parts[1]);
+		int register = Arrays.asList(RealModeMachine.REGISTER_NAMES).indexOf(name);
+		int segmentRegister = Arrays.asList(RealModeMachine.SEGMENT_REGISTER_NAMES).indexOf(name);
+		if (register >= 0) {
+			machine.registers[register] = value;
+		} else if (segmentRegister >= 0 && segmentRegister != RealModeMachine.CS) {
+			machine.segmentRegisters[segmentRegister] = value;
+		} else if (name.equals("flags")) {
+			machine.flags = value | 0x0002;
+		} else {
+			throw new PatchApplicationException(String.format(
+					"can't seed register \"%s\" (cs and ip are set by the proc to run)", name));
+		}
+	}
+
+	/** Writes bytes to memory, given as <code>segment:offset=hexBytes</code>. */
+	void poke(String pokeArg) {
+		String[] parts = pokeArg.split("[:=]");
+		if (parts.length != 3 || parts[2].length() % 2 != 0) {
+			throw new PatchApplicationException(String.format(
+					"\"%s\" is not a valid poke; should be segment:offset=hexBytes", pokeArg));
+		}
+
+		int segment = parseValue(parts[0]);
+		int offset = parseValue(parts[1]);
+		byte[] bytes = new byte[parts[2].length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(parts[2].substring(i * 2, i * 2 + 2), 16);
+		}
+		for (int i = 0; i < bytes.length; i++) {
+			machine.load(
+					RealModeMachine.linear(segment, (offset + i) & 0xFFFF), bytes, i, 1);
+		}
+	}
+
+	private int parseValue(String valueArg) {
+		int value;
+		if (valueArg.startsWith("@")) {
+			int segmentIndex = Integer.parseInt(valueArg.substring(1));
+			if (segmentIndex < 0 || segmentIndex >= executable.segments.size()) {
+				throw new PatchApplicationException(
+						String.format("No segment %d in executable", segmentIndex));
+			}
+			value = runtimeSegment(segmentIndex);
+		} else {
+			value = Integer.decode(valueArg);
+		}
+
+		if (value < 0 || value > 0xFFFF) {
+			throw new PatchApplicationException(
+					String.format("%s is not a 16-bit value", valueArg));
+		}
+		return value;
+	}
+
+	/**
+	 * Calls a far proc, given as <code>segmentIndex:offset</code> (as in defineAddress) or as a
+	 * name in the symbols, with the given words pushed as arguments in the given order, and runs
+	 * until it returns or the machine stops.
+	 *
+	 * @return whether the proc returned
+	 */
+	boolean run(String procArg, List<String> pushArgs, long maxInstructionCount) {
+		SegmentAndOffset proc = procArg.contains(":")
+				? SegmentAndOffset.fromString(procArg)
+				: optionalSymbolIndex.flatMap(symbolIndex -> symbolIndex.addressOf(procArg))
+						.orElseThrow(() -> new PatchApplicationException(String.format(
+								"\"%s\" is neither segmentIndex:offset nor a known name",
+								procArg)));
+		if (proc.segmentIndex >= executable.segments.size()) {
+			throw new PatchApplicationException(
+					String.format("No segment %d in executable", proc.segmentIndex));
+		}
+
+		for (String pushArg : pushArgs) {
+			machine.push(parseValue(pushArg));
+		}
+		machine.push(RETURN_SEGMENT);
+		machine.push(0);
+		int initialSp = machine.registers[RealModeMachine.SP];
+
+		// an offset in an overlay segment is of a stub proc (which loads the overlay) if there is
+		// one at the offset, or else of the overlay's code
+		Segment segment = executable.segments.get(proc.segmentIndex);
+		if (segment.optionalOverlay.isPresent() && stubProcIndex(segment, proc.offset) < 0) {
+			loadOverlay(proc.segmentIndex);
+			machine.jumpFar(overlaySegments[proc.segmentIndex], proc.offset);
+		} else {
+			machine.jumpFar(runtimeSegment(proc.segmentIndex), proc.offset);
+		}
+
+		L.info("running {} from {} with {}",
+				procArg, machine.formatCsIp(), formatRegisters());
+		long startNanos = System.nanoTime();
+		machine.run(maxInstructionCount);
+		long elapsedNanos = System.nanoTime() - startNanos;
+
+		boolean returned = machine.segmentRegisters[RealModeMachine.CS] == RETURN_SEGMENT
+				&& machine.ip == 0;
+		if (returned) {
+			// the HLT at the return address is the harness's, not the proc's
+			machine.instructionCount--;
+			machine.opcodeCounts[Byte.toUnsignedInt(HLT)]--;
+			machine.executionCounts[RealModeMachine.linear(RETURN_SEGMENT, 0)]--;
+		}
+
+		L.info("");
+		if (returned) {
+			int spChange = machine.registers[RealModeMachine.SP] - (initialSp + 4);
+			L.info("returned after {} instructions ({} more repetitions of string instructions)"
+					+ " in {} ms{}",
+					machine.instructionCount,
+					machine.stringRepetitionCount,
+					elapsedNanos / 1_000_000,
+					spChange == 0 ? "" : String.format("; sp changed by %d", spChange));
+		} else {
+			L.info("stopped after {} instructions: {}",
+					machine.instructionCount, machine.stopReason());
+		}
+		L.info("  {}", formatRegisters());
+		logReport();
+
+		return returned;
+	}
+
+	private String formatRegisters() {
+		List<String> values = new ArrayList<>();
+		for (int register = 0; register < RealModeMachine.REGISTER_NAMES.length; register++) {
+			values.add(String.format("%s=%04X",
+					RealModeMachine.REGISTER_NAMES[register],
+					machine.registers[register]));
+		}
+		for (int register = 0; register < RealModeMachine.SEGMENT_REGISTER_NAMES.length;
+				register++) {
+			values.add(String.format("%s=%04X",
+					RealModeMachine.SEGMENT_REGISTER_NAMES[register],
+					machine.segmentRegisters[register]));
+		}
+		values.add(String.format("flags=%04X", machine.flags));
+		return String.join(" ", values);
+	}
+
+	private static int stubProcIndex(Segment segment, int offset) {
+		int procOffset = offset - OverlayStub.HEADER_LENGTH;
+		if (procOffset < 0 || procOffset % StubProc.LENGTH != 0) {
+			return -1;
+		}
+		int procIndex = procOffset / StubProc.LENGTH;
+		return procIndex < segment.optionalOverlay.get().stub.procs.size() ? procIndex : -1;
+	}
+
+	/** Handles INT 3Fh raised by a stub proc, by loading its overlay and jumping to the proc. */
+	private boolean handleInterrupt(RealModeMachine machine, int number) {
+		if (number != OVERLAY_INTERRUPT) {
+			return false;
+		}
+
+		int segmentIndex = runtimeSegmentMap.segmentIndex(
+				machine.segmentRegisters[RealModeMachine.CS], machine.ip);
+		if (segmentIndex == RuntimeSegmentMap.NONE) {
+			return false;
+		}
+		Segment segment = executable.segments.get(segmentIndex);
+		if (!segment.optionalOverlay.isPresent()) {
+			return false;
+		}
+		int procIndex = stubProcIndex(segment, machine.ip);
+		if (procIndex < 0) {
+			return false;
+		}
+
+		if (overlaySegments[segmentIndex] == 0) {
+			loadOverlay(segmentIndex);
+		}
+		overlayEntryCounts[segmentIndex]++;
+		StubProc proc = segment.optionalOverlay.get().stub.procs.get(procIndex);
+		machine.jumpFar(overlaySegments[segmentIndex], proc.startInOverlay);
+		return true;
+	}
+
+	private void loadOverlay(int segmentIndex) {
+		Overlay overlay = executable.segments.get(segmentIndex).optionalOverlay.get();
+		int overlaySegment = nextFreeSegment;
+		int paragraphs = (overlay.stub.codeSize + Util.PARAGRAPH_SIZE - 1) / Util.PARAGRAPH_SIZE;
+		checkFitsBelowStack(overlaySegment + paragraphs, "overlay " + segmentIndex);
+		nextFreeSegment += paragraphs;
+
+		int overlayAddress = RealModeMachine.linear(overlaySegment, 0);
+		machine.load(overlayAddress, exeBytes, overlay.startInFile, overlay.stub.codeSize);
+		for (int relocation : overlay.relocationTable.originalAddresses) {
+			int address = overlayAddress + relocation;
+			int value = machine.peekWord(address);
+			int targetIndex = value / SegmentTableEntry.LENGTH;
+			if (value % SegmentTableEntry.LENGTH != 0 || targetIndex >= overlaySegments.length) {
+				L.warn("overlay {} relocation at 0x{} refers to no segment (0x{})",
+						segmentIndex,
+						String.format("%04X", relocation),
+						String.format("%04X", value));
+				continue;
+			}
+			machine.pokeWord(address, runtimeSegment(targetIndex));
+		}
+
+		overlaySegments[segmentIndex] = overlaySegment;
+	}
+
+	private void logReport() {
+		L.info("");
+		L.info("overlays entered:");
+		L.info("  segment | entries | loaded at");
+		for (int segmentIndex = 0; segmentIndex < overlaySegments.length; segmentIndex++) {
+			if (overlaySegments[segmentIndex] != 0) {
+				L.info(String.format("  %7d | %7d | %04X",
+						segmentIndex,
+						overlayEntryCounts[segmentIndex],
+						overlaySegments[segmentIndex]));
+			}
+		}
+
+		L.info("");
+		L.info("most executed opcodes:");
+		IntStream.range(0, machine.opcodeCounts.length)
+				.filter(index -> machine.opcodeCounts[index] > 0)
+				.boxed()
+				.sorted(Comparator.comparingLong((Integer index) -> machine.opcodeCounts[index])
+						.reversed())
+				.limit(REPORTED_COUNT)
+				.forEach(index -> L.info(String.format("  %-5s %10d",
+						index >= RealModeMachine.TWO_BYTE_COUNT_INDEX
+								? String.format("0F %02X", index & 0xFF)
+								: String.format("%02X", index),
+						machine.opcodeCounts[index])));
+
+		L.info("");
+		L.info("most executed instructions:");
+		topAddresses(machine.executionCounts).forEach(address -> L.info(String.format(
+				"  %10d  %s", machine.executionCounts[address], describeAddress(address))));
+
+		L.info("");
+		L.info("bytes read and written, by segment:");
+		L.info("     reads |    writes | segment");
+		for (Region region : regions()) {
+			long reads = sum(machine.readCounts, region.start, region.end);
+			long writes = sum(machine.writeCounts, region.start, region.end);
+			if (reads + writes > 0) {
+				L.info(String.format("%10d | %10d | %s", reads, writes, region.description));
+			}
+		}
+
+		L.info("");
+		L.info("most accessed paragraphs:");
+		L.info("     reads |    writes | paragraph");
+		int[] paragraphAccessCounts = new int[RealModeMachine.MEMORY_LENGTH / Util.PARAGRAPH_SIZE];
+		for (int address = 0; address < RealModeMachine.MEMORY_LENGTH; address++) {
+			paragraphAccessCounts[address / Util.PARAGRAPH_SIZE] +=
+					machine.readCounts[address] + machine.writeCounts[address];
+		}
+		for (int paragraph : topAddresses(paragraphAccessCounts)) {
+			int start = paragraph * Util.PARAGRAPH_SIZE;
+			L.info(String.format("%10d | %10d | %s",
+					sum(machine.readCounts, start, start + Util.PARAGRAPH_SIZE),
+					sum(machine.writeCounts, start, start + Util.PARAGRAPH_SIZE),
+					describeAddress(start)));
+		}
+	}
+
+	private static List<Integer> topAddresses(int[] counts) {
+		return IntStream.range(0, counts.length)
+				.filter(index -> counts[index] > 0)
+				.boxed()
+				.sorted(Comparator.comparingInt((Integer index) -> counts[index]).reversed())
+				.limit(REPORTED_COUNT)
+				.collect(Collectors.toList());
+	}
+
+	private static long sum(int[] counts, int start, int end) {
+		long sum = 0;
+		for (int address = start; address < end; address++) {
+			sum += counts[address];
+		}
+		return sum;
+	}
+
+	private static class Region {
+		final int start;
+		final int end;
+		final String description;
+		/** Segment index, or -1 if the region is not a segment of the executable. */
+		final int segmentIndex;
+		final int startOffset;
+		final boolean isOverlayCode;
+
+		Region(int start,
+				int end,
+				String description,
+				int segmentIndex,
+				int startOffset,
+				boolean isOverlayCode) {
+			this.start = start;
+			this.end = end;
+			this.description = description;
+			this.segmentIndex = segmentIndex;
+			this.startOffset = startOffset;
+			this.isOverlayCode = isOverlayCode;
+		}
+	}
+
+	/** Segments of the load module and loaded overlays, then the stack. */
+	private List<Region> regions() {
+		List<Region> regions = new ArrayList<>();
+		for (int segmentIndex = 0; segmentIndex < executable.segments.size(); segmentIndex++) {
+			SegmentTableEntry tableEntry = executable.segments.get(segmentIndex).tableEntry;
+			int base = RealModeMachine.linear(runtimeSegment(segmentIndex), 0);
+			if (tableEntry.getLength() > 0) {
+				regions.add(new Region(
+						base + tableEntry.startOffset,
+						base + tableEntry.endOffset,
+						segmentIndex + (tableEntry.isOverlay() ? " (stub)" : ""),
+						segmentIndex,
+						tableEntry.startOffset,
+						false));
+			}
+			if (overlaySegments[segmentIndex] != 0) {
+				int start = RealModeMachine.linear(overlaySegments[segmentIndex], 0);
+				int codeSize =
+						executable.segments.get(segmentIndex).optionalOverlay.get().stub.codeSize;
+				regions.add(new Region(start, start + codeSize,
+						String.format("%d (overlay)", segmentIndex), segmentIndex, 0, true));
+			}
+		}
+		int stackStart = RealModeMachine.linear(STACK_SEGMENT, 0);
+		regions.add(new Region(stackStart, stackStart + 0x10000, "stack", -1, 0, false));
+		return regions;
+	}
+
+	/** Describes a linear address as an address in a segment (or the stack), with any name. */
+	private String describeAddress(int address) {
+		for (Region region : regions()) {
+			if (region.start <= address && address < region.end) {
+				int offset = region.startOffset + (address - region.start);
+				if (region.segmentIndex < 0) {
+					return String.format("%s:%04X", region.description, offset);
+				}
+				String symbol = optionalSymbolIndex
+						.flatMap(symbolIndex -> region.isOverlayCode
+								? symbolIndex.symbolizeOverlayCode(region.segmentIndex, offset)
+								: symbolIndex.symbolize(region.segmentIndex, offset))
+						.map(name -> " " + name)
+						.orElse("");
+				return String.format("%d:0x%04X%s%s",
+						region.segmentIndex,
+						offset,
+						region.isOverlayCode ? " (overlay)" : "",
+						symbol);
+			}
+		}
+		return String.format("linear 0x%05X", address);
+	}
+}
@@ -0,0 +1,93 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.zip.CRC32;
+
+import com.google.common.collect.ImmutableList;
+
+import net.johnglassmyer.ultimahacks.proto.HackProto;
+
+/**
+ * The expected CRC-32 of a range of bytes in a file to which a hack is to be applied, allowing the
+ * state of the file to be checked without reading any more of it than the range.
+ */
+class RangeChecksum {
+	/** Length of each of the ranges at the start and end of a file that fingerprint it. */
+	private static final int FINGERPRINT_RANGE_LENGTH = 0x400;
+
+	/**
+	 * Produces checksums of the ranges at the start (headers and load-module relocations) and end
+	 * (overlays) of a file, which tell one release of an executable from another.
+	 */
+	static ImmutableList<RangeChecksum> fingerprint(SeekableByteChannel channel)
+			throws IOException {
+		int fileLength = (int) channel.size();
+		int headLength = Math.min(FINGERPRINT_RANGE_LENGTH, fileLength);
+		int tailStart = Math.max(headLength, fileLength - FINGERPRINT_RANGE_LENGTH);
+
+		ImmutableList.Builder<RangeChecksum> checksums = ImmutableList.builder();
+		checksums.add(of(channel, 0, headLength));
+		if (tailStart < fileLength) {
+			checksums.add(of(channel, tailStart, fileLength - tailStart));
+		}
+		return checksums.build();
+	}
+
+	static RangeChecksum of(SeekableByteChannel channel, int start, int length)
+			throws IOException {
+		byte[] bytes = Util.read(channel, start, length);
+		return new RangeChecksum(start, length, crc32(bytes, 0, length));
+	}
+
+	static RangeChecksum fromProtoMessage(HackProto.RangeChecksum protoChecksum) {
+		return new RangeChecksum(
+				protoChecksum.getStart(), protoChecksum.getLength(), protoChecksum.getCrc32());
+	}
+
+	static RangeChecksum of(byte[] fileBytes, int start, int length) {
+		return new RangeChecksum(start, length, crc32(fileBytes, start, length));
+	}
+
+	static int crc32(byte[] bytes, int start, int length) {
+		CRC32 crc32 = new CRC32();
+		crc32.update(bytes, start, length);
+		return (int) crc32.getValue();
+	}
+
+	final int start;
+	final int length;
+	final int crc32;
+
+	RangeChecksum(int start, int length, int crc32) {
+		this.start = start;
+		this.length = length;
+		this.crc32 = crc32;
+	}
+
+	boolean matches(SeekableByteChannel channel) throws IOException {
+		if (start + (long) length > channel.size()) {
+			return false;
+		}
+
+		return crc32(Util.read(channel, start, length), 0, length) == crc32;
+	}
+
+	HackProto.RangeChecksum toProtoMessage() {
+		return HackProto.RangeChecksum.newBuilder()
+				.setStart(start)
+				.setLength(length)
+				.setCrc32(crc32)
+				.build();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%s(start: %X, length: %X, crc32: %08X)",
+				RangeChecksum.class.getSimpleName(),
+				start,
+				length,
+				crc32);
+	}
+}
@@ -0,0 +1,1257 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+/**
+ * Interprets real-mode x86 code in a megabyte of memory: the 8- and 16-bit integer instructions
+ * of the 8086 through the 386, as decoded by {@link InstructionDecoder}, with 16-bit addressing.
+ * <p>
+ * The machine counts the instructions that it executes (by opcode and by address) and the bytes
+ * that it reads and writes (by address), for profiling the code that it runs. It stops at an HLT,
+ * at an interrupt that the given handler doesn't handle, and at any instruction that it doesn't
+ * emulate: operand-size and address-size prefixes, floating-point, input and output, decimal
+ * adjustment and protected-mode instructions. It has no devices and no interrupt vectors, so
+ * code that calls DOS or the BIOS stops it.
+ * <p>
+ * Counts are kept in arrays indexed by linear address, so that counting allocates nothing per
+ * instruction.
+ */
+class RealModeMachine {
+	interface InterruptHandler {
+		/**
+		 * Handles a software interrupt raised at the machine's current CS:IP, by changing the
+		 * machine's registers or memory and, to continue somewhere other than after the INT,
+		 * calling {@link RealModeMachine#jumpFar}.
+		 *
+		 * @return whether the interrupt was handled (if not, the machine stops)
+		 */
+		boolean handle(RealModeMachine machine, int number);
+	}
+
+	static final int MEMORY_LENGTH = 0x100000;
+
+	static final int AX = 0;
+	static final int CX = 1;
+	static final int DX = 2;
+	static final int BX = 3;
+	static final int SP = 4;
+	static final int BP = 5;
+	static final int SI = 6;
+	static final int DI = 7;
+
+	static final int ES = 0;
+	static final int CS = 1;
+	static final int SS = 2;
+	static final int DS = 3;
+	static final int FS = 4;
+	static final int GS = 5;
+
+	static final String[] REGISTER_NAMES = { "ax", "cx", "dx", "bx", "sp", "bp", "si", "di" };
+	static final String[] SEGMENT_REGISTER_NAMES = { "es", "cs", "ss", "ds", "fs", "gs" };
+
+	/** Index of a two-byte opcode in {@link #opcodeCounts}: 0x100 plus the second byte. */
+	static final int TWO_BYTE_COUNT_INDEX = 0x100;
+
+	private static final int CF = 0x0001;
+	private static final int PF = 0x0004;
+	private static final int AF = 0x0010;
+	private static final int ZF = 0x0040;
+	private static final int SF = 0x0080;
+	private static final int IF = 0x0200;
+	private static final int DF = 0x0400;
+	private static final int OF = 0x0800;
+	/** Flags that POPF and IRET can change (and bit 1, which is always set). */
+	private static final int WRITABLE_FLAGS = 0x0FD5;
+	private static final int RESERVED_FLAG = 0x0002;
+
+	private static final int ADD = 0;
+	private static final int OR = 1;
+	private static final int ADC = 2;
+	private static final int SBB = 3;
+	private static final int AND = 4;
+	private static final int SUB = 5;
+	private static final int XOR = 6;
+	private static final int CMP = 7;
+
+	private static final int BYTE = 1;
+	private static final int WORD = 2;
+
+	private static final int REP = 0xF3;
+	private static final int REPNE = 0xF2;
+
+	private final InterruptHandler interruptHandler;
+	private final InstructionDecoder decoder = new InstructionDecoder();
+	/** Padded so that an instruction at the end of memory can be decoded. */
+	private final byte[] memory = new byte[MEMORY_LENGTH + InstructionDecoder.MAX_LENGTH];
+
+	final int[] registers = new int[8];
+	final int[] segmentRegisters = new int[6];
+	int ip;
+	int flags = RESERVED_FLAG | IF;
+
+	long instructionCount;
+	/** Repetitions of string instructions after the first, not counted as instructions. */
+	long stringRepetitionCount;
+	final long[] opcodeCounts = new long[0x200];
+	/** By linear address: */
+	final int[] executionCounts = new int[MEMORY_LENGTH];
+	final int[] readCounts = new int[MEMORY_LENGTH];
+	final int[] writeCounts = new int[MEMORY_LENGTH];
+
+	private String stopReason;
+
+	// state of the instruction being executed
+	private int nextIp;
+	private boolean registerOperand;
+	private int operandSegment;
+	private int operandOffset;
+
+	RealModeMachine(InterruptHandler interruptHandler) {
+		this.interruptHandler = interruptHandler;
+	}
+
+	static int linear(int segment, int offset) {
+		return ((segment << 4) + offset) & (MEMORY_LENGTH - 1);
+	}
+
+	/** Copies bytes into memory, without counting them as written. */
+	void load(int linearAddress, byte[] bytes, int start, int length) {
+		System.arraycopy(bytes, start, memory, linearAddress, length);
+	}
+
+	/** Reads a word of memory, without counting it as read. */
+	int peekWord(int linearAddress) {
+		return InstructionDecoder.wordAt(memory, linearAddress);
+	}
+
+	/** Writes a word of memory, without counting it as written. */
+	void pokeWord(int linearAddress, int value) {
+		memory[linearAddress] = (byte) value;
+		memory[(linearAddress + 1) & (MEMORY_LENGTH - 1)] = (byte) (value >> 8);
+	}
+
+	/** Continues execution at an address (as a far jump would). */
+	void jumpFar(int segment, int offset) {
+		segmentRegisters[CS] = segment;
+		ip = offset;
+		nextIp = offset;
+	}
+
+	void push(int value) {
+		registers[SP] = (registers[SP] - 2) & 0xFFFF;
+		writeWord(segmentRegisters[SS], registers[SP], value);
+	}
+
+	int pop() {
+		int value = readWord(segmentRegisters[SS], registers[SP]);
+		registers[SP] = (registers[SP] + 2) & 0xFFFF;
+		return value;
+	}
+
+	void stop(String reason) {
+		if (stopReason == null) {
+			stopReason = reason;
+		}
+	}
+
+	/** Why the machine stopped, or null if it hasn't. */
+	String stopReason() {
+		return stopReason;
+	}
+
+	/** Executes instructions until the machine stops or has executed the given number in all. */
+	void run(long maxInstructionCount) {
+		while (stopReason == null) {
+			if (instructionCount >= maxInstructionCount) {
+				stop(String.format("reached the limit of %d instructions", maxInstructionCount));
+				break;
+			}
+			step();
+		}
+	}
+
+	/** Executes the instruction at CS:IP, leaving CS:IP at it if it stops the machine. */
+	void step() {
+		int position = linear(segmentRegisters[CS], ip);
+		if (!decoder.decode(memory, position, position + InstructionDecoder.MAX_LENGTH)) {
+			stop(String.format("invalid instruction at %s", formatCsIp()));
+			return;
+		}
+		if (decoder.operandSize32 || decoder.addressSize32) {
+			stop(String.format("32-bit operand or address at %s is not emulated", formatCsIp()));
+			return;
+		}
+
+		instructionCount++;
+		executionCounts[position]++;
+		int opcode = decoder.opcode;
+		opcodeCounts[opcode >= InstructionDecoder.TWO_BYTE
+				? TWO_BYTE_COUNT_INDEX + (opcode & 0xFF)
+				: opcode]++;
+
+		nextIp = (ip + decoder.length) & 0xFFFF;
+		if (decoder.modRm >= 0) {
+			decodeOperand();
+		}
+
+		if (opcode >= InstructionDecoder.TWO_BYTE) {
+			executeTwoByte(opcode & 0xFF);
+		} else {
+			execute(opcode);
+		}
+
+		if (stopReason == null) {
+			ip = nextIp;
+		}
+	}
+
+	String formatCsIp() {
+		return String.format("%04X:%04X", segmentRegisters[CS], ip);
+	}
+
+	private void execute(int opcode) {
+		if (opcode < 0x40 && (opcode & 7) < 6) {
+			executeArithmetic(opcode >> 3, opcode & 7);
+			return;
+		}
+
+		int reg = (decoder.modRm >> 3) & 7;
+		switch (opcode) {
+		case 0x06: case 0x0E: case 0x16: case 0x1E:
+			push(segmentRegisters[opcode >> 3]);
+			break;
+		case 0x07: case 0x17: case 0x1F:
+			segmentRegisters[opcode >> 3] = pop();
+			break;
+
+		case 0x40: case 0x41: case 0x42: case 0x43: case 0x44: case 0x45: case 0x46: case 0x47:
+			registers[opcode & 7] = incrementOrDecrement(ADD, registers[opcode & 7], WORD);
+			break;
+		case 0x48: case 0x49: case 0x4A: case 0x4B: case 0x4C: case 0x4D: case 0x4E: case 0x4F:
+			registers[opcode & 7] = incrementOrDecrement(SUB, registers[opcode & 7], WORD);
+			break;
+		case 0x50: case 0x51: case 0x52: case 0x53: case 0x54: case 0x55: case 0x56: case 0x57:
+			// PUSH SP pushes SP as it was before the push, since the 286
+			push(registers[opcode & 7]);
+			break;
+		case 0x58: case 0x59: case 0x5A: case 0x5B: case 0x5C: case 0x5D: case 0x5E: case 0x5F:
+			registers[opcode & 7] = pop();
+			break;
+		case 0x60: {
+			int originalSp = registers[SP];
+			for (int register = AX; register <= DI; register++) {
+				push(register == SP ? originalSp : registers[register]);
+			}
+			break;
+		}
+		case 0x61:
+			for (int register = DI; register >= AX; register--) {
+				int value = pop();
+				if (register != SP) {
+					registers[register] = value;
+				}
+			}
+			break;
+		case 0x68:
+			push(immediateWord());
+			break;
+		case 0x69:
+			registers[reg] = multiplySigned(readOperand(WORD), immediateWord());
+			break;
+		case 0x6A:
+			push(signExtendedImmediateByte());
+			break;
+		case 0x6B:
+			registers[reg] = multiplySigned(readOperand(WORD), signExtendedImmediateByte());
+			break;
+
+		case 0x70: case 0x71: case 0x72: case 0x73: case 0x74: case 0x75: case 0x76: case 0x77:
+		case 0x78: case 0x79: case 0x7A: case 0x7B: case 0x7C: case 0x7D: case 0x7E: case 0x7F:
+			if (condition(opcode & 0xF)) {
+				nextIp = (nextIp + signExtendedImmediateByte()) & 0xFFFF;
+			}
+			break;
+
+		case 0x80: case 0x82:
+			executeArithmeticWithImmediate(reg, BYTE, immediateByte());
+			break;
+		case 0x81:
+			executeArithmeticWithImmediate(reg, WORD, immediateWord());
+			break;
+		case 0x83:
+			executeArithmeticWithImmediate(reg, WORD, signExtendedImmediateByte());
+			break;
+		case 0x84: case 0x85: {
+			int size = opcode == 0x84 ? BYTE : WORD;
+			arithmetic(AND, readOperand(size), getRegister(size, reg), size);
+			break;
+		}
+		case 0x86: case 0x87: {
+			int size = opcode == 0x86 ? BYTE : WORD;
+			int value = readOperand(size);
+			writeOperand(size, getRegister(size, reg));
+			setRegister(size, reg, value);
+			break;
+		}
+		case 0x88: case 0x89: {
+			int size = opcode == 0x88 ? BYTE : WORD;
+			writeOperand(size, getRegister(size, reg));
+			break;
+		}
+		case 0x8A: case 0x8B: {
+			int size = opcode == 0x8A ? BYTE : WORD;
+			setRegister(size, reg, readOperand(size));
+			break;
+		}
+		case 0x8C:
+			if (reg > GS) {
+				stopAtInvalidInstruction();
+				break;
+			}
+			writeOperand(WORD, segmentRegisters[reg]);
+			break;
+		case 0x8D:
+			if (registerOperand) {
+				stopAtInvalidInstruction();
+				break;
+			}
+			registers[reg] = operandOffset;
+			break;
+		case 0x8E:
+			if (reg == CS || reg > GS) {
+				stopAtInvalidInstruction();
+				break;
+			}
+			segmentRegisters[reg] = readOperand(WORD);
+			break;
+		case 0x8F:
+			writeOperand(WORD, pop());
+			break;
+
+		case 0x90:
+			break;
+		case 0x91: case 0x92: case 0x93: case 0x94: case 0x95: case 0x96: case 0x97: {
+			int value = registers[AX];
+			registers[AX] = registers[opcode & 7];
+			registers[opcode & 7] = value;
+			break;
+		}
+		case 0x98:
+			registers[AX] = (byte) registers[AX] & 0xFFFF;
+			break;
+		case 0x99:
+			registers[DX] = (registers[AX] & 0x8000) != 0 ? 0xFFFF : 0;
+			break;
+		case 0x9A:
+			push(segmentRegisters[CS]);
+			push(nextIp);
+			jumpFar(immediateWord(2), immediateWord());
+			break;
+		case 0x9B:
+			// WAIT, without a coprocessor to wait for
+			break;
+		case 0x9C:
+			push(flags);
+			break;
+		case 0x9D:
+			flags = (pop() & WRITABLE_FLAGS) | RESERVED_FLAG;
+			break;
+		case 0x9E:
+			flags = (flags & 0xFF00) | (registers[AX] >> 8 & (CF | PF | AF | ZF | SF))
+					| RESERVED_FLAG;
+			break;
+		case 0x9F:
+			setRegister(BYTE, 4, flags & 0xFF);
+			break;
+
+		case 0xA0: case 0xA1: {
+			int size = opcode == 0xA0 ? BYTE : WORD;
+			setRegister(size, AX, read(size, dataSegment(), immediateWord()));
+			break;
+		}
+		case 0xA2: case 0xA3: {
+			int size = opcode == 0xA2 ? BYTE : WORD;
+			write(size, dataSegment(), immediateWord(), getRegister(size, AX));
+			break;
+		}
+		case 0xA4: case 0xA5: case 0xA6: case 0xA7:
+		case 0xAA: case 0xAB: case 0xAC: case 0xAD: case 0xAE: case 0xAF:
+			executeString(opcode);
+			break;
+		case 0xA8:
+			arithmetic(AND, registers[AX] & 0xFF, immediateByte(), BYTE);
+			break;
+		case 0xA9:
+			arithmetic(AND, registers[AX], immediateWord(), WORD);
+			break;
+
+		case 0xB0: case 0xB1: case 0xB2: case 0xB3: case 0xB4: case 0xB5: case 0xB6: case 0xB7:
+			setRegister(BYTE, opcode & 7, immediateByte());
+			break;
+		case 0xB8: case 0xB9: case 0xBA: case 0xBB: case 0xBC: case 0xBD: case 0xBE: case 0xBF:
+			registers[opcode & 7] = immediateWord();
+			break;
+
+		case 0xC0: case 0xC1: {
+			int size = opcode == 0xC0 ? BYTE : WORD;
+			writeOperand(size, shift(reg, readOperand(size), immediateByte(), size));
+			break;
+		}
+		case 0xC2:
+			nextIp = pop();
+			registers[SP] = (registers[SP] + immediateWord()) & 0xFFFF;
+			break;
+		case 0xC3:
+			nextIp = pop();
+			break;
+		case 0xC4: case 0xC5:
+			loadFarPointer(reg, opcode == 0xC4 ? ES : DS);
+			break;
+		case 0xC6: case 0xC7: {
+			int size = opcode == 0xC6 ? BYTE : WORD;
+			writeOperand(size, size == BYTE ? immediateByte() : immediateWord());
+			break;
+		}
+		case 0xC8:
+			enter(immediateWord(), immediateByte(2) & 0x1F);
+			break;
+		case 0xC9:
+			registers[SP] = registers[BP];
+			registers[BP] = pop();
+			break;
+		case 0xCA: case 0xCB: {
+			int offset = pop();
+			int segment = pop();
+			jumpFar(segment, offset);
+			if (opcode == 0xCA) {
+				registers[SP] = (registers[SP] + immediateWord()) & 0xFFFF;
+			}
+			break;
+		}
+		case 0xCC:
+			interrupt(3);
+			break;
+		case 0xCD:
+			interrupt(immediateByte());
+			break;
+		case 0xCE:
+			if ((flags & OF) != 0) {
+				interrupt(4);
+			}
+			break;
+		case 0xCF: {
+			int offset = pop();
+			int segment = pop();
+			jumpFar(segment, offset);
+			flags = (pop() & WRITABLE_FLAGS) | RESERVED_FLAG;
+			break;
+		}
+
+		case 0xD0: case 0xD1: {
+			int size = opcode == 0xD0 ? BYTE : WORD;
+			writeOperand(size, shift(reg, readOperand(size), 1, size));
+			break;
+		}
+		case 0xD2: case 0xD3: {
+			int size = opcode == 0xD2 ? BYTE : WORD;
+			writeOperand(size, shift(reg, readOperand(size), registers[CX] & 0xFF, size));
+			break;
+		}
+		case 0xD4: {
+			int divisor = immediateByte();
+			if (divisor == 0) {
+				stopAtDivideError();
+				break;
+			}
+			int al = registers[AX] & 0xFF;
+			registers[AX] = (al / divisor) << 8 | (al % divisor);
+			setResultFlags(al % divisor, BYTE);
+			break;
+		}
+		case 0xD5: {
+			int al = ((registers[AX] & 0xFF) + (registers[AX] >> 8) * immediateByte()) & 0xFF;
+			registers[AX] = al;
+			setResultFlags(al, BYTE);
+			break;
+		}
+		case 0xD7:
+			setRegister(BYTE, AX, readByte(
+					dataSegment(), (registers[BX] + (registers[AX] & 0xFF)) & 0xFFFF));
+			break;
+		case 0xD8: case 0xD9: case 0xDA: case 0xDB: case 0xDC: case 0xDD: case 0xDE: case 0xDF:
+			stopAtUnemulatedInstruction("floating-point instruction");
+			break;
+
+		case 0xE0: case 0xE1: case 0xE2: {
+			registers[CX] = (registers[CX] - 1) & 0xFFFF;
+			boolean zero = (flags & ZF) != 0;
+			if (registers[CX] != 0
+					&& (opcode == 0xE2 || (opcode == 0xE1 ? zero : !zero))) {
+				nextIp = (nextIp + signExtendedImmediateByte()) & 0xFFFF;
+			}
+			break;
+		}
+		case 0xE3:
+			if (registers[CX] == 0) {
+				nextIp = (nextIp + signExtendedImmediateByte()) & 0xFFFF;
+			}
+			break;
+		case 0xE4: case 0xE5: case 0xE6: case 0xE7: case 0xEC: case 0xED: case 0xEE: case 0xEF:
+		case 0x6C: case 0x6D: case 0x6E: case 0x6F:
+			stopAtUnemulatedInstruction("input or output instruction");
+			break;
+		case 0xE8:
+			push(nextIp);
+			nextIp = (nextIp + immediateWord()) & 0xFFFF;
+			break;
+		case 0xE9:
+			nextIp = (nextIp + immediateWord()) & 0xFFFF;
+			break;
+		case 0xEA:
+			jumpFar(immediateWord(2), immediateWord());
+			break;
+		case 0xEB:
+			nextIp = (nextIp + signExtendedImmediateByte()) & 0xFFFF;
+			break;
+
+		case 0xF4:
+			stop(String.format("HLT at %s", formatCsIp()));
+			break;
+		case 0xF5:
+			flags ^= CF;
+			break;
+		case 0xF6: case 0xF7:
+			executeGroup3(reg, opcode == 0xF6 ? BYTE : WORD);
+			break;
+		case 0xF8:
+			flags &= ~CF;
+			break;
+		case 0xF9:
+			flags |= CF;
+			break;
+		case 0xFA:
+			flags &= ~IF;
+			break;
+		case 0xFB:
+			flags |= IF;
+			break;
+		case 0xFC:
+			flags &= ~DF;
+			break;
+		case 0xFD:
+			flags |= DF;
+			break;
+		case 0xFE:
+			if (reg > 1) {
+				stopAtInvalidInstruction();
+				break;
+			}
+			writeOperand(BYTE, incrementOrDecrement(reg == 0 ? ADD : SUB, readOperand(BYTE), BYTE));
+			break;
+		case 0xFF:
+			executeGroup5(reg);
+			break;
+
+		case 0x27: case 0x2F: case 0x37: case 0x3F:
+			stopAtUnemulatedInstruction("decimal-adjustment instruction");
+			break;
+		default:
+			stopAtUnemulatedInstruction(String.format("instruction %02Xh", opcode));
+			break;
+		}
+	}
+
+	private void executeTwoByte(int secondByte) {
+		int reg = (decoder.modRm >> 3) & 7;
+		switch (secondByte) {
+		case 0x80: case 0x81: case 0x82: case 0x83: case 0x84: case 0x85: case 0x86: case 0x87:
+		case 0x88: case 0x89: case 0x8A: case 0x8B: case 0x8C: case 0x8D: case 0x8E: case 0x8F:
+			if (condition(secondByte & 0xF)) {
+				nextIp = (nextIp + immediateWord()) & 0xFFFF;
+			}
+			break;
+		case 0x90: case 0x91: case 0x92: case 0x93: case 0x94: case 0x95: case 0x96: case 0x97:
+		case 0x98: case 0x99: case 0x9A: case 0x9B: case 0x9C: case 0x9D: case 0x9E: case 0x9F:
+			writeOperand(BYTE, condition(secondByte & 0xF) ? 1 : 0);
+			break;
+		case 0xA0:
+			push(segmentRegisters[FS]);
+			break;
+		case 0xA1:
+			segmentRegisters[FS] = pop();
+			break;
+		case 0xA8:
+			push(segmentRegisters[GS]);
+			break;
+		case 0xA9:
+			segmentRegisters[GS] = pop();
+			break;
+		case 0xA3:
+			testBit(0, registers[reg]);
+			break;
+		case 0xAB:
+			testBit(5, registers[reg]);
+			break;
+		case 0xB3:
+			testBit(6, registers[reg]);
+			break;
+		case 0xBB:
+			testBit(7, registers[reg]);
+			break;
+		case 0xBA:
+			if (reg < 4) {
+				stopAtInvalidInstruction();
+				break;
+			}
+			testBit(reg, immediateByte() & 0xF);
+			break;
+		case 0xAF:
+			registers[reg] = multiplySigned(registers[reg], readOperand(WORD));
+			break;
+		case 0xB2:
+			loadFarPointer(reg, SS);
+			break;
+		case 0xB4:
+			loadFarPointer(reg, FS);
+			break;
+		case 0xB5:
+			loadFarPointer(reg, GS);
+			break;
+		case 0xB6:
+			registers[reg] = readOperand(BYTE);
+			break;
+		case 0xB7:
+		case 0xBF:
+			registers[reg] = readOperand(WORD);
+			break;
+		case 0xBE:
+			registers[reg] = (byte) readOperand(BYTE) & 0xFFFF;
+			break;
+		case 0xBC: case 0xBD: {
+			int value = readOperand(WORD);
+			if (value == 0) {
+				flags |= ZF;
+			} else {
+				flags &= ~ZF;
+				registers[reg] = secondByte == 0xBC
+						? Integer.numberOfTrailingZeros(value)
+						: 31 - Integer.numberOfLeadingZeros(value);
+			}
+			break;
+		}
+		default:
+			stopAtUnemulatedInstruction(String.format("instruction 0Fh %02Xh", secondByte));
+			break;
+		}
+	}
+
+	/** Executes an arithmetic or logical instruction of the first four rows of the opcode map. */
+	private void executeArithmetic(int operation, int form) {
+		int reg = (decoder.modRm >> 3) & 7;
+		int size = (form & 1) == 0 ? BYTE : WORD;
+		switch (form) {
+		case 0: case 1: {
+			int result = arithmetic(operation, readOperand(size), getRegister(size, reg), size);
+			if (operation != CMP) {
+				writeOperand(size, result);
+			}
+			break;
+		}
+		case 2: case 3: {
+			int result = arithmetic(operation, getRegister(size, reg), readOperand(size), size);
+			if (operation != CMP) {
+				setRegister(size, reg, result);
+			}
+			break;
+		}
+		default: {
+			int immediate = size == BYTE ? immediateByte() : immediateWord();
+			int result = arithmetic(operation, getRegister(size, AX), immediate, size);
+			if (operation != CMP) {
+				setRegister(size, AX, result);
+			}
+			break;
+		}
+		}
+	}
+
+	private void executeArithmeticWithImmediate(int operation, int size, int immediate) {
+		int result = arithmetic(operation, readOperand(size), immediate & mask(size), size);
+		if (operation != CMP) {
+			writeOperand(size, result);
+		}
+	}
+
+	private void executeGroup3(int reg, int size) {
+		int value = readOperand(size);
+		switch (reg) {
+		case 0: case 1:
+			arithmetic(AND, value, size == BYTE ? immediateByte() : immediateWord(), size);
+			break;
+		case 2:
+			writeOperand(size, ~value & mask(size));
+			break;
+		case 3:
+			writeOperand(size, arithmetic(SUB, 0, value, size));
+			break;
+		case 4:
+			if (size == BYTE) {
+				registers[AX] = (registers[AX] & 0xFF) * value;
+				setCarryAndOverflow(registers[AX] > 0xFF);
+			} else {
+				long product = (long) registers[AX] * value;
+				registers[AX] = (int) product & 0xFFFF;
+				registers[DX] = (int) (product >> 16);
+				setCarryAndOverflow(registers[DX] != 0);
+			}
+			break;
+		case 5:
+			if (size == BYTE) {
+				int product = (byte) registers[AX] * (byte) value;
+				registers[AX] = product & 0xFFFF;
+				setCarryAndOverflow(product != (byte) product);
+			} else {
+				int product = (short) registers[AX] * (short) value;
+				registers[AX] = product & 0xFFFF;
+				registers[DX] = (product >> 16) & 0xFFFF;
+				setCarryAndOverflow(product != (short) product);
+			}
+			break;
+		case 6: {
+			if (value == 0) {
+				stopAtDivideError();
+				break;
+			}
+			long dividend = size == BYTE
+					? registers[AX]
+					: (long) registers[DX] << 16 | registers[AX];
+			long quotient = dividend / value;
+			if (quotient > mask(size)) {
+				stopAtDivideError();
+				break;
+			}
+			setQuotientAndRemainder(size, (int) quotient, (int) (dividend % value));
+			break;
+		}
+		case 7: {
+			int divisor = size == BYTE ? (byte) value : (short) value;
+			if (divisor == 0) {
+				stopAtDivideError();
+				break;
+			}
+			int dividend = size == BYTE
+					? (short) registers[AX]
+					: registers[DX] << 16 | registers[AX];
+			long quotient = (long) dividend / divisor;
+			if (quotient != (size == BYTE ? (byte) quotient : (short) quotient)) {
+				stopAtDivideError();
+				break;
+			}
+			setQuotientAndRemainder(
+					size, (int) quotient & mask(size), dividend % divisor & mask(size));
+			break;
+		}
+		}
+	}
+
+	private void setQuotientAndRemainder(int size, int quotient, int remainder) {
+		if (size == BYTE) {
+			registers[AX] = remainder << 8 | quotient;
+		} else {
+			registers[AX] = quotient;
+			registers[DX] = remainder;
+		}
+	}
+
+	private void executeGroup5(int reg) {
+		switch (reg) {
+		case 0: case 1:
+			writeOperand(WORD, incrementOrDecrement(reg == 0 ? ADD : SUB, readOperand(WORD), WORD));
+			break;
+		case 2: {
+			int target = readOperand(WORD);
+			push(nextIp);
+			nextIp = target;
+			break;
+		}
+		case 3: case 5: {
+			if (registerOperand) {
+				stopAtInvalidInstruction();
+				break;
+			}
+			int offset = readWord(operandSegment, operandOffset);
+			int segment = readWord(operandSegment, (operandOffset + 2) & 0xFFFF);
+			if (reg == 3) {
+				push(segmentRegisters[CS]);
+				push(nextIp);
+			}
+			jumpFar(segment, offset);
+			break;
+		}
+		case 4:
+			nextIp = readOperand(WORD);
+			break;
+		case 6:
+			push(readOperand(WORD));
+			break;
+		default:
+			stopAtInvalidInstruction();
+			break;
+		}
+	}
+
+	private void executeString(int opcode) {
+		int size = (opcode & 1) == 0 ? BYTE : WORD;
+		int step = (flags & DF) != 0 ? -size : size;
+		int prefix = decoder.repeatOrLockPrefix;
+		boolean repeated = prefix == REP || prefix == REPNE;
+		boolean compares = opcode >= 0xA6 && opcode <= 0xA7 || opcode >= 0xAE;
+		if (repeated && registers[CX] == 0) {
+			return;
+		}
+
+		int es = segmentRegisters[ES];
+		while (true) {
+			switch (opcode & ~1) {
+			case 0xA4:
+				write(size, es, registers[DI], read(size, dataSegment(), registers[SI]));
+				registers[SI] = (registers[SI] + step) & 0xFFFF;
+				registers[DI] = (registers[DI] + step) & 0xFFFF;
+				break;
+			case 0xA6:
+				arithmetic(CMP, read(size, dataSegment(), registers[SI]),
+						read(size, es, registers[DI]), size);
+				registers[SI] = (registers[SI] + step) & 0xFFFF;
+				registers[DI] = (registers[DI] + step) & 0xFFFF;
+				break;
+			case 0xAA:
+				write(size, es, registers[DI], getRegister(size, AX));
+				registers[DI] = (registers[DI] + step) & 0xFFFF;
+				break;
+			case 0xAC:
+				setRegister(size, AX, read(size, dataSegment(), registers[SI]));
+				registers[SI] = (registers[SI] + step) & 0xFFFF;
+				break;
+			case 0xAE:
+				arithmetic(CMP, getRegister(size, AX), read(size, es, registers[DI]), size);
+				registers[DI] = (registers[DI] + step) & 0xFFFF;
+				break;
+			}
+
+			if (!repeated) {
+				return;
+			}
+			registers[CX] = (registers[CX] - 1) & 0xFFFF;
+			boolean zero = (flags & ZF) != 0;
+			if (registers[CX] == 0 || compares && (prefix == REP ? !zero : zero)) {
+				return;
+			}
+			stringRepetitionCount++;
+		}
+	}
+
+	private void enter(int frameSize, int nestingLevel) {
+		push(registers[BP]);
+		int framePointer = registers[SP];
+		if (nestingLevel > 0) {
+			for (int level = 1; level < nestingLevel; level++) {
+				registers[BP] = (registers[BP] - 2) & 0xFFFF;
+				push(readWord(segmentRegisters[SS], registers[BP]));
+			}
+			push(framePointer);
+		}
+		registers[BP] = framePointer;
+		registers[SP] = (registers[SP] - frameSize) & 0xFFFF;
+	}
+
+	private void loadFarPointer(int reg, int segmentRegister) {
+		if (registerOperand) {
+			stopAtInvalidInstruction();
+			return;
+		}
+		registers[reg] = readWord(operandSegment, operandOffset);
+		segmentRegisters[segmentRegister] = readWord(operandSegment, (operandOffset + 2) & 0xFFFF);
+	}
+
+	/**
+	 * Executes BT (operation 4 or 0), BTS (5), BTR (6) or BTC (7). A bit offset given by a register
+	 * can select a bit in a word of memory other than the operand's.
+	 */
+	private void testBit(int operation, int bitOffset) {
+		if (!registerOperand && decoder.immediateLength == 0) {
+			operandOffset = (operandOffset + ((short) bitOffset >> 4) * 2) & 0xFFFF;
+		}
+		int bit = 1 << (bitOffset & 0xF);
+		int value = readOperand(WORD);
+		setFlag(CF, (value & bit) != 0);
+		switch (operation) {
+		case 5:
+			writeOperand(WORD, value | bit);
+			break;
+		case 6:
+			writeOperand(WORD, value & ~bit);
+			break;
+		case 7:
+			writeOperand(WORD, value ^ bit);
+			break;
+		}
+	}
+
+	private void interrupt(int number) {
+		if (!interruptHandler.handle(this, number)) {
+			stop(String.format("INT %02Xh at %s is not emulated", number, formatCsIp()));
+		}
+	}
+
+	private void stopAtInvalidInstruction() {
+		stop(String.format("invalid instruction at %s", formatCsIp()));
+	}
+
+	private void stopAtUnemulatedInstruction(String description) {
+		stop(String.format("%s at %s is not emulated", description, formatCsIp()));
+	}
+
+	private void stopAtDivideError() {
+		stop(String.format("divide error at %s", formatCsIp()));
+	}
+
+	/** Decodes the ModR/M operand of the instruction: a register, or a segment and offset. */
+	private void decodeOperand() {
+		int mod = decoder.modRm >> 6;
+		int rm = decoder.modRm & 7;
+		registerOperand = mod == 3;
+		if (registerOperand) {
+			return;
+		}
+
+		int segmentRegister = DS;
+		int offset;
+		switch (rm) {
+		case 0:
+			offset = registers[BX] + registers[SI];
+			break;
+		case 1:
+			offset = registers[BX] + registers[DI];
+			break;
+		case 2:
+			offset = registers[BP] + registers[SI];
+			segmentRegister = SS;
+			break;
+		case 3:
+			offset = registers[BP] + registers[DI];
+			segmentRegister = SS;
+			break;
+		case 4:
+			offset = registers[SI];
+			break;
+		case 5:
+			offset = registers[DI];
+			break;
+		case 6:
+			if (mod == 0) {
+				offset = 0;
+			} else {
+				offset = registers[BP];
+				segmentRegister = SS;
+			}
+			break;
+		default:
+			offset = registers[BX];
+			break;
+		}
+		if (decoder.displacementLength == 1) {
+			offset += memory[decoder.displacementStart];
+		} else if (decoder.displacementLength == 2) {
+			offset += InstructionDecoder.wordAt(memory, decoder.displacementStart);
+		}
+
+		if (decoder.segmentOverride >= 0) {
+			segmentRegister = overriddenSegmentRegister();
+		}
+		operandSegment = segmentRegisters[segmentRegister];
+		operandOffset = offset & 0xFFFF;
+	}
+
+	/** The segment of DS-relative data, or of the instruction's segment-override prefix. */
+	private int dataSegment() {
+		return segmentRegisters[decoder.segmentOverride >= 0 ? overriddenSegmentRegister() : DS];
+	}
+
+	private int overriddenSegmentRegister() {
+		switch (decoder.segmentOverride) {
+		case 0x26:
+			return ES;
+		case 0x2E:
+			return CS;
+		case 0x36:
+			return SS;
+		case 0x64:
+			return FS;
+		case 0x65:
+			return GS;
+		default:
+			return DS;
+		}
+	}
+
+	private int immediateByte() {
+		return immediateByte(0);
+	}
+
+	private int immediateByte(int index) {
+		return Byte.toUnsignedInt(memory[decoder.immediateStart + index]);
+	}
+
+	private int signExtendedImmediateByte() {
+		return memory[decoder.immediateStart] & 0xFFFF;
+	}
+
+	private int immediateWord() {
+		return immediateWord(0);
+	}
+
+	private int immediateWord(int index) {
+		return InstructionDecoder.wordAt(memory, decoder.immediateStart + index);
+	}
+
+	private int getRegister(int size, int index) {
+		if (size == WORD) {
+			return registers[index];
+		}
+		return index < 4 ? registers[index] & 0xFF : registers[index - 4] >> 8;
+	}
+
+	private void setRegister(int size, int index, int value) {
+		if (size == WORD) {
+			registers[index] = value & 0xFFFF;
+		} else if (index < 4) {
+			registers[index] = (registers[index] & 0xFF00) | (value & 0xFF);
+		} else {
+			registers[index - 4] = (registers[index - 4] & 0x00FF) | (value & 0xFF) << 8;
+		}
+	}
+
+	private int readOperand(int size) {
+		return registerOperand
+				? getRegister(size, decoder.modRm & 7)
+				: read(size, operandSegment, operandOffset);
+	}
+
+	private void writeOperand(int size, int value) {
+		if (registerOperand) {
+			setRegister(size, decoder.modRm & 7, value);
+		} else {
+			write(size, operandSegment, operandOffset, value);
+		}
+	}
+
+	private int read(int size, int segment, int offset) {
+		return size == BYTE ? readByte(segment, offset) : readWord(segment, offset);
+	}
+
+	private void write(int size, int segment, int offset, int value) {
+		if (size == BYTE) {
+			writeByte(segment, offset, value);
+		} else {
+			writeWord(segment, offset, value);
+		}
+	}
+
+	private int readByte(int segment, int offset) {
+		int address = linear(segment, offset);
+		readCounts[address]++;
+		return Byte.toUnsignedInt(memory[address]);
+	}
+
+	private int readWord(int segment, int offset) {
+		return readByte(segment, offset) | readByte(segment, (offset + 1) & 0xFFFF) << 8;
+	}
+
+	private void writeByte(int segment, int offset, int value) {
+		int address = linear(segment, offset);
+		writeCounts[address]++;
+		memory[address] = (byte) value;
+	}
+
+	private void writeWord(int segment, int offset, int value) {
+		writeByte(segment, offset, value);
+		writeByte(segment, (offset + 1) & 0xFFFF, value >> 8);
+	}
+
+	private static int mask(int size) {
+		return size == BYTE ? 0xFF : 0xFFFF;
+	}
+
+	private static int signBit(int size) {
+		return size == BYTE ? 0x80 : 0x8000;
+	}
+
+	private void setFlag(int flag, boolean set) {
+		if (set) {
+			flags |= flag;
+		} else {
+			flags &= ~flag;
+		}
+	}
+
+	private void setCarryAndOverflow(boolean set) {
+		setFlag(CF, set);
+		setFlag(OF, set);
+	}
+
+	private void setResultFlags(int result, int size) {
+		setFlag(ZF, result == 0);
+		setFlag(SF, (result & signBit(size)) != 0);
+		setFlag(PF, Integer.bitCount(result & 0xFF) % 2 == 0);
+	}
+
+	/**
+	 * Performs one of the eight operations of the first four rows of the opcode map (and of
+	 * opcodes 80h-83h) and sets the flags by its result.
+	 */
+	private int arithmetic(int operation, int a, int b, int size) {
+		int mask = mask(size);
+		int carry = (flags & CF) != 0 ? 1 : 0;
+		int result;
+		switch (operation) {
+		case ADD:
+		case ADC: {
+			int sum = a + b + (operation == ADC ? carry : 0);
+			result = sum & mask;
+			setFlag(CF, sum > mask);
+			setFlag(OF, ((a ^ result) & (b ^ result) & signBit(size)) != 0);
+			setFlag(AF, ((a ^ b ^ result) & 0x10) != 0);
+			break;
+		}
+		case SUB:
+		case SBB:
+		case CMP: {
+			int difference = a - b - (operation == SBB ? carry : 0);
+			result = difference & mask;
+			setFlag(CF, difference < 0);
+			setFlag(OF, ((a ^ b) & (a ^ result) & signBit(size)) != 0);
+			setFlag(AF, ((a ^ b ^ result) & 0x10) != 0);
+			break;
+		}
+		default:
+			result = (operation == OR ? a | b : operation == AND ? a & b : a ^ b) & mask;
+			flags &= ~(CF | OF | AF);
+			break;
+		}
+		setResultFlags(result, size);
+		return result;
+	}
+
+	/** Increments or decrements a value, which (unlike adding or subtracting 1) keeps CF. */
+	private int incrementOrDecrement(int operation, int value, int size) {
+		int carry = flags & CF;
+		int result = arithmetic(operation, value, 1, size);
+		flags = (flags & ~CF) | carry;
+		return result;
+	}
+
+	private int multiplySigned(int a, int b) {
+		int product = (short) a * (short) b;
+		setCarryAndOverflow(product != (short) product);
+		return product & 0xFFFF;
+	}
+
+	/** Performs one of the eight operations of the shift and rotate group. */
+	private int shift(int operation, int value, int count, int size) {
+		count &= 0x1F;
+		if (count == 0) {
+			return value;
+		}
+
+		int mask = mask(size);
+		int signBit = signBit(size);
+		int bitCount = size * 8;
+		int result = value;
+		switch (operation) {
+		case 0:
+			for (int i = 0; i < count; i++) {
+				result = (result << 1 | ((result & signBit) != 0 ? 1 : 0)) & mask;
+			}
+			setFlag(CF, (result & 1) != 0);
+			setFlag(OF, ((result & signBit) != 0) != ((result & 1) != 0));
+			return result;
+		case 1:
+			for (int i = 0; i < count; i++) {
+				result = result >> 1 | ((result & 1) != 0 ? signBit : 0);
+			}
+			setFlag(CF, (result & signBit) != 0);
+			setFlag(OF, ((result ^ result << 1) & signBit) != 0);
+			return result;
+		case 2:
+			for (int i = 0; i < count; i++) {
+				int carry = flags & CF;
+				setFlag(CF, (result & signBit) != 0);
+				result = (result << 1 | carry) & mask;
+			}
+			setFlag(OF, ((result & signBit) != 0) != ((flags & CF) != 0));
+			return result;
+		case 3:
+			for (int i = 0; i < count; i++) {
+				int carry = flags & CF;
+				setFlag(OF, ((result & signBit) != 0) != (carry != 0));
+				setFlag(CF, (result & 1) != 0);
+				result = result >> 1 | (carry != 0 ? signBit : 0);
+			}
+			return result;
+		case 4:
+		case 6:
+			setFlag(CF, count <= bitCount && (value << (count - 1) & signBit) != 0);
+			result = value << count & mask;
+			setFlag(OF, ((result & signBit) != 0) != ((flags & CF) != 0));
+			break;
+		case 5:
+			setFlag(CF, (value >> (count - 1) & 1) != 0);
+			setFlag(OF, (value & signBit) != 0);
+			result = value >>> count;
+			break;
+		default: {
+			int signed = size == BYTE ? (byte) value : (short) value;
+			setFlag(CF, (signed >> Math.min(count - 1, 31) & 1) != 0);
+			flags &= ~OF;
+			result = signed >> count & mask;
+			break;
+		}
+		}
+		flags &= ~AF;
+		setResultFlags(result, size);
+		return result;
+	}
+
+	private boolean condition(int code) {
+		boolean overflow = (flags & OF) != 0;
+		boolean carry = (flags & CF) != 0;
+		boolean zero = (flags & ZF) != 0;
+		boolean sign = (flags & SF) != 0;
+		boolean result;
+		switch (code >> 1) {
+		case 0:
+			result = overflow;
+			break;
+		case 1:
+			result = carry;
+			break;
+		case 2:
+			result = zero;
+			break;
+		case 3:
+			result = carry || zero;
+			break;
+		case 4:
+			result = sign;
+			break;
+		case 5:
+			result = (flags & PF) != 0;
+			break;
+		case 6:
+			result = sign != overflow;
+			break;
+		default:
+			result = zero || sign != overflow;
+			break;
+		}
+		return result != ((code & 1) != 0);
+	}
+}
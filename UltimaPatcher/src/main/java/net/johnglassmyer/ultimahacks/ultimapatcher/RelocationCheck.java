@@ -0,0 +1,335 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Checks the integrity of an executable's relocation tables, which are otherwise trusted as they
+ * are parsed, finding:
+ * <ul>
+ * <li>duplicate entries, and entries whose words overlap</li>
+ * <li>entries outside the bounds of the load module's segments, or of an overlay's code</li>
+ * <li>relocated words that refer to no segment</li>
+ * <li>in the code of patches applied to the executable, entries at which a block has no
+ * relocation marker (as left by callWithRelocation or pushWithRelocation), markers without an
+ * entry, and far calls and far jumps whose segment words have no marker</li>
+ * </ul>
+ * Entries are read from the tables in the file (as the parsed tables drop duplicates) into a
+ * bitset for the load module and one for each overlay, and the segments' bounds and the patches'
+ * markers into bitsets alongside them, so that the checks take time linear in the size of the
+ * tables and patches.
+ */
+class RelocationCheck {
+	private static final Logger L = LogManager.getLogger(RelocationCheck.class);
+
+	private static final int FAR_CALL = 0x9A;
+	private static final int FAR_JUMP = 0xEA;
+	private static final int PUSH_IMMEDIATE = 0x68;
+	private static final int CALL_NEAR = 0xE8;
+	private static final int JUMP_NEAR = 0xE9;
+	private static final int JUMP_SHORT = 0xEB;
+
+	private final Executable executable;
+	private final byte[] exeBytes;
+	private final List<String> anomalies = new ArrayList<>();
+	/** Relocated words' positions in the load module, one bit for each entry. */
+	private final BitSet loadModuleRelocations = new BitSet();
+	/** Relocated words' positions in each overlay's code, indexed by segment. */
+	private final List<BitSet> overlayRelocations = new ArrayList<>();
+
+	private RelocationCheck(Executable executable, byte[] exeBytes) {
+		this.executable = executable;
+		this.exeBytes = exeBytes;
+	}
+
+	/**
+	 * Checks the executable's relocation tables, and those of the given patches' blocks whose
+	 * code is in the executable, logging each anomaly found.
+	 *
+	 * @return whether no anomaly was found
+	 */
+	static boolean check(Executable executable, byte[] exeBytes, List<Patch> patches) {
+		RelocationCheck check = new RelocationCheck(executable, exeBytes);
+		check.checkLoadModuleTable();
+		check.checkOverlayTables();
+		int appliedBlockCount = check.checkPatches(patches);
+
+		L.info("checked relocations of the load module, {} overlay(s) and {} applied patch"
+				+ " block(s):", check.overlayCount(), appliedBlockCount);
+		check.anomalies.forEach(anomaly -> L.info("  " + anomaly));
+		L.info("{} anomal{} found", check.anomalies.size(),
+				check.anomalies.size() == 1 ? "y" : "ies");
+		return check.anomalies.isEmpty();
+	}
+
+	private int overlayCount() {
+		return (int) overlayRelocations.stream().filter(bitSet -> bitSet != null).count();
+	}
+
+	private void checkLoadModuleTable() {
+		MzHeader mzHeader = executable.loadModule.mzHeader;
+		int loadModuleStartInFile = mzHeader.loadModuleStartInFile();
+		int loadModuleLength = mzHeader.calculateMzFileSize() - loadModuleStartInFile;
+
+		BitSet segmentBounds = new BitSet();
+		BitSet segmentBases = new BitSet();
+		for (Segment segment : executable.segments) {
+			int base = segment.tableEntry.segmentBase * Util.PARAGRAPH_SIZE;
+			segmentBounds.set(
+					base + segment.tableEntry.startOffset, base + segment.tableEntry.endOffset);
+			segmentBases.set(segment.tableEntry.segmentBase);
+		}
+
+		int tableStartInFile = mzHeader.relocationTableStartInFile;
+		for (int i = 0; i < mzHeader.relocationCount; i++) {
+			int entryInFile = tableStartInFile + i * 2 * Short.BYTES;
+			int offset = InstructionDecoder.wordAt(exeBytes, entryInFile);
+			int segment = InstructionDecoder.wordAt(exeBytes, entryInFile + Short.BYTES);
+			int address = segment * Util.PARAGRAPH_SIZE + offset;
+			String description = String.format(
+					"load-module relocation %04X:%04X (0x%X)", segment, offset, address);
+
+			if (!record(loadModuleRelocations, address, description)) {
+				continue;
+			}
+			if (address + Short.BYTES > loadModuleLength) {
+				anomalies.add(description + " is beyond the end of the load module");
+				continue;
+			}
+			if (segmentBounds.nextClearBit(address) < address + Short.BYTES) {
+				anomalies.add(description + " is outside the bounds of the segments");
+			}
+
+			int word = InstructionDecoder.wordAt(exeBytes, loadModuleStartInFile + address);
+			if (!segmentBases.get(word)) {
+				anomalies.add(String.format(
+						"%s refers to 0x%04X, the base of no segment", description, word));
+			}
+		}
+	}
+
+	private void checkOverlayTables() {
+		for (int segmentIndex = 0; segmentIndex < executable.segments.size(); segmentIndex++) {
+			Segment segment = executable.segments.get(segmentIndex);
+			if (!segment.optionalOverlay.isPresent()) {
+				overlayRelocations.add(null);
+				continue;
+			}
+
+			Overlay overlay = segment.optionalOverlay.get();
+			BitSet relocations = new BitSet();
+			overlayRelocations.add(relocations);
+
+			int tableStartInFile = overlay.relocationTable.startInFile;
+			if (overlay.stub.relocationTableLength % Short.BYTES != 0) {
+				anomalies.add(String.format(
+						"overlay %d's relocation table has an odd length 0x%X",
+						segmentIndex,
+						overlay.stub.relocationTableLength));
+			}
+			for (int i = 0; i < overlay.stub.relocationTableLength / Short.BYTES; i++) {
+				int entryInFile = tableStartInFile + i * Short.BYTES;
+				int offset = InstructionDecoder.wordAt(exeBytes, entryInFile);
+				String description = String.format(
+						"overlay relocation %s", Util.formatAddress(segmentIndex, offset));
+
+				if (!record(relocations, offset, description)) {
+					continue;
+				}
+				if (offset + Short.BYTES > overlay.stub.codeSize) {
+					anomalies.add(description + " is beyond the end of the overlay's code");
+					continue;
+				}
+
+				// overlay code refers to segments by index times 8
+				int word = InstructionDecoder.wordAt(exeBytes, overlay.startInFile + offset);
+				if (word % 8 != 0 || word / 8 >= executable.segments.size()) {
+					anomalies.add(String.format(
+							"%s refers to 0x%04X, which is no segment index times 8",
+							description, word));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records an entry's position in a bitset, unless it is a duplicate of another entry or
+	 * overlaps another entry's word.
+	 *
+	 * @return whether the entry was recorded
+	 */
+	private boolean record(BitSet relocations, int position, String description) {
+		if (relocations.get(position)) {
+			anomalies.add(description + " is a duplicate");
+			return false;
+		}
+		if (position > 0 && relocations.get(position - 1) || relocations.get(position + 1)) {
+			anomalies.add(description + " overlaps another entry's word");
+			return false;
+		}
+		relocations.set(position);
+		return true;
+	}
+
+	/**
+	 * Compares the relocation markers of the blocks of the given patches with the tables' entries
+	 * within the blocks, skipping blocks whose code isn't in the executable (as when the patch
+	 * hasn't been applied to it).
+	 *
+	 * @return the number of blocks checked
+	 */
+	private int checkPatches(List<Patch> patches) {
+		InstructionDecoder decoder = new InstructionDecoder();
+		int appliedBlockCount = 0;
+		for (Patch patch : patches) {
+			for (PatchBlock block : patch.blocks) {
+				if (block.segmentIndex >= executable.segments.size()) {
+					continue;
+				}
+
+				Segment segment = executable.segments.get(block.segmentIndex);
+				int blockStartInFile = segment.patchable().startInFile() + block.startOffset;
+				int blockEndInFile = blockStartInFile + block.codeBytes.length;
+				if (blockEndInFile > exeBytes.length || !Arrays.equals(
+						exeBytes, blockStartInFile, blockEndInFile,
+						block.codeBytes, 0, block.codeBytes.length)) {
+					continue;
+				}
+				appliedBlockCount++;
+
+				// entries, as positions within the block
+				BitSet entries;
+				if (segment.optionalOverlay.isPresent()) {
+					entries = overlayRelocations.get(block.segmentIndex)
+							.get(block.startOffset, block.endOffset());
+				} else {
+					int base = segment.tableEntry.segmentBase * Util.PARAGRAPH_SIZE;
+					entries = loadModuleRelocations.get(
+							base + block.startOffset, base + block.endOffset());
+				}
+
+				BitSet markers = new BitSet();
+				block.relocationsWithinBlock.forEach(markers::set);
+
+				BitSet unmarked = (BitSet) entries.clone();
+				unmarked.andNot(markers);
+				unmarked.stream().forEach(position -> anomalies.add(String.format(
+						"relocation %s in patched code of \"%s\" has no relocation marker",
+						Util.formatAddress(block.segmentIndex, block.startOffset + position),
+						patch.description)));
+
+				BitSet missing = (BitSet) markers.clone();
+				missing.andNot(entries);
+				missing.stream().forEach(position -> anomalies.add(String.format(
+						"relocation marker at %s in \"%s\" has no relocation entry",
+						Util.formatAddress(block.segmentIndex, block.startOffset + position),
+						patch.description)));
+
+				BitSet relocatedWords = (BitSet) markers.clone();
+				relocatedWords.or(entries);
+				checkFarTransfers(decoder, patch, block, markers, relocatedWords);
+			}
+		}
+		return appliedBlockCount;
+	}
+
+	/**
+	 * Finds the far calls and far jumps in a block's code whose segment words have no relocation
+	 * marker, decoding the block from its start.
+	 * <p>
+	 * Data in the block (such as a table after a jump) throws the decoding out of step with the
+	 * instructions that follow it, so the decoding is brought back into step at each relocated
+	 * word (marked or in the table): at the start of its instruction, where the bytes before it
+	 * give that away (a far call or jump, or a push of an immediate word), or else just after it,
+	 * as a word of data (as dwWithRelocation leaves), and at the target of each jump or call
+	 * decoded before it. An instruction decoded across such a start or word is taken to be
+	 * misread, and is not reported. (Data that happens to end just where the code resumes can
+	 * still be misread.)
+	 */
+	private void checkFarTransfers(InstructionDecoder decoder,
+			Patch patch,
+			PatchBlock block,
+			BitSet markers,
+			BitSet relocatedWords) {
+		byte[] code = block.codeBytes;
+		BitSet knownStarts = new BitSet();
+		BitSet dataWords = new BitSet();
+		relocatedWords.stream().forEach(word -> {
+			int farStart = word - 3;
+			int pushStart = word - 1;
+			if (farStart >= 0 && (Byte.toUnsignedInt(code[farStart]) == FAR_CALL
+					|| Byte.toUnsignedInt(code[farStart]) == FAR_JUMP)) {
+				knownStarts.set(farStart);
+			} else if (pushStart >= 0 && Byte.toUnsignedInt(code[pushStart]) == PUSH_IMMEDIATE) {
+				knownStarts.set(pushStart);
+			} else {
+				dataWords.set(word);
+				knownStarts.set(word + Short.BYTES);
+			}
+		});
+
+		for (int position = 0; position < code.length; ) {
+			if (!decoder.decode(code, position, code.length)) {
+				position++;
+				continue;
+			}
+
+			int nextDataWord = dataWords.nextSetBit(position);
+			if (nextDataWord >= 0 && nextDataWord < position + decoder.length) {
+				position = nextDataWord + Short.BYTES;
+				continue;
+			}
+			int nextKnownStart = knownStarts.nextSetBit(position + 1);
+			if (nextKnownStart >= 0 && nextKnownStart < position + decoder.length) {
+				position = nextKnownStart;
+				continue;
+			}
+
+			int target = relativeTarget(decoder, code);
+			if (position < target && target < code.length) {
+				knownStarts.set(target);
+			}
+
+			if ((decoder.opcode == FAR_CALL || decoder.opcode == FAR_JUMP)
+					&& decoder.prefixCount == 0) {
+				int segmentPosition = decoder.immediateStart + Short.BYTES;
+				if (!markers.get(segmentPosition)) {
+					anomalies.add(String.format(
+							"%s at %s in \"%s\" has a segment word without a relocation marker",
+							decoder.opcode == FAR_CALL ? "far call" : "far jump",
+							Util.formatAddress(block.segmentIndex, block.startOffset + position),
+							patch.description));
+				}
+			}
+			position += decoder.length;
+		}
+	}
+
+	/**
+	 * The position in the code to which the instruction last decoded jumps or calls relative to
+	 * its end, or -1 if it doesn't.
+	 */
+	private static int relativeTarget(InstructionDecoder decoder, byte[] code) {
+		if (decoder.prefixCount != 0) {
+			return -1;
+		}
+
+		int end = decoder.start + decoder.length;
+		int opcode = decoder.opcode;
+		if (0x70 <= opcode && opcode <= 0x7F || 0xE0 <= opcode && opcode <= 0xE3
+				|| opcode == JUMP_SHORT) {
+			return end + code[decoder.immediateStart];
+		}
+		if (opcode == CALL_NEAR || opcode == JUMP_NEAR
+				|| InstructionDecoder.TWO_BYTE + 0x80 <= opcode
+						&& opcode <= InstructionDecoder.TWO_BYTE + 0x8F) {
+			return end + (short) InstructionDecoder.wordAt(code, decoder.immediateStart);
+		}
+		return -1;
+	}
+}
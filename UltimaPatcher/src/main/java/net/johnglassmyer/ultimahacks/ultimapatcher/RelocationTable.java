@@ -1,18 +1,27 @@
 package net.johnglassmyer.ultimahacks.ultimapatcher;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.SortedSet;
+
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
 
 abstract class RelocationTable {
 	final int startInFile;
 	final ImmutableSet<Integer> originalAddresses;
+	/** The table as it is in the file, to which the replacement table is compared. */
+	private final byte[] originalTableBytes;
 
-	protected RelocationTable(int startInFile, ImmutableSet<Integer> originalAddresses) {
+	protected RelocationTable(
+			int startInFile, ImmutableSet<Integer> originalAddresses, byte[] originalTableBytes) {
 		this.startInFile = startInFile;
 		this.originalAddresses = originalAddresses;
+		this.originalTableBytes = originalTableBytes;
 	}
 
 	List<OverwriteEdit> produceEdits(SortedSet<Integer> replacementAddresses) {
@@ -20,17 +29,77 @@ abstract class RelocationTable {
 			return Collections.emptyList();
 		}
 
+		List<OverwriteEdit> edits = produceCountEdits(replacementAddresses);
+
+		byte[] replacementTableBytes =
+				produceTableBytes(Collections.unmodifiableSortedSet(replacementAddresses));
+		for (Range<Integer> range
+				: changedRanges(originalTableBytes, replacementTableBytes).asRanges()) {
+			edits.add(new OverwriteEdit(
+					describeTable(),
+					startInFile + range.lowerEndpoint(),
+					Arrays.copyOfRange(
+							replacementTableBytes, range.lowerEndpoint(), range.upperEndpoint())));
+		}
+
+		return edits;
+	}
+
+	/**
+	 * Produces edits writing the whole replacement table at a new position in the file (such as
+	 * that to which its overlay is being moved), rather than over the original table.
+	 */
+	List<OverwriteEdit> produceEditsMovingTo(
+			SortedSet<Integer> replacementAddresses, int newStartInFile) {
+		List<OverwriteEdit> edits = produceCountEdits(replacementAddresses);
+		edits.add(new OverwriteEdit(
+				describeTable(),
+				newStartInFile,
+				produceTableBytes(Collections.unmodifiableSortedSet(replacementAddresses))));
+
+		return edits;
+	}
+
+	private List<OverwriteEdit> produceCountEdits(SortedSet<Integer> replacementAddresses) {
 		List<OverwriteEdit> edits = new ArrayList<>();
 		if (replacementAddresses.size() != originalAddresses.size()) {
 			edits.add(produceCountEdit(replacementAddresses.size()));
 		}
 
-		edits.add(produceTableEdit(Collections.unmodifiableSortedSet(replacementAddresses)));
-
 		return edits;
 	}
 
+	/**
+	 * Finds the ranges of the replacement table to write over the original: the runs in which the
+	 * two differ, and any part of the replacement beyond the end of the original (which is joined
+	 * to the last run under the same rule).
+	 * <p>
+	 * Runs separated by fewer unchanged bytes than an additional edit costs are joined, so that
+	 * when an insertion or removal moves every later entry (leaving few equal bytes between the
+	 * changed ones), the whole shifted suffix is written by one overwrite, while scattered changes
+	 * are written separately; either way the encoding is the smaller.
+	 */
+	private static RangeSet<Integer> changedRanges(byte[] original, byte[] replacement) {
+		int commonLength = Math.min(original.length, replacement.length);
+
+		RangeSet<Integer> ranges = TreeRangeSet.create();
+		ranges.addAll(HackDelta.differingRanges(
+				Arrays.copyOf(original, commonLength), Arrays.copyOf(replacement, commonLength)));
+		if (replacement.length > original.length) {
+			int tailStart = original.length;
+			if (!ranges.isEmpty() && original.length - ranges.span().upperEndpoint()
+					< HackDelta.MIN_GAP_BETWEEN_EDITS) {
+				tailStart = ranges.span().upperEndpoint();
+			}
+			ranges.add(Range.closedOpen(tailStart, replacement.length));
+		}
+
+		return ranges;
+	}
+
 	protected abstract OverwriteEdit produceCountEdit(int newCount);
 
-	protected abstract OverwriteEdit produceTableEdit(SortedSet<Integer> relocationSitesInFile);
+	protected abstract byte[] produceTableBytes(SortedSet<Integer> relocationSitesInFile);
+
+	protected abstract String describeTable();
 }
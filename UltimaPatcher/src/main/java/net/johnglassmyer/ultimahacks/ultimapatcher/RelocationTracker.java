@@ -7,13 +7,18 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
+import java.util.Optional;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.stream.Collectors;
 
-import com.google.common.collect.Maps;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 class RelocationTracker {
+	private static final Logger L = LogManager.getLogger(RelocationTracker.class);
+
 	static RelocationTracker forExecutable(Executable executable) {
 		NavigableSet<Integer> loadModuleRelocations = new TreeSet<>(
 				executable.loadModule.relocationTable.originalAddresses);
@@ -58,37 +63,46 @@ class RelocationTracker {
 
 	List<Edit> produceEdits() {
 		List<Edit> edits = new ArrayList<>();
-		edits.addAll(produceAndCheckLoadModuleEdits());
-		edits.addAll(produceAndCheckOverlayEdits());
+		// edits growing the header move the overlays, so they follow the overlays' edits
+		edits.addAll(produceOverlayEdits());
+		edits.addAll(produceLoadModuleEdits());
 		return edits;
 	}
 
-	List<OverwriteEdit> produceAndCheckLoadModuleEdits() {
-		List<OverwriteEdit> loadModuleEdits =
+	/**
+	 * Produces edits to the load module's relocation table, preceded (if the table would run into
+	 * the load module) by edits growing the MZ header to make room for it.
+	 */
+	List<Edit> produceLoadModuleEdits() {
+		List<OverwriteEdit> tableEdits =
 				executable.loadModule.relocationTable.produceEdits(loadModuleRelocations);
 
 		int loadModuleStartInFile = executable.loadModule.mzHeader.loadModuleStartInFile();
+		int tableEditsEnd = tableEdits.stream()
+				.mapToInt(edit -> edit.getStart() + edit.length())
+				.max()
+				.orElse(0);
 
-		loadModuleEdits.stream()
-				.filter(edit -> loadModuleStartInFile < edit.getStart() + edit.length())
-				.findFirst()
-				.ifPresent(edit -> {
-			throw new IllegalStateException(String.format(
-					"relocation table edit %s for load module overlaps load module at %X",
-					edit,
-					loadModuleStartInFile));
-		});
+		List<Edit> edits = new ArrayList<>();
+		if (tableEditsEnd > loadModuleStartInFile) {
+			int overflow = tableEditsEnd - loadModuleStartInFile;
+			L.info(String.format(
+					"load-module relocation table overruns load module at 0x%X by 0x%X bytes",
+					loadModuleStartInFile,
+					overflow));
+			edits.addAll(executable.growHeader(
+					(overflow + Util.PARAGRAPH_SIZE - 1) / Util.PARAGRAPH_SIZE));
+		}
+		edits.addAll(tableEdits);
 
-		return loadModuleEdits;
+		return edits;
 	}
 
-	List<OverwriteEdit> produceAndCheckOverlayEdits() {
-		Map<Integer, List<OverwriteEdit>> editsBySegmentIndex =
-				Maps.transformEntries(relocationsForOverlay, (segmentIndex, relocations) -> {
-			return executable.segments.get(segmentIndex).optionalOverlay
-					.map(overlay -> overlay.relocationTable.produceEdits(relocations)).get();
-		});
-
+	/**
+	 * Produces edits to the overlays' relocation tables. An overlay whose table would run into the
+	 * following overlay is moved to the end of the file, with its table written after it.
+	 */
+	List<Edit> produceOverlayEdits() {
 		OptionalNavigableSet<Integer> sortedOverlayStarts = OptionalNavigableSet.of(
 				executable.segments.stream()
 						.flatMap(s -> s.optionalOverlay.stream())
@@ -96,22 +110,44 @@ class RelocationTracker {
 						.sorted()
 						.collect(Collectors.toCollection(TreeSet::new)));
 
-		editsBySegmentIndex.forEach((segmentIndex, edits) -> {
-			executable.segments.get(segmentIndex).optionalOverlay
-					.flatMap(overlay -> sortedOverlayStarts.optionalHigher(overlay.startInFile))
-					.ifPresent(nextOverlayStart -> edits.stream()
-							.filter(edit -> nextOverlayStart < edit.getStart() + edit.length())
-							.findFirst()
-							.ifPresent(overlappingEdit -> {
-			throw new IllegalStateException(String.format(
-					"relocation table edit %s for overlay %d overlaps following overlay at %X",
-					overlappingEdit,
+		List<Edit> edits = new ArrayList<>();
+		int endOfFile = executable.fileLength;
+		int movedByteCount = 0;
+		for (Map.Entry<Integer, NavigableSet<Integer>> entry
+				: new TreeMap<>(relocationsForOverlay).entrySet()) {
+			int segmentIndex = entry.getKey();
+			NavigableSet<Integer> relocations = entry.getValue();
+			Overlay overlay = executable.segments.get(segmentIndex).optionalOverlay.get();
+
+			List<OverwriteEdit> tableEdits = overlay.relocationTable.produceEdits(relocations);
+
+			Optional<Integer> overrunOverlayStart = sortedOverlayStarts
+					.optionalHigher(overlay.startInFile)
+					.filter(nextOverlayStart -> tableEdits.stream()
+							.anyMatch(edit -> nextOverlayStart < edit.getStart() + edit.length()));
+			if (!overrunOverlayStart.isPresent()) {
+				edits.addAll(tableEdits);
+				continue;
+			}
+
+			L.info(String.format(
+					"relocation table of overlay %d overruns following overlay at 0x%X",
 					segmentIndex,
-					nextOverlayStart));
-		}));});
+					overrunOverlayStart.get()));
+
+			int tableLength = relocations.size() * Short.BYTES;
+			edits.addAll(executable.moveOverlayToEnd(segmentIndex, endOfFile, tableLength));
+			edits.addAll(overlay.relocationTable.produceEditsMovingTo(
+					relocations, endOfFile + overlay.stub.codeSize));
+
+			endOfFile += overlay.stub.codeSize + tableLength;
+			movedByteCount += overlay.stub.codeSize + tableLength;
+		}
 
-		return editsBySegmentIndex.values().stream()
-				.flatMap(List::stream)
-				.collect(Collectors.toList());
+		if (movedByteCount > 0) {
+			edits.add(executable.produceOverlayByteCountEdit(movedByteCount));
+		}
+
+		return edits;
 	}
 }
@@ -0,0 +1,101 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import com.google.common.collect.Range;
+
+import net.johnglassmyer.ultimahacks.proto.HackProto;
+
+/**
+ * Removes bytes from a file, moving the bytes following them back and shortening the file; the
+ * inverse of an {@link InsertEdit}.
+ */
+class RemoveEdit implements Edit {
+	static Optional<Edit> fromProtoEdit(HackProto.Edit protoEdit) {
+		if (!protoEdit.hasRemove()) {
+			return Optional.empty();
+		}
+
+		HackProto.RemoveEdit remove = protoEdit.getRemove();
+
+		return Optional.of(new RemoveEdit(
+				Optional.empty(), remove.getStart(), remove.getLength()));
+	}
+
+	private final Optional<String> explanation;
+	private final int start;
+	private final int length;
+
+	private RemoveEdit(Optional<String> explanation, int start, int length) {
+		this.explanation = explanation;
+		this.start = start;
+		this.length = length;
+	}
+
+	RemoveEdit(String explanation, int start, int length) {
+		this(Optional.of(explanation), start, length);
+	}
+
+	@Override
+	public Optional<String> explanation() {
+		return explanation;
+	}
+
+	@Override
+	public Range<Integer> writtenRange() {
+		return Range.closedOpen(start, start);
+	}
+
+	Range<Integer> removedRange() {
+		return Range.closedOpen(start, start + length);
+	}
+
+	@Override
+	public int shiftLength() {
+		return -length;
+	}
+
+	@Override
+	public List<Edit> captureInverse(SeekableByteChannel channel) throws IOException {
+		byte[] removedBytes = Util.read(channel, start, length);
+
+		List<Edit> inverse = new ArrayList<>();
+		inverse.add(new InsertEdit("restore removed bytes", start, length));
+		// inserted bytes are zeroes until overwritten
+		inverse.addAll(OverwriteEdit.restoringOverwrites(start, removedBytes, new byte[length]));
+		return inverse;
+	}
+
+	@Override
+	public void applyToFile(SeekableByteChannel channel) throws IOException {
+		long tailStart = start + (long) length;
+		byte[] tail = Util.read(channel, tailStart, (int) (channel.size() - tailStart));
+
+		Util.write(channel, start, tail);
+
+		channel.truncate(channel.size() - length);
+	}
+
+	@Override
+	public HackProto.Edit toProtoMessage() {
+		HackProto.Edit.Builder editBuilder = HackProto.Edit.newBuilder();
+		HackProto.RemoveEdit.Builder removeBuilder = editBuilder.getRemoveBuilder();
+		removeBuilder.setStart(start);
+		removeBuilder.setLength(length);
+
+		return editBuilder.build();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%s(position: %X, length: %X)",
+				RemoveEdit.class.getSimpleName(),
+				start,
+				length);
+	}
+}
@@ -0,0 +1,50 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.util.Arrays;
+
+/**
+ * Indices of the load-module segments (including overlay stubs) at each segment value that they
+ * have at run time, with the load module loaded at a given segment, so that a CS:IP (as in a
+ * DOSBox log or a crash message) can be turned into a segment:offset address of the executable.
+ * <p>
+ * Overlays themselves run at whatever segment the overlay manager loads them to, so addresses in
+ * them can't be found in this way.
+ */
+class RuntimeSegmentMap {
+	static final int NONE = -1;
+
+	private final Executable executable;
+	/** Indices of the segments at each segment value at run time, or null. */
+	private final int[][] segmentIndicesByRuntimeSegment = new int[0x10000][];
+
+	RuntimeSegmentMap(Executable executable, int loadSegment) {
+		this.executable = executable;
+
+		for (int segmentIndex = 0; segmentIndex < executable.segments.size(); segmentIndex++) {
+			int runtimeSegment =
+					(loadSegment + executable.segments.get(segmentIndex).tableEntry.segmentBase)
+							& 0xFFFF;
+			int[] existing = segmentIndicesByRuntimeSegment[runtimeSegment];
+			int[] indices = existing == null
+					? new int[1]
+					: Arrays.copyOf(existing, existing.length + 1);
+			indices[indices.length - 1] = segmentIndex;
+			segmentIndicesByRuntimeSegment[runtimeSegment] = indices;
+		}
+	}
+
+	/** Finds the segment at an address at run time, or returns {@link #NONE}. */
+	int segmentIndex(int runtimeSegment, int offset) {
+		int[] indices = segmentIndicesByRuntimeSegment[runtimeSegment];
+		if (indices != null) {
+			for (int segmentIndex : indices) {
+				SegmentTableEntry tableEntry = executable.segments.get(segmentIndex).tableEntry;
+				if (tableEntry.startOffset <= offset && offset < tableEntry.endOffset) {
+					return segmentIndex;
+				}
+			}
+		}
+
+		return NONE;
+	}
+}
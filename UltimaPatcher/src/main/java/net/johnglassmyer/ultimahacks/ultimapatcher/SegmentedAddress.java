@@ -22,7 +22,7 @@ class SegmentAndOffset {
 	final int segmentIndex;
 	final int offset;
 
-	private SegmentAndOffset(int segmentIndex, int offset) {
+	SegmentAndOffset(int segmentIndex, int offset) {
 		this.segmentIndex = segmentIndex;
 		this.offset = offset;
 	}
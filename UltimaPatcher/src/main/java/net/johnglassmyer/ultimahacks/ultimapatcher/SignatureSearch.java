@@ -0,0 +1,306 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import net.johnglassmyer.ultimahacks.ultimapatcher.Segment.Patchable;
+
+/**
+ * Finds, in another build of an executable, the code that patches' blocks overwrite, so that the
+ * blocks' addresses can be remapped from the build for which the patches were written to the
+ * other.
+ * <p>
+ * Each block's signature is the original code at its address, extended past the end of a short
+ * block to {@link #MIN_SIGNATURE_LENGTH} bytes (to tell apart small pieces of common code), with
+ * the words listed in a relocation table taken as wildcards, since the segments to which they
+ * refer are numbered or placed differently in each build. The longest run of a signature without
+ * wildcards is its anchor, and the anchors of all of the signatures are found together, by an
+ * Aho-Corasick automaton, in one pass over each segment and overlay of the other build; the rest
+ * of a signature is compared only where its anchor is found.
+ */
+class SignatureSearch {
+	private static final Logger L = LogManager.getLogger(SignatureSearch.class);
+
+	static final int MIN_SIGNATURE_LENGTH = 16;
+	static final int MAX_SIGNATURE_LENGTH = 64;
+	static final int MIN_ANCHOR_LENGTH = 4;
+
+	/** Number of matches of an ambiguous signature that are listed. */
+	private static final int LISTED_MATCH_COUNT = 4;
+
+	private static class Signature {
+		final int segmentIndex;
+		final int offset;
+		final byte[] bytes;
+		final BitSet wildcards;
+		final int anchorStart;
+		final int anchorLength;
+		final List<String> matches = new ArrayList<>();
+
+		Signature(int segmentIndex, int offset, byte[] bytes, BitSet wildcards) {
+			this.segmentIndex = segmentIndex;
+			this.offset = offset;
+			this.bytes = bytes;
+			this.wildcards = wildcards;
+
+			int longestStart = 0;
+			int longestLength = 0;
+			for (int start = 0; start < bytes.length; ) {
+				start = wildcards.nextClearBit(start);
+				int end = Math.min(wildcards.nextSetBit(start) & Integer.MAX_VALUE, bytes.length);
+				if (end - start > longestLength) {
+					longestStart = start;
+					longestLength = end - start;
+				}
+				start = end;
+			}
+			this.anchorStart = longestStart;
+			this.anchorLength = longestLength;
+		}
+
+		boolean matchesAt(byte[] fileBytes, int startInFile) {
+			for (int i = 0; i < bytes.length; i++) {
+				if (!wildcards.get(i) && fileBytes[startInFile + i] != bytes[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Aho-Corasick automaton over the anchors of signatures. Transitions are kept in a map keyed
+	 * by node and byte, since most nodes have only one.
+	 */
+	private static class Automaton {
+		private final Map<Long, Integer> transitions = new HashMap<>();
+		private final int[] failures;
+		private final List<List<Integer>> outputs = new ArrayList<>();
+
+		Automaton(List<Signature> signatures) {
+			int maxNodeCount = 1;
+			for (Signature signature : signatures) {
+				maxNodeCount += signature.anchorLength;
+			}
+			failures = new int[maxNodeCount];
+
+			List<List<Integer>> children = new ArrayList<>();
+			List<Byte> edgeBytes = new ArrayList<>();
+			addNode(children, edgeBytes, (byte) 0);
+			for (int i = 0; i < signatures.size(); i++) {
+				Signature signature = signatures.get(i);
+				int node = 0;
+				for (int k = signature.anchorStart;
+						k < signature.anchorStart + signature.anchorLength;
+						k++) {
+					byte b = signature.bytes[k];
+					Integer next = transitions.get(key(node, b));
+					if (next == null) {
+						next = addNode(children, edgeBytes, b);
+						transitions.put(key(node, b), next);
+						children.get(node).add(next);
+					}
+					node = next;
+				}
+				outputs.get(node).add(i);
+			}
+
+			// failure links, breadth first, so that those of shallower nodes are known first
+			Queue<Integer> queue = new ArrayDeque<>(children.get(0));
+			while (!queue.isEmpty()) {
+				int node = queue.remove();
+				for (int child : children.get(node)) {
+					byte b = edgeBytes.get(child);
+					int failure = failures[node];
+					Integer next = transitions.get(key(failure, b));
+					while (next == null && failure != 0) {
+						failure = failures[failure];
+						next = transitions.get(key(failure, b));
+					}
+					failures[child] = next != null ? next : 0;
+					outputs.get(child).addAll(outputs.get(failures[child]));
+					queue.add(child);
+				}
+			}
+		}
+
+		private int addNode(List<List<Integer>> children, List<Byte> edgeBytes, byte edgeByte) {
+			children.add(new ArrayList<>());
+			edgeBytes.add(edgeByte);
+			outputs.add(new ArrayList<>());
+			return outputs.size() - 1;
+		}
+
+		private static long key(int node, byte b) {
+			return (long) node << 8 | (b & 0xFF);
+		}
+
+		int next(int node, byte b) {
+			Integer next = transitions.get(key(node, b));
+			while (next == null && node != 0) {
+				node = failures[node];
+				next = transitions.get(key(node, b));
+			}
+			return next != null ? next : 0;
+		}
+
+		List<Integer> outputs(int node) {
+			return outputs.get(node);
+		}
+	}
+
+	/**
+	 * Finds the code overwritten by the patches' blocks in the other executable, and logs a table
+	 * remapping the blocks' addresses.
+	 */
+	static void logRemapTable(List<Patch> patches,
+			Executable executable,
+			byte[] exeBytes,
+			Executable otherExecutable,
+			byte[] otherExeBytes) {
+		// blocks of several patches may share an address
+		TreeMap<Long, PatchBlock> blocksByAddress = new TreeMap<>();
+		for (Patch patch : patches) {
+			for (PatchBlock block : patch.blocks) {
+				blocksByAddress.putIfAbsent(
+						(long) block.segmentIndex << 32 | block.startOffset, block);
+			}
+		}
+
+		List<Signature> signatures = new ArrayList<>();
+		List<String> unsearchable = new ArrayList<>();
+		for (PatchBlock block : blocksByAddress.values()) {
+			Signature signature = signatureOf(executable, exeBytes, block);
+			if (signature == null) {
+				unsearchable.add(String.format(
+						"  %s (beyond the original code)", block.formatAddress()));
+			} else if (signature.anchorLength < MIN_ANCHOR_LENGTH) {
+				unsearchable.add(String.format(
+						"  %s (too few bytes without relocations)", block.formatAddress()));
+			} else {
+				signatures.add(signature);
+			}
+		}
+
+		search(signatures, otherExecutable, otherExeBytes);
+
+		int remappedCount = 0;
+		L.info("remap table ({} block address(es)):", blocksByAddress.size());
+		for (Signature signature : signatures) {
+			String address = Util.formatAddress(signature.segmentIndex, signature.offset);
+			if (signature.matches.size() == 1) {
+				L.info("  {} -> {}", address, signature.matches.get(0));
+				remappedCount++;
+			} else if (signature.matches.isEmpty()) {
+				L.info("  {} not found", address);
+			} else {
+				L.info("  {} ambiguous, {} matches: {}{}",
+						address,
+						signature.matches.size(),
+						signature.matches.stream()
+								.limit(LISTED_MATCH_COUNT)
+								.collect(Collectors.joining(", ")),
+						signature.matches.size() > LISTED_MATCH_COUNT ? ", ..." : "");
+			}
+		}
+		if (!unsearchable.isEmpty()) {
+			L.info("not searched for:");
+			unsearchable.forEach(L::info);
+		}
+		L.info("remapped {} of {} block address(es)", remappedCount, blocksByAddress.size());
+	}
+
+	/**
+	 * The signature of the original code at a block's address, or null if the block lies beyond
+	 * the code of its segment (as in space added by expanding an overlay).
+	 */
+	private static Signature signatureOf(
+			Executable executable, byte[] exeBytes, PatchBlock block) {
+		if (block.segmentIndex >= executable.segments.size()) {
+			return null;
+		}
+
+		Segment segment = executable.segments.get(block.segmentIndex);
+		Patchable patchable = segment.patchable();
+		if (block.startOffset < patchable.startOffset()
+				|| block.startOffset >= patchable.endOffset()) {
+			return null;
+		}
+
+		int length = Math.max(block.codeBytes.length, MIN_SIGNATURE_LENGTH);
+		length = Math.min(length, MAX_SIGNATURE_LENGTH);
+		length = Math.min(length, patchable.endOffset() - block.startOffset);
+
+		int startInFile = patchable.startInFile() + (block.startOffset - patchable.startOffset());
+		byte[] bytes = new byte[length];
+		System.arraycopy(exeBytes, startInFile, bytes, 0, length);
+
+		BitSet relocationsInFile = relocationsInFile(executable, segment);
+		BitSet wildcards = new BitSet();
+		for (int i = 0; i < length; i++) {
+			if (relocationsInFile.get(startInFile + i)) {
+				wildcards.set(i);
+			}
+		}
+
+		return new Signature(block.segmentIndex, block.startOffset, bytes, wildcards);
+	}
+
+	/** Positions in the file of the bytes of the relocated words in a segment's code. */
+	private static BitSet relocationsInFile(Executable executable, Segment segment) {
+		BitSet relocationsInFile = new BitSet();
+		int tableStartInFile;
+		RelocationTable table;
+		if (segment.optionalOverlay.isPresent()) {
+			Overlay overlay = segment.optionalOverlay.get();
+			tableStartInFile = overlay.startInFile;
+			table = overlay.relocationTable;
+		} else {
+			tableStartInFile = executable.loadModule.mzHeader.loadModuleStartInFile();
+			table = executable.loadModule.relocationTable;
+		}
+		for (int relocation : table.originalAddresses) {
+			relocationsInFile.set(tableStartInFile + relocation, tableStartInFile + relocation + 2);
+		}
+		return relocationsInFile;
+	}
+
+	private static void search(List<Signature> signatures, Executable executable, byte[] exeBytes) {
+		if (signatures.isEmpty()) {
+			return;
+		}
+
+		Automaton automaton = new Automaton(signatures);
+		for (int segmentIndex = 0; segmentIndex < executable.segments.size(); segmentIndex++) {
+			Patchable patchable = executable.segments.get(segmentIndex).patchable();
+			int start = patchable.startInFile();
+			int end = patchable.endInFile();
+			int node = 0;
+			for (int position = start; position < end; position++) {
+				node = automaton.next(node, exeBytes[position]);
+				for (int i : automaton.outputs(node)) {
+					Signature signature = signatures.get(i);
+					int signatureStart =
+							position + 1 - signature.anchorLength - signature.anchorStart;
+					if (signatureStart >= start
+							&& signatureStart + signature.bytes.length <= end
+							&& signature.matchesAt(exeBytes, signatureStart)) {
+						signature.matches.add(Util.formatAddress(
+								segmentIndex,
+								patchable.startOffset() + (signatureStart - start)));
+					}
+				}
+			}
+		}
+	}
+}
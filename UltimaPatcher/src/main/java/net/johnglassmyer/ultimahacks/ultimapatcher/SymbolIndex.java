@@ -0,0 +1,381 @@
+package net.johnglassmyer.ultimahacks.ultimapatcher;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Names of addresses in an executable, as given by the NASM include files of a game's hacks:
+ * <ul>
+ * <li><code>defineAddress segmentIndex, offset, name</code></li>
+ * <li><code>eopProc eopSegmentName, length, procName</code>, which (as the macro does) names the
+ * next offset of the EOP segment, starting from <code>%assign</code>ed
+ * <code>eopSegmentName_nextEopStart</code></li>
+ * <li><code>defineSegment segmentIndex, fromOverlay, fromLoadModule, name</code> and
+ * <code>%assign</code>, whose names can be used in the arguments of the above</li>
+ * </ul>
+ * Files are read in the order given, as NASM would include them, and other lines are skipped.
+ * <p>
+ * Addresses in overlay segments are named both at stub procs (to be called) and in the overlay
+ * code (to be patched), though the two share offsets, so names are kept in two indices: one of
+ * the load module's segments (including the stubs, as addresses are at run time), holding the
+ * names at stub procs, and one of the overlays' code, holding the other names in overlay
+ * segments. Each name at a stub proc is also given, in the latter, to the start of the overlay
+ * code that the stub proc loads, so that addresses in overlay code are named either way.
+ * <p>
+ * Each index keeps its names in an array sorted by address, so that the name nearest below an
+ * address is found by binary search.
+ */
+class SymbolIndex {
+	private static final Logger L = LogManager.getLogger(SymbolIndex.class);
+
+	private static final Pattern DIRECTIVE_PATTERN = Pattern.compile(
+			"^\\s*(%assign|defineSegment|defineAddress|eopProc)\\s+([^;]*)");
+	private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z_.?$][\\w.?$@#~]*");
+
+	/** Suffix of the names that eopProc and endBlockAt give to the ends of procs and blocks. */
+	private static final String END_SUFFIX = "_end";
+
+	private static class Symbol {
+		final long address;
+		final String name;
+
+		Symbol(int segmentIndex, int offset, String name) {
+			this.address = pack(segmentIndex, offset);
+			this.name = name;
+		}
+	}
+
+	private static long pack(int segmentIndex, int offset) {
+		return (long) segmentIndex << 16 | offset;
+	}
+
+	static SymbolIndex read(List<Path> includePaths, Executable executable) throws IOException {
+		Map<String, Integer> constants = new HashMap<>();
+		List<Symbol> symbols = new ArrayList<>();
+		int skippedLineCount = 0;
+
+		for (Path path : includePaths) {
+			for (String line : Files.readAllLines(path, StandardCharsets.ISO_8859_1)) {
+				Matcher matcher = DIRECTIVE_PATTERN.matcher(line);
+				if (!matcher.find()) {
+					continue;
+				}
+
+				String directive = matcher.group(1);
+				String arguments = matcher.group(2).trim();
+				if (!define(directive, arguments, constants, symbols)) {
+					L.debug("skipped {} {} (in {})", directive, arguments, path);
+					skippedLineCount++;
+				}
+			}
+		}
+
+		List<Symbol> segmentSymbols = new ArrayList<>();
+		List<Symbol> overlayCodeSymbols = new ArrayList<>();
+		for (Symbol symbol : symbols) {
+			int segmentIndex = (int) (symbol.address >>> 16);
+			Optional<Overlay> optionalOverlay = segmentIndex < executable.segments.size()
+					? executable.segments.get(segmentIndex).optionalOverlay
+					: Optional.empty();
+			if (!optionalOverlay.isPresent()) {
+				segmentSymbols.add(symbol);
+				continue;
+			}
+
+			int procOffset = (int) (symbol.address & 0xFFFF) - OverlayStub.HEADER_LENGTH;
+			List<StubProc> procs = optionalOverlay.get().stub.procs;
+			if (procOffset >= 0
+					&& procOffset % StubProc.LENGTH == 0
+					&& procOffset / StubProc.LENGTH < procs.size()) {
+				segmentSymbols.add(symbol);
+				overlayCodeSymbols.add(new Symbol(segmentIndex,
+						procs.get(procOffset / StubProc.LENGTH).startInOverlay,
+						symbol.name));
+			} else {
+				overlayCodeSymbols.add(symbol);
+			}
+		}
+
+		L.debug("{} name(s) of addresses in segments and {} in overlay code;"
+						+ " skipped {} definition(s) that could not be evaluated",
+				segmentSymbols.size(), overlayCodeSymbols.size(), skippedLineCount);
+
+		return new SymbolIndex(symbols, segmentSymbols, overlayCodeSymbols);
+	}
+
+	/**
+	 * Records a definition.
+	 *
+	 * @return whether its arguments could be evaluated
+	 */
+	private static boolean define(String directive, String arguments,
+			Map<String, Integer> constants, List<Symbol> symbols) {
+		if (directive.equals("%assign")) {
+			String[] parts = arguments.split("\\s+", 2);
+			if (parts.length != 2) {
+				return false;
+			}
+			Optional<Integer> value = evaluate(parts[1], constants);
+			value.ifPresent(v -> constants.put(parts[0], v));
+			return value.isPresent();
+		}
+
+		String[] parts = arguments.split(",");
+		for (int i = 0; i < parts.length; i++) {
+			parts[i] = parts[i].trim();
+		}
+
+		switch (directive) {
+		case "defineSegment":
+			if (parts.length == 4) {
+				Optional<Integer> segmentIndex = evaluate(parts[0], constants);
+				segmentIndex.ifPresent(s -> constants.put("seg_" + parts[3], s));
+				return segmentIndex.isPresent();
+			}
+			return parts.length == 3;
+
+		case "defineAddress": {
+			if (parts.length != 3) {
+				return false;
+			}
+			Optional<Integer> segmentIndex = evaluate(parts[0], constants);
+			Optional<Integer> offset = evaluate(parts[1], constants);
+			if (!segmentIndex.isPresent() || !offset.isPresent()) {
+				return false;
+			}
+			constants.put("seg_" + parts[2], segmentIndex.get());
+			constants.put("off_" + parts[2], offset.get());
+			symbols.add(new Symbol(segmentIndex.get(), offset.get() & 0xFFFF, parts[2]));
+			return true;
+		}
+
+		case "eopProc": {
+			if (parts.length != 3) {
+				return false;
+			}
+			String eopSegmentName = parts[0];
+			String nextStartName = eopSegmentName + "_nextEopStart";
+			Optional<Integer> segmentIndex =
+					Optional.ofNullable(constants.get("seg_" + eopSegmentName));
+			Optional<Integer> start = Optional.ofNullable(constants.get(nextStartName));
+			Optional<Integer> length = evaluate(parts[1], constants);
+			if (!segmentIndex.isPresent() || !start.isPresent() || !length.isPresent()) {
+				return false;
+			}
+			symbols.add(new Symbol(
+					segmentIndex.get(), start.get() & 0xFFFF, eopSegmentName + "_" + parts[2]));
+			constants.put(nextStartName, start.get() + length.get());
+			return true;
+		}
+
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Evaluates an integer expression of numbers (decimal, 0x-prefixed or h-suffixed hexadecimal)
+	 * and names of constants, with +, -, * and parentheses.
+	 */
+	static Optional<Integer> evaluate(String expression, Map<String, Integer> constants) {
+		ExpressionParser parser = new ExpressionParser(expression, constants);
+		Optional<Integer> value = parser.parseSum();
+		parser.skipSpaces();
+		return parser.position == expression.length() ? value : Optional.empty();
+	}
+
+	private static class ExpressionParser {
+		private final String expression;
+		private final Map<String, Integer> constants;
+		int position;
+
+		ExpressionParser(String expression, Map<String, Integer> constants) {
+			this.expression = expression;
+			this.constants = constants;
+		}
+
+		void skipSpaces() {
+			while (position < expression.length()
+					&& Character.isWhitespace(expression.charAt(position))) {
+				position++;
+			}
+		}
+
+		boolean accept(char c) {
+			skipSpaces();
+			if (position < expression.length() && expression.charAt(position) == c) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+
+		Optional<Integer> parseSum() {
+			Optional<Integer> sum = parseProduct();
+			while (sum.isPresent()) {
+				if (accept('+')) {
+					int left = sum.get();
+					sum = parseProduct().map(right -> left + right);
+				} else if (accept('-')) {
+					int left = sum.get();
+					sum = parseProduct().map(right -> left - right);
+				} else {
+					break;
+				}
+			}
+			return sum;
+		}
+
+		Optional<Integer> parseProduct() {
+			Optional<Integer> product = parseTerm();
+			while (product.isPresent() && accept('*')) {
+				int left = product.get();
+				product = parseTerm().map(right -> left * right);
+			}
+			return product;
+		}
+
+		Optional<Integer> parseTerm() {
+			if (accept('(')) {
+				Optional<Integer> value = parseSum();
+				return accept(')') ? value : Optional.empty();
+			}
+			if (accept('-')) {
+				return parseTerm().map(value -> -value);
+			}
+
+			skipSpaces();
+			Matcher matcher =
+					NAME_PATTERN.matcher(expression).region(position, expression.length());
+			if (matcher.lookingAt()) {
+				position = matcher.end();
+				return Optional.ofNullable(constants.get(matcher.group()));
+			}
+
+			int start = position;
+			while (position < expression.length()
+					&& Character.isLetterOrDigit(expression.charAt(position))) {
+				position++;
+			}
+			String literal = expression.substring(start, position).toLowerCase();
+			try {
+				if (literal.startsWith("0x")) {
+					return Optional.of(Integer.parseInt(literal.substring(2), 16));
+				} else if (literal.endsWith("h")) {
+					return Optional.of(
+							Integer.parseInt(literal.substring(0, literal.length() - 1), 16));
+				} else {
+					return Optional.of(Integer.parseInt(literal));
+				}
+			} catch (NumberFormatException e) {
+				return Optional.empty();
+			}
+		}
+	}
+
+	/** Names sorted by address, of which the nearest below an address is found. */
+	private static class Names {
+		final long[] addresses;
+		final String[] names;
+
+		Names(List<Symbol> symbols) {
+			// of names at the same address, prefer a start to an end, then the first defined
+			List<Symbol> sorted = new ArrayList<>(symbols);
+			sorted.sort(Comparator.comparingLong((Symbol symbol) -> symbol.address)
+					.thenComparing(symbol -> symbol.name.endsWith(END_SUFFIX) ? 1 : 0));
+
+			addresses = new long[sorted.size()];
+			names = new String[sorted.size()];
+			for (int i = 0; i < sorted.size(); i++) {
+				addresses[i] = sorted.get(i).address;
+				names[i] = sorted.get(i).name;
+			}
+		}
+
+		Optional<String> symbolize(int segmentIndex, int offset) {
+			long address = pack(segmentIndex, offset);
+			int index = Arrays.binarySearch(addresses, address);
+			if (index < 0) {
+				index = -(index + 1) - 1;
+				if (index < 0 || addresses[index] >>> 16 != segmentIndex) {
+					return Optional.empty();
+				}
+			}
+			// the first of the names at that address, which sorts before any ends
+			while (index > 0 && addresses[index - 1] == addresses[index]) {
+				index--;
+			}
+
+			int distance = (int) (address - addresses[index]);
+			// concatenated rather than formatted, since a trace may be symbolized line by line
+			return Optional.of(distance == 0
+					? names[index]
+					: names[index] + "+0x" + Integer.toHexString(distance).toUpperCase());
+		}
+	}
+
+	private final Names segmentNames;
+	private final Names overlayCodeNames;
+	/** Addresses of names as defined (without the aliases at the starts of overlay procs). */
+	private final Map<String, Long> definedAddressesByName = new HashMap<>();
+
+	private SymbolIndex(List<Symbol> definitions,
+			List<Symbol> segmentSymbols,
+			List<Symbol> overlayCodeSymbols) {
+		for (Symbol symbol : definitions) {
+			definedAddressesByName.putIfAbsent(symbol.name, symbol.address);
+		}
+
+		segmentNames = new Names(segmentSymbols);
+		overlayCodeNames = new Names(overlayCodeSymbols);
+	}
+
+	int size() {
+		return segmentNames.addresses.length + overlayCodeNames.addresses.length;
+	}
+
+	/** Finds the address at which a name was (first) defined. */
+	Optional<SegmentAndOffset> addressOf(String name) {
+		return Optional.ofNullable(definedAddressesByName.get(name)).map(address ->
+				new SegmentAndOffset((int) (address >>> 16), (int) (address & 0xFFFF)));
+	}
+
+	/**
+	 * Names an address in a load-module segment (or overlay stub) by the nearest name at or below
+	 * it in the same segment, as <code>name</code> or <code>name+0xOffset</code>, if there is one.
+	 */
+	Optional<String> symbolize(int segmentIndex, int offset) {
+		return segmentNames.symbolize(segmentIndex, offset);
+	}
+
+	/**
+	 * Names an address in an overlay's code as {@link #symbolize} does an address in a segment.
+	 */
+	Optional<String> symbolizeOverlayCode(int segmentIndex, int offset) {
+		return overlayCodeNames.symbolize(segmentIndex, offset);
+	}
+
+	/**
+	 * Names an address in a segment's patchable range (as patches and file offsets give it): in
+	 * the overlay's code for an overlay segment, and otherwise in the segment.
+	 */
+	Optional<String> symbolizePatchable(Executable executable, int segmentIndex, int offset) {
+		return executable.segments.get(segmentIndex).optionalOverlay.isPresent()
+				? symbolizeOverlayCode(segmentIndex, offset)
+				: symbolize(segmentIndex, offset);
+	}
+}
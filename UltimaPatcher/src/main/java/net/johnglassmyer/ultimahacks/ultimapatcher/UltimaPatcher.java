@@ -5,11 +5,16 @@ import static net.johnglassmyer.uncheckers.IoUncheckers.callUncheckedIoRunnable;
 import static net.johnglassmyer.uncheckers.IoUncheckers.callUncheckedIoSupplier;
 import static net.johnglassmyer.uncheckers.IoUncheckers.uncheckIoBiFunction;
 import static net.johnglassmyer.uncheckers.IoUncheckers.uncheckIoFunction;
-import static net.johnglassmyer.uncheckers.Uncheckers.uncheckFunction;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
@@ -30,7 +35,11 @@ import java.util.function.Function;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableRangeSet;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
 import com.google.common.collect.Streams;
+import com.google.common.collect.TreeRangeSet;
 import com.google.common.jimfs.Jimfs;
 
 import joptsimple.OptionException;
@@ -39,7 +48,6 @@ import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
 import joptsimple.util.PathConverter;
 import joptsimple.util.PathProperties;
-import net.johnglassmyer.ultimahacks.proto.HackProto;
 import net.johnglassmyer.ultimahacks.ultimapatcher.Segment.Patchable;
 
 /**
@@ -49,7 +57,8 @@ import net.johnglassmyer.ultimahacks.ultimapatcher.Segment.Patchable;
  * existing in patched bytes.
  */
 public class UltimaPatcher {
-	private static final int DEFAULT_EOP_SPACING = 0x100;
+	/** Suffix of an --expand-overlay argument sizing the overlay for the patch blocks. */
+	private static final String AUTO_OVERLAY_LENGTH_SUFFIX = ":auto";
 
 	static class Options {
 		private static final PathConverter EXISTING_FILE_PATH_CONVERTER =
@@ -81,26 +90,97 @@ public class UltimaPatcher {
 			OptionSpec<Void> ignoreExeLength = optionParser.accepts("ignore-exe-length")
 					.availableIf(exe);
 
+			OptionSpec<Path> mergeHacks = optionParser.accepts("merge-hacks")
+					.availableUnless(exe)
+					.withRequiredArg()
+					.withValuesSeparatedBy(',')
+					.withValuesConvertedBy(EXISTING_FILE_PATH_CONVERTER);
+
+			OptionSpec<Path> optimizeEopLayout = optionParser.accepts("optimize-eop-layout")
+					.availableUnless(exe, mergeHacks)
+					.withRequiredArg()
+					.withValuesSeparatedBy(',')
+					.withValuesConvertedBy(EXISTING_FILE_PATH_CONVERTER);
+
+			OptionSpec<Path> callProfile = optionParser.accepts("call-profile")
+					.requiredIf(optimizeEopLayout)
+					.availableIf(optimizeEopLayout)
+					.withRequiredArg()
+					.withValuesConvertedBy(EXISTING_FILE_PATH_CONVERTER);
+
+			OptionSpec<String> eopOverlay = optionParser.accepts("eop-overlay")
+					.requiredIf(optimizeEopLayout)
+					.availableIf(optimizeEopLayout)
+					.withRequiredArg();
+
 			OptionSpec<Path> patch = optionParser.accepts("patch")
-					.requiredUnless(exe)
+					.requiredUnless(exe, mergeHacks, optimizeEopLayout)
+					.availableUnless(mergeHacks, optimizeEopLayout)
 					.withRequiredArg()
 					.withValuesConvertedBy(EXISTING_FILE_PATH_CONVERTER);
 
 			OptionSpec<Void> showPatchBytes = optionParser.accepts("show-patch-bytes")
 					.availableIf(patch);
 
+			OptionSpec<Path> writePatchBundle = optionParser.accepts("write-patch-bundle")
+					.availableIf(patch)
+					.availableUnless(exe)
+					.withRequiredArg()
+					.withValuesConvertedBy(new PathConverter());
+
 			OptionSpec<Path> hackProto = optionParser.accepts("hack-proto")
 					.availableIf(exe)
 					.availableUnless(expandOverlay, patch)
 					.withRequiredArg()
 					.withValuesConvertedBy(EXISTING_FILE_PATH_CONVERTER);
 
+			OptionSpec<Path> autoHack = optionParser.accepts("auto-hack")
+					.availableIf(exe)
+					.availableUnless(expandOverlay, patch, hackProto)
+					.withRequiredArg()
+					.withValuesConvertedBy(new PathConverter(PathProperties.DIRECTORY_EXISTING));
+
 			OptionSpec<Void> writeToExe = optionParser.accepts("write-to-exe")
 					.availableIf(exe);
 
-			OptionSpec<Path> writeHackProto = optionParser.accepts("write-hack-proto")
+			OptionSpec<Void> verifyHack = optionParser.accepts("verify-hack")
+					.availableIf(hackProto, autoHack)
+					.availableUnless(writeToExe);
+
+			OptionSpec<Void> inPlace = optionParser.accepts("in-place")
+					.availableIf(writeToExe);
+
+			OptionSpec<Void> rollBack = optionParser.accepts("roll-back")
+					.availableIf(exe)
+					.availableUnless(expandOverlay, patch, hackProto, autoHack, writeToExe);
+
+			OptionSpec<Path> writeInverseHack = optionParser.accepts("write-inverse-hack")
+					.availableIf(writeToExe)
+					.withRequiredArg()
+					.withValuesConvertedBy(new PathConverter());
+
+			OptionSpec<Path> hackDelta = optionParser.accepts("hack-delta")
 					.availableIf(exe)
-					.availableUnless(hackProto, writeToExe)
+					.availableUnless(expandOverlay, patch, hackProto, autoHack, writeToExe)
+					.withRequiredArg()
+					.withValuesSeparatedBy(',')
+					.withValuesConvertedBy(EXISTING_FILE_PATH_CONVERTER);
+
+			OptionSpec<Path> diff = optionParser.accepts("diff")
+					.availableIf(exe)
+					.availableUnless(
+							expandOverlay, patch, hackProto, autoHack, writeToExe, hackDelta)
+					.withRequiredArg()
+					.withValuesConvertedBy(EXISTING_FILE_PATH_CONVERTER);
+
+			OptionSpec<Void> compactOverlays = optionParser.accepts("compact-overlays")
+					.availableIf(exe)
+					.availableUnless(hackProto, autoHack, rollBack, hackDelta, diff);
+
+			OptionSpec<Path> writeHackProto = optionParser.accepts("write-hack-proto")
+					.requiredIf(mergeHacks, hackDelta)
+					.availableIf(exe, mergeHacks)
+					.availableUnless(hackProto, autoHack, writeToExe)
 					.withRequiredArg()
 					.withValuesConvertedBy(new PathConverter());
 
@@ -108,20 +188,255 @@ public class UltimaPatcher {
 					.availableIf(writeHackProto)
 					.withRequiredArg();
 
+			OptionSpec<Void> freeSpace = optionParser.accepts("free-space")
+					.availableIf(exe)
+					.availableUnless(
+							hackProto,
+							autoHack,
+							rollBack,
+							hackDelta,
+							diff,
+							writeToExe,
+							writeHackProto);
+
+			OptionSpec<String> allocate = optionParser.accepts("allocate")
+					.availableIf(exe)
+					.availableUnless(
+							hackProto,
+							autoHack,
+							rollBack,
+							hackDelta,
+							diff,
+							writeToExe,
+							writeHackProto)
+					.withRequiredArg();
+
+			OptionSpec<Path> overlayTrace = optionParser.accepts("overlay-trace")
+					.availableIf(exe)
+					.availableUnless(
+							expandOverlay,
+							patch,
+							hackProto,
+							autoHack,
+							rollBack,
+							hackDelta,
+							diff,
+							writeToExe,
+							writeHackProto,
+							compactOverlays,
+							freeSpace,
+							allocate)
+					.withRequiredArg()
+					.withValuesConvertedBy(EXISTING_FILE_PATH_CONVERTER);
+
+			OptionSpec<Path> symbols = optionParser.accepts("symbols")
+					.availableIf(exe)
+					.withRequiredArg()
+					.withValuesSeparatedBy(',')
+					.withValuesConvertedBy(EXISTING_FILE_PATH_CONVERTER);
+
+			OptionSpec<Void> symbolize = optionParser.accepts("symbolize")
+					.availableIf(symbols)
+					.availableUnless(
+							expandOverlay,
+							patch,
+							hackProto,
+							autoHack,
+							rollBack,
+							hackDelta,
+							diff,
+							writeToExe,
+							writeHackProto,
+							compactOverlays,
+							freeSpace,
+							allocate,
+							overlayTrace);
+
+			OptionSpec<String> runProc = optionParser.accepts("run-proc")
+					.availableIf(exe)
+					.availableUnless(
+							expandOverlay,
+							patch,
+							hackProto,
+							autoHack,
+							rollBack,
+							hackDelta,
+							diff,
+							writeToExe,
+							writeHackProto,
+							compactOverlays,
+							freeSpace,
+							allocate,
+							overlayTrace,
+							symbolize)
+					.withRequiredArg();
+
+			OptionSpec<String> seed = optionParser.accepts("seed")
+					.availableIf(runProc)
+					.withRequiredArg();
+
+			OptionSpec<String> poke = optionParser.accepts("poke")
+					.availableIf(runProc)
+					.withRequiredArg();
+
+			OptionSpec<String> push = optionParser.accepts("push")
+					.availableIf(runProc)
+					.withRequiredArg()
+					.withValuesSeparatedBy(',');
+
+			OptionSpec<Long> maxInstructions = optionParser.accepts("max-instructions")
+					.availableIf(runProc)
+					.withRequiredArg()
+					.ofType(Long.class);
+
+			OptionSpec<String> loadSegment = optionParser.accepts("load-segment")
+					.requiredIf(overlayTrace)
+					.availableIf(overlayTrace, symbolize, runProc)
+					.withRequiredArg();
+
+			OptionSpec<Void> memoryReport = optionParser.accepts("memory-report")
+					.availableIf(exe)
+					.availableUnless(
+							rollBack,
+							hackDelta,
+							diff,
+							writeToExe,
+							writeHackProto,
+							freeSpace,
+							allocate,
+							overlayTrace,
+							symbolize,
+							runProc);
+
+			OptionSpec<String> memoryBudget = optionParser.accepts("memory-budget")
+					.availableIf(memoryReport)
+					.withRequiredArg();
+
+			OptionSpec<Void> costReport = optionParser.accepts("cost-report")
+					.availableIf(patch)
+					.availableUnless(writeToExe, writeHackProto, memoryReport);
+
+			OptionSpec<Path> portTo = optionParser.accepts("port-to")
+					.availableIf(exe)
+					.availableUnless(writeToExe, writeHackProto, memoryReport, costReport)
+					.withRequiredArg()
+					.withValuesConvertedBy(EXISTING_FILE_PATH_CONVERTER);
+
+			OptionSpec<Void> checkRelocations = optionParser.accepts("check-relocations")
+					.availableIf(exe)
+					.availableUnless(
+							writeToExe, writeHackProto, memoryReport, costReport, portTo);
+
+			OptionSpec<String> xref = optionParser.accepts("xref")
+					.availableIf(exe)
+					.availableUnless(
+							expandOverlay,
+							patch,
+							hackProto,
+							autoHack,
+							rollBack,
+							hackDelta,
+							diff,
+							writeToExe,
+							writeHackProto,
+							compactOverlays,
+							freeSpace,
+							allocate,
+							overlayTrace,
+							symbolize,
+							runProc,
+							memoryReport)
+					.withRequiredArg();
+
+			OptionSpec<Path> xrefIndex = optionParser.accepts("xref-index")
+					.availableIf(xref)
+					.withRequiredArg()
+					.withValuesConvertedBy(new PathConverter());
+
+			OptionSpec<Path> translateAddresses = optionParser.accepts("translate-addresses")
+					.availableIf(exe)
+					.availableUnless(
+							expandOverlay,
+							patch,
+							hackProto,
+							autoHack,
+							rollBack,
+							hackDelta,
+							diff,
+							writeToExe,
+							writeHackProto,
+							compactOverlays,
+							freeSpace,
+							allocate,
+							overlayTrace,
+							symbolize,
+							runProc,
+							memoryReport,
+							xref)
+					.withOptionalArg()
+					.withValuesConvertedBy(EXISTING_FILE_PATH_CONVERTER);
+
+			OptionSpec<Void> csv = optionParser.accepts("csv")
+					.availableIf(translateAddresses);
+
 			OptionSpec<String> fileToSegmented = optionParser.accepts("file-to-segmented")
 					.availableIf(exe)
-					.availableUnless(listRelocations, patch, hackProto)
+					.availableUnless(
+							listRelocations,
+							patch,
+							hackProto,
+							autoHack,
+							diff,
+							compactOverlays,
+							freeSpace,
+							allocate,
+							overlayTrace,
+							symbolize,
+							runProc,
+							memoryReport,
+							xref,
+							translateAddresses)
 					.withRequiredArg();
 
 			OptionSpec<String> segmentedToFile = optionParser.accepts("segmented-to-file")
 					.availableIf(exe)
-					.availableUnless(listRelocations, patch, hackProto, fileToSegmented)
+					.availableUnless(
+							listRelocations,
+							patch,
+							hackProto,
+							autoHack,
+							diff,
+							compactOverlays,
+							freeSpace,
+							allocate,
+							overlayTrace,
+							symbolize,
+							runProc,
+							memoryReport,
+							xref,
+							translateAddresses,
+							fileToSegmented)
 					.withRequiredArg();
 
 			OptionSpec<Void> produceSegmentsAsm = optionParser.accepts("produce-segments-asm")
 					.availableIf(exe)
 					.availableUnless(
-							listRelocations, patch, hackProto, fileToSegmented, segmentedToFile);
+							listRelocations,
+							patch,
+							hackProto,
+							autoHack,
+							diff,
+							compactOverlays,
+							freeSpace,
+							allocate,
+							overlayTrace,
+							symbolize,
+							runProc,
+							memoryReport,
+							xref,
+							translateAddresses,
+							fileToSegmented,
+							segmentedToFile);
 
 			OptionSet optionSet = optionParser.parse(args);
 
@@ -134,10 +449,44 @@ public class UltimaPatcher {
 					optionSet.valueOfOptional(eopSpacing),
 					optionSet.valuesOf(patch),
 					optionSet.has(showPatchBytes),
+					optionSet.valueOfOptional(writePatchBundle),
 					optionSet.valueOfOptional(hackProto),
+					optionSet.valueOfOptional(autoHack),
+					optionSet.has(verifyHack),
 					optionSet.has(writeToExe),
+					optionSet.has(inPlace),
+					optionSet.has(rollBack),
+					optionSet.valueOfOptional(writeInverseHack),
+					optionSet.valuesOf(mergeHacks),
+					optionSet.valuesOf(optimizeEopLayout),
+					optionSet.valueOfOptional(callProfile),
+					optionSet.valuesOf(eopOverlay),
+					optionSet.valuesOf(hackDelta),
+					optionSet.valueOfOptional(diff),
+					optionSet.has(compactOverlays),
 					optionSet.valueOfOptional(writeHackProto),
 					optionSet.valueOfOptional(hackComment),
+					optionSet.has(freeSpace),
+					optionSet.valuesOf(allocate),
+					optionSet.valueOfOptional(overlayTrace),
+					optionSet.valuesOf(symbols),
+					optionSet.has(symbolize),
+					optionSet.valueOfOptional(runProc),
+					optionSet.valuesOf(seed),
+					optionSet.valuesOf(poke),
+					optionSet.valuesOf(push),
+					optionSet.valueOfOptional(maxInstructions),
+					optionSet.valueOfOptional(loadSegment),
+					optionSet.has(memoryReport),
+					optionSet.valuesOf(memoryBudget),
+					optionSet.has(costReport),
+					optionSet.valueOfOptional(portTo),
+					optionSet.has(checkRelocations),
+					optionSet.valuesOf(xref),
+					optionSet.valueOfOptional(xrefIndex),
+					optionSet.has(translateAddresses),
+					optionSet.valueOfOptional(translateAddresses),
+					optionSet.has(csv),
 					optionSet.valuesOf(fileToSegmented),
 					optionSet.valuesOf(segmentedToFile),
 					optionSet.has(produceSegmentsAsm));
@@ -151,10 +500,44 @@ public class UltimaPatcher {
 		final Optional<String> eopSpacing;
 		final List<Path> patch;
 		final boolean showPatchBytes;
+		final Optional<Path> writePatchBundle;
 		final Optional<Path> hackProto;
+		final Optional<Path> autoHack;
+		final boolean verifyHack;
 		final boolean writeToExe;
+		final boolean inPlace;
+		final boolean rollBack;
+		final Optional<Path> writeInverseHack;
+		final List<Path> mergeHacks;
+		final List<Path> optimizeEopLayout;
+		final Optional<Path> callProfile;
+		final List<String> eopOverlay;
+		final List<Path> hackDelta;
+		final Optional<Path> diff;
+		final boolean compactOverlays;
 		final Optional<Path> writeHackProto;
 		final Optional<String> hackComment;
+		final boolean freeSpace;
+		final List<String> allocate;
+		final Optional<Path> overlayTrace;
+		final List<Path> symbols;
+		final boolean symbolize;
+		final Optional<String> runProc;
+		final List<String> seed;
+		final List<String> poke;
+		final List<String> push;
+		final Optional<Long> maxInstructions;
+		final Optional<String> loadSegment;
+		final boolean memoryReport;
+		final List<String> memoryBudget;
+		final boolean costReport;
+		final Optional<Path> portTo;
+		final boolean checkRelocations;
+		final List<String> xref;
+		final Optional<Path> xrefIndex;
+		final boolean translateAddresses;
+		final Optional<Path> translateAddressesFile;
+		final boolean csv;
 		final List<String> fileToSegmented;
 		final List<String> segmentedToFile;
 		final boolean produceSegmentsAsm;
@@ -168,10 +551,44 @@ public class UltimaPatcher {
 				Optional<String> eopSpacing,
 				List<Path> patch,
 				boolean showPatchBytes,
+				Optional<Path> writePatchBundle,
 				Optional<Path> hackProto,
+				Optional<Path> autoHack,
+				boolean verifyHack,
 				boolean writeToExe,
+				boolean inPlace,
+				boolean rollBack,
+				Optional<Path> writeInverseHack,
+				List<Path> mergeHacks,
+				List<Path> optimizeEopLayout,
+				Optional<Path> callProfile,
+				List<String> eopOverlay,
+				List<Path> hackDelta,
+				Optional<Path> diff,
+				boolean compactOverlays,
 				Optional<Path> writeHackProto,
 				Optional<String> hackComment,
+				boolean freeSpace,
+				List<String> allocate,
+				Optional<Path> overlayTrace,
+				List<Path> symbols,
+				boolean symbolize,
+				Optional<String> runProc,
+				List<String> seed,
+				List<String> poke,
+				List<String> push,
+				Optional<Long> maxInstructions,
+				Optional<String> loadSegment,
+				boolean memoryReport,
+				List<String> memoryBudget,
+				boolean costReport,
+				Optional<Path> portTo,
+				boolean checkRelocations,
+				List<String> xref,
+				Optional<Path> xrefIndex,
+				boolean translateAddresses,
+				Optional<Path> translateAddressesFile,
+				boolean csv,
 				List<String> fileToSegmented,
 				List<String> segmentedToFile,
 				boolean produceSegmentsAsm) {
@@ -183,10 +600,44 @@ public class UltimaPatcher {
 			this.eopSpacing = eopSpacing;
 			this.patch = patch;
 			this.showPatchBytes = showPatchBytes;
+			this.writePatchBundle = writePatchBundle;
 			this.hackProto = hackProto;
+			this.autoHack = autoHack;
+			this.verifyHack = verifyHack;
 			this.writeToExe = writeToExe;
+			this.inPlace = inPlace;
+			this.rollBack = rollBack;
+			this.writeInverseHack = writeInverseHack;
+			this.mergeHacks = mergeHacks;
+			this.optimizeEopLayout = optimizeEopLayout;
+			this.callProfile = callProfile;
+			this.eopOverlay = eopOverlay;
+			this.hackDelta = hackDelta;
+			this.diff = diff;
+			this.compactOverlays = compactOverlays;
 			this.writeHackProto = writeHackProto;
 			this.hackComment = hackComment;
+			this.freeSpace = freeSpace;
+			this.allocate = allocate;
+			this.overlayTrace = overlayTrace;
+			this.symbols = symbols;
+			this.symbolize = symbolize;
+			this.runProc = runProc;
+			this.seed = seed;
+			this.poke = poke;
+			this.push = push;
+			this.maxInstructions = maxInstructions;
+			this.loadSegment = loadSegment;
+			this.memoryReport = memoryReport;
+			this.memoryBudget = memoryBudget;
+			this.costReport = costReport;
+			this.portTo = portTo;
+			this.checkRelocations = checkRelocations;
+			this.xref = xref;
+			this.xrefIndex = xrefIndex;
+			this.translateAddresses = translateAddresses;
+			this.translateAddressesFile = translateAddressesFile;
+			this.csv = csv;
 			this.fileToSegmented = fileToSegmented;
 			this.segmentedToFile = segmentedToFile;
 			this.produceSegmentsAsm = produceSegmentsAsm;
@@ -222,28 +673,188 @@ public class UltimaPatcher {
 	private static void main(Options options) {
 		List<Patch> patches = options.patch.stream()
 				.map(uncheckIoFunction(UltimaPatcher::readPatchFile))
+				.flatMap(List::stream)
 				.collect(Collectors.toList());
 
 		if (options.produceSegmentsAsm) {
 			options.exe.map(uncheckIoFunction(Executable::readFromFile)).ifPresent(executable -> {
 				executable.produceSegmentsAsm();
 			});
+		} else if (!options.mergeHacks.isEmpty()) {
+			mergeHacks(options.mergeHacks, options.writeHackProto.get(), options.hackComment);
+		} else if (!options.optimizeEopLayout.isEmpty()) {
+			callUncheckedIoSupplier(() -> EopLayoutOptimizer.read(
+					options.optimizeEopLayout, options.callProfile.get(), options.eopOverlay))
+					.optimizeAndLog();
+		} else if (!options.hackDelta.isEmpty()) {
+			writeHackDelta(options);
+		} else if (options.diff.isPresent()) {
+			diffExecutables(options);
 		} else if (options.exe.isPresent()) {
 			Path exePath = options.exe.get();
 
+			if (ExeTransaction.hasJournal(exePath)) {
+				if (options.rollBack || options.writeToExe) {
+					callUncheckedIoRunnable(() -> ExeTransaction.rollBack(exePath));
+				} else {
+					L.error("{} was left partly edited, as recorded by {}."
+							+ " Use --roll-back to restore it.",
+							exePath,
+							ExeTransaction.journalPath(exePath));
+					System.exit(0xDEADBEEF);
+				}
+			}
+
+			if (options.rollBack) {
+				return;
+			}
+
+			Optional<Path> hackProtoPath = options.hackProto.or(() -> options.autoHack.map(
+					directory -> selectHack(directory, exePath, options.verifyHack)));
+
+			if (options.verifyHack) {
+				verifyHack(hackProtoPath.get(), exePath);
+				return;
+			}
+
+			if (options.memoryReport && hackProtoPath.isPresent()) {
+				Hack hack = callUncheckedIoSupplier(() -> Hack.readFromFile(hackProtoPath.get()));
+				Executable hackedExecutable = callUncheckedIoSupplier(() -> {
+					byte[] hackedBytes =
+							applyEditsToBytes(Files.readAllBytes(exePath), hack.edits);
+					return Executable.readFromFile(writeToInMemoryFile(hackedBytes));
+				});
+				reportMemory(
+						callUncheckedIoSupplier(() -> Executable.readFromFile(exePath)),
+						hackedExecutable,
+						options.memoryBudget);
+				return;
+			}
+
+			if (hackProtoPath.isPresent()) {
+				// A hack proto can't be combined with patches or overlay expansions, so its edits
+				// can be applied one at a time as they are decoded. The executable is not parsed,
+				// since it may have been left partly patched by an earlier application of the hack.
+				int exeLength = (int) (long) callUncheckedIoSupplier(() -> Files.size(exePath));
+				L.info(new HexValueMessage(
+						exeLength, String.format("executable length (%s)", exePath)));
+				streamHackProto(hackProtoPath.get(), exePath, exeLength, options);
+				return;
+			}
+
 			ImmutableList.Builder<Edit> editsBuilder = ImmutableList.builder();
 
-			int originalExeLength;
-			Executable executable;
-			{
-				Executable originalExecutable =
-						callUncheckedIoSupplier(() -> Executable.readFromFile(exePath));
-				originalExecutable.logSummary();
+			Executable originalExecutable =
+					callUncheckedIoSupplier(() -> Executable.readFromFile(exePath));
+
+			Optional<SymbolIndex> optionalSymbolIndex = options.symbols.isEmpty()
+					? Optional.empty()
+					: Optional.of(callUncheckedIoSupplier(
+							() -> SymbolIndex.read(options.symbols, originalExecutable)));
+
+			if (options.symbolize) {
+				// addresses are read and symbolized before anything is logged, so that the
+				// output can be piped to other tools
+				callUncheckedIoRunnable(() -> symbolizeStream(
+						originalExecutable,
+						optionalSymbolIndex.get(),
+						options.loadSegment.map(Integer::decode)));
+				return;
+			}
 
-				originalExeLength = originalExecutable.fileLength;
+			if (options.translateAddresses) {
+				AddressTranslator translator = new AddressTranslator(originalExecutable);
+				callUncheckedIoRunnable(() -> {
+					if (options.translateAddressesFile.isPresent()) {
+						try (InputStream input =
+								Files.newInputStream(options.translateAddressesFile.get())) {
+							translator.translate(input, System.out, options.csv);
+						}
+					} else {
+						translator.translate(System.in, System.out, options.csv);
+					}
+				});
+				return;
+			}
+
+			originalExecutable.logSummary();
+
+			if (options.overlayTrace.isPresent()) {
+				Path tracePath = options.overlayTrace.get();
+				int loadSegment = Integer.decode(options.loadSegment.get());
+				L.info("analyzing overlay activity in {} (load module at segment 0x{})",
+						tracePath, String.format("%04X", loadSegment));
+				callUncheckedIoSupplier(
+						() -> OverlayTrace.analyze(originalExecutable, loadSegment, tracePath))
+						.logReport();
+				return;
+			}
+
+			if (!options.xref.isEmpty()) {
+				FarReferenceIndex index = callUncheckedIoSupplier(
+						() -> readOrBuildFarReferenceIndex(originalExecutable, options.xrefIndex));
+				for (String addressArg : options.xref) {
+					index.logReferencesTo(addressArg, originalExecutable);
+				}
+				return;
+			}
+
+			if (options.runProc.isPresent()) {
+				ProcBenchmark benchmark = new ProcBenchmark(
+						originalExecutable,
+						callUncheckedIoSupplier(() -> Files.readAllBytes(exePath)),
+						options.loadSegment.map(Integer::decode)
+								.orElse(ProcBenchmark.DEFAULT_LOAD_SEGMENT),
+						optionalSymbolIndex);
+				options.seed.forEach(benchmark::seed);
+				options.poke.forEach(benchmark::poke);
+				boolean returned = benchmark.run(
+						options.runProc.get(),
+						options.push,
+						options.maxInstructions
+								.orElse(ProcBenchmark.DEFAULT_MAX_INSTRUCTION_COUNT));
+				if (!returned) {
+					System.exit(0xDEADBEEF);
+				}
+				return;
+			}
+
+			if (options.costReport) {
+				callUncheckedIoRunnable(
+						() -> PatchCostReport.log(patches, Optional.of(originalExecutable)));
+				return;
+			}
+
+			if (options.portTo.isPresent()) {
+				Path otherExePath = options.portTo.get();
+				Executable otherExecutable =
+						callUncheckedIoSupplier(() -> Executable.readFromFile(otherExePath));
+				L.info("searching {} for the code overwritten by the patches' blocks",
+						otherExePath);
+				SignatureSearch.logRemapTable(
+						patches,
+						originalExecutable,
+						callUncheckedIoSupplier(() -> Files.readAllBytes(exePath)),
+						otherExecutable,
+						callUncheckedIoSupplier(() -> Files.readAllBytes(otherExePath)));
+				return;
+			}
 
+			if (options.checkRelocations) {
+				boolean passed = RelocationCheck.check(
+						originalExecutable,
+						callUncheckedIoSupplier(() -> Files.readAllBytes(exePath)),
+						patches);
+				if (!passed) {
+					System.exit(0xDEADBEEF);
+				}
+				return;
+			}
+
+			Executable executable;
+			{
 				ExecutableEditState expandedExecutableState = withExpandedOverlays(
-						originalExecutable, options.expandOverlay, options.eopSpacing);
+						originalExecutable, options.expandOverlay, options.eopSpacing, patches);
 				executable = expandedExecutableState.executable;
 
 				editsBuilder.addAll(expandedExecutableState.accumulatedEdits);
@@ -261,28 +872,44 @@ public class UltimaPatcher {
 				editsBuilder.addAll(editsForPatches(executable, patches));
 			}
 
-			options.hackProto
-					.map(uncheckIoFunction(Files::readAllBytes))
-					.map(uncheckFunction(HackProto.Hack::parseFrom))
-					.map(Hack::fromProtoHack)
-					.ifPresent(hack -> {
-				L.info("read hack proto");
+			if (options.compactOverlays) {
+				ImmutableList<Edit> linkingEdits = editsBuilder.build();
+				Executable linkedExecutable = callUncheckedIoSupplier(
+						() -> applyEditsInMemory(originalExecutable, linkingEdits));
+				try {
+					editsBuilder.addAll(
+							callUncheckedIoSupplier(linkedExecutable::compactOverlays));
+				} catch (PatchApplicationException e) {
+					L.error(e.getMessage());
+					System.exit(0xDEADBEEF);
+				}
+			}
 
-				hack.targetLength.ifPresentOrElse(targetLength -> {
-					L.info(String.format("  hack target file length: 0x%X", targetLength));
-					checkTargetLength(targetLength, originalExeLength, options.ignoreExeLength);
-				}, () -> {
-					L.info("  hack does not specify a target file length");
-				});
+			if (options.memoryReport) {
+				ImmutableList<Edit> edits = editsBuilder.build();
+				reportMemory(
+						originalExecutable,
+						callUncheckedIoSupplier(
+								() -> applyEditsInMemory(originalExecutable, edits)),
+						options.memoryBudget);
+				return;
+			}
 
-				hack.comment.ifPresentOrElse(comment -> {
-					L.info("  hack comment: {}", comment);
-				}, () -> {
-					L.info("  has does not specify a comment");
-				});
+			if (options.freeSpace || !options.allocate.isEmpty()) {
+				// free space is found in the executable as the edits would leave it, so that
+				// expanded overlays and the fill of the given patches' blocks are included
+				ImmutableList<Edit> edits = editsBuilder.build();
+				FreeSpaceMap freeSpaceMap = callUncheckedIoSupplier(() -> FreeSpaceMap.scan(
+						applyEditsInMemory(originalExecutable, edits)));
 
-				editsBuilder.addAll(hack.edits);
-			});
+				if (options.freeSpace) {
+					freeSpaceMap.logDetails();
+				}
+				if (!options.allocate.isEmpty()) {
+					allocateFreeSpace(freeSpaceMap, options.allocate);
+				}
+				return;
+			}
 
 			ImmutableList<Edit> resultingEdits = editsBuilder.build();
 			if (!resultingEdits.isEmpty()) {
@@ -290,30 +917,39 @@ public class UltimaPatcher {
 				logMappedValues(Justification.LEFT, resultingEdits, Edit::explanation);
 
 				if (options.writeToExe) {
-					L.info("writing to exe {}", exePath);
-					applyEdits(exePath, resultingEdits);
+					try {
+						PresentEditFilter presentEdits = PresentEditFilter.scan(
+								resultingEdits, Optional.empty(), executable.fileLength);
+						if (allEditsPresent(exePath,
+								resultingEdits,
+								presentEdits,
+								TreeRangeSet.create())) {
+							L.info("All resulting edits are already present in {}.", exePath);
+						} else {
+							writeEditsToExe(exePath, resultingEdits, presentEdits, options);
+						}
+					} catch (PatchApplicationException e) {
+						exitNotWriting(exePath, e);
+					}
 				} else if (options.writeHackProto.isPresent()) {
 					Path hackPath = options.writeHackProto.get();
 					L.info("writing hack proto to {}", hackPath);
-					writeHackProto(
-							hackPath, resultingEdits, originalExeLength, options.hackComment);
+					writeHackProto(hackPath, resultingEdits, exePath, options.hackComment);
 				} else {
 					L.info("Use --write-to-exe to patch the executable"
-							+ (options.hackProto.isPresent()
-									? ""
-									: " or --write-hack-proto to compile edits into a file")
-							+ ".");
+							+ " or --write-hack-proto to compile edits into a file.");
 				}
 			} else {
 				if (!options.fileToSegmented.isEmpty()) {
 					L.info("file offsets converted to segment:offset addresses:");
 					logMappedValues(Justification.RIGHT, options.fileToSegmented, string -> {
 						int fileOffset = Integer.decode(string);
-						return executable.segmentIndexForFileOffset(fileOffset)
-								.map(segmentIndex -> Util.formatAddress(
-										segmentIndex,
-										fileOffset - executable.segments.get(segmentIndex)
-												.patchable().startInFile()))
+						return formatSegmentedAddress(executable, fileOffset)
+								.map(address -> optionalSymbolIndex
+										.flatMap(symbolIndex -> symbolizeFileOffset(
+												executable, symbolIndex, fileOffset))
+										.map(symbol -> address + " " + symbol)
+										.orElse(address))
 								.or(() -> Optional.of("(no matching segment)"));
 					});
 				} else if (!options.segmentedToFile.isEmpty()) {
@@ -345,6 +981,16 @@ public class UltimaPatcher {
 			for (Patch patch : patches) {
 				patch.logDescription(options.showPatchBytes);
 			}
+
+			if (options.costReport) {
+				callUncheckedIoRunnable(() -> PatchCostReport.log(patches, Optional.empty()));
+			}
+
+			options.writePatchBundle.ifPresent(bundlePath -> {
+				L.info("writing patch bundle to {}", bundlePath);
+				callUncheckedIoRunnable(
+						() -> Files.write(bundlePath, PatchBundle.bytesFor(patches)));
+			});
 		}
 	}
 
@@ -366,30 +1012,121 @@ public class UltimaPatcher {
 				+ " --exe=<exeFile> [--list-relocations | --show-overlay-procs]");
 		L.info("For patch info:");
 		L.info("  java -jar UltimaPatcher.jar --patch=<patchFile> [--show-patch-bytes]");
+		L.info("To pack patches into a single patch bundle:");
+		L.info("  java -jar UltimaPatcher.jar --patch=<patchFile>..."
+				+ " --write-patch-bundle=<bundleFile>");
 		L.info("To apply patches directly to an executable:");
 		L.info("  java -jar UltimaPatcher.jar --exe=<exeFile>"
-				+ " --expand-overlay=<segmentIndex>:<newLength>..."
-				+ " --patch=<patchFile>..."
-				+ " --write-to-exe");
+				+ " --expand-overlay=<segmentIndex>:<newLength>|auto..."
+				+ " --patch=<patchFile>... [--compact-overlays]"
+				+ " --write-to-exe [--in-place] [--write-inverse-hack=<inverseHackProtoFile>]");
 		L.info("To compile patches to a hack proto:");
 		L.info("  java -jar UltimaPatcher.jar --exe=<exeFile>"
-				+ " --expand-overlay=<segmentIndex>:<newLength>..."
-				+ " --patch=<patchFile>..."
+				+ " --expand-overlay=<segmentIndex>:<newLength>|auto..."
+				+ " --patch=<patchFile>... [--compact-overlays]"
 				+ " --write-hack-proto=<hackProtoFile>");
+		L.info("To find unused bytes of code in which to place new patch blocks:");
+		L.info("  java -jar UltimaPatcher.jar --exe=<exeFile>"
+				+ " [--expand-overlay=<segmentIndex>:<newLength>|auto...] [--patch=<patchFile>...]"
+				+ " [--free-space] [--allocate=[<segmentIndex>:]<length>...]");
+		L.info("To count overlay entries, loads, and thrashing in a DOSBox CPU log"
+				+ " or a log of far-call targets:");
+		L.info("  java -jar UltimaPatcher.jar --exe=<exeFile> --overlay-trace=<traceFile>"
+				+ " --load-segment=<loadModuleSegment>");
+		L.info("To report the memory needed by an executable, and by it as patches or a hack"
+				+ " proto would leave it:");
+		L.info("  java -jar UltimaPatcher.jar --exe=<exeFile>"
+				+ " [--expand-overlay=<segmentIndex>:<newLength>|auto...] [--patch=<patchFile>...]"
+				+ " [--hack-proto=<hackProtoFile>]"
+				+ " --memory-report [--memory-budget=resident|overlay|total:<maxBytes>...]");
+		L.info("To name file offsets, segment:offset addresses, or CS:IP addresses at run time"
+				+ " (read from standard input) by the names in NASM include files:");
+		L.info("  java -jar UltimaPatcher.jar --exe=<exeFile>"
+				+ " --symbols=<includeFile>,<includeFile>... --symbolize"
+				+ " [--load-segment=<loadModuleSegment>]");
+		L.info("To translate file offsets to segment:offset addresses and back, in bulk"
+				+ " (one address per line, read from the file or standard input):");
+		L.info("  java -jar UltimaPatcher.jar --exe=<exeFile>"
+				+ " --translate-addresses[=<addressFile>] [--csv]");
+		L.info("To list the far calls, far jumps and far-pointer pushes referring to addresses:");
+		L.info("  java -jar UltimaPatcher.jar --exe=<exeFile>"
+				+ " --xref=<segmentIndex>[:<offset>]... [--xref-index=<indexFile>]");
+		L.info("To run a far proc in an interpreter from a seeded state, counting the instructions"
+				+ " executed and the memory read and written:");
+		L.info("  java -jar UltimaPatcher.jar --exe=<exeFile>"
+				+ " --run-proc=<segmentIndex>:<offset>|<name> [--symbols=<includeFile>,...]"
+				+ " [--seed=<register>=<value>...] [--poke=<segment>:<offset>=<hexBytes>...]"
+				+ " [--push=<word>,<word>...] [--max-instructions=<count>]"
+				+ " [--load-segment=<loadModuleSegment>]");
+		L.info("To estimate the clocks taken on the 386 and the 486 by patches' code, compared"
+				+ " with the original code that it overwrites:");
+		L.info("  java -jar UltimaPatcher.jar [--exe=<exeFile>]"
+				+ " --patch=<patchFile>... --cost-report");
+		L.info("To find, in another build of the game, the code that patches overwrite, and list"
+				+ " their blocks' addresses remapped to that build:");
+		L.info("  java -jar UltimaPatcher.jar --exe=<exeFile> --patch=<patchFile>..."
+				+ " --port-to=<otherExeFile>");
+		L.info("To check the executable's relocation tables, and those of applied patches' code,"
+				+ " for duplicate, out-of-bounds and missing entries:");
+		L.info("  java -jar UltimaPatcher.jar --exe=<exeFile> [--patch=<patchFile>...]"
+				+ " --check-relocations");
+		L.info("To merge compiled hack protos, to be applied in the given order, into one:");
+		L.info("  java -jar UltimaPatcher.jar --merge-hacks=<hackProtoFile>,<hackProtoFile>..."
+				+ " --write-hack-proto=<hackProtoFile>");
+		L.info("To compile the edits that upgrade an executable patched with one hack proto"
+				+ " to another:");
+		L.info("  java -jar UltimaPatcher.jar --exe=<originalExeFile>"
+				+ " --hack-delta=<oldHackProtoFile>,<newHackProtoFile>"
+				+ " --write-hack-proto=<deltaHackProtoFile>");
+		L.info("To compile the differences between an executable and a modified copy"
+				+ " to a hack proto:");
+		L.info("  java -jar UltimaPatcher.jar --exe=<originalExeFile> --diff=<modifiedExeFile>"
+				+ " [--write-hack-proto=<hackProtoFile>]");
+		L.info("To propose an assignment of EOP procs to overlays"
+				+ " that minimizes calls between overlays:");
+		L.info("  java -jar UltimaPatcher.jar"
+				+ " --optimize-eop-layout=<eopIncludeFile>,<eopIncludeFile>..."
+				+ " --call-profile=<profileFile>"
+				+ " --eop-overlay=<eopOverlayName>:<segmentIndex>:<newCodeStart>:<budget>...");
 		L.info("For compiled hack proto info:");
 		L.info("  java -jar UltimaPatcher.jar --hack-proto=<hackProtoFile>");
 		L.info("To apply a compiled hack proto to an executable:");
 		L.info("  java -jar UltimaPatcher.jar --exe=<exeFile>"
 				+ " --hack-proto=<hackProtoFile>"
-				+ " --write-to-exe");
+				+ " --write-to-exe [--in-place] [--write-inverse-hack=<inverseHackProtoFile>]");
+		L.info("To select a compiled hack proto for an executable by its fingerprint:");
+		L.info("  java -jar UltimaPatcher.jar --exe=<exeFile>"
+				+ " --auto-hack=<hackProtoDirectory> [--write-to-exe]");
+		L.info("To check that an executable has been patched with a compiled hack proto:");
+		L.info("  java -jar UltimaPatcher.jar --exe=<exeFile>"
+				+ " (--hack-proto=<hackProtoFile> | --auto-hack=<hackProtoDirectory>)"
+				+ " --verify-hack");
+		L.info("To restore an executable left partly edited by an interrupted --in-place run:");
+		L.info("  java -jar UltimaPatcher.jar --exe=<exeFile> --roll-back");
 	}
 
-	private static Patch readPatchFile(Path patchPath) throws IOException {
-		byte[] patchFileBytes = Files.readAllBytes(patchPath);
-		ByteBuffer buffer = ByteBuffer.wrap(patchFileBytes);
+	/**
+	 * Reads a patch object in either the trailer layout produced by UltimaPatcher.asm or the
+	 * forward-indexed layout, or else all of the patches in a patch bundle.
+	 */
+	private static List<Patch> readPatchFile(Path patchPath) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(patchPath, StandardOpenOption.READ)) {
+			buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		}
 		buffer.order(LITTLE_ENDIAN);
 
-		int offsetInPatch = buffer.capacity();
+		if (PatchBundle.hasSignature(buffer)) {
+			return PatchBundle.wrap(buffer).readPatches();
+		} else if (IndexedPatchObject.hasSignature(buffer)) {
+			return List.of(IndexedPatchObject.wrap(buffer).toPatch());
+		} else {
+			return List.of(readTrailerPatch(buffer));
+		}
+	}
+
+	private static Patch readTrailerPatch(ByteBuffer buffer) {
+		int offsetInPatch = buffer.limit();
 
 		offsetInPatch -= Integer.BYTES;
 		int descriptionLength = buffer.getInt(offsetInPatch);
@@ -438,17 +1175,232 @@ public class UltimaPatcher {
 		return new Patch(description, targetFileLength, patchBlocks);
 	}
 
+	/**
+	 * Reports the memory needed by an executable before and after editing it, exiting with an
+	 * error status if the latter exceeds any of the given budgets.
+	 */
+	private static void reportMemory(
+			Executable originalExecutable, Executable editedExecutable, List<String> budgetArgs) {
+		MemoryFootprint after = MemoryFootprint.measure(editedExecutable);
+		after.logReport(MemoryFootprint.measure(originalExecutable));
+
+		if (!budgetArgs.isEmpty()) {
+			L.info("");
+			if (!after.checkBudgets(budgetArgs)) {
+				L.error("Memory budgets exceeded.");
+				System.exit(0xDEADBEEF);
+			}
+		}
+	}
+
+	/**
+	 * Copies lines from standard input to standard output, appending to each that starts with an
+	 * address its segment:offset address and the nearest name at or below that. Addresses may be
+	 * file offsets, segment:offset addresses or (given the load segment) hexadecimal CS:IP values
+	 * at run time, as in a DOSBox log or a crash message. Lines not starting with an address are
+	 * copied unchanged.
+	 * <p>
+	 * The lines are written directly, rather than logged, since a trace may have many millions.
+	 */
+	private static void symbolizeStream(
+			Executable executable, SymbolIndex symbolIndex, Optional<Integer> optionalLoadSegment)
+			throws IOException {
+		AddressTranslator translator = new AddressTranslator(executable);
+		Optional<RuntimeSegmentMap> optionalRuntimeSegmentMap = optionalLoadSegment
+				.map(loadSegment -> new RuntimeSegmentMap(executable, loadSegment));
+
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(System.in, StandardCharsets.ISO_8859_1));
+		BufferedWriter writer = new BufferedWriter(
+				new OutputStreamWriter(System.out, StandardCharsets.ISO_8859_1));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			writer.write(line);
+
+			int tokenStart = 0;
+			while (tokenStart < line.length() && Character.isWhitespace(line.charAt(tokenStart))) {
+				tokenStart++;
+			}
+			int tokenEnd = tokenStart;
+			while (tokenEnd < line.length() && !Character.isWhitespace(line.charAt(tokenEnd))) {
+				tokenEnd++;
+			}
+			int colon = line.indexOf(':', tokenStart);
+
+			int segmentIndex = RuntimeSegmentMap.NONE;
+			int offset = -1;
+			if (colon >= 0 && colon < tokenEnd) {
+				if (optionalRuntimeSegmentMap.isPresent()) {
+					int runtimeSegment = parseNumber(line, tokenStart, colon, 16);
+					offset = parseNumber(line, colon + 1, tokenEnd, 16);
+					if (runtimeSegment >= 0 && runtimeSegment <= 0xFFFF && offset >= 0) {
+						segmentIndex = optionalRuntimeSegmentMap.get()
+								.segmentIndex(runtimeSegment, offset);
+					}
+				} else {
+					segmentIndex = parseNumber(line, tokenStart, colon, 10);
+					offset = parseNumber(line, colon + 1, tokenEnd, 10);
+					if (segmentIndex >= executable.segments.size() || offset < 0) {
+						segmentIndex = RuntimeSegmentMap.NONE;
+					}
+				}
+			} else {
+				int fileOffset = parseNumber(line, tokenStart, tokenEnd, 10);
+				if (fileOffset >= 0) {
+					segmentIndex = translator.segmentIndexForFileOffset(fileOffset);
+					if (segmentIndex != AddressTranslator.NONE) {
+						offset = translator.offsetInSegment(segmentIndex, fileOffset);
+					}
+				}
+			}
+
+			if (segmentIndex != RuntimeSegmentMap.NONE && offset <= 0xFFFF) {
+				String hexOffset = Integer.toHexString(0x10000 | offset).toUpperCase();
+				writer.write('\t');
+				writer.write(Integer.toString(segmentIndex));
+				writer.write(":0x");
+				writer.write(hexOffset, 1, 4);
+				// a CS:IP is in the load module (overlay code runs wherever it is loaded), while
+				// the other forms of address are of the patchable range
+				Optional<String> symbol = optionalRuntimeSegmentMap.isPresent()
+						? symbolIndex.symbolize(segmentIndex, offset)
+						: symbolIndex.symbolizePatchable(executable, segmentIndex, offset);
+				if (symbol.isPresent()) {
+					writer.write(' ');
+					writer.write(symbol.get());
+				}
+			}
+			writer.newLine();
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Parses a non-negative number in a part of a string, which is hexadecimal if 0x-prefixed and
+	 * otherwise in the given radix, without throwing an exception for a part that isn't a number
+	 * (as most lines of a trace won't be).
+	 *
+	 * @return the number, or -1 if the part isn't a number of up to 8 digits
+	 */
+	private static int parseNumber(String string, int start, int end, int radix) {
+		if (end - start > 2 && string.charAt(start) == '0'
+				&& Character.toLowerCase(string.charAt(start + 1)) == 'x') {
+			start += 2;
+			radix = 16;
+		}
+		if (start == end || end - start > 8) {
+			return -1;
+		}
+
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = Character.digit(string.charAt(i), radix);
+			if (digit < 0) {
+				return -1;
+			}
+			value = value * radix + digit;
+		}
+		return value;
+	}
+
+	/** Names the address at a file offset, if it is in a segment and there is a name below it. */
+	private static Optional<String> symbolizeFileOffset(
+			Executable executable, SymbolIndex symbolIndex, int fileOffset) {
+		return executable.segmentIndexForFileOffset(fileOffset).flatMap(segmentIndex -> {
+			Patchable patchable = executable.segments.get(segmentIndex).patchable();
+			return symbolIndex.symbolizePatchable(executable,
+					segmentIndex,
+					fileOffset - patchable.startInFile() + patchable.startOffset());
+		});
+	}
+
+	/**
+	 * Reads the index of far references from the given file if it was written for this executable
+	 * as it is now, or else indexes the executable, writing the index to the file (if given) so
+	 * that later queries need not decode the executable again.
+	 */
+	private static FarReferenceIndex readOrBuildFarReferenceIndex(
+			Executable executable, Optional<Path> optionalIndexPath) throws IOException {
+		byte[] exeBytes = Files.readAllBytes(executable.path);
+		int exeCrc32 = RangeChecksum.crc32(exeBytes, 0, exeBytes.length);
+
+		if (optionalIndexPath.isPresent() && Files.exists(optionalIndexPath.get())) {
+			Optional<FarReferenceIndex> optionalIndex = FarReferenceIndex.readFrom(
+					optionalIndexPath.get(), exeBytes.length, exeCrc32);
+			if (optionalIndex.isPresent()) {
+				L.info("read index of far references from {}", optionalIndexPath.get());
+				return optionalIndex.get();
+			}
+			L.info("{} indexes a different executable; indexing again", optionalIndexPath.get());
+		}
+
+		FarReferenceIndex index = FarReferenceIndex.build(executable, exeBytes);
+		index.logStatistics();
+		if (optionalIndexPath.isPresent()) {
+			L.info("writing index of far references to {}", optionalIndexPath.get());
+			index.writeTo(optionalIndexPath.get(), exeBytes.length, exeCrc32);
+		}
+
+		return index;
+	}
+
+	/**
+	 * Finds space in turn for blocks of the given lengths, each optionally restricted to a
+	 * segment (as <code>[segmentIndex:]length</code>), so that a patch can be assembled to place
+	 * new code in unused bytes before resorting to expanding an overlay.
+	 */
+	private static void allocateFreeSpace(FreeSpaceMap freeSpaceMap, List<String> allocateArgs) {
+		L.info("free space allocated for blocks of the given lengths:");
+		logMappedValues(Justification.RIGHT, allocateArgs, arg -> {
+			Optional<Integer> segmentIndex;
+			int length;
+			if (arg.contains(":")) {
+				SegmentAndOffset segmentAndLength = SegmentAndOffset.fromString(arg);
+				segmentIndex = Optional.of(segmentAndLength.segmentIndex);
+				length = segmentAndLength.offset;
+			} else {
+				segmentIndex = Optional.empty();
+				length = Integer.decode(arg);
+			}
+
+			return Optional.of(freeSpaceMap.allocate(segmentIndex, length)
+					.map(region -> String.format(
+							"%s (%s)", region.formatAddress(), region.kind.description))
+					.orElse("(no region large enough; use --expand-overlay to make room)"));
+		});
+	}
+
 	private static ExecutableEditState withExpandedOverlays(
-			Executable executable, List<String> expandOverlayArgs, Optional<String> eopSpacingArg) {
-		int eopSpacing = eopSpacingArg.map(Integer::decode).orElse(DEFAULT_EOP_SPACING);
+			Executable executable,
+			List<String> expandOverlayArgs,
+			Optional<String> eopSpacingArg,
+			List<Patch> patches) {
+		Optional<Integer> eopSpacing = eopSpacingArg.map(Integer::decode);
+		List<PatchBlock> blocks = patches.stream()
+				.flatMap(p -> p.blocks.stream())
+				.collect(Collectors.toList());
 
 		ExecutableEditOperation expandOverlaysOperation = expandOverlayArgs.stream()
-				.map(SegmentAndOffset::fromString)
-				.map(address -> (ExecutableEditOperation) new ExpandOverlayOperation(
-						address.segmentIndex,
-						address.offset,
-						eopSpacing,
-						uncheckIoBiFunction(UltimaPatcher::applyEditsInMemory)))
+				.map(arg -> {
+					int segmentIndex;
+					Optional<Integer> newLength;
+					if (arg.endsWith(AUTO_OVERLAY_LENGTH_SUFFIX)) {
+						segmentIndex = Integer.valueOf(arg.substring(
+								0, arg.length() - AUTO_OVERLAY_LENGTH_SUFFIX.length()));
+						newLength = Optional.empty();
+					} else {
+						SegmentAndOffset address = SegmentAndOffset.fromString(arg);
+						segmentIndex = address.segmentIndex;
+						newLength = Optional.of(address.offset);
+					}
+
+					return (ExecutableEditOperation) new ExpandOverlayOperation(
+							segmentIndex,
+							newLength,
+							eopSpacing,
+							blocks,
+							uncheckIoBiFunction(UltimaPatcher::applyEditsInMemory));
+				})
 				.reduce(state -> state, (op1, op2) -> op1.andThen(op2));
 
 		return expandOverlaysOperation.apply(ExecutableEditState.startingWith(executable));
@@ -464,15 +1416,27 @@ public class UltimaPatcher {
 			exeBytes = Util.read(exeChannel, 0, (int) exeChannel.size());
 		}
 
+		Path tempExePath = writeToInMemoryFile(exeBytes);
+		applyEdits(tempExePath, edits);
+		return Executable.readFromFile(tempExePath);
+	}
+
+	private static byte[] applyEditsToBytes(byte[] bytes, Iterable<Edit> edits)
+			throws IOException {
+		Path tempPath = writeToInMemoryFile(bytes);
+		applyEdits(tempPath, edits);
+		return Files.readAllBytes(tempPath);
+	}
+
+	private static Path writeToInMemoryFile(byte[] bytes) throws IOException {
 		FileSystem jimfs = Jimfs.newFileSystem();
-		Path tempExePath = jimfs.getPath("temp.exe");
-		try (FileChannel tempExeChannel = FileChannel.open(
-				tempExePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
-			Util.write(tempExeChannel, 0, exeBytes);
+		Path tempPath = jimfs.getPath("temp.exe");
+		try (FileChannel tempChannel = FileChannel.open(
+				tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			Util.write(tempChannel, 0, bytes);
 		}
 
-		applyEdits(tempExePath, edits);
-		return Executable.readFromFile(tempExePath);
+		return tempPath;
 	}
 
 	private static ImmutableList<Edit> editsForPatches(Executable executable, List<Patch> patches) {
@@ -509,8 +1473,10 @@ public class UltimaPatcher {
 						.orElseThrow(() -> new PatchApplicationException(String.format(
 							"no segment for block for %s", block.formatAddress())));
 
+				int paddedEndOffset = patchable.endOffset()
+						+ executable.paddingAfterSegment(block.segmentIndex);
 				if (block.startOffset < patchable.startOffset()
-						|| block.endOffset() > patchable.endOffset()) {
+						|| block.endOffset() > paddedEndOffset) {
 					throw new PatchApplicationException(String.format(
 							"block for %s is outside bounds of segment", block.formatAddress()));
 				}
@@ -560,10 +1526,452 @@ public class UltimaPatcher {
 		});
 	}
 
+	private static void streamHackProto(
+			Path hackPath, Path exePath, int originalExeLength, Options options) {
+		try (HackReader hackReader = callUncheckedIoSupplier(() -> HackReader.open(hackPath))) {
+			L.info("read hack proto");
+
+			hackReader.targetLength.ifPresentOrElse(targetLength -> {
+				L.info(String.format("  hack target file length: 0x%X", targetLength));
+			}, () -> {
+				L.info("  hack does not specify a target file length");
+			});
+
+			hackReader.comment.ifPresentOrElse(comment -> {
+				L.info("  hack comment: {}", comment);
+			}, () -> {
+				L.info("  has does not specify a comment");
+			});
+
+			if (!hackReader.expectedChecksums.isEmpty()) {
+				L.info("  hack expects checksums of {} ranges",
+						hackReader.expectedChecksums.size());
+			}
+
+			if (options.writeToExe) {
+				// Edits are decoded again for each pass over them rather than held in memory.
+				Iterable<Edit> edits = HackReader.edits(hackPath);
+
+				try {
+					PresentEditFilter presentEdits = PresentEditFilter.scan(
+							edits, hackReader.targetLength, originalExeLength);
+					RangeSet<Integer> presentWrites = TreeRangeSet.create();
+					if (allEditsPresent(exePath, edits, presentEdits, presentWrites)) {
+						L.info("All edits of the hack are already present in {}.", exePath);
+						return;
+					}
+
+					if (presentEdits.presentShiftCount > 0) {
+						L.info("{} insertions and removals of the hack are already present",
+								presentEdits.presentShiftCount);
+					} else {
+						checkHackTarget(
+								hackReader, exePath, originalExeLength, presentWrites, options);
+					}
+
+					writeEditsToExe(exePath, edits, presentEdits, options);
+				} catch (PatchApplicationException e) {
+					exitNotWriting(exePath, e);
+				}
+			} else {
+				checkHackTarget(hackReader,
+						exePath,
+						originalExeLength,
+						ImmutableRangeSet.of(),
+						options);
+
+				L.info("hack edits:");
+				int editCount = 0;
+				while (hackReader.hasNext()) {
+					L.info("  {}", hackReader.next());
+					editCount++;
+				}
+				L.info("{} edits", editCount);
+
+				L.info("Use --write-to-exe to patch the executable.");
+			}
+		}
+	}
+
+	/**
+	 * Reports why edits can't be written to the executable (as when which of them are already
+	 * present can't be told), which is left as it was, and exits.
+	 */
+	private static void exitNotWriting(Path exePath, PatchApplicationException e) {
+		L.error("Not writing to {}: {}", exePath, e.getMessage());
+		System.exit(0xDEADBEEF);
+	}
+
+	/**
+	 * Checks that the executable is the one the hack targets, leaving out of its checksums the
+	 * ranges written by edits of the hack found to be present (as after an interrupted run).
+	 */
+	private static void checkHackTarget(HackReader hackReader,
+			Path exePath,
+			int originalExeLength,
+			RangeSet<Integer> presentWrites,
+			Options options) {
+		hackReader.targetLength.ifPresent(targetLength -> {
+			checkTargetLength(targetLength, originalExeLength, options.ignoreExeLength);
+		});
+
+		if (!hackReader.expectedChecksums.isEmpty()) {
+			List<RangeChecksum> checksums = hackReader.expectedChecksums.stream()
+					.filter(checksum -> presentWrites.subRangeSet(Range.closedOpen(
+							checksum.start, checksum.start + checksum.length)).isEmpty())
+					.collect(Collectors.toList());
+			if (checksums.size() < hackReader.expectedChecksums.size()) {
+				L.info("  not checking {} ranges written by edits already present",
+						hackReader.expectedChecksums.size() - checksums.size());
+			}
+			checkExpectedChecksums(exePath, checksums, options.ignoreExeLength);
+		}
+	}
+
+	/**
+	 * Checks, without writing anything, whether every edit is already present in the executable,
+	 * adding to presentWrites the ranges written by the edits found present before the first
+	 * that isn't.
+	 */
+	private static boolean allEditsPresent(Path exePath,
+			Iterable<Edit> edits,
+			PresentEditFilter presentEdits,
+			RangeSet<Integer> presentWrites) {
+		return callUncheckedIoSupplier(() -> {
+			try (HackReader.Iteration iteration = HackReader.iterate(edits);
+					SeekableByteChannel channel =
+							FileChannel.open(exePath, StandardOpenOption.READ)) {
+				PresentEditFilter.Checker checker = presentEdits.newChecker();
+				while (iteration.hasNext()) {
+					Edit edit = iteration.next();
+					if (!checker.isPresent(edit, channel)) {
+						return false;
+					}
+					presentWrites.add(edit.writtenRange());
+				}
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Applies edits to the executable as they are produced, recording the inverse of each if an
+	 * inverse hack is to be written.
+	 */
+	private static void writeEditsToExe(
+			Path exePath, Iterable<Edit> edits, PresentEditFilter presentEdits, Options options) {
+		// an insertion or removal moves the rest of the file, too much to journal
+		boolean inPlace = options.inPlace && !presentEdits.shiftsRemaining();
+		if (inPlace) {
+			L.info("writing in place to exe {}, journaling to {}",
+					exePath, ExeTransaction.journalPath(exePath));
+		} else {
+			if (options.inPlace) {
+				L.info("edits insert or remove bytes, so not writing in place");
+			}
+			L.info("writing to exe {}", exePath);
+		}
+
+		Optional<InverseHackRecorder> inverseRecorder =
+				options.writeInverseHack.map(path -> new InverseHackRecorder());
+
+		Optional<Hack> inverse = callUncheckedIoSupplier(() -> {
+			try (HackReader.Iteration iteration = HackReader.iterate(edits);
+					ExeTransaction transaction = inPlace
+							? ExeTransaction.inPlace(exePath)
+							: ExeTransaction.replacing(exePath)) {
+				SeekableByteChannel channel = transaction.channel();
+				PresentEditFilter.Checker checker = presentEdits.newChecker();
+				int editCount = 0;
+				int presentEditCount = 0;
+				while (iteration.hasNext()) {
+					Edit edit = iteration.next();
+					if (checker.isPresent(edit, channel)) {
+						L.info("  {} (already present)", edit);
+						presentEditCount++;
+						continue;
+					}
+
+					L.info("  {}", edit);
+					if (inverseRecorder.isPresent()) {
+						inverseRecorder.get().record(checker.toApply(edit), channel);
+					}
+					transaction.apply(checker.toApply(edit));
+					editCount++;
+				}
+				L.info("applied {} edits, skipping {} already present",
+						editCount, presentEditCount);
+
+				// built before committing, while the edited file is open, but written after, so
+				// that it is never left undoing edits that were not made
+				Optional<Hack> built = Optional.empty();
+				if (inverseRecorder.isPresent()) {
+					built = Optional.of(inverseRecorder.get().build(channel,
+							Optional.of(String.format("undoes %d edits to %s",
+									inverseRecorder.get().recordedEditCount(),
+									exePath.getFileName()))));
+				}
+
+				transaction.commit();
+				return built;
+			}
+		});
+
+		inverse.ifPresent(hack -> {
+			Path inversePath = options.writeInverseHack.get();
+			L.info(String.format(
+					"writing inverse hack of %d edits (restoring 0x%X bytes) to %s",
+					hack.edits.size(),
+					hack.edits.stream().mapToInt(edit -> Util.length(edit.writtenRange())).sum(),
+					inversePath));
+			callUncheckedIoRunnable(() -> ExeTransaction.writeAtomically(
+					inversePath, hack.toProtoHack().toByteArray()));
+		});
+	}
+
+	/**
+	 * Selects, from the hacks in a directory, the one targeting the executable (or, to verify, the
+	 * one with which the executable has been patched).
+	 */
+	private static Path selectHack(Path directory, Path exePath, boolean applied) {
+		HackIndex index = callUncheckedIoSupplier(() -> HackIndex.scan(directory));
+		L.info("indexed {} hacks in {}", index.size(), directory);
+
+		List<HackIndex.Entry> matches = callUncheckedIoSupplier(() -> applied
+				? index.findApplied(exePath)
+				: index.findTargeting(exePath));
+
+		if (matches.isEmpty()) {
+			if (applied) {
+				L.error("No hack in {} has been applied to {}.", directory, exePath);
+			} else {
+				L.error("No hack in {} targets {}.", directory, exePath);
+				callUncheckedIoSupplier(() -> index.findApplied(exePath)).forEach(entry -> {
+					L.error("  (it appears to have been patched with {})", entry);
+				});
+			}
+			System.exit(0xDEADBEEF);
+		} else if (matches.size() > 1) {
+			L.error("{} hacks in {} match {}:", matches.size(), directory, exePath);
+			matches.forEach(entry -> L.error("  {}", entry));
+			System.exit(0xDEADBEEF);
+		}
+
+		HackIndex.Entry selected = matches.get(0);
+		L.info("selected hack {}", selected);
+		return selected.hackPath;
+	}
+
+	private static void verifyHack(Path hackPath, Path exePath) {
+		Hack hack = callUncheckedIoSupplier(() -> Hack.readFromFile(hackPath));
+		HackVerifier verifier = HackVerifier.forHack(hack);
+		L.info(String.format(
+				"checking 0x%X bytes in %d ranges known from hack %s",
+				verifier.checkedByteCount(),
+				verifier.checkedRangeCount(),
+				hackPath));
+
+		long exeLength = callUncheckedIoSupplier(() -> Files.size(exePath));
+		List<HackVerifier.Drift> drift = callUncheckedIoSupplier(() -> {
+			try (SeekableByteChannel channel = FileChannel.open(exePath, StandardOpenOption.READ)) {
+				return verifier.findDrift(channel);
+			}
+		});
+
+		boolean lengthMatches = verifier.resultLength
+				.map(resultLength -> resultLength == exeLength)
+				.orElse(true);
+		if (!lengthMatches) {
+			L.error(String.format(
+					"  executable length 0x%X differs from the 0x%X bytes the hack produces",
+					exeLength,
+					verifier.resultLength.get()));
+		}
+		drift.forEach(range -> L.error("  drift at {}", range));
+
+		if (!lengthMatches || !drift.isEmpty()) {
+			L.error("{} differs from the result of hack {} in {} ranges.",
+					exePath, hackPath, drift.size());
+			System.exit(0xDEADBEEF);
+		}
+
+		L.info("{} matches the result of hack {}.", exePath, hackPath);
+	}
+
+	private static void checkExpectedChecksums(
+			Path exePath, List<RangeChecksum> checksums, boolean ignoreExeLength) {
+		List<RangeChecksum> mismatches = callUncheckedIoSupplier(() -> {
+			List<RangeChecksum> mismatched = new ArrayList<>();
+			try (SeekableByteChannel channel = FileChannel.open(exePath, StandardOpenOption.READ)) {
+				for (RangeChecksum checksum : checksums) {
+					if (!checksum.matches(channel)) {
+						mismatched.add(checksum);
+					}
+				}
+			}
+			return mismatched;
+		});
+
+		if (mismatches.isEmpty()) {
+			return;
+		}
+
+		if (ignoreExeLength) {
+			mismatches.forEach(checksum -> L.warn("  executable does not match {}", checksum));
+			L.warn(String.format(
+					"%d of %d ranges of the executable differ from what the hack expects.",
+					mismatches.size(),
+					checksums.size()));
+		} else {
+			mismatches.forEach(checksum -> L.error("  executable does not match {}", checksum));
+			L.error(String.format(
+					"%d of %d ranges of the executable differ from what the hack expects."
+					+ " Use --ignore-exe-length to bypass this check.",
+					mismatches.size(),
+					checksums.size()));
+			System.exit(0xDEADBEEF);
+		}
+	}
+
+	private static void writeHackDelta(Options options) {
+		if (options.hackDelta.size() != 2) {
+			L.error("--hack-delta takes exactly two hack protos: old and new");
+			System.exit(0xDEADBEEF);
+		}
+
+		Path exePath = options.exe.get();
+		Hack oldHack = callUncheckedIoSupplier(() -> Hack.readFromFile(options.hackDelta.get(0)));
+		Hack newHack = callUncheckedIoSupplier(() -> Hack.readFromFile(options.hackDelta.get(1)));
+		byte[] originalBytes = callUncheckedIoSupplier(() -> Files.readAllBytes(exePath));
+
+		L.info(new HexValueMessage(originalBytes.length, String.format(
+				"original executable length (%s)", exePath)));
+		for (Hack hack : List.of(oldHack, newHack)) {
+			hack.targetLength.ifPresent(targetLength -> checkTargetLength(
+					targetLength, originalBytes.length, options.ignoreExeLength));
+		}
+
+		byte[] oldBytes = callUncheckedIoSupplier(
+				() -> applyEditsToBytes(originalBytes, oldHack.edits));
+		byte[] newBytes = callUncheckedIoSupplier(
+				() -> applyEditsToBytes(originalBytes, newHack.edits));
+
+		Hack delta = HackDelta.compute(originalBytes, oldBytes, newBytes, options.hackComment);
+		L.info("{} resulting edits:", delta.edits.size());
+		if (!delta.edits.isEmpty()) {
+			logMappedValues(Justification.LEFT, delta.edits, Edit::explanation);
+		}
+		L.info(String.format(
+				"  writing 0x%X bytes, where the new hack writes 0x%X",
+				delta.edits.stream().mapToInt(edit -> Util.length(edit.writtenRange())).sum(),
+				newHack.edits.stream().mapToInt(edit -> Util.length(edit.writtenRange())).sum()));
+		L.info("  expecting checksums of {} ranges", delta.expectedChecksums.size());
+
+		Path deltaPath = options.writeHackProto.get();
+		L.info("writing hack proto to {}", deltaPath);
+		callUncheckedIoRunnable(
+				() -> Files.write(deltaPath, delta.toProtoHack().toByteArray()));
+	}
+
+	private static Optional<String> formatSegmentedAddress(Executable executable, int fileOffset) {
+		return executable.segmentIndexForFileOffset(fileOffset)
+				.map(segmentIndex -> Util.formatAddress(
+						segmentIndex,
+						fileOffset - executable.segments.get(segmentIndex)
+								.patchable().startInFile()));
+	}
+
+	/**
+	 * Compares the executable to a modified copy, logging the ranges that differ (by file offset
+	 * and by segment:offset address in the executable) and optionally compiling a hack proto that
+	 * makes the modifications.
+	 */
+	private static void diffExecutables(Options options) {
+		Path exePath = options.exe.get();
+		Path modifiedPath = options.diff.get();
+
+		Executable executable = callUncheckedIoSupplier(() -> Executable.readFromFile(exePath));
+		executable.logSummary();
+
+		Hack hack = callUncheckedIoSupplier(() -> {
+			try (FileChannel exeChannel = FileChannel.open(exePath, StandardOpenOption.READ);
+					FileChannel modifiedChannel =
+							FileChannel.open(modifiedPath, StandardOpenOption.READ)) {
+				return HackDelta.diff(
+						exeChannel.map(MapMode.READ_ONLY, 0, exeChannel.size()),
+						modifiedChannel.map(MapMode.READ_ONLY, 0, modifiedChannel.size()),
+						RangeChecksum.fingerprint(exeChannel),
+						options.hackComment);
+			}
+		});
+
+		L.info("{} edits turn {} into {}:", hack.edits.size(), exePath, modifiedPath);
+		logMappedValues(Justification.LEFT, hack.edits, edit -> {
+			int start = edit.writtenRange().lowerEndpoint();
+			// a removal writes nothing, but affects the bytes it removes
+			int end = edit.shiftLength() < 0
+					? start - edit.shiftLength()
+					: edit.writtenRange().upperEndpoint();
+			String fileRange = String.format("0x%05X-0x%05X", start, end);
+			return Optional.of(formatSegmentedAddress(executable, start)
+					.map(address -> fileRange + " at " + address)
+					.orElse(fileRange));
+		});
+
+		options.writeHackProto.ifPresentOrElse(hackPath -> {
+			L.info("writing hack proto to {}", hackPath);
+			callUncheckedIoRunnable(() -> Files.write(hackPath, hack.toProtoHack().toByteArray()));
+		}, () -> {
+			L.info("Use --write-hack-proto to compile the differences into a hack proto.");
+		});
+	}
+
+	private static void mergeHacks(
+			List<Path> hackPaths, Path mergedHackPath, Optional<String> comment) {
+		List<Hack> hacks = hackPaths.stream()
+				.map(uncheckIoFunction(Hack::readFromFile))
+				.collect(Collectors.toList());
+
+		L.info("merging {} hacks:", hacks.size());
+		for (int iHack = 0; iHack < hacks.size(); iHack++) {
+			L.info("  {} ({} edits)", hackPaths.get(iHack), hacks.get(iHack).edits.size());
+		}
+
+		List<String> hackNames = hackPaths.stream()
+				.map(Path::toString)
+				.collect(Collectors.toList());
+		Optional<Hack> optionalMergedHack = new HackMerger(hackNames).merge(hacks, comment);
+		if (!optionalMergedHack.isPresent()) {
+			L.error("Hacks conflict; not writing a merged hack.");
+			System.exit(0xDEADBEEF);
+		}
+
+		Hack mergedHack = optionalMergedHack.get();
+		L.info("{} resulting edits:", mergedHack.edits.size());
+		logMappedValues(Justification.LEFT, mergedHack.edits, Edit::explanation);
+
+		L.info("writing hack proto to {}", mergedHackPath);
+		callUncheckedIoRunnable(() -> Files.write(
+				mergedHackPath, mergedHack.toProtoHack().toByteArray()));
+	}
+
+	/**
+	 * Writes a hack proto of edits to the executable, targeting its length and expecting its
+	 * fingerprint checksums (by which --auto-hack finds the hack for an executable).
+	 */
 	private static void writeHackProto(
-			Path path, ImmutableList<Edit> edits, int targetLength, Optional<String> comment) {
-		Hack hack = new Hack(edits, Optional.of(targetLength), comment);
-		callUncheckedIoRunnable(() -> Files.write(path, hack.toProtoHack().toByteArray()));
+			Path path, ImmutableList<Edit> edits, Path exePath, Optional<String> comment) {
+		callUncheckedIoRunnable(() -> {
+			Hack hack;
+			try (SeekableByteChannel channel = FileChannel.open(exePath, StandardOpenOption.READ)) {
+				hack = new Hack(
+						edits,
+						Optional.of((int) channel.size()),
+						comment,
+						RangeChecksum.fingerprint(channel));
+			}
+			Files.write(path, hack.toProtoHack().toByteArray());
+		});
 	}
 
 	private static <T> void logMappedValues(
@@ -5,8 +5,11 @@ import static java.nio.ByteOrder.LITTLE_ENDIAN;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.stream.Stream;
 
+import com.google.common.collect.Range;
+
 class Util {
 	static final int PARAGRAPH_SIZE = 0x10;
 
@@ -18,6 +21,10 @@ class Util {
 		return String.format("%d:0x%04X", segmentIndex, offset);
 	}
 
+	static int length(Range<Integer> closedOpenRange) {
+		return closedOpenRange.upperEndpoint() - closedOpenRange.lowerEndpoint();
+	}
+
 	static void checkBytesLength(byte[] bytes, long expected) {
 		if (expected != bytes.length) {
 			String message = String.format("expected %d bytes, got %d", expected, bytes.length);
@@ -48,6 +55,18 @@ class Util {
 		}
 	}
 
+	static String readSignature(ByteBuffer buffer, int length) {
+		byte[] bytes = new byte[Math.min(length, buffer.limit())];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(i);
+		}
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+	static boolean hasSignature(ByteBuffer buffer, String signature) {
+		return readSignature(buffer, signature.length()).equals(signature);
+	}
+
 	static ByteBuffer littleEndianBytes(int byteCount) {
 		ByteBuffer buffer = ByteBuffer.wrap(new byte[byteCount]);
 		buffer.order(LITTLE_ENDIAN);
@@ -0,0 +1,29 @@
+#!/bin/sh
+
+# Prints a static call profile of EOP procs ("caller callee count", counting
+# call sites) from the given patch sources, for UltimaPatcher's
+# --optimize-eop-layout. Calls from outside of any EOP proc are given "-" as
+# their caller.
+
+awk '
+	FNR == 1 {
+		caller = "-"
+	}
+	$1 == "startBlockAt" {
+		caller = "-"
+	}
+	$1 == "startBlockAt" && $2 ~ /^addr_eop_/ {
+		caller = $2
+		sub(/^addr_eop_/, "", caller)
+	}
+	$1 ~ /^call(VarArgs|ByteArg)Eop/ && $2 ~ /^[A-Za-z_][A-Za-z0-9_]*,$/ {
+		callee = $2
+		sub(/,$/, "", callee)
+		count[caller " " callee]++
+	}
+	END {
+		for (pair in count) {
+			print pair, count[pair]
+		}
+	}
+' "$@" | sort